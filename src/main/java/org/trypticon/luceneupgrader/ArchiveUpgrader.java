@@ -0,0 +1,120 @@
+package org.trypticon.luceneupgrader;
+
+import org.trypticon.luceneupgrader.lucene8.ArchiveDirectory8;
+import org.trypticon.luceneupgrader.lucene8.StreamingUpgrader8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Upgrades an index kept in a zip or tar archive, replacing the archive with one of the same
+ * kind holding the upgraded index.
+ *
+ * Indexes which can be streamed straight to Lucene 8 are read from the archive as they are
+ * upgraded, so the old index is never extracted. Anything else is extracted next to the
+ * archive and upgraded one step at a time as usual. Either way, the new index is written
+ * next to the archive and then packed into the new archive, which only replaces the old one
+ * once it is complete. Anything else in the archive besides the index is copied into the new
+ * archive as it is. Archived indexes are always upgraded from the start, so resumable
+ * mode and disk budgets don't apply to them.
+ */
+public class ArchiveUpgrader {
+
+    private final Path archive;
+
+    private final InfoStream infoStream;
+
+    private final UpgradeConfig config;
+
+    public ArchiveUpgrader(Path archive) {
+        this(archive, InfoStream.NO_OUTPUT);
+    }
+
+    public ArchiveUpgrader(Path archive, InfoStream infoStream) {
+        this(archive, infoStream, new UpgradeConfig());
+    }
+
+    public ArchiveUpgrader(Path archive, InfoStream infoStream, UpgradeConfig config) {
+        this.archive = archive;
+        this.infoStream = infoStream;
+        this.config = config;
+    }
+
+    /**
+     * Upgrades to a specific version of Lucene. An index which is already at that version
+     * or newer is left alone.
+     *
+     * @param destinationVersion the destination version.
+     * @throws IOException if an error occurs reading or writing.
+     */
+    public void upgradeTo(LuceneVersion destinationVersion) throws IOException {
+        Path scratchDirectory = archive.resolveSibling(archive.getFileName() + ".tmp");
+        FileUtils.insecureRecursiveDelete(scratchDirectory);
+        Files.createDirectories(scratchDirectory);
+        try {
+            Path index = scratchDirectory.resolve("index");
+            Path otherFiles = scratchDirectory.resolve("other");
+            String prefix;
+            boolean streamed;
+            try (IndexArchive source = IndexArchive.open(archive, scratchDirectory)) {
+                prefix = source.getPrefix();
+                LuceneVersion version;
+                try (ArchiveDirectory8 directory = new ArchiveDirectory8(source)) {
+                    version = new VersionGuesser().guess(directory);
+                }
+                if (!version.isOlderThan(destinationVersion)) {
+                    return;
+                }
+
+                streamed = canStream(version, destinationVersion, source);
+                if (streamed) {
+                    Files.createDirectories(index);
+                    stream(source, version, index);
+                } else {
+                    source.extractTo(index);
+                }
+                source.extractOtherFilesTo(otherFiles);
+            }
+            if (!streamed) {
+                new IndexUpgrader(index, infoStream, config).upgradeTo(destinationVersion);
+            }
+
+            Path newArchive = scratchDirectory.resolve(archive.getFileName());
+            IndexArchive.write(index, newArchive, prefix, otherFiles);
+            Files.move(newArchive, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            FileUtils.fsync(archive.toAbsolutePath().getParent(), true);
+        } finally {
+            FileUtils.insecureRecursiveDelete(scratchDirectory);
+        }
+    }
+
+    private boolean canStream(LuceneVersion version, LuceneVersion destinationVersion, IndexArchive source) {
+        return destinationVersion == LuceneVersion.VERSION_8 && !config.isResumable() && config.getDiskBudget() == 0 &&
+               ((version == LuceneVersion.VERSION_3 || version == LuceneVersion.VERSION_4) &&
+                config.getLegacyNumericFields().isEmpty() || version == LuceneVersion.VERSION_6) &&
+               StreamingUpgrader8.canUpgrade(source);
+    }
+
+    private void stream(IndexArchive source, LuceneVersion version, Path index) throws IOException {
+        UpgradeMetrics metrics = config.getMetrics();
+        if (metrics == null) {
+            new StreamingUpgrader8(source, index, infoStream, config).upgrade();
+        } else {
+            HopMetrics hop = metrics.startHop(archive, version, LuceneVersion.VERSION_8);
+            long documents = 0;
+            boolean failed = true;
+            try {
+                new StreamingUpgrader8(source, index, infoStream, config).upgrade();
+                for (SegmentDescription segment : LuceneVersion.VERSION_8.describeSegments(index)) {
+                    documents += segment.getMaxDoc() - segment.getDelCount();
+                }
+                failed = false;
+            } finally {
+                metrics.finishHop(hop, documents, failed);
+            }
+        }
+        System.out.println("..." + archive + " successfully upgraded to " + LuceneVersion.VERSION_8);
+    }
+}
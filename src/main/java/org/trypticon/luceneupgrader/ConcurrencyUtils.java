@@ -0,0 +1,188 @@
+package org.trypticon.luceneupgrader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+/**
+ * Helpers for spreading upgrade work across threads.
+ */
+public class ConcurrencyUtils {
+
+    private ConcurrencyUtils() {
+    }
+
+    /**
+     * Splits items into at most {@code binCount} groups of roughly equal total weight.
+     * Items are placed largest first into whichever group is currently lightest.
+     *
+     * @param items the items to split.
+     * @param binCount the maximum number of groups.
+     * @param weigher computes the weight of an item.
+     * @param <T> the type of item.
+     * @return the non-empty groups.
+     */
+    public static <T> List<List<T>> partition(List<T> items, int binCount, ToLongFunction<? super T> weigher) {
+        List<T> sorted = new ArrayList<>(items);
+        sorted.sort(Comparator.comparingLong(weigher).reversed());
+
+        int bins = Math.max(1, Math.min(binCount, sorted.size()));
+        List<List<T>> groups = new ArrayList<>(bins);
+        long[] totals = new long[bins];
+        for (int i = 0; i < bins; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (T item : sorted) {
+            int lightest = 0;
+            for (int i = 1; i < bins; i++) {
+                if (totals[i] < totals[lightest]) {
+                    lightest = i;
+                }
+            }
+            groups.get(lightest).add(item);
+            totals[lightest] += weigher.applyAsLong(item);
+        }
+        groups.removeIf(List::isEmpty);
+        return groups;
+    }
+
+    /**
+     * Creates a fixed size pool of daemon threads.
+     *
+     * @param threadCount the number of threads.
+     * @param name the prefix for the thread names.
+     * @return the executor.
+     */
+    public static ExecutorService newFixedThreadPool(int threadCount, String name) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(threadCount, threadFactory);
+    }
+
+    /**
+     * Runs all the tasks on the executor and waits for all of them to finish.
+     * If any task fails, the first failure is rethrown after the rest have completed,
+     * with later failures attached as suppressed exceptions.
+     *
+     * @param executor the executor to run the tasks on.
+     * @param tasks the tasks.
+     * @param <V> the type of result.
+     * @return the results, in the same order as the tasks.
+     * @throws IOException if a task threw an {@code IOException}, or if the wait was interrupted.
+     */
+    public static <V> List<V> invokeAll(ExecutorService executor, List<? extends Callable<V>> tasks) throws IOException {
+        List<Future<V>> futures = new ArrayList<>(tasks.size());
+        for (Callable<V> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+
+        List<V> results = new ArrayList<>(tasks.size());
+        Throwable failure = null;
+        for (Future<V> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                failure = addFailure(failure, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<V> other : futures) {
+                    other.cancel(true);
+                }
+                failure = addFailure(failure, new IOException("Interrupted while waiting for workers", e));
+                break;
+            }
+        }
+
+        if (failure != null) {
+            rethrow(failure);
+        }
+        return results;
+    }
+
+    /**
+     * Opens resources on the executor and waits for all of them, even once one has failed.
+     * If any fails to open, those which did open are closed again and the first failure is
+     * rethrown, with later failures attached as suppressed exceptions. Unlike
+     * {@link #invokeAll}, an interrupt doesn't abandon the tasks, since a resource opened
+     * after giving up on it would never be closed.
+     *
+     * @param executor the executor to open the resources on.
+     * @param openers the tasks opening each resource.
+     * @param <V> the type of resource.
+     * @return the resources, in the same order as the tasks.
+     * @throws IOException if a task threw an {@code IOException}.
+     */
+    public static <V extends Closeable> List<V> openAll(ExecutorService executor, List<? extends Callable<V>> openers)
+            throws IOException {
+        List<Future<V>> futures = new ArrayList<>(openers.size());
+        for (Callable<V> opener : openers) {
+            futures.add(executor.submit(opener));
+        }
+
+        List<V> results = new ArrayList<>(openers.size());
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Future<V> future : futures) {
+            while (true) {
+                try {
+                    results.add(future.get());
+                    break;
+                } catch (ExecutionException e) {
+                    failure = addFailure(failure, e.getCause());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure != null) {
+            for (V result : results) {
+                try {
+                    result.close();
+                } catch (IOException | RuntimeException e) {
+                    failure.addSuppressed(e);
+                }
+            }
+            rethrow(failure);
+        }
+        return results;
+    }
+
+    private static void rethrow(Throwable failure) throws IOException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else {
+            throw new IOException(failure);
+        }
+    }
+
+    private static Throwable addFailure(Throwable existing, Throwable failure) {
+        if (existing == null) {
+            return failure;
+        }
+        existing.addSuppressed(failure);
+        return existing;
+    }
+}
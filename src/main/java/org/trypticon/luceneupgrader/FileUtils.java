@@ -1,13 +1,20 @@
 package org.trypticon.luceneupgrader;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 public class FileUtils {
+
+    private static final long COPY_CHUNK_SIZE = 1024 * 1024;
+
+
     public static void insecureRecursiveDelete(Path path) throws IOException {
         try (DirectoryStream<? extends Path> stream = Files.newDirectoryStream(path)) {
             for (Path child : stream) {
@@ -18,4 +25,76 @@ public class FileUtils {
         }
         Files.deleteIfExists(path);
     }
-}
\ No newline at end of file
+
+    /**
+     * Forces a file or directory to disk, so that its contents (or for a directory, the
+     * entries created, renamed or deleted in it) survive a crash.
+     *
+     * @param path the file or directory.
+     * @param isDirectory whether the path is a directory.
+     * @throws IOException if an error occurs.
+     */
+    public static void fsync(Path path, boolean isDirectory) throws IOException {
+        StandardOpenOption option = isDirectory ? StandardOpenOption.READ : StandardOpenOption.WRITE;
+        try (FileChannel channel = FileChannel.open(path, option)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Some platforms (Windows) can't open directories at all. Same as Lucene, we live with it.
+            if (!isDirectory) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Copies the files in one directory into a new directory, forcing each to disk. Anything
+     * other than a regular file is left behind.
+     *
+     * @param source the directory to copy from.
+     * @param target the directory to create and copy to.
+     * @param throttle the throttle to apply to the reads and writes, or {@code null} for none.
+     * @throws IOException if an error occurs.
+     */
+    public static void copyDirectory(Path source, Path target, IOThrottle throttle) throws IOException {
+        Files.createDirectories(target);
+        long pendingBytes = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(source, Files::isRegularFile)) {
+            for (Path child : stream) {
+                try (FileChannel in = FileChannel.open(child, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(target.resolve(child.getFileName().toString()),
+                                                        StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                    long size = in.size();
+                    long position = 0;
+                    while (position < size) {
+                        long copied = in.transferTo(position, Math.min(COPY_CHUNK_SIZE, size - position), out);
+                        position += copied;
+                        // Each byte is both read and written.
+                        pendingBytes = throttle(throttle, pendingBytes + 2 * copied);
+                    }
+                    out.force(true);
+                }
+            }
+        }
+        fsync(target, true);
+    }
+
+    /**
+     * Swaps a directory for a replacement next to it, so that a crash leaves one or the other
+     * in place, and then deletes the old one.
+     *
+     * @param path the directory to replace.
+     * @param replacement the directory to put in its place, on the same file system.
+     * @throws IOException if an error occurs.
+     */
+    public static void replaceDirectory(Path path, Path replacement) throws IOException {
+        Path oldPath = path.resolveSibling(path.getFileName() + ".old");
+        Files.move(path, oldPath);
+        Files.move(replacement, path);
+        fsync(path.toAbsolutePath().getParent(), true);
+        insecureRecursiveDelete(oldPath);
+    }
+
+    private static long throttle(IOThrottle throttle, long pendingBytes) throws InterruptedIOException {
+        return throttle == null ? 0 : throttle.throttle(pendingBytes);
+    }
+}
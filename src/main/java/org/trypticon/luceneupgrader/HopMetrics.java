@@ -0,0 +1,277 @@
+package org.trypticon.luceneupgrader;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measurements of one step of upgrading an index, from one version of Lucene to the next.
+ *
+ * Segments and phases are reported as a {@link MergeListener} by each version's
+ * {@code IndexWriter} and {@code SegmentMerger}, or by the upgraders themselves, so every
+ * version is measured the same way. Bytes are counted as they pass through each version's
+ * directory, and put down to whichever segment the thread doing the I/O is writing at the time.
+ */
+public class HopMetrics implements MergeListener {
+
+    /**
+     * How many bytes each open file counts up before adding them here, to keep the counting
+     * cheap. Files which are dropped without being closed can leave up to this many bytes uncounted.
+     */
+    public static final int COUNT_INTERVAL = 64 * 1024;
+
+    private final Path index;
+
+    private final LuceneVersion fromVersion;
+
+    private final LuceneVersion toVersion;
+
+    private final long startTimeMillis = System.currentTimeMillis();
+
+    private final long startNanos = System.nanoTime();
+
+    private volatile long endNanos;
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final LongAdder bytesWritten = new LongAdder();
+
+    private final LongAccumulator peakHeapBytes = new LongAccumulator(Math::max, 0);
+
+    private volatile long documents;
+
+    private volatile boolean failed;
+
+    private final List<SegmentMetrics> segments = new ArrayList<>();
+
+    private final Map<Thread, SegmentMetrics> openSegments = new ConcurrentHashMap<>();
+
+    private final Object jfrEvent;
+
+    HopMetrics(Path index, LuceneVersion fromVersion, LuceneVersion toVersion) {
+        this.index = index;
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.jfrEvent = MetricsEvents.beginHop();
+    }
+
+    /**
+     * Counts bytes read from the index, or from the new one being written.
+     *
+     * @param bytes the number of bytes.
+     */
+    public void addBytesRead(long bytes) {
+        bytesRead.add(bytes);
+        SegmentMetrics segment = openSegments.get(Thread.currentThread());
+        if (segment != null) {
+            segment.addBytesRead(bytes);
+        }
+    }
+
+    /**
+     * Counts bytes written to the new index.
+     *
+     * @param bytes the number of bytes.
+     */
+    public void addBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+        SegmentMetrics segment = openSegments.get(Thread.currentThread());
+        if (segment != null) {
+            segment.addBytesWritten(bytes);
+        }
+    }
+
+    @Override
+    public void beginSegment(String name) {
+        endSegment(0);
+        SegmentMetrics segment = new SegmentMetrics(name, System.nanoTime());
+        synchronized (segments) {
+            segments.add(segment);
+        }
+        openSegments.put(Thread.currentThread(), segment);
+    }
+
+    @Override
+    public void endSegment(long documents) {
+        SegmentMetrics segment = openSegments.remove(Thread.currentThread());
+        if (segment != null) {
+            segment.finish(documents, index);
+        }
+    }
+
+    @Override
+    public void phase(String name, long nanos, long documents) {
+        long millis = nanos / 1000000;
+        SegmentMetrics segment = openSegments.get(Thread.currentThread());
+        if (segment == null) {
+            // Nothing said it was starting a segment, so it has to be worked out afterwards.
+            segment = new SegmentMetrics(null, System.nanoTime() - nanos);
+            synchronized (segments) {
+                segments.add(segment);
+            }
+            openSegments.put(Thread.currentThread(), segment);
+        }
+        segment.recordPhase(name, millis, documents);
+        MetricsEvents.commitPhase(index, segment, name, millis, documents);
+    }
+
+    void sampleHeap(long usedBytes) {
+        peakHeapBytes.accumulate(usedBytes);
+    }
+
+    void finish(long documents, boolean failed) {
+        for (Thread thread : new ArrayList<>(openSegments.keySet())) {
+            SegmentMetrics segment = openSegments.remove(thread);
+            if (segment != null) {
+                segment.finish(0, index);
+            }
+        }
+        this.documents = documents;
+        this.failed = failed;
+        this.endNanos = System.nanoTime();
+        MetricsEvents.commitHop(jfrEvent, this);
+    }
+
+    /**
+     * Gets the index being upgraded.
+     *
+     * @return the path to the index.
+     */
+    public Path getIndex() {
+        return index;
+    }
+
+    /**
+     * Gets the version the step upgrades from.
+     *
+     * @return the version.
+     */
+    public LuceneVersion getFromVersion() {
+        return fromVersion;
+    }
+
+    /**
+     * Gets the version the step upgrades to.
+     *
+     * @return the version.
+     */
+    public LuceneVersion getToVersion() {
+        return toVersion;
+    }
+
+    /**
+     * Gets when the step started.
+     *
+     * @return the time, in milliseconds since the epoch.
+     */
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /**
+     * Gets how long the step took, so far if it is still running.
+     *
+     * @return the time, in milliseconds.
+     */
+    public long getWallTimeMillis() {
+        long end = endNanos;
+        return ((end == 0 ? System.nanoTime() : end) - startNanos) / 1000000;
+    }
+
+    /**
+     * Tests whether the step has finished, successfully or not.
+     *
+     * @return {@code true} if it has finished.
+     */
+    public boolean isFinished() {
+        return endNanos != 0;
+    }
+
+    /**
+     * Tests whether the step failed.
+     *
+     * @return {@code true} if it failed.
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Gets roughly how many bytes the step read.
+     *
+     * @return the number of bytes.
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * Gets roughly how many bytes the step wrote.
+     *
+     * @return the number of bytes.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Gets the number of documents in the index once the step finished.
+     *
+     * @return the number of documents, or {@code 0} if the step hasn't finished or failed.
+     */
+    public long getDocuments() {
+        return documents;
+    }
+
+    /**
+     * Gets how many documents per second the step got through.
+     *
+     * @return the rate, or {@code 0} if the step hasn't finished or failed.
+     */
+    public double getDocumentsPerSecond() {
+        long millis = getWallTimeMillis();
+        return millis == 0 ? 0 : documents * 1000.0 / millis;
+    }
+
+    /**
+     * Gets the most heap in use at any time the step was sampled. This is for the whole JVM,
+     * so upgrades running at the same time all contribute to it.
+     *
+     * @return the number of bytes.
+     */
+    public long getPeakHeapBytes() {
+        return peakHeapBytes.get();
+    }
+
+    /**
+     * Gets the segments the step wrote, in the order it started them.
+     *
+     * @return the segments.
+     */
+    public List<SegmentMetrics> getSegments() {
+        synchronized (segments) {
+            return new ArrayList<>(segments);
+        }
+    }
+
+    /**
+     * Gets each phase of writing segments, added up over all the segments.
+     *
+     * @return the phases, in the order they first happened.
+     */
+    public List<PhaseMetrics> getPhases() {
+        Map<String, PhaseMetrics> totals = new LinkedHashMap<>();
+        for (SegmentMetrics segment : getSegments()) {
+            for (PhaseMetrics phase : segment.getPhases()) {
+                totals.computeIfAbsent(phase.getName(), PhaseMetrics::new)
+                      .add(phase.getMillis(), phase.getDocuments(), phase.getBytesRead(), phase.getBytesWritten());
+            }
+        }
+        return new ArrayList<>(totals.values());
+    }
+}
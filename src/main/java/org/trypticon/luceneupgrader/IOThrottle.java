@@ -0,0 +1,162 @@
+package org.trypticon.luceneupgrader;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which upgrades read and write, with one limit shared between every file,
+ * thread and index using the same throttle.
+ *
+ * In adaptive mode, the rate also backs off while reads and writes take longer than usual, which
+ * is a sign that something else sharing the disk is waiting on it, and recovers gradually once
+ * they speed up again.
+ */
+public class IOThrottle {
+
+    /**
+     * How often the rate is reconsidered in adaptive mode.
+     */
+    private static final long ADJUST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    /**
+     * How many times slower than the usual speed I/O can get before the rate backs off.
+     */
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    /**
+     * How far the usual speed drifts towards slower each interval, so that a lasting change in
+     * the mix of I/O doesn't hold the rate down forever.
+     */
+    private static final double BASELINE_DRIFT = 1.05;
+
+    /**
+     * The lowest the rate is backed off to, as a fraction of the maximum.
+     */
+    private static final double MIN_RATE_FRACTION = 1.0 / 16;
+
+    /**
+     * How often, in time at the current rate, callers check in to pause. Lucene's own rate
+     * limiter uses the same figure.
+     */
+    private static final double PAUSE_CHECK_SECONDS = 0.005;
+
+    /**
+     * The smallest read or write worth timing for adaptive mode. Smaller ones mostly copy to or
+     * from a buffer without touching the disk, so timing them says little and costs a lot.
+     */
+    public static final int MIN_TIMED_BYTES = 1024;
+
+    /**
+     * How many bytes of timed reads or writes each file adds up before recording their latency,
+     * so that the rate is adjusted from throughput over a stretch rather than from every call.
+     */
+    public static final int TIMING_WINDOW_BYTES = 256 * 1024;
+
+    private final double maxBytesPerSec;
+
+    private final boolean adaptive;
+
+    private volatile double bytesPerSec;
+
+    private long nextFreeNanos;
+
+    private final Object adaptiveLock = new Object();
+
+    private long windowStartNanos = System.nanoTime();
+
+    private long windowNanos;
+
+    private long windowBytes;
+
+    private double usualNanosPerByte;
+
+    /**
+     * Constructs the throttle.
+     *
+     * @param maxMBPerSec the maximum rate, in megabytes per second.
+     * @param adaptive {@code true} to back off below the maximum while I/O is slow.
+     */
+    public IOThrottle(double maxMBPerSec, boolean adaptive) {
+        if (!(maxMBPerSec > 0)) {
+            throw new IllegalArgumentException("maxMBPerSec must be positive but was " + maxMBPerSec);
+        }
+        this.maxBytesPerSec = maxMBPerSec * 1024 * 1024;
+        this.adaptive = adaptive;
+        this.bytesPerSec = maxBytesPerSec;
+    }
+
+    /**
+     * Gets the rate currently being enforced, which in adaptive mode may be below the maximum.
+     *
+     * @return the rate, in megabytes per second.
+     */
+    public double getMBPerSec() {
+        return bytesPerSec / 1024 / 1024;
+    }
+
+    /**
+     * Accounts for bytes read or written, pausing once enough have built up. Callers keep a
+     * running count per file and pass it in each time, so that short reads and writes don't
+     * each pay for a pause.
+     *
+     * @param pendingBytes the bytes read or written since the last pause.
+     * @return the bytes still to be accounted for next time, which is zero if this paused.
+     * @throws InterruptedIOException if interrupted while pausing.
+     */
+    public long throttle(long pendingBytes) throws InterruptedIOException {
+        double rate = bytesPerSec;
+        if (pendingBytes < rate * PAUSE_CHECK_SECONDS) {
+            return pendingBytes;
+        }
+
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextFreeNanos = Math.max(nextFreeNanos, now) + (long) (pendingBytes * 1e9 / rate);
+            waitNanos = nextFreeNanos - now;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttling I/O");
+        }
+        return 0;
+    }
+
+    /**
+     * Records how long a stretch of reads or writes took, for adaptive mode to go by. Callers
+     * add up their timed calls per file and record them once every {@link #TIMING_WINDOW_BYTES}.
+     *
+     * @param nanos the total time taken.
+     * @param bytes the total number of bytes read or written.
+     */
+    public void recordLatency(long nanos, long bytes) {
+        if (!adaptive) {
+            return;
+        }
+        synchronized (adaptiveLock) {
+            windowNanos += nanos;
+            windowBytes += bytes;
+            long now = System.nanoTime();
+            if (now - windowStartNanos < ADJUST_INTERVAL_NANOS || windowBytes == 0) {
+                return;
+            }
+
+            double nanosPerByte = (double) windowNanos / windowBytes;
+            if (usualNanosPerByte == 0 || nanosPerByte < usualNanosPerByte) {
+                usualNanosPerByte = nanosPerByte;
+            }
+            if (nanosPerByte > usualNanosPerByte * LATENCY_TOLERANCE) {
+                bytesPerSec = Math.max(bytesPerSec / 2, maxBytesPerSec * MIN_RATE_FRACTION);
+            } else {
+                bytesPerSec = Math.min(bytesPerSec + maxBytesPerSec / 10, maxBytesPerSec);
+            }
+            usualNanosPerByte *= BASELINE_DRIFT;
+
+            windowStartNanos = now;
+            windowNanos = 0;
+            windowBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package org.trypticon.luceneupgrader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An index held entirely in memory, for upgrading small indexes without touching the disk
+ * until the final index is ready.
+ *
+ * Files are kept as blocks of bytes which don't belong to any one version of Lucene, so the
+ * output of one step is read by the next through that version's own directory, without
+ * copying anything. Every byte held counts against a memory budget shared with the indexes
+ * created by {@link #newIndex()}. Running over the budget fails the write, and marks the
+ * index so that the upgrade can tell why it failed and start again on disk.
+ */
+public class InMemoryIndex {
+
+    private static final int BLOCK_SHIFT = 16;
+
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    private static final String WRITE_LOCK_NAME = "write.lock";
+
+    private final Path path;
+
+    private final Budget budget;
+
+    private final Map<String, File> files = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an empty index, for the index on disk to be {@link #load loaded} into.
+     *
+     * @param path the directory containing the index on disk.
+     * @param memoryBudget the most bytes this index, and those created from it, may hold.
+     */
+    public InMemoryIndex(Path path, long memoryBudget) {
+        this(path, new Budget(memoryBudget));
+    }
+
+    private InMemoryIndex(Path path, Budget budget) {
+        this.path = path;
+        this.budget = budget;
+    }
+
+    /**
+     * Reads the index on disk into memory.
+     *
+     * @param throttle the throttle to apply to the reads, or {@code null} for none.
+     * @throws IOException if an error occurs reading the index, or if it doesn't fit in the budget.
+     */
+    public void load(IOThrottle throttle) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, Files::isRegularFile)) {
+            for (Path child : stream) {
+                String name = child.getFileName().toString();
+                if (name.equals(WRITE_LOCK_NAME)) {
+                    continue;
+                }
+                try (FileChannel channel = FileChannel.open(child, StandardOpenOption.READ);
+                     OutputStream out = createFile(name).newOutputStream()) {
+                    ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+                    long pendingBytes = 0;
+                    while (channel.read(buffer) >= 0) {
+                        out.write(buffer.array(), 0, buffer.position());
+                        pendingBytes = throttle(throttle, pendingBytes + buffer.position());
+                        buffer.clear();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sums the sizes of the files in a directory, to see whether the index in it is small
+     * enough to upgrade in memory.
+     *
+     * @param path the directory containing the index.
+     * @return the size, in bytes.
+     * @throws IOException if an error occurs listing the directory.
+     */
+    public static long sizeOf(Path path) throws IOException {
+        long size = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, Files::isRegularFile)) {
+            for (Path child : stream) {
+                size += Files.size(child);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Creates an empty index sharing this one's budget, to write the next version of the
+     * index into.
+     *
+     * @return the new index.
+     */
+    public InMemoryIndex newIndex() {
+        return new InMemoryIndex(path, budget);
+    }
+
+    /**
+     * Gets the path of the index on disk which this index was loaded from, and will be saved to.
+     *
+     * @return the path.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Tests whether a write has failed because the index ran over its memory budget.
+     *
+     * @return {@code true} if the budget has been exceeded.
+     */
+    public boolean hasExceededBudget() {
+        return budget.exceeded;
+    }
+
+    /**
+     * Gets the names of the files in the index.
+     *
+     * @return the names.
+     */
+    public String[] listAll() {
+        String[] names = files.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        return names;
+    }
+
+    /**
+     * Tests whether a file exists.
+     *
+     * @param name the name of the file.
+     * @return {@code true} if it exists.
+     */
+    public boolean exists(String name) {
+        return files.containsKey(name);
+    }
+
+    /**
+     * Gets a file.
+     *
+     * @param name the name of the file.
+     * @return the file.
+     * @throws NoSuchFileException if the file doesn't exist.
+     */
+    public File getFile(String name) throws NoSuchFileException {
+        File file = files.get(name);
+        if (file == null) {
+            throw new NoSuchFileException(name);
+        }
+        return file;
+    }
+
+    /**
+     * Creates a new, empty file.
+     *
+     * @param name the name of the file.
+     * @return the file.
+     * @throws FileAlreadyExistsException if the file already exists.
+     */
+    public File createFile(String name) throws FileAlreadyExistsException {
+        File file = new File(name);
+        if (files.putIfAbsent(name, file) != null) {
+            throw new FileAlreadyExistsException(name);
+        }
+        return file;
+    }
+
+    /**
+     * Deletes a file, giving the memory it held back to the budget.
+     *
+     * @param name the name of the file.
+     * @throws NoSuchFileException if the file doesn't exist.
+     */
+    public void deleteFile(String name) throws NoSuchFileException {
+        File file = files.remove(name);
+        if (file == null) {
+            throw new NoSuchFileException(name);
+        }
+        budget.release(file.getAllocatedBytes());
+    }
+
+    /**
+     * Renames a file, replacing any file which already has the new name.
+     *
+     * @param source the current name of the file.
+     * @param dest the new name of the file.
+     * @throws NoSuchFileException if the file doesn't exist.
+     */
+    public synchronized void rename(String source, String dest) throws NoSuchFileException {
+        File file = files.remove(source);
+        if (file == null) {
+            throw new NoSuchFileException(source);
+        }
+        File replaced = files.put(dest, file);
+        if (replaced != null) {
+            budget.release(replaced.getAllocatedBytes());
+        }
+    }
+
+    /**
+     * Replaces the contents of this index with the contents of another, which is left empty.
+     * The memory held by the files being replaced goes back to the budget.
+     *
+     * @param other the other index.
+     */
+    public void replaceWith(InMemoryIndex other) {
+        for (File file : files.values()) {
+            budget.release(file.getAllocatedBytes());
+        }
+        files.clear();
+        files.putAll(other.files);
+        other.files.clear();
+    }
+
+    /**
+     * Writes the index over the one on disk it was loaded from. The index is written to a
+     * directory next to the old one and forced to disk before the two are swapped, so that
+     * a crash leaves either the old index or the new one.
+     *
+     * @param throttle the throttle to apply to the writes, or {@code null} for none.
+     * @throws IOException if an error occurs writing the index.
+     */
+    public void save(IOThrottle throttle) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        FileUtils.insecureRecursiveDelete(tempPath);
+        Files.createDirectories(tempPath);
+
+        long pendingBytes = 0;
+        for (String name : listAll()) {
+            if (name.equals(WRITE_LOCK_NAME)) {
+                continue;
+            }
+            File file = files.get(name);
+            try (FileChannel channel = FileChannel.open(tempPath.resolve(name), StandardOpenOption.WRITE,
+                                                        StandardOpenOption.CREATE_NEW)) {
+                for (ByteBuffer block : file.blocks()) {
+                    pendingBytes = throttle(throttle, pendingBytes + block.remaining());
+                    while (block.hasRemaining()) {
+                        channel.write(block);
+                    }
+                }
+                channel.force(true);
+            }
+        }
+        FileUtils.fsync(tempPath, true);
+        FileUtils.replaceDirectory(path, tempPath);
+    }
+
+    private static long throttle(IOThrottle throttle, long pendingBytes) throws InterruptedIOException {
+        return throttle == null ? 0 : throttle.throttle(pendingBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryIndex(" + path + ")";
+    }
+
+    /**
+     * A file in the index. Files are written once, through {@link #newOutputStream()}, and
+     * then only read.
+     */
+    public final class File {
+
+        private final String name;
+
+        private final List<byte[]> blocks = new ArrayList<>();
+
+        private long length;
+
+        private File(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Gets the name of the file.
+         *
+         * @return the name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the length of the file.
+         *
+         * @return the length, in bytes.
+         */
+        public synchronized long getLength() {
+            return length;
+        }
+
+        /**
+         * Reads part of the file.
+         *
+         * @param position where in the file to start reading.
+         * @param b the array to read into.
+         * @param offset where in the array to put the first byte read.
+         * @param len the number of bytes to read.
+         * @throws EOFException if there are fewer than {@code len} bytes after {@code position}.
+         */
+        public synchronized void read(long position, byte[] b, int offset, int len) throws EOFException {
+            if (position < 0 || position + len > length) {
+                throw new EOFException("read past EOF: " + InMemoryIndex.this + "!" + name);
+            }
+            while (len > 0) {
+                byte[] block = blocks.get((int) (position >>> BLOCK_SHIFT));
+                int blockOffset = (int) (position & BLOCK_MASK);
+                int chunk = Math.min(len, block.length - blockOffset);
+                System.arraycopy(block, blockOffset, b, offset, chunk);
+                position += chunk;
+                offset += chunk;
+                len -= chunk;
+            }
+        }
+
+        /**
+         * Reads part of the file.
+         *
+         * @param position where in the file to start reading.
+         * @param b the buffer to read into, filling all of its remaining space.
+         * @throws EOFException if there are fewer bytes after {@code position} than the buffer has room for.
+         */
+        public void read(long position, ByteBuffer b) throws EOFException {
+            if (b.hasArray()) {
+                int len = b.remaining();
+                read(position, b.array(), b.arrayOffset() + b.position(), len);
+                b.position(b.position() + len);
+            } else {
+                byte[] bytes = new byte[b.remaining()];
+                read(position, bytes, 0, bytes.length);
+                b.put(bytes);
+            }
+        }
+
+        /**
+         * Opens a stream which appends to the file. Closing the stream gives back the memory
+         * the last block doesn't need.
+         *
+         * @return the stream.
+         */
+        public OutputStream newOutputStream() {
+            return new OutputStream() {
+                private final byte[] single = new byte[1];
+
+                @Override
+                public void write(int b) throws IOException {
+                    single[0] = (byte) b;
+                    write(single, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int offset, int len) throws IOException {
+                    append(b, offset, len);
+                }
+
+                @Override
+                public void close() {
+                    trim();
+                }
+            };
+        }
+
+        private synchronized void append(byte[] b, int offset, int len) throws IOException {
+            while (len > 0) {
+                int blockOffset = (int) (length & BLOCK_MASK);
+                if (blockOffset == 0) {
+                    budget.reserve(BLOCK_SIZE);
+                    blocks.add(new byte[BLOCK_SIZE]);
+                }
+                byte[] block = blocks.get(blocks.size() - 1);
+                int chunk = Math.min(len, BLOCK_SIZE - blockOffset);
+                System.arraycopy(b, offset, block, blockOffset, chunk);
+                length += chunk;
+                offset += chunk;
+                len -= chunk;
+            }
+        }
+
+        private synchronized void trim() {
+            int used = (int) (length & BLOCK_MASK);
+            if (used != 0) {
+                int last = blocks.size() - 1;
+                blocks.set(last, Arrays.copyOf(blocks.get(last), used));
+                budget.release(BLOCK_SIZE - used);
+            }
+        }
+
+        private synchronized List<ByteBuffer> blocks() {
+            List<ByteBuffer> buffers = new ArrayList<>(blocks.size());
+            long remaining = length;
+            for (byte[] block : blocks) {
+                int len = (int) Math.min(remaining, block.length);
+                buffers.add(ByteBuffer.wrap(block, 0, len));
+                remaining -= len;
+            }
+            return buffers;
+        }
+
+        /**
+         * Gets the memory the file's blocks take up, which deleting the file gives back to the
+         * budget. The blocks themselves are left alone, since inputs which are already open can
+         * go on reading a deleted file, the same as on disk.
+         *
+         * @return the number of bytes the blocks hold.
+         */
+        private synchronized long getAllocatedBytes() {
+            long size = 0;
+            for (byte[] block : blocks) {
+                size += block.length;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Counts the bytes held by an index and the indexes created from it.
+     */
+    private static final class Budget {
+
+        private final long limit;
+
+        private final AtomicLong used = new AtomicLong();
+
+        private volatile boolean exceeded;
+
+        private Budget(long limit) {
+            this.limit = limit;
+        }
+
+        private void reserve(long bytes) throws IOException {
+            if (used.addAndGet(bytes) > limit) {
+                used.addAndGet(-bytes);
+                exceeded = true;
+                throw new IOException("The index no longer fits in its memory budget of " + limit + " bytes");
+            }
+        }
+
+        private void release(long bytes) {
+            used.addAndGet(-bytes);
+        }
+    }
+}
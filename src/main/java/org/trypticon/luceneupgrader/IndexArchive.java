@@ -0,0 +1,795 @@
+package org.trypticon.luceneupgrader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * An index kept in a zip or tar archive, read without extracting it.
+ *
+ * The archive's table of contents is read once, so that each file of the index can be read
+ * straight from where it sits in the archive. Files stored uncompressed, which is every file
+ * in a plain tar and stored entries in a zip, are read in place. Compressed zip entries can't
+ * be read from the middle, so each is inflated into the scratch directory the first time it
+ * is opened. A gzipped tar can't be read from the middle either, so it is inflated into the
+ * scratch directory once when the archive is opened.
+ *
+ * The index can be at the top of the archive or in a directory inside it, but there can only
+ * be one index in the archive. Anything else in the archive, such as a manifest or files in
+ * other directories, is kept aside as other files, so that it can be copied into a new
+ * archive alongside the upgraded index.
+ */
+public class IndexArchive implements Closeable {
+
+    private static final int TAR_BLOCK_SIZE = 512;
+
+    private static final int ZIP_LOCAL_HEADER = 0x04034b50;
+
+    private static final int ZIP_CENTRAL_HEADER = 0x02014b50;
+
+    private static final int ZIP_END = 0x06054b50;
+
+    private static final int ZIP64_END_LOCATOR = 0x07064b50;
+
+    private static final int ZIP64_END = 0x06064b50;
+
+    private static final int ZIP64_EXTRA = 0x0001;
+
+    /**
+     * The longest the comment at the end of a zip can be, which is as far back from the end
+     * the table of contents can start.
+     */
+    private static final int ZIP_MAX_COMMENT_LENGTH = 0xffff;
+
+    private enum Format {
+        ZIP, TAR, TAR_GZ
+    }
+
+    private final Path path;
+
+    private final Path scratchDirectory;
+
+    private final FileChannel channel;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private final Map<String, Entry> otherEntries = new LinkedHashMap<>();
+
+    private final List<FileChannel> spooledChannels = new ArrayList<>();
+
+    private String prefix;
+
+    private IndexArchive(Path path, Path scratchDirectory, FileChannel channel) {
+        this.path = path;
+        this.scratchDirectory = scratchDirectory;
+        this.channel = channel;
+    }
+
+    /**
+     * Tests whether a path names an archive this class can read, going by its extension.
+     *
+     * @param path the path.
+     * @return {@code true} if it is a {@code .zip}, {@code .tar}, {@code .tar.gz} or {@code .tgz} file.
+     */
+    public static boolean isArchive(Path path) {
+        return formatOf(path) != null;
+    }
+
+    private static Format formatOf(Path path) {
+        String name = String.valueOf(path.getFileName()).toLowerCase(Locale.ROOT);
+        if (name.endsWith(".zip")) {
+            return Format.ZIP;
+        } else if (name.endsWith(".tar")) {
+            return Format.TAR;
+        } else if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+            return Format.TAR_GZ;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Opens an archive and reads its table of contents.
+     *
+     * @param path the path to the archive.
+     * @param scratchDirectory an existing directory for anything which has to be inflated
+     *                         before it can be read. The caller deletes it after closing the archive.
+     * @return the archive.
+     * @throws IOException if an error occurs reading the archive, or it doesn't hold exactly one index.
+     */
+    public static IndexArchive open(Path path, Path scratchDirectory) throws IOException {
+        Format format = formatOf(path);
+        if (format == null) {
+            throw new IOException("Not a zip or tar archive: " + path);
+        }
+
+        Path contents = path;
+        if (format == Format.TAR_GZ) {
+            contents = scratchDirectory.resolve("archive.tar");
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(path), 64 * 1024)) {
+                Files.copy(in, contents);
+            }
+        }
+
+        IndexArchive archive = new IndexArchive(path, scratchDirectory, FileChannel.open(contents, StandardOpenOption.READ));
+        boolean success = false;
+        try {
+            Map<String, Entry> allEntries = format == Format.ZIP ? archive.readZipEntries() : archive.readTarEntries();
+            archive.findIndex(allEntries);
+            success = true;
+            return archive;
+        } finally {
+            if (!success) {
+                archive.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the path to the archive.
+     *
+     * @return the path.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Gets the directory the index is in inside the archive.
+     *
+     * @return the directory, ending with {@code /}, or an empty string if the index is at the top.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Lists the files of the index.
+     *
+     * @return the names of the files.
+     */
+    public String[] listAll() {
+        return entries.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Gets where a file of the index can be read from, inflating it first if it has to be.
+     *
+     * @param name the name of the file.
+     * @return the entry.
+     * @throws NoSuchFileException if the index has no such file.
+     * @throws IOException if an error occurs inflating the file.
+     */
+    public synchronized Entry getEntry(String name) throws IOException {
+        return getEntry(entries, name, "spool-" + name);
+    }
+
+    private Entry getEntry(Map<String, Entry> fromEntries, String name, String spoolName) throws IOException {
+        Entry entry = fromEntries.get(name);
+        if (entry == null) {
+            throw new NoSuchFileException(name + " in " + path);
+        }
+        if (entry.compressedLength >= 0) {
+            entry = spool(name, entry, spoolName);
+            fromEntries.put(name, entry);
+        }
+        return entry;
+    }
+
+    private Entry spool(String name, Entry entry, String spoolName) throws IOException {
+        Path spooled = scratchDirectory.resolve(spoolName);
+        Inflater inflater = new Inflater(true);
+        try (InputStream in = new InflaterInputStream(new BufferedInputStream(
+                // One byte more than the entry, because raw inflating can need a byte past the end.
+                new ChannelInputStream(channel, entry.offset, entry.compressedLength + 1), 64 * 1024),
+                inflater, 64 * 1024)) {
+            Files.copy(in, spooled);
+        } finally {
+            inflater.end();
+        }
+        FileChannel spooledChannel = FileChannel.open(spooled, StandardOpenOption.READ);
+        spooledChannels.add(spooledChannel);
+        if (spooledChannel.size() != entry.length) {
+            throw new IOException("Inflated " + spooledChannel.size() + " bytes of " + name + " in " + path +
+                                  " but expected " + entry.length);
+        }
+        return new Entry(spooledChannel, 0, entry.length, -1);
+    }
+
+    /**
+     * Copies the files of the index into a directory, for upgrades which can't read them from the archive.
+     *
+     * @param directory the directory, which is created if need be.
+     * @throws IOException if an error occurs reading the archive or writing the files.
+     */
+    public void extractTo(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        for (String name : listAll()) {
+            copy(getEntry(name), directory.resolve(name));
+        }
+    }
+
+    /**
+     * Copies everything in the archive which isn't part of the index into a directory, under
+     * the same names they have in the archive, so that they can be written into a new archive.
+     *
+     * @param directory the directory, which is created if need be.
+     * @throws IOException if an error occurs reading the archive or writing the files, or an
+     *         entry is named outside the directory.
+     */
+    public synchronized void extractOtherFilesTo(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path root = directory.toAbsolutePath().normalize();
+        int spooled = 0;
+        for (String name : new ArrayList<>(otherEntries.keySet())) {
+            Path file = root.resolve(name).normalize();
+            if (!file.startsWith(root) || file.equals(root)) {
+                throw new IOException("Entry outside the archive: " + name + " in " + path);
+            }
+            Files.createDirectories(file.getParent());
+            copy(getEntry(otherEntries, name, "spool-other-" + spooled++), file);
+        }
+    }
+
+    private static void copy(Entry entry, Path file) throws IOException {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long done = 0;
+            while (done < entry.length) {
+                done += entry.channel.transferTo(entry.offset + done, entry.length - done, out);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<Closeable> channels = new ArrayList<>(spooledChannels);
+        channels.add(channel);
+        IOException failure = null;
+        for (Closeable closeable : channels) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Keeps the files of the index in the one directory holding a segments file, named without
+     * that directory, and keeps everything else aside.
+     */
+    private void findIndex(Map<String, Entry> allEntries) throws IOException {
+        TreeSet<String> prefixes = new TreeSet<>();
+        for (String name : allEntries.keySet()) {
+            String fileName = name.substring(name.lastIndexOf('/') + 1);
+            if (fileName.equals("segments") || fileName.equals("segments.gen") || fileName.startsWith("segments_")) {
+                prefixes.add(name.substring(0, name.length() - fileName.length()));
+            }
+        }
+        if (prefixes.isEmpty()) {
+            throw new IOException("No index in " + path);
+        } else if (prefixes.size() > 1) {
+            throw new IOException("More than one index in " + path + ": " + prefixes);
+        }
+
+        prefix = prefixes.first();
+        for (Map.Entry<String, Entry> entry : allEntries.entrySet()) {
+            String name = entry.getKey();
+            if (name.startsWith(prefix) && name.indexOf('/', prefix.length()) < 0 &&
+                isIndexFile(name.substring(prefix.length()))) {
+                entries.put(name.substring(prefix.length()), entry.getValue());
+            } else {
+                otherEntries.put(name, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Tests whether a file next to the segments file belongs to the index. Every file Lucene
+     * writes is either named after its segment, starting with an underscore, or is one of the
+     * segments files or the write lock.
+     */
+    private static boolean isIndexFile(String name) {
+        return name.startsWith("_") || name.startsWith("segments") || name.equals("write.lock");
+    }
+
+    private Map<String, Entry> readTarEntries() throws IOException {
+        Map<String, Entry> tarEntries = new LinkedHashMap<>();
+        ByteBuffer header = ByteBuffer.allocate(TAR_BLOCK_SIZE);
+        long size = channel.size();
+        long position = 0;
+        String nextName = null;
+        long nextLength = -1;
+        while (position + TAR_BLOCK_SIZE <= size) {
+            header.clear();
+            readFully(position, header);
+            byte[] block = header.array();
+            if (block[0] == 0) {
+                // The end of the archive.
+                break;
+            }
+
+            long length = nextLength >= 0 ? nextLength : parseTarNumber(block, 124, 12);
+            long dataOffset = position + TAR_BLOCK_SIZE;
+            char type = (char) block[156];
+            if (type == 'L') {
+                // GNU long name for the next entry.
+                nextName = trimNul(readString(dataOffset, (int) length));
+            } else if (type == 'x') {
+                // PAX extended header for the next entry.
+                for (String record : readString(dataOffset, (int) length).split("\n")) {
+                    int equals = record.indexOf('=');
+                    int space = record.indexOf(' ');
+                    if (space >= 0 && equals > space) {
+                        String key = record.substring(space + 1, equals);
+                        String value = record.substring(equals + 1);
+                        if (key.equals("path")) {
+                            nextName = value;
+                        } else if (key.equals("size")) {
+                            nextLength = Long.parseLong(value);
+                        }
+                    }
+                }
+            } else {
+                if (type == '0' || type == '\0' || type == '7') {
+                    String name = nextName;
+                    if (name == null) {
+                        name = trimNul(new String(block, 0, 100, StandardCharsets.UTF_8));
+                        // Only POSIX ustar has a prefix field; GNU tar keeps other things there.
+                        if (new String(block, 257, 6, StandardCharsets.US_ASCII).equals("ustar\0") && block[345] != 0) {
+                            name = trimNul(new String(block, 345, 155, StandardCharsets.UTF_8)) + "/" + name;
+                        }
+                    }
+                    tarEntries.put(stripDotSlash(name), new Entry(channel, dataOffset, length, -1));
+                } else if (type == '1' || type == '2') {
+                    // Links can't be copied into the new archive as they are, so they would be lost.
+                    throw new IOException("Links are not supported: " +
+                                          trimNul(new String(block, 0, 100, StandardCharsets.UTF_8)) + " in " + path);
+                }
+                nextName = null;
+                nextLength = -1;
+            }
+            position = dataOffset + (length + TAR_BLOCK_SIZE - 1) / TAR_BLOCK_SIZE * TAR_BLOCK_SIZE;
+        }
+        return tarEntries;
+    }
+
+    /**
+     * Parses a number in a tar header, which is octal unless the top bit is set, in which case
+     * it is big-endian binary, as GNU tar writes sizes too big for the octal field.
+     */
+    private static long parseTarNumber(byte[] block, int offset, int length) {
+        long value = 0;
+        if ((block[offset] & 0x80) != 0) {
+            value = block[offset] & 0x7f;
+            for (int i = 1; i < length; i++) {
+                value = (value << 8) | (block[offset + i] & 0xff);
+            }
+            return value;
+        }
+        int i = offset;
+        int end = offset + length;
+        while (i < end && block[i] == ' ') {
+            i++;
+        }
+        while (i < end && block[i] >= '0' && block[i] <= '7') {
+            value = (value << 3) | (block[i] - '0');
+            i++;
+        }
+        return value;
+    }
+
+    private Map<String, Entry> readZipEntries() throws IOException {
+        long size = channel.size();
+        int tailLength = (int) Math.min(size, ZIP_MAX_COMMENT_LENGTH + 22);
+        ByteBuffer tail = littleEndian(tailLength);
+        readFully(size - tailLength, tail);
+        int end = -1;
+        for (int i = tailLength - 22; i >= 0; i--) {
+            if (tail.getInt(i) == ZIP_END) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new IOException("Not a zip archive: " + path);
+        }
+
+        long count = tail.getShort(end + 10) & 0xffff;
+        long directoryLength = tail.getInt(end + 12) & 0xffffffffL;
+        long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+        if (end >= 20 && tail.getInt(end - 20) == ZIP64_END_LOCATOR) {
+            ByteBuffer zip64End = littleEndian(56);
+            readFully(tail.getLong(end - 20 + 8), zip64End);
+            if (zip64End.getInt(0) != ZIP64_END) {
+                throw new IOException("Corrupt zip64 end of central directory in " + path);
+            }
+            count = zip64End.getLong(32);
+            directoryLength = zip64End.getLong(40);
+            directoryOffset = zip64End.getLong(48);
+        }
+        if (directoryLength > Integer.MAX_VALUE) {
+            throw new IOException("Zip central directory too large in " + path);
+        }
+
+        ByteBuffer directory = littleEndian((int) directoryLength);
+        readFully(directoryOffset, directory);
+        Map<String, Entry> zipEntries = new LinkedHashMap<>();
+        ByteBuffer localHeader = littleEndian(30);
+        int position = 0;
+        for (long i = 0; i < count; i++) {
+            if (directory.getInt(position) != ZIP_CENTRAL_HEADER) {
+                throw new IOException("Corrupt zip central directory in " + path);
+            }
+            int flags = directory.getShort(position + 8) & 0xffff;
+            int method = directory.getShort(position + 10) & 0xffff;
+            long compressedLength = directory.getInt(position + 20) & 0xffffffffL;
+            long length = directory.getInt(position + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(position + 28) & 0xffff;
+            int extraLength = directory.getShort(position + 30) & 0xffff;
+            int commentLength = directory.getShort(position + 32) & 0xffff;
+            long headerOffset = directory.getInt(position + 42) & 0xffffffffL;
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(position + 46);
+            directory.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // Sizes and offsets which don't fit are in the zip64 extra field, in this order.
+            int extra = position + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = directory.getShort(extra) & 0xffff;
+                int dataLength = directory.getShort(extra + 2) & 0xffff;
+                if (id == ZIP64_EXTRA) {
+                    int field = extra + 4;
+                    if (length == 0xffffffffL) {
+                        length = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedLength == 0xffffffffL) {
+                        compressedLength = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (headerOffset == 0xffffffffL) {
+                        headerOffset = directory.getLong(field);
+                    }
+                }
+                extra += 4 + dataLength;
+            }
+            position = extraEnd + commentLength;
+
+            if (name.endsWith("/")) {
+                continue;
+            }
+            if ((flags & 1) != 0) {
+                throw new IOException("Encrypted zip entries are not supported: " + name + " in " + path);
+            }
+            if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+                throw new IOException("Unsupported zip compression method " + method + " for " + name + " in " + path);
+            }
+
+            localHeader.clear();
+            readFully(headerOffset, localHeader);
+            if (localHeader.getInt(0) != ZIP_LOCAL_HEADER) {
+                throw new IOException("Corrupt zip local header for " + name + " in " + path);
+            }
+            long dataOffset = headerOffset + 30 + (localHeader.getShort(26) & 0xffff) + (localHeader.getShort(28) & 0xffff);
+            zipEntries.put(stripDotSlash(name), new Entry(channel, dataOffset, length,
+                                                          method == ZipEntry.STORED ? -1 : compressedLength));
+        }
+        return zipEntries;
+    }
+
+    private static ByteBuffer littleEndian(int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void readFully(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of " + path);
+            }
+            position += read;
+        }
+    }
+
+    private String readString(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(position, buffer);
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+
+    private static String trimNul(String string) {
+        int nul = string.indexOf('\0');
+        return nul < 0 ? string : string.substring(0, nul);
+    }
+
+    private static String stripDotSlash(String name) {
+        while (name.startsWith("./")) {
+            name = name.substring(2);
+        }
+        return name;
+    }
+
+    /**
+     * Writes the files in a directory into a new archive. The kind of archive is chosen by the
+     * extension of its name, the same as for reading. Zip entries are stored uncompressed,
+     * because Lucene's files hardly compress and would otherwise have to be inflated again to
+     * be read from the archive.
+     *
+     * @param directory the directory holding the index.
+     * @param archive the path to write the archive to.
+     * @param prefix the directory to put the files in inside the archive, ending with {@code /},
+     *               or an empty string to put them at the top.
+     * @throws IOException if an error occurs reading the files or writing the archive.
+     */
+    public static void write(Path directory, Path archive, String prefix) throws IOException {
+        write(directory, archive, prefix, null);
+    }
+
+    /**
+     * Writes the files in a directory into a new archive, along with other files which weren't
+     * part of the index, as for {@link #write(Path, Path, String)}.
+     *
+     * @param directory the directory holding the index.
+     * @param archive the path to write the archive to.
+     * @param prefix the directory to put the files in inside the archive, ending with {@code /},
+     *               or an empty string to put them at the top.
+     * @param otherFilesDirectory the directory the other files were extracted into by
+     *                            {@link #extractOtherFilesTo(Path)}, or {@code null} if there are none.
+     * @throws IOException if an error occurs reading the files or writing the archive.
+     */
+    public static void write(Path directory, Path archive, String prefix, Path otherFilesDirectory) throws IOException {
+        Format format = formatOf(archive);
+        if (format == null) {
+            throw new IOException("Not a zip or tar archive: " + archive);
+        }
+        Map<String, Path> files = new LinkedHashMap<>();
+        if (otherFilesDirectory != null) {
+            try (Stream<Path> stream = Files.walk(otherFilesDirectory)) {
+                for (Path file : stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                    String name = otherFilesDirectory.relativize(file).toString();
+                    files.put(name.replace(file.getFileSystem().getSeparator(), "/"), file);
+                }
+            }
+        }
+        try (Stream<Path> stream = Files.list(directory)) {
+            for (Path file : stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                files.put(prefix + file.getFileName(), file);
+            }
+        }
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(archive), 64 * 1024)) {
+            if (format == Format.ZIP) {
+                writeZip(files, out);
+            } else if (format == Format.TAR) {
+                writeTar(files, out);
+            } else {
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024)) {
+                    writeTar(files, gzip);
+                }
+            }
+        }
+        FileUtils.fsync(archive, false);
+    }
+
+    private static void writeZip(Map<String, Path> files, OutputStream out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+        for (Map.Entry<String, Path> named : files.entrySet()) {
+            Path file = named.getValue();
+            ZipEntry entry = new ZipEntry(named.getKey());
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(Files.size(file));
+            entry.setCompressedSize(entry.getSize());
+            entry.setCrc(crc32(file));
+            entry.setLastModifiedTime(Files.getLastModifiedTime(file));
+            zip.putNextEntry(entry);
+            Files.copy(file, zip);
+            zip.closeEntry();
+        }
+        zip.finish();
+    }
+
+    private static long crc32(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void writeTar(Map<String, Path> files, OutputStream out) throws IOException {
+        for (Map.Entry<String, Path> named : files.entrySet()) {
+            Path file = named.getValue();
+            long length = Files.size(file);
+            out.write(tarHeader(named.getKey(), length,
+                                Files.getLastModifiedTime(file).toMillis() / 1000));
+            Files.copy(file, out);
+            int padding = (int) ((TAR_BLOCK_SIZE - length % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE);
+            out.write(new byte[padding]);
+        }
+        // Two empty blocks mark the end.
+        out.write(new byte[2 * TAR_BLOCK_SIZE]);
+    }
+
+    private static byte[] tarHeader(String name, long length, long modifiedSeconds) throws IOException {
+        byte[] block = new byte[TAR_BLOCK_SIZE];
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length <= 100) {
+            System.arraycopy(nameBytes, 0, block, 0, nameBytes.length);
+        } else {
+            int slash = name.lastIndexOf('/');
+            byte[] head = slash < 0 ? nameBytes : name.substring(0, slash).getBytes(StandardCharsets.UTF_8);
+            byte[] tail = slash < 0 ? nameBytes : name.substring(slash + 1).getBytes(StandardCharsets.UTF_8);
+            if (slash < 0 || head.length > 155 || tail.length > 100) {
+                throw new IOException("Name too long for a tar archive: " + name);
+            }
+            System.arraycopy(tail, 0, block, 0, tail.length);
+            System.arraycopy(head, 0, block, 345, head.length);
+        }
+        putOctal(block, 100, 8, 0644);
+        putOctal(block, 108, 8, 0);
+        putOctal(block, 116, 8, 0);
+        if (length < 1L << 33) {
+            putOctal(block, 124, 12, length);
+        } else {
+            // Too big for octal, so binary with the top bit set, as GNU tar writes it.
+            for (int i = 11; i > 0; i--) {
+                block[124 + i] = (byte) length;
+                length >>>= 8;
+            }
+            block[124] = (byte) 0x80;
+        }
+        putOctal(block, 136, 12, modifiedSeconds);
+        block[156] = '0';
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, block, 257, 8);
+
+        // The checksum is worked out with its own field as spaces.
+        for (int i = 148; i < 156; i++) {
+            block[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : block) {
+            checksum += b & 0xff;
+        }
+        putOctal(block, 148, 7, checksum);
+        return block;
+    }
+
+    /**
+     * Puts a zero-padded octal number in a tar header field, ending with a NUL.
+     */
+    private static void putOctal(byte[] block, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int start = offset + length - 1 - digits.length();
+        for (int i = offset; i < start; i++) {
+            block[i] = '0';
+        }
+        System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, block, start, digits.length());
+        block[offset + length - 1] = 0;
+    }
+
+    /**
+     * Reads part of a channel from where it is in the file, leaving the channel open and
+     * its position alone.
+     */
+    private static class ChannelInputStream extends InputStream {
+
+        private final FileChannel channel;
+
+        private long position;
+
+        private final long end;
+
+        private ChannelInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, offset, (int) Math.min(length, end - position)), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Where a file of the index can be read from.
+     */
+    public static final class Entry {
+
+        private final FileChannel channel;
+
+        private final long offset;
+
+        private final long length;
+
+        private final long compressedLength;
+
+        private Entry(FileChannel channel, long offset, long length, long compressedLength) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+            this.compressedLength = compressedLength;
+        }
+
+        /**
+         * Gets the channel to read the file from. It belongs to the archive, so it must not be closed.
+         *
+         * @return the channel.
+         */
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Gets where the file starts in the channel.
+         *
+         * @return the offset.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Gets the length of the file.
+         *
+         * @return the length.
+         */
+        public long getLength() {
+            return length;
+        }
+    }
+}
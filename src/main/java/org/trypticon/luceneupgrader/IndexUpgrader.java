@@ -1,7 +1,13 @@
 package org.trypticon.luceneupgrader;
 
+import org.trypticon.luceneupgrader.lucene8.InMemoryDirectory8;
+import org.trypticon.luceneupgrader.lucene8.StreamingUpgrader8;
+
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Function;
 
 /**
  * Upgrades an index to a newer version.
@@ -12,6 +18,10 @@ public class IndexUpgrader {
 
     private final InfoStream infoStream;
 
+    private final UpgradeConfig config;
+
+    private final UpgradeJournal journal;
+
     private LuceneVersion version;
 
     public IndexUpgrader(Path directory) throws IOException {
@@ -19,10 +29,25 @@ public class IndexUpgrader {
     }
 
     public IndexUpgrader(Path directory, InfoStream infoStream) throws IOException {
+        this(directory, infoStream, new UpgradeConfig());
+    }
+
+    public IndexUpgrader(Path directory, InfoStream infoStream, UpgradeConfig config) throws IOException {
         this.directory = directory;
         this.infoStream = infoStream;
+        this.config = config;
 
-        version = new VersionGuesser().guess(directory);
+        journal = new UpgradeJournal(directory);
+        if (journal.exists() && !config.isResumable()) {
+            // Starting again would throw away the partially written index, which may hold the
+            // only copy of segments already released from this one.
+            throw new IOException("An earlier resumable upgrade of " + directory + " was interrupted. " +
+                                  "Run the upgrade again in resumable mode to finish it.");
+        }
+        if (journal.exists()) {
+            journal.recoverInterruptedSwap();
+        }
+        version = journal.resumeFrom(new VersionGuesser().guess(directory));
     }
 
     /**
@@ -32,23 +57,222 @@ public class IndexUpgrader {
      * @throws IOException if an error occurs reading or writing.
      */
     public void upgradeTo(LuceneVersion destinationVersion) throws IOException {
+        if (version.isOlderThan(destinationVersion) && !canStreamTo(destinationVersion, directory) && canUpgradeInMemory()) {
+            upgradeInMemoryTo(destinationVersion);
+        }
+        if (version.isOlderThan(destinationVersion) && canUseScratchDirectory(destinationVersion)) {
+            upgradeInScratchDirectoryTo(destinationVersion);
+        }
+
+        upgradeStepsTo(destinationVersion, directory);
+
+        journal.finish();
+    }
+
+    /**
+     * Upgrades the index one step at a time, or streams it where that is possible.
+     *
+     * @param destinationVersion the destination version.
+     * @param workingCopy the directory holding the copy of the index to upgrade.
+     * @throws IOException if an error occurs reading or writing.
+     */
+    private void upgradeStepsTo(LuceneVersion destinationVersion, Path workingCopy) throws IOException {
         while (version.isOlderThan(destinationVersion)) {
-            upgradeOneStepTo(versionAfter(version));
+            if (canStreamTo(destinationVersion, workingCopy)) {
+                upgradeOneStepTo(destinationVersion, workingCopy, null,
+                                 stepInfoStream -> new StreamingUpgrader8(workingCopy, stepInfoStream, config));
+                break;
+            }
+
+            LuceneVersion nextVersion = versionAfter(version);
+            upgradeOneStepTo(nextVersion, workingCopy, null,
+                             stepInfoStream -> nextVersion.createUpgrader(workingCopy, stepInfoStream, config));
+        }
+    }
+
+    /**
+     * Upgrades a copy of the index in the scratch directory, and only copies it back over
+     * the index once it has reached the destination version. If a step fails, the index is
+     * still as it was.
+     *
+     * @param destinationVersion the destination version.
+     * @throws IOException if an error occurs reading or writing.
+     */
+    private void upgradeInScratchDirectoryTo(LuceneVersion destinationVersion) throws IOException {
+        LuceneVersion startVersion = version;
+        Files.createDirectories(config.getScratchDirectory());
+        Path scratchDirectory = Files.createTempDirectory(config.getScratchDirectory(),
+                                                          directory.getFileName() + "-");
+        try {
+            // Upgraders put their own working directories next to the index, so it gets a
+            // directory of its own.
+            Path workingCopy = scratchDirectory.resolve("index");
+            FileUtils.copyDirectory(directory, workingCopy, config.getIOThrottle());
+            upgradeStepsTo(destinationVersion, workingCopy);
+
+            Path tempPath = directory.resolveSibling(directory.getFileName() + ".tmp");
+            FileUtils.insecureRecursiveDelete(tempPath);
+            FileUtils.copyDirectory(workingCopy, tempPath, config.getIOThrottle());
+            FileUtils.replaceDirectory(directory, tempPath);
+        } catch (IOException | RuntimeException e) {
+            version = startVersion;
+            throw e;
+        } finally {
+            FileUtils.insecureRecursiveDelete(scratchDirectory);
         }
     }
 
-    private void upgradeOneStepTo(LuceneVersion version) throws IOException {
-        version.createUpgrader(directory, infoStream).upgrade();
+    /**
+     * Upgrades the index entirely in memory, only writing it to disk once it has reached the
+     * destination version. If it outgrows its memory budget part of the way through, the
+     * index on disk is still as it was, so the upgrade carries on from there on disk instead.
+     *
+     * @param destinationVersion the destination version.
+     * @throws IOException if an error occurs reading or writing.
+     */
+    private void upgradeInMemoryTo(LuceneVersion destinationVersion) throws IOException {
+        LuceneVersion startVersion = version;
+        long memoryBudget = config.getMemoryBudget() > 0 ? config.getMemoryBudget()
+                                                         : Runtime.getRuntime().maxMemory() / 4;
+        InMemoryIndex memoryIndex = new InMemoryIndex(directory, memoryBudget);
+        try {
+            memoryIndex.load(config.getIOThrottle());
+            while (version.isOlderThan(destinationVersion)) {
+                LuceneVersion nextVersion = versionAfter(version);
+                upgradeOneStepTo(nextVersion, directory, memoryIndex,
+                                 stepInfoStream -> nextVersion.createUpgrader(memoryIndex, stepInfoStream, config));
+            }
+        } catch (IOException | RuntimeException e) {
+            version = startVersion;
+            if (!memoryIndex.hasExceededBudget()) {
+                throw e;
+            }
+            System.out.println("..." + directory + " outgrew its memory budget, so upgrading on disk instead");
+            return;
+        }
+        memoryIndex.save(config.getIOThrottle());
+    }
+
+    /**
+     * Describes the segments of the index as it currently is.
+     *
+     * @return the segments in the index's latest commit.
+     * @throws IOException if an error occurs reading the index.
+     */
+    public List<SegmentDescription> describeSegments() throws IOException {
+        // The index itself, not where an interrupted upgrade is resuming from, says how to read it.
+        return new VersionGuesser().guess(directory).describeSegments(directory);
+    }
+
+    /**
+     * Works out the steps upgrading to a specific version of Lucene would take, and which of
+     * the index's segments each step would rewrite, without changing anything.
+     *
+     * @param destinationVersion the destination version.
+     * @return the plan.
+     * @throws IOException if an error occurs reading the index.
+     */
+    public UpgradePlan plan(LuceneVersion destinationVersion) throws IOException {
+        return new UpgradePlanner().plan(version, destinationVersion, describeSegments(),
+                                         streamingStartVersion(destinationVersion));
+    }
+
+    /**
+     * Works out which version the index would be streamed to the destination from.
+     *
+     * @return the version, or {@code null} if it would be upgraded one step at a time all the way.
+     */
+    private LuceneVersion streamingStartVersion(LuceneVersion destinationVersion) {
+        if (canStreamTo(destinationVersion, directory)) {
+            return version;
+        } else if (isStreamingTo(destinationVersion) && version == LuceneVersion.VERSION_5) {
+            // The step to 6 writes segments which Lucene 7 can read.
+            return LuceneVersion.VERSION_6;
+        } else {
+            return null;
+        }
+    }
+
+    private boolean canStreamTo(LuceneVersion destinationVersion, Path workingCopy) {
+        // Indexes read through Lucene 4 would skip the step giving legacy numeric fields points.
+        return isStreamingTo(destinationVersion) &&
+               ((version == LuceneVersion.VERSION_3 || version == LuceneVersion.VERSION_4) &&
+                config.getLegacyNumericFields().isEmpty() || version == LuceneVersion.VERSION_6) &&
+               StreamingUpgrader8.canUpgrade(workingCopy);
+    }
+
+    private boolean canUpgradeInMemory() throws IOException {
+        // Every step from Lucene 3 onwards can run in memory. An interrupted resumable upgrade
+        // has to finish on disk, where its progress is.
+        return config.getInMemoryThreshold() > 0 && !config.isResumable() && config.getDiskBudget() == 0 &&
+               !journal.exists() && !version.isOlderThan(LuceneVersion.VERSION_3) &&
+               InMemoryIndex.sizeOf(directory) <= config.getInMemoryThreshold();
+    }
+
+    private boolean canUseScratchDirectory(LuceneVersion destinationVersion) {
+        // A single step, or streaming in one go, has no intermediate index to keep off the
+        // index's disk. Resumable upgrades keep their progress next to the index.
+        return config.getScratchDirectory() != null && !config.isResumable() && config.getDiskBudget() == 0 &&
+               !journal.exists() && versionAfter(version).isOlderThan(destinationVersion) &&
+               !canStreamTo(destinationVersion, directory);
+    }
+
+    private boolean isStreamingTo(LuceneVersion destinationVersion) {
+        return config.isStreaming() && config.getDiskBudget() == 0 &&
+               destinationVersion == LuceneVersion.VERSION_8;
+    }
+
+    private void upgradeOneStepTo(LuceneVersion version, Path workingCopy, InMemoryIndex memoryIndex,
+                                  Function<InfoStream, VersionUpgrader> upgraderFactory) throws IOException {
+        if (config.isResumable()) {
+            journal.beginStep(this.version, version);
+        }
+
+        UpgradeMetrics metrics = config.getMetrics();
+        if (metrics == null) {
+            upgraderFactory.apply(infoStream).upgrade();
+        } else {
+            HopMetrics hop = metrics.startHop(directory, workingCopy, this.version, version);
+            long documents = 0;
+            boolean failed = true;
+            try {
+                upgraderFactory.apply(infoStream).upgrade();
+                documents = countDocuments(version, workingCopy, memoryIndex);
+                failed = false;
+            } finally {
+                metrics.finishHop(hop, documents, failed);
+            }
+        }
 
         // Sanity check.
-        LuceneVersion actualVersion = new VersionGuesser().guess(directory);
+        LuceneVersion actualVersion = guessVersion(workingCopy, memoryIndex);
         if (actualVersion != version) {
             throw new IllegalStateException("We tried to upgrade from " + this.version + " to " + version +
                                             ", but it didn't actually happen");
         }
 
         this.version = version;
-        System.out.println("...successfully upgraded to " + this.version);
+        System.out.println("..." + directory + " successfully upgraded to " + this.version);
+    }
+
+    private LuceneVersion guessVersion(Path workingCopy, InMemoryIndex memoryIndex) throws IOException {
+        if (memoryIndex == null) {
+            return new VersionGuesser().guess(workingCopy);
+        }
+        try (InMemoryDirectory8 memoryDirectory = new InMemoryDirectory8(memoryIndex)) {
+            return new VersionGuesser().guess(memoryDirectory);
+        }
+    }
+
+    private long countDocuments(LuceneVersion version, Path workingCopy, InMemoryIndex memoryIndex)
+            throws IOException {
+        List<SegmentDescription> segments = memoryIndex == null ? version.describeSegments(workingCopy)
+                                                                : version.describeSegments(memoryIndex);
+        long documents = 0;
+        for (SegmentDescription segment : segments) {
+            documents += segment.getMaxDoc() - segment.getDelCount();
+        }
+        return documents;
     }
 
     private static LuceneVersion versionAfter(LuceneVersion version) {
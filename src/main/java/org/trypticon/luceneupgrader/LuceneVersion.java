@@ -1,13 +1,20 @@
 package org.trypticon.luceneupgrader;
 
+import org.trypticon.luceneupgrader.lucene3.SegmentInventory3;
 import org.trypticon.luceneupgrader.lucene3.VersionUpgrader3;
+import org.trypticon.luceneupgrader.lucene4.SegmentInventory4;
 import org.trypticon.luceneupgrader.lucene4.VersionUpgrader4;
+import org.trypticon.luceneupgrader.lucene5.SegmentInventory5;
 import org.trypticon.luceneupgrader.lucene5.VersionUpgrader5;
+import org.trypticon.luceneupgrader.lucene6.SegmentInventory6;
 import org.trypticon.luceneupgrader.lucene6.VersionUpgrader6;
 import org.trypticon.luceneupgrader.lucene7.VersionUpgrader7;
+import org.trypticon.luceneupgrader.lucene8.SegmentInventory8;
 import org.trypticon.luceneupgrader.lucene8.VersionUpgrader8;
 
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.List;
 
 /**
  * Enumeration of versions of Lucene.
@@ -16,57 +23,147 @@ public enum LuceneVersion {
 
     VERSION_1 {
         @Override
-        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream) {
+        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream, UpgradeConfig config) {
             throw new UnsupportedOperationException("Upgrade from what?");
         }
+
+        @Override
+        protected List<SegmentDescription> describeSegments(Path directory) throws IOException {
+            throw new UnsupportedOperationException("Describe what?");
+        }
     },
 
     VERSION_2 {
         @Override
-        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream) {
+        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream, UpgradeConfig config) {
             throw new UnsupportedOperationException("TODO");
         }
+
+        @Override
+        protected List<SegmentDescription> describeSegments(Path directory) throws IOException {
+            return SegmentInventory3.describe(directory);
+        }
     },
 
     VERSION_3 {
         @Override
-        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream) {
-            return new VersionUpgrader3(directory, infoStream);
+        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream, UpgradeConfig config) {
+            return new VersionUpgrader3(directory, infoStream, config);
+        }
+
+        @Override
+        protected List<SegmentDescription> describeSegments(Path directory) throws IOException {
+            return SegmentInventory3.describe(directory);
         }
     },
 
     VERSION_4 {
         @Override
-        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream) {
-            return new VersionUpgrader4(directory, infoStream);
+        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream, UpgradeConfig config) {
+            return new VersionUpgrader4(directory, infoStream, config);
+        }
+
+        @Override
+        protected List<SegmentDescription> describeSegments(Path directory) throws IOException {
+            return SegmentInventory4.describe(directory);
+        }
+
+        @Override
+        protected VersionUpgrader createUpgrader(InMemoryIndex index, InfoStream infoStream, UpgradeConfig config) {
+            return new VersionUpgrader4(index, infoStream, config);
+        }
+
+        @Override
+        protected List<SegmentDescription> describeSegments(InMemoryIndex index) throws IOException {
+            return SegmentInventory4.describe(index);
         }
     },
 
     VERSION_5 {
         @Override
-        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream) {
-            return new VersionUpgrader5(directory, infoStream);
+        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream, UpgradeConfig config) {
+            return new VersionUpgrader5(directory, infoStream, config);
+        }
+
+        @Override
+        protected List<SegmentDescription> describeSegments(Path directory) throws IOException {
+            return SegmentInventory5.describe(directory);
+        }
+
+        @Override
+        protected VersionUpgrader createUpgrader(InMemoryIndex index, InfoStream infoStream, UpgradeConfig config) {
+            return new VersionUpgrader5(index, infoStream, config);
+        }
+
+        @Override
+        protected List<SegmentDescription> describeSegments(InMemoryIndex index) throws IOException {
+            return SegmentInventory5.describe(index);
         }
     },
 
     VERSION_6 {
         @Override
-        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream) {
-            return new VersionUpgrader6(directory, infoStream);
+        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream, UpgradeConfig config) {
+            return new VersionUpgrader6(directory, infoStream, config);
+        }
+
+        @Override
+        protected List<SegmentDescription> describeSegments(Path directory) throws IOException {
+            return SegmentInventory6.describe(directory);
+        }
+
+        @Override
+        protected VersionUpgrader createUpgrader(InMemoryIndex index, InfoStream infoStream, UpgradeConfig config) {
+            return new VersionUpgrader6(index, infoStream, config);
+        }
+
+        @Override
+        protected List<SegmentDescription> describeSegments(InMemoryIndex index) throws IOException {
+            return SegmentInventory6.describe(index);
         }
     },
 
     VERSION_7 {
         @Override
-        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream) {
-            return new VersionUpgrader7(directory, infoStream);
+        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream, UpgradeConfig config) {
+            return new VersionUpgrader7(directory, infoStream, config);
+        }
+
+        @Override
+        protected List<SegmentDescription> describeSegments(Path directory) throws IOException {
+            return SegmentInventory8.describe(directory);
+        }
+
+        @Override
+        protected VersionUpgrader createUpgrader(InMemoryIndex index, InfoStream infoStream, UpgradeConfig config) {
+            return new VersionUpgrader7(index, infoStream, config);
+        }
+
+        @Override
+        protected List<SegmentDescription> describeSegments(InMemoryIndex index) throws IOException {
+            return SegmentInventory8.describe(index);
         }
     },
 
     VERSION_8 {
         @Override
-        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream) {
-            return new VersionUpgrader8(directory, infoStream);
+        protected VersionUpgrader createUpgrader(Path directory, InfoStream infoStream, UpgradeConfig config) {
+            return new VersionUpgrader8(directory, infoStream, config);
+        }
+
+        @Override
+        protected List<SegmentDescription> describeSegments(Path directory) throws IOException {
+            return SegmentInventory8.describe(directory);
+        }
+
+        @Override
+        protected VersionUpgrader createUpgrader(InMemoryIndex index, InfoStream infoStream, UpgradeConfig config) {
+            return new VersionUpgrader8(index, infoStream, config);
+        }
+
+        @Override
+        protected List<SegmentDescription> describeSegments(InMemoryIndex index) throws IOException {
+            return SegmentInventory8.describe(index);
         }
     };
 
@@ -86,7 +183,42 @@ public enum LuceneVersion {
      *
      * @param directory a directory containing the index.
      * @param infoStream an info stream to log to.
+     * @param config options controlling how the upgrade is performed.
      * @return the upgrader.
      */
-    protected abstract VersionUpgrader createUpgrader(Path directory, InfoStream infoStream);
+    protected abstract VersionUpgrader createUpgrader(Path directory, InfoStream infoStream, UpgradeConfig config);
+
+    /**
+     * Overridden for each version to describe the segments of an index of that version.
+     *
+     * @param directory a directory containing the index.
+     * @return the segments in the latest commit of the index.
+     * @throws IOException if an error occurs reading the index.
+     */
+    protected abstract List<SegmentDescription> describeSegments(Path directory) throws IOException;
+
+    /**
+     * Overridden for each version an index can be upgraded to in memory, to create an upgrader
+     * suitable for upgrading an index held in memory to that version.
+     *
+     * @param index the index.
+     * @param infoStream an info stream to log to.
+     * @param config options controlling how the upgrade is performed.
+     * @return the upgrader.
+     */
+    protected VersionUpgrader createUpgrader(InMemoryIndex index, InfoStream infoStream, UpgradeConfig config) {
+        throw new UnsupportedOperationException("Upgrading to " + this + " in memory isn't supported");
+    }
+
+    /**
+     * Overridden for each version an index can be upgraded to in memory, to describe the
+     * segments of an index of that version held in memory.
+     *
+     * @param index the index.
+     * @return the segments in the latest commit of the index.
+     * @throws IOException if an error occurs reading the index.
+     */
+    protected List<SegmentDescription> describeSegments(InMemoryIndex index) throws IOException {
+        throw new UnsupportedOperationException("Describing a " + this + " index in memory isn't supported");
+    }
 }
@@ -0,0 +1,35 @@
+package org.trypticon.luceneupgrader;
+
+/**
+ * Told about each new segment as it is written, and how long each phase of writing it took.
+ * Each version's {@code IndexWriter} and {@code SegmentMerger} call this directly as they merge,
+ * and the upgraders call it for segments they write by adding old ones to a new index.
+ *
+ * Every call about a segment is made on the thread writing it, even where the phases of the
+ * segment were written on other threads.
+ */
+public interface MergeListener {
+
+    /**
+     * Marks the start of writing a segment on the current thread.
+     *
+     * @param name the name of the segment, or of the old segment it is being written from.
+     */
+    void beginSegment(String name);
+
+    /**
+     * Records one phase of writing the segment the current thread is writing.
+     *
+     * @param name the name of the phase, like {@code "postings"} or {@code "stored fields"}.
+     * @param nanos how long the phase took, in nanoseconds.
+     * @param documents the number of documents the phase went through.
+     */
+    void phase(String name, long nanos, long documents);
+
+    /**
+     * Marks the end of writing the segment the current thread is writing, if any.
+     *
+     * @param documents the number of documents written to it.
+     */
+    void endSegment(long documents);
+}
@@ -0,0 +1,174 @@
+package org.trypticon.luceneupgrader;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.nio.file.Path;
+
+/**
+ * Reports upgrade metrics as JDK Flight Recorder events, which only cost anything while a
+ * recording which includes them is running. On JVMs without Flight Recorder, nothing happens.
+ */
+final class MetricsEvents {
+
+    private static final boolean AVAILABLE = isAvailable();
+
+    private MetricsEvents() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    static Object beginHop() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        HopEvent event = new HopEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitHop(Object event, HopMetrics hop) {
+        if (event == null) {
+            return;
+        }
+        HopEvent hopEvent = (HopEvent) event;
+        if (hopEvent.shouldCommit()) {
+            hopEvent.index = hop.getIndex().toString();
+            hopEvent.fromVersion = hop.getFromVersion().name();
+            hopEvent.toVersion = hop.getToVersion().name();
+            hopEvent.bytesRead = hop.getBytesRead();
+            hopEvent.bytesWritten = hop.getBytesWritten();
+            hopEvent.documents = hop.getDocuments();
+            hopEvent.peakHeap = hop.getPeakHeapBytes();
+            hopEvent.failed = hop.isFailed();
+            hopEvent.commit();
+        }
+    }
+
+    static Object beginSegment() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        SegmentEvent event = new SegmentEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitSegment(Object event, Path index, SegmentMetrics segment) {
+        if (event == null) {
+            return;
+        }
+        SegmentEvent segmentEvent = (SegmentEvent) event;
+        if (segmentEvent.shouldCommit()) {
+            segmentEvent.index = index.toString();
+            segmentEvent.segment = segment.getName();
+            segmentEvent.bytesRead = segment.getBytesRead();
+            segmentEvent.bytesWritten = segment.getBytesWritten();
+            segmentEvent.documents = segment.getDocuments();
+            segmentEvent.commit();
+        }
+    }
+
+    static void commitPhase(Path index, SegmentMetrics segment, String phase, long millis, long documents) {
+        if (!AVAILABLE) {
+            return;
+        }
+        PhaseEvent event = new PhaseEvent();
+        if (event.shouldCommit()) {
+            event.index = index.toString();
+            event.segment = segment.getName();
+            event.phase = phase;
+            event.millis = millis;
+            event.documents = documents;
+            event.commit();
+        }
+    }
+
+    @Name("org.trypticon.luceneupgrader.Hop")
+    @Label("Upgrade Step")
+    @Category("Lucene Upgrader")
+    @Description("Upgrading an index from one version of Lucene to the next")
+    private static class HopEvent extends Event {
+        @Label("Index")
+        String index;
+
+        @Label("From Version")
+        String fromVersion;
+
+        @Label("To Version")
+        String toVersion;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Documents")
+        long documents;
+
+        @Label("Peak Heap")
+        @DataAmount
+        long peakHeap;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("org.trypticon.luceneupgrader.Segment")
+    @Label("Upgrade Segment")
+    @Category("Lucene Upgrader")
+    @Description("Writing one segment of an upgraded index")
+    private static class SegmentEvent extends Event {
+        @Label("Index")
+        String index;
+
+        @Label("Segment")
+        String segment;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Documents")
+        long documents;
+    }
+
+    @Name("org.trypticon.luceneupgrader.Phase")
+    @Label("Upgrade Merge Phase")
+    @Category("Lucene Upgrader")
+    @Description("One phase of writing a segment, reported once it finishes")
+    private static class PhaseEvent extends Event {
+        @Label("Index")
+        String index;
+
+        @Label("Segment")
+        String segment;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Duration (ms)")
+        long millis;
+
+        @Label("Documents")
+        long documents;
+    }
+}
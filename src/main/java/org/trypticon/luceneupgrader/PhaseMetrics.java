@@ -0,0 +1,74 @@
+package org.trypticon.luceneupgrader;
+
+/**
+ * Measurements of one phase of writing segments, like merging postings or stored fields.
+ * Where the same phase happens more than once, the measurements are added together.
+ */
+public class PhaseMetrics {
+
+    private final String name;
+
+    private long millis;
+
+    private long documents;
+
+    private long bytesRead;
+
+    private long bytesWritten;
+
+    PhaseMetrics(String name) {
+        this.name = name;
+    }
+
+    synchronized void add(long millis, long documents, long bytesRead, long bytesWritten) {
+        this.millis += millis;
+        this.documents += documents;
+        this.bytesRead += bytesRead;
+        this.bytesWritten += bytesWritten;
+    }
+
+    /**
+     * Gets the name of the phase.
+     *
+     * @return the name, like {@code "postings"} or {@code "stored fields"}.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the time the phase took.
+     *
+     * @return the time, in milliseconds.
+     */
+    public synchronized long getMillis() {
+        return millis;
+    }
+
+    /**
+     * Gets the number of documents the phase went through.
+     *
+     * @return the number of documents.
+     */
+    public synchronized long getDocuments() {
+        return documents;
+    }
+
+    /**
+     * Gets roughly how many bytes were read during the phase.
+     *
+     * @return the number of bytes.
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Gets roughly how many bytes were written during the phase.
+     *
+     * @return the number of bytes.
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,123 @@
+package org.trypticon.luceneupgrader;
+
+/**
+ * Describes one segment of an index, as recorded in the index's latest commit.
+ */
+public class SegmentDescription {
+
+    private final String name;
+
+    private final String version;
+
+    private final String minVersion;
+
+    private final String codec;
+
+    private final int maxDoc;
+
+    private final int delCount;
+
+    private final long sizeInBytes;
+
+    public SegmentDescription(String name, String version, String minVersion, String codec,
+                              int maxDoc, int delCount, long sizeInBytes) {
+        this.name = name;
+        this.version = version;
+        this.minVersion = minVersion;
+        this.codec = codec;
+        this.maxDoc = maxDoc;
+        this.delCount = delCount;
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    /**
+     * Gets the name of the segment.
+     *
+     * @return the segment name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the version of Lucene which wrote the segment.
+     *
+     * @return the version, like {@code "8.8.1"}, or {@code null} if the segment was written
+     *         before Lucene 3.1, which is when this started being recorded.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the oldest version of Lucene which wrote any of the data that went into the
+     * segment. Segments written by merging older ones carry over their oldest version.
+     *
+     * @return the version, or {@code null} if the segment was written before Lucene 7,
+     *         which is when this started being recorded.
+     */
+    public String getMinVersion() {
+        return minVersion;
+    }
+
+    /**
+     * Gets the name of the codec the segment was written with.
+     *
+     * @return the codec name, or {@code null} if the segment was written before Lucene 4,
+     *         which introduced codecs.
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * Gets the number of documents in the segment, including deleted ones.
+     *
+     * @return the number of documents.
+     */
+    public int getMaxDoc() {
+        return maxDoc;
+    }
+
+    /**
+     * Gets the number of deleted documents in the segment.
+     *
+     * @return the number of deleted documents.
+     */
+    public int getDelCount() {
+        return delCount;
+    }
+
+    /**
+     * Gets the total size of the segment's files.
+     *
+     * @return the size in bytes.
+     */
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Gets the major version of Lucene which wrote the segment.
+     *
+     * @return the major version. Segments written before Lucene 3.1 are counted as 2, the same as
+     *         {@link VersionGuesser} does.
+     */
+    public int getMajorVersion() {
+        return majorOf(version);
+    }
+
+    static int majorOf(String version) {
+        if (version == null) {
+            return 2;
+        }
+        int dot = version.indexOf('.');
+        return Integer.parseInt(dot < 0 ? version : version.substring(0, dot));
+    }
+
+    @Override
+    public String toString() {
+        return name + "(version=" + version + ", minVersion=" + minVersion + ", codec=" + codec +
+               ", maxDoc=" + maxDoc + ", delCount=" + delCount + ", sizeInBytes=" + sizeInBytes + ")";
+    }
+}
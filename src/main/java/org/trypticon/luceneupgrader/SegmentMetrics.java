@@ -0,0 +1,142 @@
+package org.trypticon.luceneupgrader;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measurements of writing one new segment, whether by rewriting an old segment on its own or
+ * by merging several together.
+ */
+public class SegmentMetrics {
+
+    private final String name;
+
+    private final String threadName;
+
+    private final long startNanos;
+
+    private long endNanos;
+
+    private long documents;
+
+    private long bytesRead;
+
+    private long bytesWritten;
+
+    private long bytesReadBeforePhase;
+
+    private long bytesWrittenBeforePhase;
+
+    private final Map<String, PhaseMetrics> phases = new LinkedHashMap<>();
+
+    private final Object jfrEvent;
+
+    SegmentMetrics(String name, long startNanos) {
+        this.name = name;
+        this.threadName = Thread.currentThread().getName();
+        this.startNanos = startNanos;
+        this.jfrEvent = MetricsEvents.beginSegment();
+    }
+
+    synchronized void addBytesRead(long bytes) {
+        bytesRead += bytes;
+    }
+
+    synchronized void addBytesWritten(long bytes) {
+        bytesWritten += bytes;
+    }
+
+    /**
+     * Records a phase which has just finished. The bytes read and written since the last
+     * phase finished are put down to this one, because the phases run one after another.
+     */
+    synchronized void recordPhase(String phase, long millis, long documents) {
+        phases.computeIfAbsent(phase, PhaseMetrics::new)
+              .add(millis, documents, bytesRead - bytesReadBeforePhase, bytesWritten - bytesWrittenBeforePhase);
+        bytesReadBeforePhase = bytesRead;
+        bytesWrittenBeforePhase = bytesWritten;
+    }
+
+    void finish(long documents, Path index) {
+        synchronized (this) {
+            this.endNanos = System.nanoTime();
+            this.documents = documents;
+        }
+        MetricsEvents.commitSegment(jfrEvent, index, this);
+    }
+
+    /**
+     * Gets the name of the segment.
+     *
+     * @return the name, or {@code null} if Lucene didn't say which segment it was writing.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the name of the thread which wrote the segment.
+     *
+     * @return the thread name.
+     */
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * Gets how long writing the segment took, so far if it is still being written.
+     *
+     * @return the time, in milliseconds.
+     */
+    public synchronized long getWallTimeMillis() {
+        return ((endNanos == 0 ? System.nanoTime() : endNanos) - startNanos) / 1000000;
+    }
+
+    /**
+     * Tests whether the segment has been written.
+     *
+     * @return {@code true} if it has, {@code false} if it is still being written.
+     */
+    public synchronized boolean isFinished() {
+        return endNanos != 0;
+    }
+
+    /**
+     * Gets the number of documents written to the segment.
+     *
+     * @return the number of documents, or {@code 0} if Lucene didn't say.
+     */
+    public synchronized long getDocuments() {
+        return documents;
+    }
+
+    /**
+     * Gets roughly how many bytes were read while writing the segment.
+     *
+     * @return the number of bytes.
+     */
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Gets roughly how many bytes were written while writing the segment.
+     *
+     * @return the number of bytes.
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Gets the phases of writing the segment, in the order they first happened.
+     *
+     * @return the phases.
+     */
+    public synchronized List<PhaseMetrics> getPhases() {
+        return new ArrayList<>(phases.values());
+    }
+}
@@ -0,0 +1,435 @@
+package org.trypticon.luceneupgrader;
+
+import org.apache.lucene.search.Sort;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Tuning options for an upgrade. The defaults reproduce the original behaviour of
+ * doing all of the work on the calling thread.
+ */
+public class UpgradeConfig {
+
+    private int threadCount = 1;
+
+    private boolean preserveSegments;
+
+    private boolean concurrentMergeParts;
+
+    private boolean streaming;
+
+    private boolean resumable;
+
+    private long diskBudget;
+
+    private long inMemoryThreshold;
+
+    private long memoryBudget;
+
+    private Path scratchDirectory;
+
+    private Sort indexSort;
+
+    private Set<String> legacyNumericFields = Collections.emptySet();
+
+    private double maxMBPerSec;
+
+    private boolean adaptiveThrottle;
+
+    private IOThrottle ioThrottle;
+
+    private UpgradeMetrics metrics;
+
+    /**
+     * Gets the number of worker threads an upgrade step may use.
+     *
+     * @return the number of worker threads.
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Sets the number of worker threads an upgrade step may use. When more than one thread
+     * is permitted, the steps which copy segments through {@code addIndexes} split the
+     * segments between the workers, each of which writes its own new segment,
+     * segment-preserving upgrades rewrite that many segments at once, the steps to Lucene 7
+     * and 8 open the old index's segments at the same time, and the step to Lucene 3 loads
+     * documents it can't bulk-copy, such as ones with compressed fields, on that many threads
+     * ahead of writing them.
+     *
+     * @param threadCount the number of worker threads. Must be at least 1.
+     * @return this config, for chaining.
+     */
+    public UpgradeConfig setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1 but was " + threadCount);
+        }
+        this.threadCount = threadCount;
+        return this;
+    }
+
+    /**
+     * Tests whether segment-preserving mode is enabled.
+     *
+     * @return {@code true} if old segments are rewritten one by one.
+     */
+    public boolean isPreserveSegments() {
+        return preserveSegments || diskBudget > 0;
+    }
+
+    /**
+     * Sets whether the steps which upgrade in place (to Lucene 3, 4, 5 and 6) should rewrite
+     * each old segment into exactly one new segment, instead of merging the whole index down
+     * to a single segment. The rewrites run concurrently, up to {@link #getThreadCount()} at
+     * a time, and the resulting layout lets later steps split their work the same way. The
+     * step to Lucene 7 keeps the segments apart as well. Segments rewritten on their own in the
+     * steps to Lucene 6 and 7 have their postings copied rather than decoded and re-encoded,
+     * wherever the format allows it.
+     *
+     * @param preserveSegments {@code true} to rewrite old segments one by one.
+     * @return this config, for chaining.
+     */
+    public UpgradeConfig setPreserveSegments(boolean preserveSegments) {
+        this.preserveSegments = preserveSegments;
+        return this;
+    }
+
+    /**
+     * Tests whether merges write the parts of a segment at the same time.
+     *
+     * @return {@code true} if the parts are written at the same time.
+     */
+    public boolean isConcurrentMergeParts() {
+        return concurrentMergeParts;
+    }
+
+    /**
+     * Sets whether the merges in the steps to Lucene 5, 6 and 7 should write the stored fields,
+     * postings, doc values, points, norms and term vectors of each new segment at the same time,
+     * each on a worker of its own, instead of one after another. This lets a single large merge,
+     * such as merging a whole index down to one segment, use several cores.
+     *
+     * @param concurrentMergeParts {@code true} to write the parts of each segment at the same time.
+     * @return this config, for chaining.
+     */
+    public UpgradeConfig setConcurrentMergeParts(boolean concurrentMergeParts) {
+        this.concurrentMergeParts = concurrentMergeParts;
+        return this;
+    }
+
+    /**
+     * Tests whether streaming mode is enabled.
+     *
+     * @return {@code true} if old indexes are upgraded straight to the destination.
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Sets whether a Lucene 3, 4 or 6 index being upgraded to Lucene 8 should be read through
+     * adapters and written straight to Lucene 8, instead of being written out in full at every
+     * version in between. A Lucene 5 index is upgraded to Lucene 6 in place first, and then
+     * streamed from there. Indexes which can't be read that way still take the step-by-step path.
+     *
+     * @param streaming {@code true} to skip the intermediate indexes where possible.
+     * @return this config, for chaining.
+     */
+    public UpgradeConfig setStreaming(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
+    /**
+     * Tests whether resumable mode is enabled.
+     *
+     * @return {@code true} if progress is checkpointed so that an interrupted upgrade can resume.
+     */
+    public boolean isResumable() {
+        return resumable || diskBudget > 0;
+    }
+
+    /**
+     * Sets whether progress should be checkpointed so that an interrupted upgrade can resume.
+     * The step in progress is recorded in a journal file next to the index, and steps which
+     * write a new index commit it after each old segment is converted, keeping the partial
+     * index to continue from next time. In-place steps only checkpoint in between segments
+     * when {@link #setPreserveSegments(boolean) segment-preserving mode} is also enabled,
+     * as otherwise the whole index is rewritten as a single unit. Once an upgrade in resumable
+     * mode has been interrupted, it has to be finished in resumable mode.
+     *
+     * @param resumable {@code true} to checkpoint progress.
+     * @return this config, for chaining.
+     */
+    public UpgradeConfig setResumable(boolean resumable) {
+        this.resumable = resumable;
+        return this;
+    }
+
+    /**
+     * Gets the disk budget.
+     *
+     * @return the number of bytes of extra disk space an upgrade step may use, or {@code 0}
+     *         if there is no limit.
+     */
+    public long getDiskBudget() {
+        return diskBudget;
+    }
+
+    /**
+     * Sets how much extra disk space an upgrade step may use on top of the index itself.
+     * Steps which write a new index convert the old segments in batches that fit within the
+     * budget, and after each batch, remove the converted segments from the old index to free
+     * their space. In-place steps rewrite segments one by one, only starting a rewrite when the
+     * segments already being rewritten leave room for it. A segment larger than the budget is
+     * still converted, on its own.
+     *
+     * Freeing space as it goes means that an interrupted step can't be undone by simply
+     * discarding the new index, so a budget implies both {@link #setResumable(boolean) resumable}
+     * and {@link #setPreserveSegments(boolean) segment-preserving} modes. Streaming is not used
+     * with a budget, as the old indexes it reads can't have segments removed from them.
+     *
+     * @param diskBudget the number of bytes, or {@code 0} for no limit.
+     * @return this config, for chaining.
+     */
+    public UpgradeConfig setDiskBudget(long diskBudget) {
+        if (diskBudget < 0) {
+            throw new IllegalArgumentException("diskBudget must not be negative but was " + diskBudget);
+        }
+        this.diskBudget = diskBudget;
+        return this;
+    }
+
+    /**
+     * Gets the size of the largest index to upgrade in memory.
+     *
+     * @return the number of bytes, or {@code 0} if no index is upgraded in memory.
+     */
+    public long getInMemoryThreshold() {
+        return inMemoryThreshold;
+    }
+
+    /**
+     * Sets the size of the largest index to upgrade entirely in memory. Such an index is read
+     * into memory, every step runs there, and only the final index is written to disk, in
+     * place of the old one. For small indexes, this saves the files and directories each step
+     * would otherwise create, force to disk and rename.
+     *
+     * Indexes which can be {@link #setStreaming(boolean) streamed} in one go are streamed
+     * instead, since that already writes nothing but the final index. Upgrades in memory
+     * are never resumable, so nothing is upgraded in memory in resumable mode or with a disk
+     * budget. If an index outgrows the {@link #setMemoryBudget(long) memory budget} part of
+     * the way through, the index on disk hasn't been touched yet, so the upgrade starts
+     * again there.
+     *
+     * @param inMemoryThreshold the number of bytes, or {@code 0} to upgrade nothing in memory.
+     * @return this config, for chaining.
+     */
+    public UpgradeConfig setInMemoryThreshold(long inMemoryThreshold) {
+        if (inMemoryThreshold < 0) {
+            throw new IllegalArgumentException("inMemoryThreshold must not be negative but was " + inMemoryThreshold);
+        }
+        this.inMemoryThreshold = inMemoryThreshold;
+        return this;
+    }
+
+    /**
+     * Gets the memory budget for upgrades in memory.
+     *
+     * @return the number of bytes, or {@code 0} for a quarter of the maximum heap size.
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets how much memory an index upgraded in memory may take up. This covers both the old
+     * and the new copy of the index while each step runs. Each index being upgraded at once
+     * has a budget of its own.
+     *
+     * @param memoryBudget the number of bytes, or {@code 0} for a quarter of the maximum heap size.
+     * @return this config, for chaining.
+     */
+    public UpgradeConfig setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("memoryBudget must not be negative but was " + memoryBudget);
+        }
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * Gets the directory intermediate steps are run in.
+     *
+     * @return the directory, or {@code null} if every step runs next to the index.
+     */
+    public Path getScratchDirectory() {
+        return scratchDirectory;
+    }
+
+    /**
+     * Sets a directory, typically on a faster disk than the indexes, to run the intermediate
+     * steps of each upgrade in. An index which is more than one step behind is copied there,
+     * upgraded all the way, and only then copied back over the old one, so the disk holding
+     * the indexes only sees the old index read once and the new one written once.
+     *
+     * Each index gets a directory of its own under this one, removed once it is done.
+     * Indexes which can be {@link #setStreaming(boolean) streamed} in one go are streamed in
+     * place, and ones upgraded {@link #setInMemoryThreshold(long) in memory} don't touch it.
+     * Upgrades in the scratch directory are never resumable, so it isn't used in resumable
+     * mode or with a disk budget.
+     *
+     * @param scratchDirectory the directory, or {@code null} to run every step next to the index.
+     * @return this config, for chaining.
+     */
+    public UpgradeConfig setScratchDirectory(Path scratchDirectory) {
+        this.scratchDirectory = scratchDirectory;
+        return this;
+    }
+
+    /**
+     * Gets the sort for the upgraded index.
+     *
+     * @return the sort, or {@code null} if the documents are left in their existing order.
+     */
+    public Sort getIndexSort() {
+        return indexSort;
+    }
+
+    /**
+     * Sets a sort for the upgraded index, such as descending on a timestamp doc values field,
+     * so that searches sorted the same way can terminate early. The step to Lucene 8 rewrites
+     * every document anyway, so it writes the documents of each new segment in this order
+     * rather than needing a separate reindex. Segments already in Lucene 8 format are only
+     * carried into the new index as they are if they are already sorted this way.
+     *
+     * This only applies to the step to Lucene 8. An index which is already at Lucene 8 is
+     * left alone, and an interrupted resumable upgrade has to be resumed with the same sort.
+     *
+     * @param indexSort the sort, or {@code null} to leave the documents in their existing order.
+     * @return this config, for chaining.
+     */
+    public UpgradeConfig setIndexSort(Sort indexSort) {
+        this.indexSort = indexSort;
+        return this;
+    }
+
+    /**
+     * Gets the fields to give point values to in the step to Lucene 7.
+     *
+     * @return the names of the fields, which may be empty.
+     */
+    public Set<String> getLegacyNumericFields() {
+        return legacyNumericFields;
+    }
+
+    /**
+     * Sets fields indexed with the legacy numeric (trie) encoding, such as by
+     * {@code LegacyLongField} or {@code NumericField}, to give point values to. Lucene 7 can
+     * only search those terms by expanding ranges into many of them, so the step to Lucene 7
+     * decodes each document's values from the full precision terms and indexes them as points
+     * as well, which range queries such as {@code LongPoint.newRangeQuery} can then use. The
+     * terms are kept, so existing queries still work.
+     *
+     * Ints and floats come out as 4-byte points and longs and doubles as 8-byte ones, with the
+     * same encoding as {@code IntPoint}, {@code FloatPoint}, {@code LongPoint} and
+     * {@code DoublePoint}, so searches have to use the point type matching the original field.
+     * Upgrades only stream straight to Lucene 8 from indexes which Lucene 7 can read, since
+     * the others would skip the step doing the conversion.
+     *
+     * @param legacyNumericFields the names of the fields.
+     * @return this config, for chaining.
+     */
+    public UpgradeConfig setLegacyNumericFields(Collection<String> legacyNumericFields) {
+        this.legacyNumericFields = Collections.unmodifiableSet(new LinkedHashSet<>(legacyNumericFields));
+        return this;
+    }
+
+    /**
+     * Gets the I/O rate limit.
+     *
+     * @return the maximum rate, in megabytes per second, or {@code 0} if there is no limit.
+     */
+    public double getMaxMBPerSec() {
+        return maxMBPerSec;
+    }
+
+    /**
+     * Sets a limit on how fast upgrades read and write, so that they can run alongside
+     * something else using the same disks. The limit covers reads and writes together, for the
+     * old and new index in every step, and is shared by every upgrade using this config at once.
+     *
+     * @param maxMBPerSec the maximum rate, in megabytes per second, or {@code 0} for no limit.
+     * @return this config, for chaining.
+     */
+    public synchronized UpgradeConfig setMaxMBPerSec(double maxMBPerSec) {
+        if (!(maxMBPerSec >= 0)) {
+            throw new IllegalArgumentException("maxMBPerSec must not be negative but was " + maxMBPerSec);
+        }
+        this.maxMBPerSec = maxMBPerSec;
+        ioThrottle = null;
+        return this;
+    }
+
+    /**
+     * Tests whether the I/O rate limit adapts to how busy the disks are.
+     *
+     * @return {@code true} if the rate backs off while I/O is slow.
+     */
+    public boolean isAdaptiveThrottle() {
+        return adaptiveThrottle;
+    }
+
+    /**
+     * Sets whether the {@link #setMaxMBPerSec(double) I/O rate limit} should back off while reads
+     * and writes are taking longer than usual, a sign that the disks are busy with other work,
+     * and work its way back up to the limit once they speed up again.
+     *
+     * @param adaptiveThrottle {@code true} to back off while I/O is slow.
+     * @return this config, for chaining.
+     */
+    public synchronized UpgradeConfig setAdaptiveThrottle(boolean adaptiveThrottle) {
+        this.adaptiveThrottle = adaptiveThrottle;
+        ioThrottle = null;
+        return this;
+    }
+
+    /**
+     * Gets the throttle which enforces the I/O rate limit. The same throttle is returned every
+     * time until the settings change, so that everything using this config shares the limit.
+     *
+     * @return the throttle, or {@code null} if there is no limit.
+     */
+    public synchronized IOThrottle getIOThrottle() {
+        if (ioThrottle == null && maxMBPerSec > 0) {
+            ioThrottle = new IOThrottle(maxMBPerSec, adaptiveThrottle);
+        }
+        return ioThrottle;
+    }
+
+    /**
+     * Gets where upgrades record their metrics.
+     *
+     * @return the metrics, or {@code null} if upgrades don't record any.
+     */
+    public UpgradeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets where upgrades record how long each step, segment and merge phase takes, and how
+     * much they read and write. Upgrades sharing this config share the metrics too.
+     *
+     * @param metrics the metrics, or {@code null} to record none.
+     * @return this config, for chaining.
+     */
+    public UpgradeConfig setMetrics(UpgradeMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+}
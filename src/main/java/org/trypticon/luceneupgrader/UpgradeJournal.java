@@ -0,0 +1,121 @@
+package org.trypticon.luceneupgrader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Records which upgrade step is in progress in a file next to the index, so that an
+ * interrupted upgrade can carry on from that step.
+ *
+ * Progress within a step is recorded by the step itself, in the commits of the index it
+ * is writing, where it can't get out of sync with the data it describes.
+ */
+class UpgradeJournal {
+
+    private static final String FROM = "from";
+
+    private static final String TO = "to";
+
+    private final Path path;
+
+    private final Path journalPath;
+
+    UpgradeJournal(Path path) {
+        this.path = path;
+        this.journalPath = path.resolveSibling(path.getFileName() + ".journal");
+    }
+
+    /**
+     * Tests whether a journal was left behind by an earlier upgrade.
+     *
+     * @return {@code true} if a journal exists.
+     */
+    boolean exists() {
+        return Files.exists(journalPath);
+    }
+
+    /**
+     * Puts the index back together if an earlier upgrade died while swapping a newly written
+     * index into its place. The swap only starts once the new index is complete, so if the
+     * index is missing, the new one is good to use.
+     *
+     * @throws IOException if an error occurs.
+     */
+    void recoverInterruptedSwap() throws IOException {
+        Path oldPath = path.resolveSibling(path.getFileName() + ".old");
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+        if (!Files.exists(path) && Files.exists(oldPath)) {
+            Files.move(Files.exists(tempPath) ? tempPath : oldPath, path);
+        }
+        if (Files.exists(oldPath)) {
+            FileUtils.insecureRecursiveDelete(oldPath);
+        }
+        FileUtils.fsync(path.toAbsolutePath().getParent(), true);
+    }
+
+    /**
+     * Works out which version to continue upgrading from.
+     *
+     * @param guessedVersion the version the index appears to be.
+     * @return the version to continue from.
+     * @throws IOException if an error occurs reading the journal.
+     */
+    LuceneVersion resumeFrom(LuceneVersion guessedVersion) throws IOException {
+        if (!exists()) {
+            return guessedVersion;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream stream = Files.newInputStream(journalPath)) {
+            properties.load(stream);
+        }
+        LuceneVersion from = LuceneVersion.valueOf(properties.getProperty(FROM));
+        LuceneVersion to = LuceneVersion.valueOf(properties.getProperty(TO));
+
+        // Steps up to Lucene 6 upgrade in place, so an interrupted one leaves an index which
+        // looks like the newer version but can still contain segments from the older one.
+        // Running it again only rewrites the segments which were left over.
+        if (guessedVersion == to && to.isOlderThan(LuceneVersion.VERSION_7)) {
+            return from;
+        }
+        return guessedVersion;
+    }
+
+    /**
+     * Records that a step is about to start.
+     *
+     * @param from the version being upgraded from.
+     * @param to the version being upgraded to.
+     * @throws IOException if an error occurs writing the journal.
+     */
+    void beginStep(LuceneVersion from, LuceneVersion to) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(FROM, from.name());
+        properties.setProperty(TO, to.name());
+
+        Path pendingPath = journalPath.resolveSibling(journalPath.getFileName() + ".pending");
+        try (OutputStream stream = Files.newOutputStream(pendingPath)) {
+            properties.store(stream, null);
+        }
+        FileUtils.fsync(pendingPath, false);
+        Files.move(pendingPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileUtils.fsync(journalPath.toAbsolutePath().getParent(), true);
+    }
+
+    /**
+     * Removes the journal once the upgrade has finished.
+     *
+     * @throws IOException if an error occurs.
+     */
+    void finish() throws IOException {
+        if (Files.deleteIfExists(journalPath)) {
+            FileUtils.fsync(journalPath.toAbsolutePath().getParent(), true);
+        }
+    }
+}
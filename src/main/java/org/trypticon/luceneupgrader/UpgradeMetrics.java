@@ -0,0 +1,289 @@
+package org.trypticon.luceneupgrader;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects measurements of every upgrade step run with a config using it, for reporting as
+ * JSON, watching through JMX, or recording with JDK Flight Recorder.
+ *
+ * One instance can be shared by any number of upgrades, including ones running at once,
+ * because each step is kept apart by the index it is upgrading.
+ */
+public class UpgradeMetrics implements UpgradeMetricsMXBean {
+
+    /**
+     * How often the heap is sampled while steps are running.
+     */
+    private static final long HEAP_SAMPLE_INTERVAL_MILLIS = 100;
+
+    private final List<HopMetrics> hops = new ArrayList<>();
+
+    private final Map<Path, HopMetrics> runningHops = new HashMap<>();
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private ScheduledExecutorService heapSampler;
+
+    /**
+     * Gets the step currently running on an index, for upgraders to measure their work into.
+     *
+     * @param config the config the upgrade is running with.
+     * @param index the path to the index.
+     * @return the step, or {@code null} if the config isn't collecting metrics.
+     */
+    public static HopMetrics runningHop(UpgradeConfig config, Path index) {
+        UpgradeMetrics metrics = config.getMetrics();
+        return metrics == null ? null : metrics.getRunningHop(index);
+    }
+
+    /**
+     * Starts measuring an upgrade step.
+     *
+     * @param index the path to the index.
+     * @param fromVersion the version being upgraded from.
+     * @param toVersion the version being upgraded to.
+     * @return the measurements for the step.
+     */
+    public HopMetrics startHop(Path index, LuceneVersion fromVersion, LuceneVersion toVersion) {
+        return startHop(index, index, fromVersion, toVersion);
+    }
+
+    /**
+     * Starts measuring an upgrade step running on a working copy of an index.
+     *
+     * @param index the path to the index, which the step is reported against.
+     * @param workingCopy the path to the copy being upgraded, which upgraders look the step up by.
+     * @param fromVersion the version being upgraded from.
+     * @param toVersion the version being upgraded to.
+     * @return the measurements for the step.
+     */
+    public synchronized HopMetrics startHop(Path index, Path workingCopy, LuceneVersion fromVersion,
+                                            LuceneVersion toVersion) {
+        HopMetrics hop = new HopMetrics(index, fromVersion, toVersion);
+        hop.sampleHeap(memory.getHeapMemoryUsage().getUsed());
+        hops.add(hop);
+        runningHops.put(workingCopy, hop);
+        if (heapSampler == null) {
+            heapSampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "upgrade-heap-sampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            heapSampler.scheduleAtFixedRate(this::sampleHeap, HEAP_SAMPLE_INTERVAL_MILLIS,
+                                            HEAP_SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return hop;
+    }
+
+    /**
+     * Finishes measuring an upgrade step.
+     *
+     * @param hop the step.
+     * @param documents the number of documents in the index afterwards.
+     * @param failed {@code true} if the step failed.
+     */
+    public synchronized void finishHop(HopMetrics hop, long documents, boolean failed) {
+        hop.sampleHeap(memory.getHeapMemoryUsage().getUsed());
+        hop.finish(documents, failed);
+        runningHops.values().remove(hop);
+        if (runningHops.isEmpty() && heapSampler != null) {
+            heapSampler.shutdownNow();
+            heapSampler = null;
+        }
+    }
+
+    private synchronized void sampleHeap() {
+        long used = memory.getHeapMemoryUsage().getUsed();
+        for (HopMetrics hop : runningHops.values()) {
+            hop.sampleHeap(used);
+        }
+    }
+
+    /**
+     * Gets the step currently running on an index.
+     *
+     * @param index the path to the index.
+     * @return the step, or {@code null} if none is running.
+     */
+    public synchronized HopMetrics getRunningHop(Path index) {
+        return runningHops.get(index);
+    }
+
+    /**
+     * Gets every step measured so far, in the order they started.
+     *
+     * @return the steps.
+     */
+    public synchronized List<HopMetrics> getHops() {
+        return new ArrayList<>(hops);
+    }
+
+    @Override
+    public int getFinishedSteps() {
+        return (int) getHops().stream().filter(HopMetrics::isFinished).count();
+    }
+
+    @Override
+    public int getRunningSteps() {
+        return (int) getHops().stream().filter(hop -> !hop.isFinished()).count();
+    }
+
+    @Override
+    public int getFailedSteps() {
+        return (int) getHops().stream().filter(HopMetrics::isFailed).count();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return getHops().stream().mapToLong(HopMetrics::getBytesRead).sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return getHops().stream().mapToLong(HopMetrics::getBytesWritten).sum();
+    }
+
+    @Override
+    public String getJsonReport() {
+        return toJson();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     *
+     * @param name a name to tell these metrics apart from any others registered.
+     * @return the name the metrics were registered under.
+     * @throws JMException if registering fails, such as when the name is already taken.
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("org.trypticon.luceneupgrader:type=UpgradeMetrics,name=" +
+                                               ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Writes the report as JSON to a file.
+     *
+     * @param file the file to write.
+     * @throws IOException if an error occurs writing the file.
+     */
+    public void writeJson(Path file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+        }
+    }
+
+    /**
+     * Formats the report as JSON. The report lists every step, with its totals, the totals
+     * for each phase, and each segment it wrote with that segment's phases.
+     *
+     * @return the report.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\n  \"steps\": [");
+        List<HopMetrics> hops = getHops();
+        for (int i = 0; i < hops.size(); i++) {
+            HopMetrics hop = hops.get(i);
+            json.append(i == 0 ? "\n" : ",\n").append("    {");
+            appendField(json, "index", hop.getIndex().toString(), true);
+            appendField(json, "from", hop.getFromVersion().name(), false);
+            appendField(json, "to", hop.getToVersion().name(), false);
+            appendField(json, "startTimeMillis", hop.getStartTimeMillis(), false);
+            appendField(json, "finished", hop.isFinished(), false);
+            appendField(json, "failed", hop.isFailed(), false);
+            appendField(json, "wallTimeMillis", hop.getWallTimeMillis(), false);
+            appendField(json, "bytesRead", hop.getBytesRead(), false);
+            appendField(json, "bytesWritten", hop.getBytesWritten(), false);
+            appendField(json, "documents", hop.getDocuments(), false);
+            json.append(", \"documentsPerSecond\": ")
+                .append(String.format(Locale.ROOT, "%.1f", hop.getDocumentsPerSecond()));
+            appendField(json, "peakHeapBytes", hop.getPeakHeapBytes(), false);
+            json.append(",\n      \"phases\": ");
+            appendPhases(json, hop.getPhases());
+            json.append(",\n      \"segments\": [");
+            List<SegmentMetrics> segments = hop.getSegments();
+            for (int j = 0; j < segments.size(); j++) {
+                SegmentMetrics segment = segments.get(j);
+                json.append(j == 0 ? "\n" : ",\n").append("        {");
+                appendField(json, "segment", segment.getName(), true);
+                appendField(json, "thread", segment.getThreadName(), false);
+                appendField(json, "finished", segment.isFinished(), false);
+                appendField(json, "wallTimeMillis", segment.getWallTimeMillis(), false);
+                appendField(json, "documents", segment.getDocuments(), false);
+                appendField(json, "bytesRead", segment.getBytesRead(), false);
+                appendField(json, "bytesWritten", segment.getBytesWritten(), false);
+                json.append(", \"phases\": ");
+                appendPhases(json, segment.getPhases());
+                json.append('}');
+            }
+            json.append(segments.isEmpty() ? "]" : "\n      ]").append("\n    }");
+        }
+        json.append(hops.isEmpty() ? "]" : "\n  ]").append("\n}\n");
+        return json.toString();
+    }
+
+    private static void appendPhases(StringBuilder json, List<PhaseMetrics> phases) {
+        json.append('{');
+        for (int i = 0; i < phases.size(); i++) {
+            PhaseMetrics phase = phases.get(i);
+            if (i > 0) {
+                json.append(", ");
+            }
+            appendString(json, phase.getName());
+            json.append(": {");
+            appendField(json, "millis", phase.getMillis(), true);
+            appendField(json, "documents", phase.getDocuments(), false);
+            appendField(json, "bytesRead", phase.getBytesRead(), false);
+            appendField(json, "bytesWritten", phase.getBytesWritten(), false);
+            json.append('}');
+        }
+        json.append('}');
+    }
+
+    private static void appendField(StringBuilder json, String name, Object value, boolean first) {
+        if (!first) {
+            json.append(", ");
+        }
+        appendString(json, name);
+        json.append(": ");
+        if (value == null) {
+            json.append("null");
+        } else if (value instanceof String) {
+            appendString(json, (String) value);
+        } else {
+            json.append(value);
+        }
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,49 @@
+package org.trypticon.luceneupgrader;
+
+/**
+ * Management interface for watching upgrades through JMX.
+ */
+public interface UpgradeMetricsMXBean {
+
+    /**
+     * Gets the number of upgrade steps which have finished, successfully or not.
+     *
+     * @return the number of steps.
+     */
+    int getFinishedSteps();
+
+    /**
+     * Gets the number of upgrade steps still running.
+     *
+     * @return the number of steps.
+     */
+    int getRunningSteps();
+
+    /**
+     * Gets the number of upgrade steps which failed.
+     *
+     * @return the number of steps.
+     */
+    int getFailedSteps();
+
+    /**
+     * Gets roughly how many bytes all the steps have read.
+     *
+     * @return the number of bytes.
+     */
+    long getBytesRead();
+
+    /**
+     * Gets roughly how many bytes all the steps have written.
+     *
+     * @return the number of bytes.
+     */
+    long getBytesWritten();
+
+    /**
+     * Gets the full report, in the same form as {@link UpgradeMetrics#toJson()}.
+     *
+     * @return the report as JSON.
+     */
+    String getJsonReport();
+}
@@ -0,0 +1,108 @@
+package org.trypticon.luceneupgrader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes the work an upgrade will do: which steps it will take, and which of the index's
+ * current segments each step has to rewrite. Segments which are already in the format a step
+ * writes are kept as they are.
+ */
+public class UpgradePlan {
+
+    private final LuceneVersion from;
+
+    private final LuceneVersion to;
+
+    private final List<SegmentDescription> segments;
+
+    private final Map<LuceneVersion, List<SegmentDescription>> rewritesByStep;
+
+    UpgradePlan(LuceneVersion from, LuceneVersion to, List<SegmentDescription> segments,
+                Map<LuceneVersion, List<SegmentDescription>> rewritesByStep) {
+        this.from = from;
+        this.to = to;
+        this.segments = Collections.unmodifiableList(new ArrayList<>(segments));
+        this.rewritesByStep = Collections.unmodifiableMap(new LinkedHashMap<>(rewritesByStep));
+    }
+
+    /**
+     * Gets the version the index is currently at.
+     *
+     * @return the version.
+     */
+    public LuceneVersion getFrom() {
+        return from;
+    }
+
+    /**
+     * Gets the version the index will be upgraded to.
+     *
+     * @return the version.
+     */
+    public LuceneVersion getTo() {
+        return to;
+    }
+
+    /**
+     * Gets the index's current segments.
+     *
+     * @return the segments.
+     */
+    public List<SegmentDescription> getSegments() {
+        return segments;
+    }
+
+    /**
+     * Gets the steps the upgrade will take, in order.
+     *
+     * @return the version each step upgrades to.
+     */
+    public List<LuceneVersion> getSteps() {
+        return new ArrayList<>(rewritesByStep.keySet());
+    }
+
+    /**
+     * Gets the current segments whose data a step has to rewrite.
+     *
+     * @param step the version the step upgrades to.
+     * @return the segments, identified by their current names.
+     */
+    public List<SegmentDescription> getRewrites(LuceneVersion step) {
+        return rewritesByStep.getOrDefault(step, Collections.emptyList());
+    }
+
+    /**
+     * Estimates the total amount of data the upgrade will rewrite, counting each segment
+     * once for every step which rewrites it.
+     *
+     * @return the estimated number of bytes.
+     */
+    public long getBytesRewritten() {
+        long total = 0;
+        for (List<SegmentDescription> rewrites : rewritesByStep.values()) {
+            for (SegmentDescription segment : rewrites) {
+                total += segment.getSizeInBytes();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Upgrade from ").append(from).append(" to ").append(to).append('\n');
+        for (SegmentDescription segment : segments) {
+            builder.append("  ").append(segment).append('\n');
+        }
+        for (Map.Entry<LuceneVersion, List<SegmentDescription>> entry : rewritesByStep.entrySet()) {
+            builder.append("  step to ").append(entry.getKey()).append(" rewrites ")
+                   .append(entry.getValue().size()).append(" of ").append(segments.size()).append(" segments\n");
+        }
+        builder.append("  about ").append(getBytesRewritten()).append(" bytes rewritten in total\n");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,75 @@
+package org.trypticon.luceneupgrader;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Works out which segments each upgrade step will rewrite, following the same rules
+ * as the upgraders themselves.
+ */
+class UpgradePlanner {
+
+    /**
+     * Plans an upgrade.
+     *
+     * @param from the version the index is at.
+     * @param to the version to upgrade to.
+     * @param segments the index's current segments.
+     * @param streamingFrom the version from which the index will be upgraded straight to the
+     *                      destination, or {@code null} if it will go one step at a time.
+     * @return the plan.
+     */
+    UpgradePlan plan(LuceneVersion from, LuceneVersion to, List<SegmentDescription> segments,
+                     LuceneVersion streamingFrom) {
+        Map<LuceneVersion, List<SegmentDescription>> rewritesByStep = new LinkedHashMap<>();
+
+        // Tracks what each original segment's data will look like after each step.
+        int[] majors = new int[segments.size()];
+        int[] minMajors = new int[segments.size()];
+        for (int i = 0; i < segments.size(); i++) {
+            SegmentDescription segment = segments.get(i);
+            majors[i] = segment.getMajorVersion();
+            minMajors[i] = segment.getMinVersion() == null ? -1 : SegmentDescription.majorOf(segment.getMinVersion());
+        }
+
+        for (LuceneVersion step = next(from); step != null && !to.isOlderThan(step); step = next(step)) {
+            if (streamingFrom != null && !step.isOlderThan(next(streamingFrom))) {
+                // Everything is read through the old reader and written once by the new writer.
+                rewritesByStep.put(to, new ArrayList<>(segments));
+                break;
+            }
+
+            int stepMajor = step.ordinal() + 1;
+            List<SegmentDescription> rewrites = new ArrayList<>();
+            for (int i = 0; i < segments.size(); i++) {
+                if (isRewritten(stepMajor, majors[i], minMajors[i])) {
+                    rewrites.add(segments.get(i));
+                    majors[i] = stepMajor;
+                    minMajors[i] = stepMajor;
+                }
+            }
+            rewritesByStep.put(step, rewrites);
+        }
+        return new UpgradePlan(from, to, segments, rewritesByStep);
+    }
+
+    private static boolean isRewritten(int stepMajor, int major, int minMajor) {
+        if (stepMajor <= 6) {
+            // In-place steps only rewrite the segments which their own version didn't write.
+            return major < stepMajor;
+        } else if (stepMajor == 7) {
+            // Going to 7 has to rewrite everything into a new index.
+            return true;
+        } else {
+            // Going to 8 keeps segments which hold nothing older than 8, and rewrites the rest.
+            return minMajor < 8;
+        }
+    }
+
+    private static LuceneVersion next(LuceneVersion version) {
+        LuceneVersion[] versions = LuceneVersion.values();
+        return version.ordinal() + 1 < versions.length ? versions[version.ordinal() + 1] : null;
+    }
+}
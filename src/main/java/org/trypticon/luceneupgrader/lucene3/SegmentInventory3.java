@@ -0,0 +1,42 @@
+package org.trypticon.luceneupgrader.lucene3;
+
+import org.trypticon.luceneupgrader.SegmentDescription;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.SegmentInfo;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.SegmentInfos;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.Directory;
+import org.trypticon.luceneupgrader.lucene3.internal.lucenesupport.PathFSDirectory3;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes the segments of a Lucene 2 or 3 index.
+ */
+public class SegmentInventory3 {
+
+    private SegmentInventory3() {
+    }
+
+    /**
+     * Describes the segments in the latest commit of an index.
+     *
+     * @param path the path to the index.
+     * @return the segments.
+     * @throws IOException if an error occurs reading the index.
+     */
+    public static List<SegmentDescription> describe(Path path) throws IOException {
+        try (Directory directory = PathFSDirectory3.open(path)) {
+            SegmentInfos infos = new SegmentInfos();
+            infos.read(directory);
+
+            List<SegmentDescription> descriptions = new ArrayList<>(infos.size());
+            for (SegmentInfo info : infos) {
+                descriptions.add(new SegmentDescription(info.name, info.getVersion(), null, null,
+                        info.docCount, info.getDelCount(), info.sizeInBytes(true)));
+            }
+            return descriptions;
+        }
+    }
+}
@@ -1,21 +1,37 @@
 package org.trypticon.luceneupgrader.lucene3;
 
+import org.trypticon.luceneupgrader.ConcurrencyUtils;
 import org.trypticon.luceneupgrader.InfoStream;
+import org.trypticon.luceneupgrader.UpgradeConfig;
+import org.trypticon.luceneupgrader.UpgradeMetrics;
 import org.trypticon.luceneupgrader.VersionUpgrader;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.ConcurrentMergeScheduler;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.IndexUpgrader;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.IndexWriter;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.IndexWriterConfig;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.LogByteSizeMergePolicy;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.MergePolicy;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.MergeScheduler;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.SegmentInfo;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.SegmentInfos;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.SerialMergeScheduler;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.AlreadyClosedException;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.Directory;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.util.Version;
 import org.trypticon.luceneupgrader.lucene3.internal.lucenesupport.PathFSDirectory3;
+import org.trypticon.luceneupgrader.lucene3.internal.lucenesupport.ThrottledDirectory3;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Upgrades an index to Lucene 3 format.
@@ -26,20 +42,180 @@ public class VersionUpgrader3 implements VersionUpgrader {
 
     private final InfoStream infoStream;
 
+    private final UpgradeConfig config;
+
     public VersionUpgrader3(Path path, InfoStream infoStream) {
+        this(path, infoStream, new UpgradeConfig());
+    }
+
+    public VersionUpgrader3(Path path, InfoStream infoStream, UpgradeConfig config) {
         this.path = path;
         this.infoStream = infoStream;
+        this.config = config;
     }
 
     @Override
     public void upgrade() throws IOException {
-        try (Directory directory = PathFSDirectory3.open(path)) {
+        try (Directory directory = ThrottledDirectory3.wrap(PathFSDirectory3.open(path), config.getIOThrottle(),
+                UpgradeMetrics.runningHop(config, path))) {
             PrintStream printStream = new PrintStream(new InfoStreamOutputStream(infoStream));
             IndexWriterConfig indexWriterConfig = new IndexWriterConfig(Version.LUCENE_36, null);
-            indexWriterConfig.setMergePolicy(new LogByteSizeMergePolicy());
-            indexWriterConfig.setMergeScheduler(new SerialMergeScheduler());
-            IndexUpgrader upgrader = new IndexUpgrader(directory, indexWriterConfig, printStream, true);
-            upgrader.upgrade();
+            if (config.isPreserveSegments()) {
+                indexWriterConfig.setMergePolicy(new SegmentPreservingMergePolicy());
+                indexWriterConfig.setMergeScheduler(createConcurrentMergeScheduler());
+            } else {
+                indexWriterConfig.setMergePolicy(new LogByteSizeMergePolicy());
+                indexWriterConfig.setMergeScheduler(new SerialMergeScheduler());
+            }
+            ExecutorService documentLoadExecutor = createDocumentLoadExecutor();
+            indexWriterConfig.setDocumentLoadExecutor(documentLoadExecutor);
+            indexWriterConfig.setMergeListener(UpgradeMetrics.runningHop(config, path));
+            indexWriterConfig.setScratchDirectory(config.getScratchDirectory());
+            try {
+                IndexUpgrader upgrader = new IndexUpgrader(directory, indexWriterConfig, printStream, true);
+                upgrader.upgrade();
+            } finally {
+                if (documentLoadExecutor != null) {
+                    documentLoadExecutor.shutdownNow();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the executor which merges load documents on when they can't bulk-copy them,
+     * as with segments whose stored fields were compressed before 3.0.
+     *
+     * @return the executor, or {@code null} if each merge should load its documents itself.
+     */
+    private ExecutorService createDocumentLoadExecutor() {
+        return config.getThreadCount() > 1
+                ? ConcurrencyUtils.newFixedThreadPool(config.getThreadCount(), "upgrade3-document-load")
+                : null;
+    }
+
+    /**
+     * Creates the scheduler which runs the per-segment rewrites, one segment per thread.
+     */
+    private MergeScheduler createConcurrentMergeScheduler() {
+        ConcurrentMergeScheduler mergeScheduler =
+                config.isResumable() ? new CheckpointingMergeScheduler(config.getDiskBudget())
+                                      : new ConcurrentMergeScheduler();
+        // Raise the merge count first if needed, because each setter validates against the other.
+        mergeScheduler.setMaxMergeCount(Math.max(config.getThreadCount(), mergeScheduler.getMaxThreadCount()));
+        mergeScheduler.setMaxThreadCount(config.getThreadCount());
+        mergeScheduler.setMaxMergeCount(config.getThreadCount());
+        return mergeScheduler;
+    }
+
+    /**
+     * Commits after each segment is rewritten, so that an interrupted upgrade only has to
+     * redo the segments which were still in progress when it stopped. The commits happen on
+     * a thread of their own, because closing the writer waits for the merge threads while
+     * holding the lock a commit needs.
+     *
+     * With a disk budget, a rewrite only starts once the rewrites in progress, plus those whose
+     * old segments are still waiting for a commit to free them, leave room for it. One rewrite
+     * can always run, so that a merge never ends up waiting for a commit which is waiting for it.
+     */
+    private static class CheckpointingMergeScheduler extends ConcurrentMergeScheduler {
+        private final ExecutorService committer = ConcurrencyUtils.newFixedThreadPool(1, "upgrade3-checkpoint");
+        private final AtomicBoolean checkpointPending = new AtomicBoolean();
+        private final long diskBudget;
+        private final Object budgetLock = new Object();
+        private long bytesMerging;
+        private long bytesAwaitingCommit;
+
+        private CheckpointingMergeScheduler(long diskBudget) {
+            this.diskBudget = diskBudget;
+        }
+
+        @Override
+        protected void doMerge(MergePolicy.OneMerge merge) throws IOException {
+            long size = diskBudget > 0 ? merge.totalBytesSize() : 0;
+            reserve(size);
+            boolean merged = false;
+            try {
+                super.doMerge(merge);
+                merged = true;
+            } finally {
+                finishMerging(size, merged);
+            }
+
+            IndexWriter writer = this.writer;
+            if (checkpointPending.compareAndSet(false, true)) {
+                committer.execute(() -> {
+                    checkpointPending.set(false);
+                    long committed;
+                    synchronized (budgetLock) {
+                        committed = bytesAwaitingCommit;
+                    }
+                    try {
+                        writer.commit();
+                    } catch (AlreadyClosedException | IOException e) {
+                        // Either the upgrade has already made its own commit, or it will report the problem itself.
+                    } finally {
+                        synchronized (budgetLock) {
+                            bytesAwaitingCommit -= committed;
+                            budgetLock.notifyAll();
+                        }
+                    }
+                });
+            }
+        }
+
+        private void reserve(long size) throws IOException {
+            synchronized (budgetLock) {
+                try {
+                    while (bytesMerging > 0 && bytesMerging + bytesAwaitingCommit + size > diskBudget) {
+                        budgetLock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for disk space");
+                }
+                bytesMerging += size;
+            }
+        }
+
+        private void finishMerging(long size, boolean merged) {
+            synchronized (budgetLock) {
+                bytesMerging -= size;
+                if (merged) {
+                    bytesAwaitingCommit += size;
+                }
+                budgetLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            committer.shutdown();
+        }
+    }
+
+    /**
+     * A merge policy which rewrites each segment on its own, never merging segments together.
+     * Wrapped by the {@code UpgradeIndexMergePolicy} which {@code IndexUpgrader} installs, this
+     * turns its {@code forceMerge(1)} into one independent rewrite per old segment.
+     */
+    private static class SegmentPreservingMergePolicy extends LogByteSizeMergePolicy {
+        @Override
+        public MergeSpecification findMerges(SegmentInfos segmentInfos) {
+            return null;
+        }
+
+        @Override
+        public MergeSpecification findForcedMerges(SegmentInfos segmentInfos, int maxSegmentCount,
+                                                   Map<SegmentInfo, Boolean> segmentsToMerge) {
+            MergeSpecification spec = new MergeSpecification();
+            for (SegmentInfo info : segmentInfos) {
+                if (segmentsToMerge.containsKey(info)) {
+                    spec.add(new OneMerge(Collections.singletonList(info)));
+                }
+            }
+            return spec.merges.isEmpty() ? null : spec;
         }
     }
 
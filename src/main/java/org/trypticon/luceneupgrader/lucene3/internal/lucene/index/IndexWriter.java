@@ -388,7 +388,8 @@ public class IndexWriter implements Closeable, TwoPhaseCommit {
         // TODO: we may want to avoid doing this while
         // synchronized
         // Returns a ref, which we xfer to readerMap:
-        sr = SegmentReader.get(false, info.dir, info, readBufferSize, doOpenStores, termsIndexDivisor);
+        sr = SegmentReader.get(false, info.dir, info, readBufferSize, doOpenStores, termsIndexDivisor,
+                               config.getScratchDirectory());
 
         if (info.dir == directory) {
           // Only pool if reader is not external
@@ -1818,6 +1819,8 @@ public class IndexWriter implements Closeable, TwoPhaseCommit {
       SegmentMerger merger = new SegmentMerger(directory, config.getTermIndexInterval(),
                                                mergedName, null, payloadProcessorProvider,
                                                ((FieldInfos) docWriter.getFieldInfos().clone()));
+      merger.setInfoStream(infoStream);
+      merger.setMergeListener(config.getMergeListener());
       
       for (IndexReader reader : readers)      // add new indexes
         merger.add(reader);
@@ -2415,6 +2418,9 @@ public class IndexWriter implements Closeable, TwoPhaseCommit {
       try {
         try {
           mergeInit(merge);
+          if (merge.info != null && config.getMergeListener() != null) {
+            config.getMergeListener().beginSegment(merge.info.name);
+          }
 
           if (infoStream != null)
             message("now merge\n  merge=" + merge.segString(directory) + "\n  index=" + segString());
@@ -2447,6 +2453,9 @@ public class IndexWriter implements Closeable, TwoPhaseCommit {
     } catch (OutOfMemoryError oom) {
       handleOOM(oom, "merge");
     }
+    if (merge.info != null && config.getMergeListener() != null) {
+      config.getMergeListener().endSegment(success ? merge.info.docCount : 0);
+    }
     if (infoStream != null && merge.info != null) {
       message("merge time " + (System.currentTimeMillis()-t0) + " msec for " + merge.info.docCount + " docs");
     }
@@ -2717,6 +2726,9 @@ public class IndexWriter implements Closeable, TwoPhaseCommit {
     SegmentMerger merger = new SegmentMerger(directory, config.getTermIndexInterval(), mergedName, merge,
                                              payloadProcessorProvider,
                                              ((FieldInfos) docWriter.getFieldInfos().clone()));
+    merger.setInfoStream(infoStream);
+    merger.setDocumentLoadExecutor(config.getDocumentLoadExecutor());
+    merger.setMergeListener(config.getMergeListener());
 
     if (infoStream != null) {
       message("merging " + merge.segString(directory) + " mergeVectors=" + merge.info.getHasVectors());
@@ -16,6 +16,10 @@
 */
 package org.trypticon.luceneupgrader.lucene3.internal.lucene.index;
 
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+
+import org.trypticon.luceneupgrader.MergeListener;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.analysis.Analyzer;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.DocumentsWriter.IndexingChain;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.IndexWriter.IndexReaderWarmer;
@@ -70,6 +74,9 @@ public final class IndexWriterConfig implements Cloneable {
   private volatile int maxThreadStates;
   private volatile boolean readerPooling;
   private volatile int readerTermsIndexDivisor;
+  private volatile Executor documentLoadExecutor;
+  private volatile MergeListener mergeListener;
+  private volatile Path scratchDirectory;
   
   private Version matchVersion;
 
@@ -294,6 +301,46 @@ public final class IndexWriterConfig implements Cloneable {
     return readerTermsIndexDivisor;
   }
   
+  /**
+   * Sets an executor for merges to load the documents they can't bulk-copy on, a bounded
+   * number of batches ahead of writing them. Loading is where segments written before 3.0
+   * inflate their compressed fields, so this moves that work off the merging thread.
+   */
+  public IndexWriterConfig setDocumentLoadExecutor(Executor documentLoadExecutor) {
+    this.documentLoadExecutor = documentLoadExecutor;
+    return this;
+  }
+
+  public Executor getDocumentLoadExecutor() {
+    return documentLoadExecutor;
+  }
+
+  /**
+   * Sets a listener to tell about each segment merges write, and how long each phase of
+   * writing it took, or {@code null} to not tell anything.
+   */
+  public IndexWriterConfig setMergeListener(MergeListener mergeListener) {
+    this.mergeListener = mergeListener;
+    return this;
+  }
+
+  public MergeListener getMergeListener() {
+    return mergeListener;
+  }
+
+  /**
+   * Sets the directory to keep temporary files for reading old segments in, or {@code null}
+   * to use the system's temporary directory.
+   */
+  public IndexWriterConfig setScratchDirectory(Path scratchDirectory) {
+    this.scratchDirectory = scratchDirectory;
+    return this;
+  }
+
+  public Path getScratchDirectory() {
+    return scratchDirectory;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -315,6 +362,9 @@ public final class IndexWriterConfig implements Cloneable {
     sb.append("maxThreadStates=").append(maxThreadStates).append("\n");
     sb.append("readerPooling=").append(readerPooling).append("\n");
     sb.append("readerTermsIndexDivisor=").append(readerTermsIndexDivisor).append("\n");
+    sb.append("documentLoadExecutor=").append(documentLoadExecutor).append("\n");
+    sb.append("mergeListener=").append(mergeListener).append("\n");
+    sb.append("scratchDirectory=").append(scratchDirectory).append("\n");
     return sb.toString();
   }
 }
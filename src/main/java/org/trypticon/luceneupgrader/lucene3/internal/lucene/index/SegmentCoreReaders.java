@@ -17,6 +17,7 @@
 package org.trypticon.luceneupgrader.lucene3.internal.lucene.index;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.Set;
@@ -47,6 +48,7 @@ final class SegmentCoreReaders {
   final Directory cfsDir;
   final int readBufferSize;
   final int termsIndexDivisor;
+  final Path scratchDirectory;
 
   private final SegmentReader owner;
 
@@ -59,10 +61,12 @@ final class SegmentCoreReaders {
   private final Set<CoreClosedListener> coreClosedListeners = 
       Collections.synchronizedSet(new LinkedHashSet<CoreClosedListener>());
 
-  SegmentCoreReaders(SegmentReader owner, Directory dir, SegmentInfo si, int readBufferSize, int termsIndexDivisor) throws IOException {
+  SegmentCoreReaders(SegmentReader owner, Directory dir, SegmentInfo si, int readBufferSize, int termsIndexDivisor,
+                     Path scratchDirectory) throws IOException {
     segment = si.name;
     this.readBufferSize = readBufferSize;
     this.dir = dir;
+    this.scratchDirectory = scratchDirectory;
 
     boolean success = false;
 
@@ -77,7 +81,8 @@ final class SegmentCoreReaders {
       fieldInfos = new FieldInfos(cfsDir, IndexFileNames.segmentFileName(segment, IndexFileNames.FIELD_INFOS_EXTENSION));
 
       this.termsIndexDivisor = termsIndexDivisor;
-      TermInfosReader reader = new TermInfosReader(cfsDir, segment, fieldInfos, readBufferSize, termsIndexDivisor);
+      TermInfosReader reader = new TermInfosReader(cfsDir, segment, fieldInfos, readBufferSize, termsIndexDivisor,
+                                                   scratchDirectory);
       if (termsIndexDivisor == -1) {
         tisNoIndex = reader;
       } else {
@@ -158,7 +163,7 @@ final class SegmentCoreReaders {
         dir0 = dir;
       }
 
-      tis = new TermInfosReader(dir0, segment, fieldInfos, readBufferSize, termsIndexDivisor);
+      tis = new TermInfosReader(dir0, segment, fieldInfos, readBufferSize, termsIndexDivisor, scratchDirectory);
     }
   }
 
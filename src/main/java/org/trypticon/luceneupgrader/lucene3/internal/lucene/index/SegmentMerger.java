@@ -17,10 +17,20 @@
 package org.trypticon.luceneupgrader.lucene3.internal.lucene.index;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.trypticon.luceneupgrader.MergeListener;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.document.Document;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.FieldInfo.IndexOptions;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.index.MergePolicy.MergeAbortedException;
@@ -30,6 +40,7 @@ import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.IndexInput;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.IndexOutput;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.util.IOUtils;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.util.ReaderUtil;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.util.ThreadInterruptedException;
 
 final class SegmentMerger {
   private Directory directory;
@@ -45,9 +56,21 @@ final class SegmentMerger {
 
   private final static int MAX_RAW_MERGE_DOCS = 4192;
 
+  // documents loaded on the executor are handed over this many at a time, with at most
+  // MAX_LOADING_BATCHES batches loaded or loading ahead of the writer
+  private final static int LOAD_BATCH_DOCS = 64;
+
+  private final static int MAX_LOADING_BATCHES = 32;
+
   private SegmentWriteState segmentWriteState;
 
   private final PayloadProcessorProvider payloadProcessorProvider;
+
+  private PrintStream infoStream;
+
+  private Executor documentLoadExecutor;
+
+  private MergeListener mergeListener;
   
   SegmentMerger(Directory dir, int termIndexInterval, String name, MergePolicy.OneMerge merge, PayloadProcessorProvider payloadProcessorProvider, FieldInfos fieldInfos) {
     this.payloadProcessorProvider = payloadProcessorProvider;
@@ -71,6 +94,26 @@ final class SegmentMerger {
     return fieldInfos;
   }
 
+  // Backported from Lucene 4, which reports how long each part of a merge takes.
+  void setInfoStream(PrintStream infoStream) {
+    this.infoStream = infoStream;
+  }
+
+  /** Sets the executor to load documents which can't be bulk-copied on, or {@code null} to load them in turn. */
+  void setDocumentLoadExecutor(Executor documentLoadExecutor) {
+    this.documentLoadExecutor = documentLoadExecutor;
+  }
+
+  /** Sets the listener to tell how long each phase of the merge took, or {@code null} to not tell anything. */
+  void setMergeListener(MergeListener mergeListener) {
+    this.mergeListener = mergeListener;
+  }
+
+  private void message(String message) {
+    if (infoStream != null)
+      infoStream.println("SM [" + new Date() + "; " + Thread.currentThread().getName() + "]: " + message);
+  }
+
   final void add(IndexReader reader) {
     ReaderUtil.gatherSubReaders(readers, reader);
   }
@@ -83,16 +126,41 @@ final class SegmentMerger {
     // IndexWriter.close(false) takes to actually stop the
     // threads.
 
+    long t0 = System.nanoTime();
     mergedDocs = mergeFields();
+    long t1 = System.nanoTime();
+    message(((t1-t0)/1000000) + " msec to merge stored fields [" + mergedDocs + " docs]");
+    phaseDone("stored fields", t1-t0);
+
+    t0 = System.nanoTime();
     mergeTerms();
+    t1 = System.nanoTime();
+    message(((t1-t0)/1000000) + " msec to merge postings [" + mergedDocs + " docs]");
+    phaseDone("postings", t1-t0);
+
+    t0 = System.nanoTime();
     mergeNorms();
+    t1 = System.nanoTime();
+    message(((t1-t0)/1000000) + " msec to merge norms [" + mergedDocs + " docs]");
+    phaseDone("norms", t1-t0);
 
-    if (fieldInfos.hasVectors())
+    if (fieldInfos.hasVectors()) {
+      t0 = System.nanoTime();
       mergeVectors();
+      t1 = System.nanoTime();
+      message(((t1-t0)/1000000) + " msec to merge vectors [" + mergedDocs + " docs]");
+      phaseDone("term vectors", t1-t0);
+    }
 
     return mergedDocs;
   }
 
+  private void phaseDone(String phase, long nanos) {
+    if (mergeListener != null) {
+      mergeListener.phase(phase, nanos, mergedDocs);
+    }
+  }
+
   final Collection<String> createCompoundFile(String fileName, final SegmentInfo info)
           throws IOException {
     // Now merge all added files
@@ -234,6 +302,8 @@ final class SegmentMerger {
         docCount += numDocs;
         checkAbort.work(300 * numDocs);
       }
+    } else if (documentLoadExecutor != null) {
+      docCount = copyLoadedDocuments(fieldsWriter, reader);
     } else {
       for (int j = 0; j < maxDoc; j++) {
         if (reader.isDeleted(j)) {
@@ -265,6 +335,8 @@ final class SegmentMerger {
         docCount += len;
         checkAbort.work(300 * len);
       }
+    } else if (documentLoadExecutor != null) {
+      docCount = copyLoadedDocuments(fieldsWriter, reader);
     } else {
       for (; docCount < maxDoc; docCount++) {
         // NOTE: it's very important to first assign to doc then pass it to
@@ -277,6 +349,91 @@ final class SegmentMerger {
     return docCount;
   }
 
+  /**
+   * Loads the live documents in batches on the executor and writes them in order, keeping a
+   * bounded number of batches ahead of the writer so that memory stays bounded too. The
+   * reader hands each thread its own fields reader, so batches load independently.
+   */
+  private int copyLoadedDocuments(final FieldsWriter fieldsWriter, final IndexReader reader)
+    throws IOException, MergeAbortedException, CorruptIndexException {
+    final int maxDoc = reader.maxDoc();
+    final AtomicBoolean abandoned = new AtomicBoolean();
+    final ArrayDeque<FutureTask<List<Document>>> batches = new ArrayDeque<FutureTask<List<Document>>>();
+    int docCount = 0;
+    int next = 0;
+    boolean success = false;
+    try {
+      while (next < maxDoc || !batches.isEmpty()) {
+        while (next < maxDoc && batches.size() < MAX_LOADING_BATCHES) {
+          final int start = next;
+          final int end = (int) Math.min(maxDoc, (long) start + LOAD_BATCH_DOCS);
+          FutureTask<List<Document>> batch = new FutureTask<List<Document>>(new Callable<List<Document>>() {
+            public List<Document> call() throws IOException {
+              List<Document> docs = new ArrayList<Document>(end - start);
+              for (int j = start; j < end && !abandoned.get(); j++) {
+                if (!reader.isDeleted(j)) {
+                  docs.add(reader.document(j));
+                }
+              }
+              return docs;
+            }
+          });
+          batches.add(batch);
+          try {
+            documentLoadExecutor.execute(batch);
+          } catch (RejectedExecutionException e) {
+            // The executor is shutting down, so this batch has to be loaded here.
+            batch.run();
+          }
+          next = end;
+        }
+
+        List<Document> docs = awaitBatch(batches.poll());
+        for (Document doc : docs) {
+          fieldsWriter.addDocument(doc);
+        }
+        docCount += docs.size();
+        checkAbort.work(300 * docs.size());
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        // Every batch is waited for, so that none is still reading when the merge closes its readers.
+        abandoned.set(true);
+        for (FutureTask<List<Document>> batch : batches) {
+          try {
+            batch.get();
+          } catch (ExecutionException e) {
+            // The merge is already failing.
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          }
+        }
+      }
+    }
+    return docCount;
+  }
+
+  private static List<Document> awaitBatch(FutureTask<List<Document>> batch) throws IOException {
+    try {
+      return batch.get();
+    } catch (InterruptedException e) {
+      throw new ThreadInterruptedException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new RuntimeException(cause);
+      }
+    }
+  }
+
   private final void mergeVectors() throws IOException {
     TermVectorsWriter termVectorsWriter = 
       new TermVectorsWriter(directory, segment, fieldInfos);
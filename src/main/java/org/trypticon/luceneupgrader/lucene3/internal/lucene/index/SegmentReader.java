@@ -17,6 +17,7 @@
 package org.trypticon.luceneupgrader.lucene3.internal.lucene.index;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -86,6 +87,21 @@ public class SegmentReader extends IndexReader implements Cloneable {
                                   boolean doOpenStores,
                                   int termInfosIndexDivisor)
     throws CorruptIndexException, IOException {
+    return get(readOnly, dir, si, readBufferSize, doOpenStores, termInfosIndexDivisor, null);
+  }
+
+  /**
+   * Opens a segment, keeping any temporary files needed to read it in the given directory,
+   * or in the system's temporary directory if it is {@code null}.
+   */
+  public static SegmentReader get(boolean readOnly,
+                                  Directory dir,
+                                  SegmentInfo si,
+                                  int readBufferSize,
+                                  boolean doOpenStores,
+                                  int termInfosIndexDivisor,
+                                  Path scratchDirectory)
+    throws CorruptIndexException, IOException {
     SegmentReader instance = readOnly ? new ReadOnlySegmentReader() : new SegmentReader();
     instance.readOnly = readOnly;
     instance.si = si;
@@ -94,7 +110,8 @@ public class SegmentReader extends IndexReader implements Cloneable {
     boolean success = false;
 
     try {
-      instance.core = new SegmentCoreReaders(instance, dir, si, readBufferSize, termInfosIndexDivisor);
+      instance.core = new SegmentCoreReaders(instance, dir, si, readBufferSize, termInfosIndexDivisor,
+                                             scratchDirectory);
       if (doOpenStores) {
         instance.core.openDocStores(si);
       }
@@ -18,6 +18,7 @@ package org.trypticon.luceneupgrader.lucene3.internal.lucene.index;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Path;
 
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.Directory;
 import org.trypticon.luceneupgrader.lucene3.internal.lucene.util.BytesRef;
@@ -82,7 +83,7 @@ final class TermInfosReader implements Closeable {
     SegmentTermEnum termEnum;
   }
   
-  TermInfosReader(Directory dir, String seg, FieldInfos fis, int readBufferSize, int indexDivisor)
+  TermInfosReader(Directory dir, String seg, FieldInfos fis, int readBufferSize, int indexDivisor, Path scratchDirectory)
        throws CorruptIndexException, IOException {
     boolean success = false;
 
@@ -107,7 +108,8 @@ final class TermInfosReader implements Closeable {
         final SegmentTermEnum indexEnum = new SegmentTermEnum(directory.openInput(indexFileName,
                                                                                   readBufferSize), fieldInfos, true);
         try {
-          index = new TermInfosReaderIndex(indexEnum, indexDivisor, dir.fileLength(indexFileName), totalIndexInterval);
+          index = new TermInfosReaderIndex(indexEnum, indexDivisor, dir.fileLength(indexFileName), totalIndexInterval,
+                                          scratchDirectory);
           indexLength = index.length();
         } finally {
           indexEnum.close();
@@ -140,8 +142,13 @@ final class TermInfosReader implements Closeable {
   }
 
   public final void close() throws IOException {
-    if (origEnum != null)
-      origEnum.close();
+    try {
+      if (origEnum != null)
+        origEnum.close();
+    } finally {
+      if (index != null)
+        index.close();
+    }
     threadResources.close();
   }
 
@@ -0,0 +1,163 @@
+package org.trypticon.luceneupgrader.lucene3.internal.lucenesupport;
+
+import org.trypticon.luceneupgrader.FileUtils;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.DataInput;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.DataOutput;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.Directory;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.IndexInput;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.IndexOutput;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.NoLockFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Holds the entries of a Lucene 3 terms index in a memory-mapped temporary file instead of
+ * on the heap, so that the heap an index needs doesn't grow with the number of terms in it.
+ *
+ * Entries are written one after another, and the position of each is written to a second
+ * file as a fixed-width long, so that any entry can be found without anything on the heap.
+ */
+public class OffHeapTermIndex3 implements Closeable {
+
+    /**
+     * The size of terms index file above which its entries are kept off the heap. Smaller ones
+     * are still loaded onto the heap, where looking them up is a little faster.
+     */
+    public static final long MIN_TERMS_INDEX_LENGTH = 16 * 1024 * 1024;
+
+    private static final String ENTRIES_FILE = "entries";
+
+    private static final String OFFSETS_FILE = "offsets";
+
+    private final Path tempPath;
+
+    private final Directory directory;
+
+    private IndexOutput entriesOutput;
+
+    private IndexOutput offsetsOutput;
+
+    private IndexInput entriesInput;
+
+    private IndexInput offsetsInput;
+
+    /**
+     * Creates a new index, ready for entries to be written to it.
+     *
+     * @param scratchDirectory the directory to create the temporary files in, or {@code null}
+     *                         to use the system's temporary directory.
+     * @throws IOException if an error occurs creating the temporary files.
+     */
+    public OffHeapTermIndex3(Path scratchDirectory) throws IOException {
+        tempPath = scratchDirectory == null
+                ? Files.createTempDirectory("luceneupgrader-tii")
+                : Files.createTempDirectory(scratchDirectory, "luceneupgrader-tii");
+        boolean success = false;
+        try {
+            directory = new PathMMapDirectory3(tempPath, NoLockFactory.getNoLockFactory());
+            entriesOutput = directory.createOutput(ENTRIES_FILE);
+            offsetsOutput = directory.createOutput(OFFSETS_FILE);
+            success = true;
+        } finally {
+            if (!success) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Starts writing the next entry.
+     *
+     * @return the output to write the entry to.
+     * @throws IOException if an error occurs writing.
+     */
+    public DataOutput startEntry() throws IOException {
+        offsetsOutput.writeLong(entriesOutput.getFilePointer());
+        return entriesOutput;
+    }
+
+    /**
+     * Finishes writing, and maps the files for reading.
+     *
+     * @throws IOException if an error occurs.
+     */
+    public void finish() throws IOException {
+        entriesOutput.close();
+        entriesOutput = null;
+        offsetsOutput.close();
+        offsetsOutput = null;
+        entriesInput = directory.openInput(ENTRIES_FILE);
+        offsetsInput = directory.openInput(OFFSETS_FILE);
+    }
+
+    /**
+     * Creates an input for reading entries. Each thread needs its own.
+     *
+     * @return the input.
+     */
+    public EntryInput newInput() {
+        return new EntryInput((IndexInput) entriesInput.clone(), (IndexInput) offsetsInput.clone());
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Closeable closeable : new Closeable[] { entriesOutput, offsetsOutput, entriesInput, offsetsInput }) {
+                if (closeable != null) {
+                    closeable.close();
+                }
+            }
+            if (directory != null) {
+                directory.close();
+            }
+        } finally {
+            FileUtils.insecureRecursiveDelete(tempPath);
+        }
+    }
+
+    /**
+     * Reads the entries of the index.
+     */
+    public static class EntryInput extends DataInput {
+        private IndexInput entries;
+
+        private IndexInput offsets;
+
+        private EntryInput(IndexInput entries, IndexInput offsets) {
+            this.entries = entries;
+            this.offsets = offsets;
+        }
+
+        /**
+         * Moves to the start of an entry.
+         *
+         * @param entry the number of the entry, counting from zero in the order they were written.
+         * @throws IOException if an error occurs reading.
+         */
+        public void seekEntry(int entry) throws IOException {
+            offsets.seek((long) entry * Long.BYTES);
+            entries.seek(offsets.readLong());
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            return entries.readByte();
+        }
+
+        @Override
+        public void readBytes(byte[] b, int offset, int len) throws IOException {
+            entries.readBytes(b, offset, len);
+        }
+
+        @Override
+        public Object clone() {
+            EntryInput clone = (EntryInput) super.clone();
+            clone.entries = (IndexInput) entries.clone();
+            clone.offsets = (IndexInput) offsets.clone();
+            return clone;
+        }
+    }
+}
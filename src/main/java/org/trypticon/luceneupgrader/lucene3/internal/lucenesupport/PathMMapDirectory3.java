@@ -10,30 +10,14 @@ import org.trypticon.luceneupgrader.lucene3.internal.lucene.util.WeakIdentityMap
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Method;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.security.AccessController;
-import java.security.PrivilegedActionException;
-import java.security.PrivilegedExceptionAction;
 import java.util.Iterator;
 
 public class PathMMapDirectory3 extends PathFSDirectory3 {
-    public static final boolean UNMAP_SUPPORTED;
-    static {
-        boolean v;
-        try {
-            Class.forName("sun.misc.Cleaner");
-            Class.forName("java.nio.DirectByteBuffer")
-                    .getMethod("cleaner");
-            v = true;
-        } catch (Exception e) {
-            v = false;
-        }
-        UNMAP_SUPPORTED = v;
-    }
+    public static final boolean UNMAP_SUPPORTED = MMapDirectory.UNMAP_SUPPORTED;
 
     private boolean useUnmapHack = UNMAP_SUPPORTED;
     public static final int DEFAULT_MAX_BUFF = Constants.JRE_IS_64BIT ? (1 << 30) : (1 << 28);
@@ -46,25 +30,7 @@ public class PathMMapDirectory3 extends PathFSDirectory3 {
 
     final void cleanMapping(final ByteBuffer buffer) throws IOException {
         if (useUnmapHack) {
-            try {
-                AccessController.doPrivileged(new PrivilegedExceptionAction<Object>() {
-                    public Object run() throws Exception {
-                        final Method getCleanerMethod = buffer.getClass()
-                                .getMethod("cleaner");
-                        getCleanerMethod.setAccessible(true);
-                        final Object cleaner = getCleanerMethod.invoke(buffer);
-                        if (cleaner != null) {
-                            cleaner.getClass().getMethod("clean")
-                                    .invoke(cleaner);
-                        }
-                        return null;
-                    }
-                });
-            } catch (PrivilegedActionException e) {
-                final IOException ioe = new IOException("unable to unmap the mapped buffer");
-                ioe.initCause(e.getCause());
-                throw ioe;
-            }
+            MMapDirectory.unmap(toString(), buffer);
         }
     }
 
@@ -0,0 +1,361 @@
+package org.trypticon.luceneupgrader.lucene3.internal.lucenesupport;
+
+import org.trypticon.luceneupgrader.HopMetrics;
+import org.trypticon.luceneupgrader.IOThrottle;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.Directory;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.IndexInput;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.IndexOutput;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.Lock;
+import org.trypticon.luceneupgrader.lucene3.internal.lucene.store.LockFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A directory which throttles and counts reads and writes to every file opened through it.
+ * Lucene 3 has no {@code FilterDirectory}, so this delegates everything itself.
+ */
+public class ThrottledDirectory3 extends Directory {
+
+    private final Directory in;
+
+    private final IOThrottle throttle;
+
+    private final HopMetrics metrics;
+
+    private ThrottledDirectory3(Directory in, IOThrottle throttle, HopMetrics metrics) {
+        this.in = in;
+        this.throttle = throttle;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Wraps a directory to throttle it and count the bytes going through it.
+     *
+     * @param directory the directory to wrap.
+     * @param throttle the throttle to apply, or {@code null} for none.
+     * @param metrics the metrics to count bytes into, or {@code null} for none.
+     * @return the wrapped directory, or the same directory if there is nothing to do.
+     */
+    public static Directory wrap(Directory directory, IOThrottle throttle, HopMetrics metrics) {
+        return throttle == null && metrics == null ? directory : new ThrottledDirectory3(directory, throttle, metrics);
+    }
+
+    @Override
+    public String[] listAll() throws IOException {
+        return in.listAll();
+    }
+
+    @Override
+    public boolean fileExists(String name) throws IOException {
+        return in.fileExists(name);
+    }
+
+    @Override
+    @Deprecated
+    public long fileModified(String name) throws IOException {
+        return in.fileModified(name);
+    }
+
+    @Override
+    @Deprecated
+    public void touchFile(String name) throws IOException {
+        in.touchFile(name);
+    }
+
+    @Override
+    public void deleteFile(String name) throws IOException {
+        in.deleteFile(name);
+    }
+
+    @Override
+    public long fileLength(String name) throws IOException {
+        return in.fileLength(name);
+    }
+
+    @Override
+    public IndexOutput createOutput(String name) throws IOException {
+        return new ThrottledIndexOutput(in.createOutput(name), throttle, metrics);
+    }
+
+    @Override
+    @Deprecated
+    public void sync(String name) throws IOException {
+        in.sync(name);
+    }
+
+    @Override
+    public void sync(Collection<String> names) throws IOException {
+        in.sync(names);
+    }
+
+    @Override
+    public IndexInput openInput(String name) throws IOException {
+        return new ThrottledIndexInput(in.openInput(name), throttle, metrics);
+    }
+
+    @Override
+    public IndexInput openInput(String name, int bufferSize) throws IOException {
+        return new ThrottledIndexInput(in.openInput(name, bufferSize), throttle, metrics);
+    }
+
+    @Override
+    public Lock makeLock(String name) {
+        return in.makeLock(name);
+    }
+
+    @Override
+    public void clearLock(String name) throws IOException {
+        in.clearLock(name);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    @Override
+    public void setLockFactory(LockFactory lockFactory) throws IOException {
+        in.setLockFactory(lockFactory);
+    }
+
+    @Override
+    public LockFactory getLockFactory() {
+        return in.getLockFactory();
+    }
+
+    @Override
+    public String getLockID() {
+        return in.getLockID();
+    }
+
+    @Override
+    public String toString() {
+        return "ThrottledDirectory3(" + in + ")";
+    }
+
+    private static class ThrottledIndexInput extends IndexInput {
+        private IndexInput in;
+        private final IOThrottle throttle;
+        private final HopMetrics metrics;
+        /**
+         * Shared with every clone of the file. Clones are dropped without being closed,
+         * so what they read is added here as they go, and counted by whichever of them next
+         * reaches the interval, or when the file is closed.
+         */
+        private final LongAdder uncountedBytes;
+        private long pendingBytes;
+        private long bytesSinceCount;
+        private long timedNanos;
+        private long timedBytes;
+
+        private ThrottledIndexInput(IndexInput in, IOThrottle throttle, HopMetrics metrics) {
+            super(in.toString());
+            this.in = in;
+            this.throttle = throttle;
+            this.metrics = metrics;
+            this.uncountedBytes = metrics == null ? null : new LongAdder();
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            byte b = in.readByte();
+            account(1);
+            return b;
+        }
+
+        @Override
+        public void readBytes(byte[] b, int offset, int len) throws IOException {
+            if (throttle == null || len < IOThrottle.MIN_TIMED_BYTES) {
+                in.readBytes(b, offset, len);
+            } else {
+                long start = System.nanoTime();
+                in.readBytes(b, offset, len);
+                recordLatency(System.nanoTime() - start, len);
+            }
+            account(len);
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            short value = in.readShort();
+            account(Short.BYTES);
+            return value;
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            int value = in.readInt();
+            account(Integer.BYTES);
+            return value;
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            long value = in.readLong();
+            account(Long.BYTES);
+            return value;
+        }
+
+        @Override
+        public int readVInt() throws IOException {
+            long start = in.getFilePointer();
+            int value = in.readVInt();
+            account(in.getFilePointer() - start);
+            return value;
+        }
+
+        @Override
+        public long readVLong() throws IOException {
+            long start = in.getFilePointer();
+            long value = in.readVLong();
+            account(in.getFilePointer() - start);
+            return value;
+        }
+
+        private void recordLatency(long nanos, long bytes) {
+            timedNanos += nanos;
+            if ((timedBytes += bytes) >= IOThrottle.TIMING_WINDOW_BYTES) {
+                throttle.recordLatency(timedNanos, timedBytes);
+                timedNanos = 0;
+                timedBytes = 0;
+            }
+        }
+
+        private void account(long bytes) throws IOException {
+            if (throttle != null) {
+                pendingBytes = throttle.throttle(pendingBytes + bytes);
+            }
+            if (metrics != null) {
+                uncountedBytes.add(bytes);
+                if ((bytesSinceCount += bytes) >= HopMetrics.COUNT_INTERVAL) {
+                    metrics.addBytesRead(uncountedBytes.sumThenReset());
+                    bytesSinceCount = 0;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (metrics != null) {
+                metrics.addBytesRead(uncountedBytes.sumThenReset());
+                bytesSinceCount = 0;
+            }
+            in.close();
+        }
+
+        @Override
+        public long getFilePointer() {
+            return in.getFilePointer();
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            in.seek(pos);
+        }
+
+        @Override
+        public long length() {
+            return in.length();
+        }
+
+        @Override
+        public Object clone() {
+            ThrottledIndexInput clone = (ThrottledIndexInput) super.clone();
+            clone.in = (IndexInput) in.clone();
+            clone.pendingBytes = 0;
+            clone.bytesSinceCount = 0;
+            clone.timedNanos = 0;
+            clone.timedBytes = 0;
+            return clone;
+        }
+    }
+
+    private static class ThrottledIndexOutput extends IndexOutput {
+        private final IndexOutput out;
+        private final IOThrottle throttle;
+        private final HopMetrics metrics;
+        private long pendingBytes;
+        private long uncountedBytes;
+        private long timedNanos;
+        private long timedBytes;
+
+        private ThrottledIndexOutput(IndexOutput out, IOThrottle throttle, HopMetrics metrics) {
+            this.out = out;
+            this.throttle = throttle;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void writeByte(byte b) throws IOException {
+            out.writeByte(b);
+            account(1);
+        }
+
+        @Override
+        public void writeBytes(byte[] b, int offset, int length) throws IOException {
+            if (throttle == null || length < IOThrottle.MIN_TIMED_BYTES) {
+                out.writeBytes(b, offset, length);
+            } else {
+                long start = System.nanoTime();
+                out.writeBytes(b, offset, length);
+                recordLatency(System.nanoTime() - start, length);
+            }
+            account(length);
+        }
+
+        private void recordLatency(long nanos, long bytes) {
+            timedNanos += nanos;
+            if ((timedBytes += bytes) >= IOThrottle.TIMING_WINDOW_BYTES) {
+                throttle.recordLatency(timedNanos, timedBytes);
+                timedNanos = 0;
+                timedBytes = 0;
+            }
+        }
+
+        private void account(long bytes) throws IOException {
+            if (throttle != null) {
+                pendingBytes = throttle.throttle(pendingBytes + bytes);
+            }
+            if (metrics != null && (uncountedBytes += bytes) >= HopMetrics.COUNT_INTERVAL) {
+                metrics.addBytesWritten(uncountedBytes);
+                uncountedBytes = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (metrics != null) {
+                metrics.addBytesWritten(uncountedBytes);
+                uncountedBytes = 0;
+            }
+            out.close();
+        }
+
+        @Override
+        public long getFilePointer() {
+            return out.getFilePointer();
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            out.seek(pos);
+        }
+
+        @Override
+        public long length() throws IOException {
+            return out.length();
+        }
+
+        @Override
+        public void setLength(long length) throws IOException {
+            out.setLength(length);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.trypticon.luceneupgrader.lucene4;
+
+import org.trypticon.luceneupgrader.InMemoryIndex;
+import org.trypticon.luceneupgrader.SegmentDescription;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.SegmentCommitInfo;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.SegmentInfos;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.Directory;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.Version;
+import org.trypticon.luceneupgrader.lucene4.internal.lucenesupport.InMemoryDirectory4;
+import org.trypticon.luceneupgrader.lucene4.internal.lucenesupport.PathFSDirectory4;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes the segments of a Lucene 4 index.
+ */
+public class SegmentInventory4 {
+
+    private SegmentInventory4() {
+    }
+
+    /**
+     * Describes the segments in the latest commit of an index.
+     *
+     * @param path the path to the index.
+     * @return the segments.
+     * @throws IOException if an error occurs reading the index.
+     */
+    public static List<SegmentDescription> describe(Path path) throws IOException {
+        try (Directory directory = PathFSDirectory4.open(path)) {
+            return describe(directory);
+        }
+    }
+
+    /**
+     * Describes the segments in the latest commit of an index held in memory.
+     *
+     * @param index the index.
+     * @return the segments.
+     * @throws IOException if an error occurs reading the index.
+     */
+    public static List<SegmentDescription> describe(InMemoryIndex index) throws IOException {
+        try (Directory directory = new InMemoryDirectory4(index)) {
+            return describe(directory);
+        }
+    }
+
+    private static List<SegmentDescription> describe(Directory directory) throws IOException {
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(directory);
+
+        List<SegmentDescription> descriptions = new ArrayList<>(infos.size());
+        for (SegmentCommitInfo info : infos) {
+            descriptions.add(new SegmentDescription(info.info.name, version(info), null,
+                    info.info.getCodec().getName(), info.info.getDocCount(), info.getDelCount(), info.sizeInBytes()));
+        }
+        return descriptions;
+    }
+
+    private static String version(SegmentCommitInfo info) {
+        // Segments from before Lucene 3.1 didn't record it.
+        Version version = info.info.getVersion();
+        return version == null ? null : version.toString();
+    }
+}
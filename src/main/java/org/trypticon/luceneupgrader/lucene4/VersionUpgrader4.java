@@ -1,17 +1,37 @@
 package org.trypticon.luceneupgrader.lucene4;
 
+import org.trypticon.luceneupgrader.ConcurrencyUtils;
+import org.trypticon.luceneupgrader.HopMetrics;
+import org.trypticon.luceneupgrader.InMemoryIndex;
 import org.trypticon.luceneupgrader.InfoStream;
+import org.trypticon.luceneupgrader.UpgradeConfig;
+import org.trypticon.luceneupgrader.UpgradeMetrics;
 import org.trypticon.luceneupgrader.VersionUpgrader;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.ConcurrentMergeScheduler;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.IndexUpgrader;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.IndexWriter;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.IndexWriterConfig;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.LogByteSizeMergePolicy;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.MergePolicy;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.MergeScheduler;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.MergeTrigger;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.SegmentCommitInfo;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.SegmentInfos;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.SerialMergeScheduler;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.AlreadyClosedException;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.Directory;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.Version;
+import org.trypticon.luceneupgrader.lucene4.internal.lucenesupport.InMemoryDirectory4;
 import org.trypticon.luceneupgrader.lucene4.internal.lucenesupport.PathFSDirectory4;
+import org.trypticon.luceneupgrader.lucene4.internal.lucenesupport.ThrottledDirectory4;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Upgrades an index to Lucene 4 format.
@@ -20,27 +40,192 @@ public class VersionUpgrader4 implements VersionUpgrader {
 
     private final Path path;
 
+    private final InMemoryIndex memoryIndex;
+
     private final InfoStream infoStream;
 
+    private final UpgradeConfig config;
+
     public VersionUpgrader4(Path path, InfoStream infoStream) {
+        this(path, infoStream, new UpgradeConfig());
+    }
+
+    public VersionUpgrader4(Path path, InfoStream infoStream, UpgradeConfig config) {
+        this(path, null, infoStream, config);
+    }
+
+    /**
+     * Creates an upgrader which upgrades an index held in memory, in place.
+     *
+     * @param memoryIndex the index.
+     * @param infoStream an info stream to log to.
+     * @param config options controlling how the upgrade is performed.
+     */
+    public VersionUpgrader4(InMemoryIndex memoryIndex, InfoStream infoStream, UpgradeConfig config) {
+        this(memoryIndex.getPath(), memoryIndex, infoStream, config);
+    }
+
+    private VersionUpgrader4(Path path, InMemoryIndex memoryIndex, InfoStream infoStream, UpgradeConfig config) {
         this.path = path;
+        this.memoryIndex = memoryIndex;
         this.infoStream = infoStream;
+        this.config = config;
     }
 
     @Override
     public void upgrade() throws IOException {
-        try (Directory directory = PathFSDirectory4.open(path)) {
+        try (Directory directory = openDirectory()) {
             org.trypticon.luceneupgrader.lucene4.internal.lucene.util.InfoStream adaptedInfoStream =
                     new AdaptedInfoStream(infoStream);
             IndexWriterConfig indexWriterConfig = new IndexWriterConfig(Version.LUCENE_4_10_4, null);
-            indexWriterConfig.setMergePolicy(new LogByteSizeMergePolicy());
-            indexWriterConfig.setMergeScheduler(new SerialMergeScheduler());
+            if (config.isPreserveSegments()) {
+                indexWriterConfig.setMergePolicy(new SegmentPreservingMergePolicy());
+                indexWriterConfig.setMergeScheduler(createConcurrentMergeScheduler());
+            } else {
+                indexWriterConfig.setMergePolicy(new LogByteSizeMergePolicy());
+                indexWriterConfig.setMergeScheduler(new SerialMergeScheduler());
+            }
             indexWriterConfig.setInfoStream(adaptedInfoStream);
+            indexWriterConfig.setMergeListener(UpgradeMetrics.runningHop(config, path));
+            indexWriterConfig.setScratchDirectory(config.getScratchDirectory());
             IndexUpgrader upgrader = new IndexUpgrader(directory, indexWriterConfig, true);
             upgrader.upgrade();
         }
     }
 
+    private Directory openDirectory() throws IOException {
+        HopMetrics metrics = UpgradeMetrics.runningHop(config, path);
+        if (memoryIndex != null) {
+            // Nothing to throttle in memory, but the bytes still count.
+            return ThrottledDirectory4.wrap(new InMemoryDirectory4(memoryIndex), null, metrics);
+        }
+        return ThrottledDirectory4.wrap(PathFSDirectory4.open(path), config.getIOThrottle(), metrics);
+    }
+
+    /**
+     * Creates the scheduler which runs the per-segment rewrites, one segment per thread.
+     */
+    private MergeScheduler createConcurrentMergeScheduler() {
+        ConcurrentMergeScheduler mergeScheduler =
+                config.isResumable() ? new CheckpointingMergeScheduler(config.getDiskBudget())
+                                      : new ConcurrentMergeScheduler();
+        mergeScheduler.setMaxMergesAndThreads(config.getThreadCount(), config.getThreadCount());
+        return mergeScheduler;
+    }
+
+    /**
+     * Commits after each segment is rewritten, so that an interrupted upgrade only has to
+     * redo the segments which were still in progress when it stopped. The commits happen on
+     * a thread of their own, because closing the writer waits for the merge threads while
+     * holding the lock a commit needs.
+     *
+     * With a disk budget, a rewrite only starts once the rewrites in progress, plus those whose
+     * old segments are still waiting for a commit to free them, leave room for it. One rewrite
+     * can always run, so that a merge never ends up waiting for a commit which is waiting for it.
+     */
+    private static class CheckpointingMergeScheduler extends ConcurrentMergeScheduler {
+        private final ExecutorService committer = ConcurrencyUtils.newFixedThreadPool(1, "upgrade4-checkpoint");
+        private final AtomicBoolean checkpointPending = new AtomicBoolean();
+        private final long diskBudget;
+        private final Object budgetLock = new Object();
+        private long bytesMerging;
+        private long bytesAwaitingCommit;
+
+        private CheckpointingMergeScheduler(long diskBudget) {
+            this.diskBudget = diskBudget;
+        }
+
+        @Override
+        protected void doMerge(MergePolicy.OneMerge merge) throws IOException {
+            long size = diskBudget > 0 ? merge.totalBytesSize() : 0;
+            reserve(size);
+            boolean merged = false;
+            try {
+                super.doMerge(merge);
+                merged = true;
+            } finally {
+                finishMerging(size, merged);
+            }
+
+            IndexWriter writer = this.writer;
+            if (checkpointPending.compareAndSet(false, true)) {
+                committer.execute(() -> {
+                    checkpointPending.set(false);
+                    long committed;
+                    synchronized (budgetLock) {
+                        committed = bytesAwaitingCommit;
+                    }
+                    try {
+                        writer.commit();
+                    } catch (AlreadyClosedException | IOException e) {
+                        // Either the upgrade has already made its own commit, or it will report the problem itself.
+                    } finally {
+                        synchronized (budgetLock) {
+                            bytesAwaitingCommit -= committed;
+                            budgetLock.notifyAll();
+                        }
+                    }
+                });
+            }
+        }
+
+        private void reserve(long size) throws IOException {
+            synchronized (budgetLock) {
+                try {
+                    while (bytesMerging > 0 && bytesMerging + bytesAwaitingCommit + size > diskBudget) {
+                        budgetLock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for disk space");
+                }
+                bytesMerging += size;
+            }
+        }
+
+        private void finishMerging(long size, boolean merged) {
+            synchronized (budgetLock) {
+                bytesMerging -= size;
+                if (merged) {
+                    bytesAwaitingCommit += size;
+                }
+                budgetLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            committer.shutdown();
+        }
+    }
+
+    /**
+     * A merge policy which rewrites each segment on its own, never merging segments together.
+     * Wrapped by the {@code UpgradeIndexMergePolicy} which {@code IndexUpgrader} installs, this
+     * turns its {@code forceMerge(1)} into one independent rewrite per old segment.
+     */
+    private static class SegmentPreservingMergePolicy extends LogByteSizeMergePolicy {
+        @Override
+        public MergeSpecification findMerges(MergeTrigger mergeTrigger, SegmentInfos segmentInfos,
+                                             IndexWriter writer) {
+            return null;
+        }
+
+        @Override
+        public MergeSpecification findForcedMerges(SegmentInfos segmentInfos, int maxSegmentCount,
+                                                   Map<SegmentCommitInfo, Boolean> segmentsToMerge,
+                                                   IndexWriter writer) {
+            MergeSpecification spec = new MergeSpecification();
+            for (SegmentCommitInfo info : segmentInfos) {
+                if (segmentsToMerge.containsKey(info)) {
+                    spec.add(new OneMerge(Collections.singletonList(info)));
+                }
+            }
+            return spec.merges.isEmpty() ? null : spec;
+        }
+    }
+
     /**
      * Adapts Lucene's info stream to pass messages to ours.
      */
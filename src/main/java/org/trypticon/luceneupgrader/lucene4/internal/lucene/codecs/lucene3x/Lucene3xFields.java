@@ -17,6 +17,7 @@
 package org.trypticon.luceneupgrader.lucene4.internal.lucene.codecs.lucene3x;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -64,11 +65,14 @@ class Lucene3xFields extends FieldsProducer {
   private final Directory dir;
   private final IOContext context;
   private Directory cfsReader;
+  private final Path scratchDirectory;
 
-  public Lucene3xFields(Directory dir, FieldInfos fieldInfos, SegmentInfo info, IOContext context, int indexDivisor)
+  public Lucene3xFields(Directory dir, FieldInfos fieldInfos, SegmentInfo info, IOContext context, int indexDivisor,
+                        Path scratchDirectory)
     throws IOException {
 
     si = info;
+    this.scratchDirectory = scratchDirectory;
 
     // NOTE: we must always load terms index, even for
     // "sequential" scan during merging, because what is
@@ -134,7 +138,7 @@ class Lucene3xFields extends FieldsProducer {
   
   // only overridden during testing
   protected TermInfosReader newTermInfosReader(Directory dir, String name, FieldInfos fieldInfos, IOContext context, int indexDivisor) throws IOException {
-    return new TermInfosReader(dir, name, fieldInfos, context, indexDivisor);    
+    return new TermInfosReader(dir, name, fieldInfos, context, indexDivisor, scratchDirectory);
   }
 
   @Override
@@ -269,11 +273,29 @@ class Lucene3xFields extends FieldsProducer {
       return (b[idx] & UTF8_NON_BMP_LEAD) == UTF8_NON_BMP_LEAD;
     }
 
+    // Returns true if no char in the UTF8 bytes from idx
+    // on is E or S, ie none could take part in the dance:
+    private final boolean isDanceFree(BytesRef b, int idx) {
+      final int end = b.offset + b.length;
+      for(int i=b.offset+idx;i<end;i++) {
+        if ((b.bytes[i] & 0xff) >= (UTF8_HIGH_BMP_LEAD & 0xff)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
     private final byte[] scratch = new byte[4];
     private final BytesRefBuilder prevTerm = new BytesRefBuilder();
     private final BytesRefBuilder scratchTerm = new BytesRefBuilder();
     private int newSuffixStart;
 
+    // The current term, if it has no E or S chars.  The
+    // dance is stateless, so moving on from such a term
+    // needs no dance unless the new suffix brings E or S
+    // chars, and most fields (ids, numbers, ASCII) never do
+    private Term danceFreeTerm;
+
     // Swap in S, in place of E:
     private boolean seekToNonBMP(SegmentTermEnum te, BytesRefBuilder term, int pos) throws IOException {
       final int savLength = term.length();
@@ -861,14 +883,25 @@ class Lucene3xFields extends FieldsProducer {
         }
       }
 
-      // TODO: can we use STE's prevBuffer here?
-      prevTerm.copyBytes(termEnum.term().bytes());
+      // Only copy the prior term if the dance may need it;
+      // otherwise STE's prevBuffer has it if it turns out to
+      final boolean danceFree = unicodeSortOrder && termEnum.term() == danceFreeTerm;
+      if (!danceFree) {
+        prevTerm.copyBytes(termEnum.term().bytes());
+      }
 
       if (termEnum.next() && termEnum.term().field() == internedFieldName) {
         newSuffixStart = termEnum.newSuffixStart;
         if (DEBUG_SURROGATES) {
           System.out.println("  newSuffixStart=" + newSuffixStart);
         }
+        if (danceFree) {
+          if (isDanceFree(termEnum.term().bytes(), newSuffixStart)) {
+            danceFreeTerm = termEnum.term();
+            return current = danceFreeTerm.bytes();
+          }
+          prevTerm.copyBytes(termEnum.prev().bytes());
+        }
         surrogateDance();
         final Term t = termEnum.term();
         if (t == null || t.field() != internedFieldName) {
@@ -877,8 +910,15 @@ class Lucene3xFields extends FieldsProducer {
           current = null;
         } else {
           current = t.bytes();
+          if (isDanceFree(current, 0)) {
+            danceFreeTerm = t;
+          }
         }
         return current;
+      } else if (danceFree) {
+        // This field is exhausted, and there is nothing in
+        // the prior term for surrogateDance to seek back to
+        return null;
       } else {
         // This field is exhausted, but we have to give
         // surrogateDance a chance to seek back:
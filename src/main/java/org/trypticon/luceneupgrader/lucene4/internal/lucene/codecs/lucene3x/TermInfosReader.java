@@ -18,12 +18,14 @@ package org.trypticon.luceneupgrader.lucene4.internal.lucene.codecs.lucene3x;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Comparator;
 
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.CorruptIndexException;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.FieldInfos;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.IndexFileNames;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.Term;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.BufferedIndexInput;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.Directory;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.IOContext;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.IndexInput;
@@ -48,6 +50,9 @@ class TermInfosReader implements Closeable {
   private final int totalIndexInterval;
 
   private final static int DEFAULT_CACHE_SIZE = 1024;
+
+  // buffer size for the terms dict when it is read for merging
+  private final static int MERGE_BUFFER_SIZE = 64 * 1024;
   
   // Just adds term's ord to TermInfo
   private final static class TermInfoAndOrd extends TermInfo {
@@ -82,13 +87,15 @@ class TermInfosReader implements Closeable {
     }
   }
 
-  private final DoubleBarrelLRUCache<CloneableTerm,TermInfoAndOrd> termsCache = new DoubleBarrelLRUCache<>(DEFAULT_CACHE_SIZE);
+  // null when reading for merging: terms are then visited in order, so
+  // the cache would only cost a copy of every term looked up
+  private final DoubleBarrelLRUCache<CloneableTerm,TermInfoAndOrd> termsCache;
 
   private static final class ThreadResources {
     SegmentTermEnum termEnum;
   }
   
-  TermInfosReader(Directory dir, String seg, FieldInfos fis, IOContext context, int indexDivisor)
+  TermInfosReader(Directory dir, String seg, FieldInfos fis, IOContext context, int indexDivisor, Path scratchDirectory)
        throws CorruptIndexException, IOException {
     boolean success = false;
 
@@ -101,8 +108,15 @@ class TermInfosReader implements Closeable {
       segment = seg;
       fieldInfos = fis;
 
-      origEnum = newSegmentTermEnum(directory.openInput(IndexFileNames.segmentFileName(segment, "", Lucene3xPostingsFormat.TERMS_EXTENSION),
-                                                         context), fieldInfos, false);
+      final boolean merging = context.context == IOContext.Context.MERGE;
+      termsCache = merging ? null : new DoubleBarrelLRUCache<>(DEFAULT_CACHE_SIZE);
+
+      final IndexInput input = directory.openInput(IndexFileNames.segmentFileName(segment, "", Lucene3xPostingsFormat.TERMS_EXTENSION),
+                                                   context);
+      if (merging && input instanceof BufferedIndexInput) {
+        ((BufferedIndexInput) input).setBufferSize(MERGE_BUFFER_SIZE);
+      }
+      origEnum = newSegmentTermEnum(input, fieldInfos, false);
       size = origEnum.size;
 
 
@@ -115,7 +129,8 @@ class TermInfosReader implements Closeable {
                                                                                    context), fieldInfos, true);
 
         try {
-          index = new TermInfosReaderIndex(indexEnum, indexDivisor, dir.fileLength(indexFileName), totalIndexInterval);
+          index = new TermInfosReaderIndex(indexEnum, indexDivisor, dir.fileLength(indexFileName), totalIndexInterval,
+                                          scratchDirectory);
           indexLength = index.length();
         } finally {
           indexEnum.close();
@@ -153,7 +168,7 @@ class TermInfosReader implements Closeable {
   }
 
   public void close() throws IOException {
-    IOUtils.close(origEnum, threadResources);
+    IOUtils.close(origEnum, index, threadResources);
   }
 
   long size() {
@@ -189,9 +204,12 @@ class TermInfosReader implements Closeable {
     if (size == 0) return null;
 
     ensureIndexIsRead();
-    TermInfoAndOrd tiOrd = termsCache.get(new CloneableTerm(term));
     ThreadResources resources = getThreadResources();
+    if (termsCache == null) {
+      return seekEnum(resources.termEnum, term, null, false);
+    }
 
+    TermInfoAndOrd tiOrd = termsCache.get(new CloneableTerm(term));
     if (!mustSeekEnum && tiOrd != null) {
       return tiOrd;
     }
@@ -200,6 +218,9 @@ class TermInfosReader implements Closeable {
   }
 
   public void cacheCurrentTerm(SegmentTermEnum enumerator) {
+    if (termsCache == null) {
+      return;
+    }
     termsCache.put(new CloneableTerm(enumerator.term()),
                    new TermInfoAndOrd(enumerator.termInfo,
                                       enumerator.position));
@@ -210,12 +231,12 @@ class TermInfosReader implements Closeable {
   }
 
   TermInfo seekEnum(SegmentTermEnum enumerator, Term term, boolean useCache) throws IOException {
-    if (useCache) {
+    if (useCache && termsCache != null) {
       return seekEnum(enumerator, term,
                       termsCache.get(new CloneableTerm(deepCopyOf(term))),
                       useCache);
     } else {
-      return seekEnum(enumerator, term, null, useCache);
+      return seekEnum(enumerator, term, null, false);
     }
   }
 
@@ -16,12 +16,16 @@
 */
 package org.trypticon.luceneupgrader.lucene4.internal.lucene.codecs.lucene3x;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.Term;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.DataInput;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.DataOutput;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.BytesRef;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.BytesRefBuilder;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.MathUtil;
@@ -31,9 +35,10 @@ import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.PagedBytes.Page
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.RamUsageEstimator;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.packed.GrowableWriter;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.packed.PackedInts;
+import org.trypticon.luceneupgrader.lucene4.internal.lucenesupport.OffHeapTermIndex4;
 
 @Deprecated
-class TermInfosReaderIndex {
+class TermInfosReaderIndex implements Closeable {
 
   private static final int MAX_PAGE_BITS = 18; // 256 KB block
   private Term[] fields;
@@ -41,65 +46,114 @@ class TermInfosReaderIndex {
   private Comparator<BytesRef> comparator = BytesRef.getUTF8SortedAsUTF16Comparator();
   private final PagedBytesDataInput dataInput;
   private final PackedInts.Reader indexToDataOffset;
+  // Large indexes are kept off the heap, and then the two fields above are null
+  private final OffHeapTermIndex4 offHeapIndex;
   private final int indexSize;
   private final int skipInterval;
   private final long ramBytesUsed;
 
-  TermInfosReaderIndex(SegmentTermEnum indexEnum, int indexDivisor, long tiiFileLength, int totalIndexInterval) throws IOException {
+  TermInfosReaderIndex(SegmentTermEnum indexEnum, int indexDivisor, long tiiFileLength, int totalIndexInterval,
+                       Path scratchDirectory) throws IOException {
     this.totalIndexInterval = totalIndexInterval;
     indexSize = 1 + ((int) indexEnum.size - 1) / indexDivisor;
     skipInterval = indexEnum.skipInterval;
-    // this is only an inital size, it will be GCed once the build is complete
-    long initialSize = (long) (tiiFileLength * 1.5) / indexDivisor;
-    PagedBytes dataPagedBytes = new PagedBytes(estimatePageBits(initialSize));
-    PagedBytesDataOutput dataOutput = dataPagedBytes.getDataOutput();
-
-    final int bitEstimate = 1+MathUtil.log(tiiFileLength, 2);
-    GrowableWriter indexToTerms = new GrowableWriter(bitEstimate, indexSize, PackedInts.DEFAULT);
-
-    String currentField = null;
-    List<String> fieldStrs = new ArrayList<>();
-    int fieldCounter = -1;
-    for (int i = 0; indexEnum.next(); i++) {
-      Term term = indexEnum.term();
-      if (currentField == null || !currentField.equals(term.field())) {
-        currentField = term.field();
-        fieldStrs.add(currentField);
-        fieldCounter++;
+    PagedBytes dataPagedBytes = null;
+    PagedBytesDataOutput dataOutput = null;
+    GrowableWriter indexToTerms = null;
+    if (tiiFileLength / indexDivisor >= OffHeapTermIndex4.MIN_TERMS_INDEX_LENGTH) {
+      offHeapIndex = new OffHeapTermIndex4(scratchDirectory);
+    } else {
+      offHeapIndex = null;
+      // this is only an inital size, it will be GCed once the build is complete
+      long initialSize = (long) (tiiFileLength * 1.5) / indexDivisor;
+      dataPagedBytes = new PagedBytes(estimatePageBits(initialSize));
+      dataOutput = dataPagedBytes.getDataOutput();
+
+      final int bitEstimate = 1+MathUtil.log(tiiFileLength, 2);
+      indexToTerms = new GrowableWriter(bitEstimate, indexSize, PackedInts.DEFAULT);
+    }
+
+    boolean success = false;
+    try {
+      String currentField = null;
+      List<String> fieldStrs = new ArrayList<>();
+      int fieldCounter = -1;
+      for (int i = 0; indexEnum.next(); i++) {
+        Term term = indexEnum.term();
+        if (currentField == null || !currentField.equals(term.field())) {
+          currentField = term.field();
+          fieldStrs.add(currentField);
+          fieldCounter++;
+        }
+        TermInfo termInfo = indexEnum.termInfo();
+        DataOutput output;
+        if (offHeapIndex != null) {
+          output = offHeapIndex.startEntry();
+        } else {
+          indexToTerms.set(i, dataOutput.getPosition());
+          output = dataOutput;
+        }
+        output.writeVInt(fieldCounter);
+        output.writeString(term.text());
+        output.writeVInt(termInfo.docFreq);
+        if (termInfo.docFreq >= skipInterval) {
+          output.writeVInt(termInfo.skipOffset);
+        }
+        output.writeVLong(termInfo.freqPointer);
+        output.writeVLong(termInfo.proxPointer);
+        output.writeVLong(indexEnum.indexPointer);
+        for (int j = 1; j < indexDivisor; j++) {
+          if (!indexEnum.next()) {
+            break;
+          }
+        }
       }
-      TermInfo termInfo = indexEnum.termInfo();
-      indexToTerms.set(i, dataOutput.getPosition());
-      dataOutput.writeVInt(fieldCounter);
-      dataOutput.writeString(term.text());
-      dataOutput.writeVInt(termInfo.docFreq);
-      if (termInfo.docFreq >= skipInterval) {
-        dataOutput.writeVInt(termInfo.skipOffset);
+
+      fields = new Term[fieldStrs.size()];
+      for (int i = 0; i < fields.length; i++) {
+        fields[i] = new Term(fieldStrs.get(i));
       }
-      dataOutput.writeVLong(termInfo.freqPointer);
-      dataOutput.writeVLong(termInfo.proxPointer);
-      dataOutput.writeVLong(indexEnum.indexPointer);
-      for (int j = 1; j < indexDivisor; j++) {
-        if (!indexEnum.next()) {
-          break;
-        }
+
+      long ramBytesUsed = RamUsageEstimator.shallowSizeOf(fields);
+      ramBytesUsed += fields.length * RamUsageEstimator.shallowSizeOfInstance(Term.class);
+      if (offHeapIndex != null) {
+        offHeapIndex.finish();
+        dataInput = null;
+        indexToDataOffset = null;
+      } else {
+        dataPagedBytes.freeze(true);
+        dataInput = dataPagedBytes.getDataInput();
+        indexToDataOffset = indexToTerms.getMutable();
+        ramBytesUsed += RamUsageEstimator.shallowSizeOf(dataInput);
+        ramBytesUsed += dataPagedBytes.ramBytesUsed();
+        ramBytesUsed += indexToDataOffset.ramBytesUsed();
+      }
+      this.ramBytesUsed = ramBytesUsed;
+      success = true;
+    } finally {
+      if (!success && offHeapIndex != null) {
+        offHeapIndex.close();
       }
     }
+  }
+
+  private DataInput newInput() {
+    return offHeapIndex != null ? offHeapIndex.newInput() : dataInput.clone();
+  }
+
+  private void seekEntry(DataInput input, int termIndex) throws IOException {
+    if (offHeapIndex != null) {
+      ((OffHeapTermIndex4.EntryInput) input).seekEntry(termIndex);
+    } else {
+      ((PagedBytesDataInput) input).setPosition(indexToDataOffset.get(termIndex));
+    }
+  }
 
-    fields = new Term[fieldStrs.size()];
-    for (int i = 0; i < fields.length; i++) {
-      fields[i] = new Term(fieldStrs.get(i));
+  @Override
+  public void close() throws IOException {
+    if (offHeapIndex != null) {
+      offHeapIndex.close();
     }
-    
-    dataPagedBytes.freeze(true);
-    dataInput = dataPagedBytes.getDataInput();
-    indexToDataOffset = indexToTerms.getMutable();
-
-    long ramBytesUsed = RamUsageEstimator.shallowSizeOf(fields);
-    ramBytesUsed += RamUsageEstimator.shallowSizeOf(dataInput);
-    ramBytesUsed += fields.length * RamUsageEstimator.shallowSizeOfInstance(Term.class);
-    ramBytesUsed += dataPagedBytes.ramBytesUsed();
-    ramBytesUsed += indexToDataOffset.ramBytesUsed();
-    this.ramBytesUsed = ramBytesUsed;
   }
 
   private static int estimatePageBits(long estSize) {
@@ -107,9 +161,8 @@ class TermInfosReaderIndex {
   }
 
   void seekEnum(SegmentTermEnum enumerator, int indexOffset) throws IOException {
-    PagedBytesDataInput input = dataInput.clone();
-    
-    input.setPosition(indexToDataOffset.get(indexOffset));
+    DataInput input = newInput();
+    seekEntry(input, indexOffset);
 
     // read the term
     int fieldId = input.readVInt();
@@ -136,7 +189,7 @@ class TermInfosReaderIndex {
   int getIndexOffset(Term term) throws IOException {
     int lo = 0;
     int hi = indexSize - 1;
-    PagedBytesDataInput input = dataInput.clone();
+    DataInput input = newInput();
     BytesRefBuilder scratch = new BytesRefBuilder();
     while (hi >= lo) {
       int mid = (lo + hi) >>> 1;
@@ -152,8 +205,8 @@ class TermInfosReaderIndex {
   }
 
   Term getTerm(int termIndex) throws IOException {
-    PagedBytesDataInput input = dataInput.clone();
-    input.setPosition(indexToDataOffset.get(termIndex));
+    DataInput input = newInput();
+    seekEntry(input, termIndex);
 
     // read the term
     int fieldId = input.readVInt();
@@ -166,10 +219,10 @@ class TermInfosReaderIndex {
   }
 
   int compareTo(Term term, int termIndex) throws IOException {
-    return compareTo(term, termIndex, dataInput.clone(), new BytesRefBuilder());
+    return compareTo(term, termIndex, newInput(), new BytesRefBuilder());
   }
 
-  private int compareTo(Term term, int termIndex, PagedBytesDataInput input, BytesRefBuilder reuse) throws IOException {
+  private int compareTo(Term term, int termIndex, DataInput input, BytesRefBuilder reuse) throws IOException {
     // if term field does not equal mid's field index, then compare fields
     // else if they are equal, compare term's string values...
     int c = compareField(term, termIndex, input);
@@ -182,8 +235,8 @@ class TermInfosReaderIndex {
     return c;
   }
 
-  private int compareField(Term term, int termIndex, PagedBytesDataInput input) throws IOException {
-    input.setPosition(indexToDataOffset.get(termIndex));
+  private int compareField(Term term, int termIndex, DataInput input) throws IOException {
+    seekEntry(input, termIndex);
     return term.field().compareTo(fields[input.readVInt()].field());
   }
 
@@ -1834,6 +1834,7 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable {
       SegmentMerger merger = new SegmentMerger(mergeReaders, info, infoStream, trackingDir, config.getTermIndexInterval(),
                                                MergeState.CheckAbort.NONE, globalFieldNumberMap, 
                                                context, config.getCheckIntegrityAtMerge());
+      merger.setMergeListener(config.getMergeListener());
       
       if (!merger.shouldMerge()) {
         return;
@@ -2837,6 +2838,9 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable {
       try {
         try {
           mergeInit(merge);
+          if (merge.info != null && config.getMergeListener() != null) {
+            config.getMergeListener().beginSegment(merge.info.info.name);
+          }
           //if (merge.info != null) {
           //System.out.println("MERGE: " + merge.info.info.name);
           //}
@@ -2875,6 +2879,9 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable {
     } catch (OutOfMemoryError oom) {
       tragicEvent(oom, "merge");
     }
+    if (merge.info != null && config.getMergeListener() != null) {
+      config.getMergeListener().endSegment(success ? merge.info.info.getDocCount() : 0);
+    }
     if (merge.info != null && !merge.isAborted()) {
       if (infoStream.isEnabled("IW")) {
         infoStream.message("IW", "merge time " + (System.currentTimeMillis()-t0) + " msec for " + merge.info.info.getDocCount() + " docs");
@@ -3234,6 +3241,7 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable {
           merge.info.info, infoStream, dirWrapper, config.getTermIndexInterval(),
           checkAbort, globalFieldNumberMap, 
           context, config.getCheckIntegrityAtMerge());
+      merger.setMergeListener(config.getMergeListener());
 
       merge.checkAborted(directory);
 
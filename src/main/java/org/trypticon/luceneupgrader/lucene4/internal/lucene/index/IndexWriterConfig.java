@@ -16,6 +16,7 @@
 */
 package org.trypticon.luceneupgrader.lucene4.internal.lucene.index;
 
+import org.trypticon.luceneupgrader.MergeListener;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.analysis.Analyzer;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.codecs.Codec;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.DocumentsWriterPerThread.IndexingChain;
@@ -28,6 +29,7 @@ import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.SetOnce.Already
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.Version;
 
 import java.io.PrintStream;
+import java.nio.file.Path;
 
 public final class IndexWriterConfig extends LiveIndexWriterConfig {
 
@@ -172,6 +174,24 @@ public final class IndexWriterConfig extends LiveIndexWriterConfig {
     return this;
   }
 
+  /**
+   * Sets a listener to tell about each segment merges write, and how long each phase of
+   * writing it took, or {@code null} to not tell anything.
+   */
+  public IndexWriterConfig setMergeListener(MergeListener mergeListener) {
+    this.mergeListener = mergeListener;
+    return this;
+  }
+
+  /**
+   * Sets the directory to keep temporary files for reading old segments in, or {@code null}
+   * to use the system's temporary directory.
+   */
+  public IndexWriterConfig setScratchDirectory(Path scratchDirectory) {
+    this.scratchDirectory = scratchDirectory;
+    return this;
+  }
+
   @Override
   public Codec getCodec() {
     return codec;
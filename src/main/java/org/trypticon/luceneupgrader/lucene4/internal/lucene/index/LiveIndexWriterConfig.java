@@ -16,6 +16,7 @@
 */
 package org.trypticon.luceneupgrader.lucene4.internal.lucene.index;
 
+import org.trypticon.luceneupgrader.MergeListener;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.analysis.Analyzer;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.codecs.Codec;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.codecs.lucene41.Lucene41PostingsFormat; // javadocs
@@ -27,6 +28,8 @@ import org.trypticon.luceneupgrader.lucene4.internal.lucene.search.similarities.
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.InfoStream;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.Version;
 
+import java.nio.file.Path;
+
 public class LiveIndexWriterConfig {
   
   private final Analyzer analyzer;
@@ -55,6 +58,12 @@ public class LiveIndexWriterConfig {
 
   protected volatile Codec codec;
 
+  /** Told about each segment merges write, or {@code null}. */
+  protected volatile MergeListener mergeListener;
+
+  /** Where temporary files for reading old segments go, or {@code null} for the system's temporary directory. */
+  protected volatile Path scratchDirectory;
+
   protected volatile InfoStream infoStream;
 
   protected volatile MergePolicy mergePolicy;
@@ -218,6 +227,14 @@ public class LiveIndexWriterConfig {
     return codec;
   }
 
+  public MergeListener getMergeListener() {
+    return mergeListener;
+  }
+
+  public Path getScratchDirectory() {
+    return scratchDirectory;
+  }
+
   public MergePolicy getMergePolicy() {
     return mergePolicy;
   }
@@ -289,6 +306,8 @@ public class LiveIndexWriterConfig {
     sb.append("default WRITE_LOCK_TIMEOUT=").append(IndexWriterConfig.WRITE_LOCK_TIMEOUT).append("\n");
     sb.append("writeLockTimeout=").append(getWriteLockTimeout()).append("\n");
     sb.append("codec=").append(getCodec()).append("\n");
+    sb.append("mergeListener=").append(getMergeListener()).append("\n");
+    sb.append("scratchDirectory=").append(getScratchDirectory()).append("\n");
     sb.append("infoStream=").append(getInfoStream().getClass().getName()).append("\n");
     sb.append("mergePolicy=").append(getMergePolicy()).append("\n");
     sb.append("indexerThreadPool=").append(getIndexerThreadPool()).append("\n");
@@ -140,7 +140,8 @@ class ReadersAndUpdates {
   public SegmentReader getReader(IOContext context) throws IOException {
     if (reader == null) {
       // We steal returned ref:
-      reader = new SegmentReader(info, writer.getConfig().getReaderTermsIndexDivisor(), context);
+      reader = new SegmentReader(info, writer.getConfig().getReaderTermsIndexDivisor(), context,
+                                 writer.getConfig().getScratchDirectory());
       if (liveDocs == null) {
         liveDocs = reader.getLiveDocs();
       }
@@ -170,7 +171,7 @@ class ReadersAndUpdates {
       } else {
         //System.out.println(Thread.currentThread().getName() + ": getMergeReader seg=" + info.name);
         // We steal returned ref:
-        mergeReader = new SegmentReader(info, -1, context);
+        mergeReader = new SegmentReader(info, -1, context, writer.getConfig().getScratchDirectory());
         if (liveDocs == null) {
           liveDocs = mergeReader.getLiveDocs();
         }
@@ -527,7 +528,8 @@ class ReadersAndUpdates {
 
       // reader could be null e.g. for a just merged segment (from
       // IndexWriter.commitMergedDeletes).
-      final SegmentReader reader = this.reader == null ? new SegmentReader(info, writer.getConfig().getReaderTermsIndexDivisor(), IOContext.READONCE) : this.reader;
+      final SegmentReader reader = this.reader == null ? new SegmentReader(info, writer.getConfig().getReaderTermsIndexDivisor(), IOContext.READONCE,
+                                                                          writer.getConfig().getScratchDirectory()) : this.reader;
       try {
         // clone FieldInfos so that we can update their dvGen separately from
         // the reader's infos and write them to a new fieldInfos_gen file
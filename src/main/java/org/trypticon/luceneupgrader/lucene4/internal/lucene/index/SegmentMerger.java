@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.trypticon.luceneupgrader.MergeListener;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.codecs.Codec;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.codecs.FieldInfosWriter;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.codecs.FieldsConsumer;
@@ -43,6 +44,7 @@ final class SegmentMerger {
   
   private final MergeState mergeState;
   private final FieldInfos.Builder fieldInfosBuilder;
+  private MergeListener mergeListener;
 
   // note, just like in codec apis Directory 'dir' is NOT the same as segmentInfo.dir!!
   SegmentMerger(List<AtomicReader> readers, SegmentInfo segmentInfo, InfoStream infoStream, Directory dir, int termIndexInterval,
@@ -62,6 +64,11 @@ final class SegmentMerger {
     mergeState.segmentInfo.setDocCount(setDocMaps());
   }
   
+  /** Sets the listener to tell how long each phase of the merge took, or {@code null} to not tell anything. */
+  void setMergeListener(MergeListener mergeListener) {
+    this.mergeListener = mergeListener;
+  }
+
   boolean shouldMerge() {
     return mergeState.segmentInfo.getDocCount() > 0;
   }
@@ -79,57 +86,52 @@ final class SegmentMerger {
     mergeFieldInfos();
     setMatchingSegmentReaders();
     long t0 = 0;
-    if (mergeState.infoStream.isEnabled("SM")) {
+    if (isTimed()) {
       t0 = System.nanoTime();
     }
     int numMerged = mergeFields();
-    if (mergeState.infoStream.isEnabled("SM")) {
-      long t1 = System.nanoTime();
-      mergeState.infoStream.message("SM", ((t1-t0)/1000000) + " msec to merge stored fields [" + numMerged + " docs]");
+    if (isTimed()) {
+      phaseDone("merge stored fields", "stored fields", System.nanoTime() - t0, numMerged);
     }
     assert numMerged == mergeState.segmentInfo.getDocCount();
 
     final SegmentWriteState segmentWriteState = new SegmentWriteState(mergeState.infoStream, directory, mergeState.segmentInfo,
                                                                       mergeState.fieldInfos, termIndexInterval, null, context);
-    if (mergeState.infoStream.isEnabled("SM")) {
+    if (isTimed()) {
       t0 = System.nanoTime();
     }
     mergeTerms(segmentWriteState);
-    if (mergeState.infoStream.isEnabled("SM")) {
-      long t1 = System.nanoTime();
-      mergeState.infoStream.message("SM", ((t1-t0)/1000000) + " msec to merge postings [" + numMerged + " docs]");
+    if (isTimed()) {
+      phaseDone("merge postings", "postings", System.nanoTime() - t0, numMerged);
     }
 
-    if (mergeState.infoStream.isEnabled("SM")) {
+    if (isTimed()) {
       t0 = System.nanoTime();
     }
     if (mergeState.fieldInfos.hasDocValues()) {
       mergeDocValues(segmentWriteState);
     }
-    if (mergeState.infoStream.isEnabled("SM")) {
-      long t1 = System.nanoTime();
-      mergeState.infoStream.message("SM", ((t1-t0)/1000000) + " msec to merge doc values [" + numMerged + " docs]");
+    if (isTimed()) {
+      phaseDone("merge doc values", "doc values", System.nanoTime() - t0, numMerged);
     }
     
     if (mergeState.fieldInfos.hasNorms()) {
-      if (mergeState.infoStream.isEnabled("SM")) {
+      if (isTimed()) {
         t0 = System.nanoTime();
       }
       mergeNorms(segmentWriteState);
-      if (mergeState.infoStream.isEnabled("SM")) {
-        long t1 = System.nanoTime();
-        mergeState.infoStream.message("SM", ((t1-t0)/1000000) + " msec to merge norms [" + numMerged + " docs]");
+      if (isTimed()) {
+        phaseDone("merge norms", "norms", System.nanoTime() - t0, numMerged);
       }
     }
 
     if (mergeState.fieldInfos.hasVectors()) {
-      if (mergeState.infoStream.isEnabled("SM")) {
+      if (isTimed()) {
         t0 = System.nanoTime();
       }
       numMerged = mergeVectors();
-      if (mergeState.infoStream.isEnabled("SM")) {
-        long t1 = System.nanoTime();
-        mergeState.infoStream.message("SM", ((t1-t0)/1000000) + " msec to merge vectors [" + numMerged + " docs]");
+      if (isTimed()) {
+        phaseDone("merge vectors", "term vectors", System.nanoTime() - t0, numMerged);
       }
       assert numMerged == mergeState.segmentInfo.getDocCount();
     }
@@ -141,6 +143,21 @@ final class SegmentMerger {
     return mergeState;
   }
 
+  /** Whether the phases of the merge are timed, for the info stream or for the listener. */
+  private boolean isTimed() {
+    return mergeState.infoStream.isEnabled("SM") || mergeListener != null;
+  }
+
+  /** Logs how long a phase of the merge took, and tells the listener. */
+  private void phaseDone(String message, String phase, long nanos, int numMerged) {
+    if (mergeState.infoStream.isEnabled("SM")) {
+      mergeState.infoStream.message("SM", (nanos/1000000) + " msec to " + message + " [" + numMerged + " docs]");
+    }
+    if (mergeListener != null) {
+      mergeListener.phase(phase, nanos, numMerged);
+    }
+  }
+
   private void mergeDocValues(SegmentWriteState segmentWriteState) throws IOException {
     DocValuesConsumer consumer = codec.docValuesFormat().fieldsConsumer(segmentWriteState);
     boolean success = false;
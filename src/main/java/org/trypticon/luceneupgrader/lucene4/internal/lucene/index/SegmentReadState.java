@@ -21,6 +21,8 @@ import org.trypticon.luceneupgrader.lucene4.internal.lucene.codecs.perfield.PerF
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.Directory;
 import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.IOContext;
 
+import java.nio.file.Path;
+
 public class SegmentReadState {
   public final Directory directory;
 
@@ -36,10 +38,18 @@ public class SegmentReadState {
 
   public final String segmentSuffix;
 
+  /** Where to keep temporary files needed to read the segment, or {@code null} for the system's temporary directory. */
+  public final Path scratchDirectory;
+
   public SegmentReadState(Directory dir, SegmentInfo info,
       FieldInfos fieldInfos, IOContext context, int termsIndexDivisor) {
     this(dir, info, fieldInfos,  context, termsIndexDivisor, "");
   }
+
+  public SegmentReadState(Directory dir, SegmentInfo info,
+      FieldInfos fieldInfos, IOContext context, int termsIndexDivisor, Path scratchDirectory) {
+    this(dir, info, fieldInfos,  context, termsIndexDivisor, "", scratchDirectory);
+  }
   
   public SegmentReadState(Directory dir,
                           SegmentInfo info,
@@ -47,12 +57,23 @@ public class SegmentReadState {
                           IOContext context,
                           int termsIndexDivisor,
                           String segmentSuffix) {
+    this(dir, info, fieldInfos, context, termsIndexDivisor, segmentSuffix, null);
+  }
+
+  public SegmentReadState(Directory dir,
+                          SegmentInfo info,
+                          FieldInfos fieldInfos,
+                          IOContext context,
+                          int termsIndexDivisor,
+                          String segmentSuffix,
+                          Path scratchDirectory) {
     this.directory = dir;
     this.segmentInfo = info;
     this.fieldInfos = fieldInfos;
     this.context = context;
     this.termsIndexDivisor = termsIndexDivisor;
     this.segmentSuffix = segmentSuffix;
+    this.scratchDirectory = scratchDirectory;
   }
 
   public SegmentReadState(SegmentReadState other,
@@ -63,5 +84,6 @@ public class SegmentReadState {
     this.context = other.context;
     this.termsIndexDivisor = other.termsIndexDivisor;
     this.segmentSuffix = newSegmentSuffix;
+    this.scratchDirectory = other.scratchDirectory;
   }
 }
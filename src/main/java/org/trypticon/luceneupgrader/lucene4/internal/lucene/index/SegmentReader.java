@@ -17,6 +17,7 @@
 package org.trypticon.luceneupgrader.lucene4.internal.lucene.index;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -83,6 +84,15 @@ public final class SegmentReader extends AtomicReader implements Accountable {
   
   // TODO: why is this public?
   public SegmentReader(SegmentCommitInfo si, int termInfosIndexDivisor, IOContext context) throws IOException {
+    this(si, termInfosIndexDivisor, context, null);
+  }
+
+  /**
+   * Opens a segment, keeping any temporary files needed to read it in the given directory,
+   * or in the system's temporary directory if it is {@code null}.
+   */
+  public SegmentReader(SegmentCommitInfo si, int termInfosIndexDivisor, IOContext context, Path scratchDirectory)
+      throws IOException {
     this.si = si;
     // TODO if the segment uses CFS, we may open the CFS file twice: once for
     // reading the FieldInfos (if they are not gen'd) and second time by
@@ -91,7 +101,7 @@ public final class SegmentReader extends AtomicReader implements Accountable {
     // Best if we could somehow read FieldInfos in SCR but not keep it there, but
     // constructors don't allow returning two things...
     fieldInfos = readFieldInfos(si);
-    core = new SegmentCoreReaders(this, si.info.dir, si, context, termInfosIndexDivisor);
+    core = new SegmentCoreReaders(this, si.info.dir, si, context, termInfosIndexDivisor, scratchDirectory);
     segDocValues = new SegmentDocValues();
     
     boolean success = false;
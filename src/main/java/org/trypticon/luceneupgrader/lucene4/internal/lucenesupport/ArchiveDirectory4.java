@@ -0,0 +1,83 @@
+package org.trypticon.luceneupgrader.lucene4.internal.lucenesupport;
+
+import org.trypticon.luceneupgrader.IndexArchive;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.BaseDirectory;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.BufferedIndexInput;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.IOContext;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.IndexInput;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.IndexOutput;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.NoLockFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A read-only directory over an index in an archive, reading each file from where it is
+ * in the archive.
+ */
+public class ArchiveDirectory4 extends BaseDirectory {
+
+    private final IndexArchive archive;
+
+    /**
+     * Creates the directory. Closing it leaves the archive open.
+     *
+     * @param archive the archive.
+     */
+    public ArchiveDirectory4(IndexArchive archive) {
+        this.archive = archive;
+        lockFactory = NoLockFactory.getNoLockFactory();
+    }
+
+    @Override
+    public String[] listAll() {
+        ensureOpen();
+        return archive.listAll();
+    }
+
+    @Override
+    public boolean fileExists(String name) {
+        ensureOpen();
+        return Arrays.asList(archive.listAll()).contains(name);
+    }
+
+    @Override
+    public long fileLength(String name) throws IOException {
+        ensureOpen();
+        return archive.getEntry(name).getLength();
+    }
+
+    @Override
+    public IndexInput openInput(String name, IOContext context) throws IOException {
+        ensureOpen();
+        IndexArchive.Entry entry = archive.getEntry(name);
+        return new PathNIOFSDirectory4.NIOFSIndexInput("ArchiveIndexInput(path=\"" + archive.getPath() + "!" + name + "\")",
+                                                       entry.getChannel(), entry.getOffset(), entry.getLength(),
+                                                       BufferedIndexInput.bufferSize(context));
+    }
+
+    @Override
+    public void deleteFile(String name) {
+        throw new UnsupportedOperationException("Archives are read-only");
+    }
+
+    @Override
+    public IndexOutput createOutput(String name, IOContext context) {
+        throw new UnsupportedOperationException("Archives are read-only");
+    }
+
+    @Override
+    public void sync(Collection<String> names) {
+    }
+
+    @Override
+    public void close() {
+        isOpen = false;
+    }
+
+    @Override
+    public String toString() {
+        return "ArchiveDirectory4(" + archive.getPath() + ")";
+    }
+}
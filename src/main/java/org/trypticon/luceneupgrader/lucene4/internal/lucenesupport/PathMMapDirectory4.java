@@ -5,30 +5,14 @@ import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.Constants;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.security.AccessController;
-import java.security.PrivilegedActionException;
-import java.security.PrivilegedExceptionAction;
 import java.util.Locale;
 
 public class PathMMapDirectory4 extends PathFSDirectory4 {
-    public static final boolean UNMAP_SUPPORTED;
-    static {
-        boolean v;
-        try {
-            Class.forName("sun.misc.Cleaner");
-            Class.forName("java.nio.DirectByteBuffer")
-                    .getMethod("cleaner");
-            v = true;
-        } catch (Exception e) {
-            v = false;
-        }
-        UNMAP_SUPPORTED = v;
-    }
+    public static final boolean UNMAP_SUPPORTED = MMapDirectory.UNMAP_SUPPORTED;
 
     private boolean useUnmapHack = UNMAP_SUPPORTED;
     public static final int DEFAULT_MAX_BUFF = Constants.JRE_IS_64BIT ? (1 << 30) : (1 << 28);
@@ -137,27 +121,6 @@ public class PathMMapDirectory4 extends PathFSDirectory4 {
         return newIoe;
     }
 
-    private static final PathByteBufferIndexInput4.BufferCleaner CLEANER = new PathByteBufferIndexInput4.BufferCleaner() {
-        @Override
-        public void freeBuffer(final PathByteBufferIndexInput4 parent, final ByteBuffer buffer) throws IOException {
-            try {
-                AccessController.doPrivileged(new PrivilegedExceptionAction<Void>() {
-                    @Override
-                    public Void run() throws Exception {
-                        final Method getCleanerMethod = buffer.getClass()
-                                .getMethod("cleaner");
-                        getCleanerMethod.setAccessible(true);
-                        final Object cleaner = getCleanerMethod.invoke(buffer);
-                        if (cleaner != null) {
-                            cleaner.getClass().getMethod("clean")
-                                    .invoke(cleaner);
-                        }
-                        return null;
-                    }
-                });
-            } catch (PrivilegedActionException e) {
-                throw new IOException("Unable to unmap the mapped buffer: " + parent.toString(), e.getCause());
-            }
-        }
-    };
+    private static final PathByteBufferIndexInput4.BufferCleaner CLEANER =
+            (parent, buffer) -> MMapDirectory.unmap(parent.toString(), buffer);
 }
@@ -0,0 +1,60 @@
+package org.trypticon.luceneupgrader.lucene5;
+
+import org.trypticon.luceneupgrader.InMemoryIndex;
+import org.trypticon.luceneupgrader.SegmentDescription;
+import org.trypticon.luceneupgrader.lucene5.internal.lucene.index.SegmentCommitInfo;
+import org.trypticon.luceneupgrader.lucene5.internal.lucene.index.SegmentInfos;
+import org.trypticon.luceneupgrader.lucene5.internal.lucene.store.Directory;
+import org.trypticon.luceneupgrader.lucene5.internal.lucene.store.FSDirectory;
+import org.trypticon.luceneupgrader.lucene5.internal.lucenesupport.InMemoryDirectory5;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes the segments of a Lucene 5 index.
+ */
+public class SegmentInventory5 {
+
+    private SegmentInventory5() {
+    }
+
+    /**
+     * Describes the segments in the latest commit of an index.
+     *
+     * @param path the path to the index.
+     * @return the segments.
+     * @throws IOException if an error occurs reading the index.
+     */
+    public static List<SegmentDescription> describe(Path path) throws IOException {
+        try (Directory directory = FSDirectory.open(path)) {
+            return describe(directory);
+        }
+    }
+
+    /**
+     * Describes the segments in the latest commit of an index held in memory.
+     *
+     * @param index the index.
+     * @return the segments.
+     * @throws IOException if an error occurs reading the index.
+     */
+    public static List<SegmentDescription> describe(InMemoryIndex index) throws IOException {
+        try (Directory directory = new InMemoryDirectory5(index)) {
+            return describe(directory);
+        }
+    }
+
+    private static List<SegmentDescription> describe(Directory directory) throws IOException {
+        SegmentInfos infos = SegmentInfos.readLatestCommit(directory);
+
+        List<SegmentDescription> descriptions = new ArrayList<>(infos.size());
+        for (SegmentCommitInfo info : infos) {
+            descriptions.add(new SegmentDescription(info.info.name, info.info.getVersion().toString(), null,
+                    info.info.getCodec().getName(), info.info.maxDoc(), info.getDelCount(), info.sizeInBytes()));
+        }
+        return descriptions;
+    }
+}
@@ -31,6 +31,8 @@ import org.trypticon.luceneupgrader.lucene5.internal.lucene.index.IndexFileNames
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.index.IndexableField;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.index.MergeState;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.index.SegmentInfo;
+import org.trypticon.luceneupgrader.lucene5.internal.lucene.store.ByteArrayDataInput;
+import org.trypticon.luceneupgrader.lucene5.internal.lucene.store.DataInput;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.store.DataOutput;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.store.Directory;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.store.IOContext;
@@ -42,6 +44,7 @@ import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.Bits;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.BytesRef;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.IOUtils;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.packed.PackedInts;
+import org.trypticon.luceneupgrader.lucene5.internal.lucenesupport.LegacyChunkSource5;
 
 public final class CompressingStoredFieldsWriter extends StoredFieldsWriter {
 
@@ -430,19 +433,27 @@ public final class CompressingStoredFieldsWriter extends StoredFieldsWriter {
     for (int readerIndex=0;readerIndex<numReaders;readerIndex++) {
       MergeVisitor visitor = new MergeVisitor(mergeState, readerIndex);
       CompressingStoredFieldsReader matchingFieldsReader = null;
+      LegacyChunkSource5 matchingLegacyReader = null;
       if (matching.matchingReaders[readerIndex]) {
         final StoredFieldsReader fieldsReader = mergeState.storedFieldsReaders[readerIndex];
-        // we can only bulk-copy if the matching reader is also a CompressingStoredFieldsReader
+        // we can only bulk-copy if the matching reader is also a CompressingStoredFieldsReader,
+        // or a Lucene 4 reader whose chunks are compressed the same way
         if (fieldsReader != null && fieldsReader instanceof CompressingStoredFieldsReader) {
           matchingFieldsReader = (CompressingStoredFieldsReader) fieldsReader;
+        } else if (fieldsReader instanceof LegacyChunkSource5) {
+          matchingLegacyReader = (LegacyChunkSource5) fieldsReader;
         }
       }
 
       final int maxDoc = mergeState.maxDocs[readerIndex];
       final Bits liveDocs = mergeState.liveDocs[readerIndex];
 
-      // if its some other format, or an older version of this format, or safety switch:
-      if (matchingFieldsReader == null || matchingFieldsReader.getVersion() != VERSION_CURRENT || BULK_MERGE_ENABLED == false) {
+      if (matchingLegacyReader != null && canCopyChunks(matchingLegacyReader) &&
+          BULK_MERGE_ENABLED && liveDocs == null) {
+        mergeState.storedFieldsReaders[readerIndex].checkIntegrity();
+        copyLegacyChunks(matchingLegacyReader, maxDoc);
+        docCount += maxDoc;
+      } else if (matchingFieldsReader == null || matchingFieldsReader.getVersion() != VERSION_CURRENT || BULK_MERGE_ENABLED == false) {
         // naive merge...
         StoredFieldsReader storedFieldsReader = mergeState.storedFieldsReaders[readerIndex];
         if (storedFieldsReader != null) {
@@ -548,6 +559,173 @@ public final class CompressingStoredFieldsWriter extends StoredFieldsWriter {
   }
   
 
+  private boolean canCopyChunks(LegacyChunkSource5 candidate) {
+    return candidate.getCompressionMode() == compressionMode &&
+        candidate.getPackedIntsVersion() >= PackedInts.VERSION_BYTE_ALIGNED &&
+        (candidate.slicesLargeChunks() == false || candidate.getChunkSize() == chunkSize);
+  }
+
+  /**
+   * Copies the chunks of a Lucene 4 segment. Their compressed bytes are kept as long as no document
+   * in the chunk has a number stored in it, because Lucene 4 wrote numbers at a fixed width where
+   * Lucene 5 writes them at a variable one. Chunks holding numbers are written again a document at a time.
+   */
+  private void copyLegacyChunks(LegacyChunkSource5 source, int maxDoc) throws IOException {
+    // flush any pending chunks
+    if (numBufferedDocs > 0) {
+      flush();
+      numDirtyChunks++; // incomplete: we had to force this flush
+    }
+
+    final IndexInput rawDocs = source.getChunksStream();
+    final Decompressor decompressor = compressionMode.newDecompressor();
+    final BytesRef bytes = new BytesRef();
+    final BytesRef spare = new BytesRef();
+    int[] chunkStoredFields = new int[0];
+    int[] chunkLengths = new int[0];
+    rawDocs.seek(source.getChunkStartPointer(0));
+    int docID = 0;
+    while (docID < maxDoc) {
+      // read header, which apart from the number of documents is the same as ours
+      int base = rawDocs.readVInt();
+      if (base != docID) {
+        throw new CorruptIndexException("invalid state: base=" + base + ", docID=" + docID, rawDocs);
+      }
+      int chunkDocs = rawDocs.readVInt();
+      if (chunkDocs <= 0 || docID + chunkDocs > maxDoc) {
+        throw new CorruptIndexException("invalid state: base=" + base + ", count=" + chunkDocs + ", maxDoc=" + maxDoc, rawDocs);
+      }
+      final long headerStart = rawDocs.getFilePointer();
+      chunkStoredFields = ArrayUtil.grow(chunkStoredFields, chunkDocs);
+      chunkLengths = ArrayUtil.grow(chunkLengths, chunkDocs);
+      loadInts(rawDocs, source.getPackedIntsVersion(), chunkDocs, chunkStoredFields);
+      loadInts(rawDocs, source.getPackedIntsVersion(), chunkDocs, chunkLengths);
+      int totalLength = 0;
+      for (int i = 0; i < chunkDocs; ++i) {
+        totalLength += chunkLengths[i];
+      }
+      final boolean sliced = source.slicesLargeChunks() && totalLength >= 2 * source.getChunkSize();
+
+      docID += chunkDocs;
+      final long end = docID == maxDoc ? source.getMaxPointer() : source.getChunkStartPointer(docID);
+
+      // decompress, to find out whether there are any numbers
+      if (sliced) {
+        bytes.offset = bytes.length = 0;
+        for (int decompressed = 0; decompressed < totalLength; ) {
+          final int toDecompress = Math.min(totalLength - decompressed, source.getChunkSize());
+          decompressor.decompress(rawDocs, toDecompress, 0, toDecompress, spare);
+          bytes.bytes = ArrayUtil.grow(bytes.bytes, bytes.length + spare.length);
+          System.arraycopy(spare.bytes, spare.offset, bytes.bytes, bytes.length, spare.length);
+          bytes.length += spare.length;
+          decompressed += toDecompress;
+        }
+      } else if (totalLength > 0) {
+        decompressor.decompress(rawDocs, totalLength, 0, totalLength, bytes);
+      } else {
+        bytes.length = 0;
+      }
+      if (bytes.length != totalLength) {
+        throw new CorruptIndexException("Corrupted: expected chunk size = " + totalLength + ", got " + bytes.length, rawDocs);
+      }
+
+      if (hasNumericFields(bytes, chunkStoredFields, chunkDocs)) {
+        final ByteArrayDataInput in = new ByteArrayDataInput(bytes.bytes, bytes.offset, bytes.length);
+        for (int i = 0; i < chunkDocs; ++i) {
+          startDocument();
+          for (int field = 0; field < chunkStoredFields[i]; ++field) {
+            copyLegacyField(in);
+          }
+          finishDocument();
+        }
+      } else {
+        if (numBufferedDocs > 0) {
+          flush();
+          numDirtyChunks++; // incomplete: we had to force this flush
+        }
+        indexWriter.writeIndex(chunkDocs, fieldsStream.getFilePointer());
+        fieldsStream.writeVInt(docBase); // rebase
+        fieldsStream.writeVInt(chunkDocs << 1 | (sliced ? 1 : 0));
+        rawDocs.seek(headerStart);
+        fieldsStream.copyBytes(rawDocs, end - headerStart);
+        docBase += chunkDocs;
+        numChunks++;
+        // Lucene 4 doesn't count the chunks it had to flush early, but they are the ones too small to have filled up
+        if (totalLength < chunkSize && chunkDocs < maxDocsPerChunk) {
+          numDirtyChunks++;
+        }
+      }
+      rawDocs.seek(end);
+    }
+
+    if (rawDocs.getFilePointer() != source.getMaxPointer()) {
+      throw new CorruptIndexException("invalid state: pos=" + rawDocs.getFilePointer() + ", max=" + source.getMaxPointer(), rawDocs);
+    }
+  }
+
+  private static void loadInts(DataInput in, int packedIntsVersion, int length, int[] values) throws IOException {
+    if (length == 1) {
+      values[0] = in.readVInt();
+    } else {
+      final int bitsRequired = in.readVInt();
+      if (bitsRequired == 0) {
+        Arrays.fill(values, 0, length, in.readVInt());
+      } else if (bitsRequired > 31) {
+        throw new CorruptIndexException("bitsRequired=" + bitsRequired, in);
+      } else {
+        final PackedInts.ReaderIterator it = PackedInts.getReaderIteratorNoHeader(in, PackedInts.Format.PACKED, packedIntsVersion, length, bitsRequired, 1);
+        for (int i = 0; i < length; ++i) {
+          values[i] = (int) it.next();
+        }
+      }
+    }
+  }
+
+  private static boolean hasNumericFields(BytesRef bytes, int[] numStoredFields, int numDocs) throws IOException {
+    final ByteArrayDataInput in = new ByteArrayDataInput(bytes.bytes, bytes.offset, bytes.length);
+    for (int i = 0; i < numDocs; ++i) {
+      for (int field = 0; field < numStoredFields[i]; ++field) {
+        final int bits = (int) (in.readVLong() & TYPE_MASK);
+        if (bits != STRING && bits != BYTE_ARR) {
+          return true;
+        }
+        in.skipBytes(in.readVInt());
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Copies one field of a Lucene 4 document, writing numbers the way we write them.
+   */
+  private void copyLegacyField(DataInput in) throws IOException {
+    final long infoAndBits = in.readVLong();
+    bufferedDocs.writeVLong(infoAndBits);
+    switch ((int) (infoAndBits & TYPE_MASK)) {
+      case STRING:
+      case BYTE_ARR:
+        final int length = in.readVInt();
+        bufferedDocs.writeVInt(length);
+        bufferedDocs.copyBytes(in, length);
+        break;
+      case NUMERIC_INT:
+        bufferedDocs.writeZInt(in.readInt());
+        break;
+      case NUMERIC_FLOAT:
+        writeZFloat(bufferedDocs, Float.intBitsToFloat(in.readInt()));
+        break;
+      case NUMERIC_LONG:
+        writeTLong(bufferedDocs, in.readLong());
+        break;
+      case NUMERIC_DOUBLE:
+        writeZDouble(bufferedDocs, Double.longBitsToDouble(in.readLong()));
+        break;
+      default:
+        throw new CorruptIndexException("Invalid bits: " + Long.toHexString(infoAndBits & TYPE_MASK), in);
+    }
+    ++numStoredFieldsInDoc;
+  }
+
   boolean tooDirty(CompressingStoredFieldsReader candidate) {
     // more than 1% dirty, or more than hard limit of 1024 dirty chunks
     return candidate.getNumDirtyChunks() > 1024 || 
@@ -47,6 +47,7 @@ import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.IOUtils;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.StringHelper;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.packed.BlockPackedWriter;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.packed.PackedInts;
+import org.trypticon.luceneupgrader.lucene5.internal.lucenesupport.LegacyChunkSource5;
 
 public final class CompressingTermVectorsWriter extends TermVectorsWriter {
 
@@ -729,18 +730,31 @@ public final class CompressingTermVectorsWriter extends TermVectorsWriter {
     
     for (int readerIndex=0;readerIndex<numReaders;readerIndex++) {
       CompressingTermVectorsReader matchingVectorsReader = null;
+      LegacyChunkSource5 matchingLegacyReader = null;
       final TermVectorsReader vectorsReader = mergeState.termVectorsReaders[readerIndex];
       if (matching.matchingReaders[readerIndex]) {
-        // we can only bulk-copy if the matching reader is also a CompressingTermVectorsReader
+        // we can only bulk-copy if the matching reader is also a CompressingTermVectorsReader,
+        // or a Lucene 4 reader whose chunks are written the same way
         if (vectorsReader != null && vectorsReader instanceof CompressingTermVectorsReader) {
           matchingVectorsReader = (CompressingTermVectorsReader) vectorsReader;
+        } else if (vectorsReader instanceof LegacyChunkSource5) {
+          matchingLegacyReader = (LegacyChunkSource5) vectorsReader;
         }
       }
 
       final int maxDoc = mergeState.maxDocs[readerIndex];
       final Bits liveDocs = mergeState.liveDocs[readerIndex];
       
-      if (matchingVectorsReader != null &&
+      if (matchingLegacyReader != null &&
+          matchingLegacyReader.getCompressionMode() == compressionMode &&
+          matchingLegacyReader.getChunkSize() == chunkSize &&
+          matchingLegacyReader.getPackedIntsVersion() >= PackedInts.VERSION_BYTE_ALIGNED &&
+          BULK_MERGE_ENABLED &&
+          liveDocs == null) {
+        // Lucene 4 chunks are the same as ours, packed integers only changed for monotonic ones
+        vectorsReader.checkIntegrity();
+        docCount += copyLegacyChunks(matchingLegacyReader, maxDoc, docCount);
+      } else if (matchingVectorsReader != null &&
           matchingVectorsReader.getCompressionMode() == compressionMode &&
           matchingVectorsReader.getChunkSize() == chunkSize &&
           matchingVectorsReader.getVersion() == VERSION_CURRENT && 
@@ -830,6 +844,60 @@ public final class CompressingTermVectorsWriter extends TermVectorsWriter {
   }
 
 
+  /**
+   * Copies the chunks of a Lucene 4 segment as they are, with new headers.
+   */
+  private int copyLegacyChunks(LegacyChunkSource5 source, int maxDoc, int docCount) throws IOException {
+    // flush any pending chunks
+    if (!pendingDocs.isEmpty()) {
+      flush();
+      numDirtyChunks++; // incomplete: we had to force this flush
+    }
+
+    IndexInput rawDocs = source.getChunksStream();
+    rawDocs.seek(source.getChunkStartPointer(0));
+    int docID = 0;
+    int bufferedDocs = 0;
+    while (docID < maxDoc) {
+      // read header
+      int base = rawDocs.readVInt();
+      if (base != docID) {
+        throw new CorruptIndexException("invalid state: base=" + base + ", docID=" + docID, rawDocs);
+      }
+      bufferedDocs = rawDocs.readVInt();
+
+      // write a new index entry and new header for this chunk.
+      indexWriter.writeIndex(bufferedDocs, vectorsStream.getFilePointer());
+      vectorsStream.writeVInt(docCount + docID); // rebase
+      vectorsStream.writeVInt(bufferedDocs);
+      docID += bufferedDocs;
+      numDocs += bufferedDocs;
+      numChunks++;
+
+      if (bufferedDocs <= 0 || docID > maxDoc) {
+        throw new CorruptIndexException("invalid state: base=" + base + ", count=" + bufferedDocs + ", maxDoc=" + maxDoc, rawDocs);
+      }
+
+      final long end;
+      if (docID == maxDoc) {
+        end = source.getMaxPointer();
+      } else {
+        end = source.getChunkStartPointer(docID);
+      }
+      vectorsStream.copyBytes(rawDocs, end - rawDocs.getFilePointer());
+    }
+
+    if (rawDocs.getFilePointer() != source.getMaxPointer()) {
+      throw new CorruptIndexException("invalid state: pos=" + rawDocs.getFilePointer() + ", max=" + source.getMaxPointer(), rawDocs);
+    }
+
+    // Lucene 4 doesn't count the chunks it had to flush early, but the last one usually was
+    if (bufferedDocs < MAX_DOCUMENTS_PER_CHUNK) {
+      numDirtyChunks++;
+    }
+    return maxDoc;
+  }
+
   boolean tooDirty(CompressingTermVectorsReader candidate) {
     // more than 1% dirty, or more than hard limit of 1024 dirty chunks
     return candidate.getNumDirtyChunks() > 1024 || 
@@ -91,6 +91,12 @@ final class Lucene40DocValuesReader extends DocValuesProducer {
     if (instance == null) {
       String fileName = IndexFileNames.segmentFileName(state.segmentInfo.name + "_" + Integer.toString(field.number), segmentSuffix, "dat");
       IndexInput input = dir.openInput(fileName, state.context);
+      if (merging) {
+        // merges read each value once, in order, so read them from the file as they are asked for
+        // instead of loading maxDoc of them onto the heap. the input is a slice of the compound
+        // file, which is closed along with the original reader.
+        return streamNumericField(field, input);
+      }
       boolean success = false;
       try {
         switch(LegacyDocValuesType.valueOf(field.getAttribute(legacyKey))) {
@@ -134,6 +140,99 @@ final class Lucene40DocValuesReader extends DocValuesProducer {
     return instance;
   }
 
+  private NumericDocValues streamNumericField(FieldInfo field, IndexInput input) throws IOException {
+    switch(LegacyDocValuesType.valueOf(field.getAttribute(legacyKey))) {
+      case VAR_INTS:
+        CodecUtil.checkHeader(input, Lucene40DocValuesFormat.VAR_INTS_CODEC_NAME,
+                                     Lucene40DocValuesFormat.VAR_INTS_VERSION_START,
+                                     Lucene40DocValuesFormat.VAR_INTS_VERSION_CURRENT);
+        byte header = input.readByte();
+        if (header == Lucene40DocValuesFormat.VAR_INTS_FIXED_64) {
+          return streamFixedField(input, 8);
+        } else if (header == Lucene40DocValuesFormat.VAR_INTS_PACKED) {
+          final long minValue = input.readLong();
+          final long defaultValue = input.readLong();
+          final PackedInts.Reader reader = PackedInts.getDirectReader(input);
+          return new NumericDocValues() {
+            @Override
+            public long get(int docID) {
+              final long value = reader.get(docID);
+              if (value == defaultValue) {
+                return 0;
+              } else {
+                return minValue + value;
+              }
+            }
+          };
+        } else {
+          throw new CorruptIndexException("invalid VAR_INTS header byte: " + header, input);
+        }
+      case FIXED_INTS_8:
+        return streamIntsField(input, 1);
+      case FIXED_INTS_16:
+        return streamIntsField(input, 2);
+      case FIXED_INTS_32:
+        return streamIntsField(input, 4);
+      case FIXED_INTS_64:
+        return streamIntsField(input, 8);
+      case FLOAT_32:
+        return streamFloatsField(input, 4);
+      case FLOAT_64:
+        return streamFloatsField(input, 8);
+      default:
+        throw new AssertionError();
+    }
+  }
+
+  private NumericDocValues streamIntsField(IndexInput input, int expectedValueSize) throws IOException {
+    CodecUtil.checkHeader(input, Lucene40DocValuesFormat.INTS_CODEC_NAME,
+                                 Lucene40DocValuesFormat.INTS_VERSION_START,
+                                 Lucene40DocValuesFormat.INTS_VERSION_CURRENT);
+    return streamFixedField(input, expectedValueSize, input.readInt());
+  }
+
+  private NumericDocValues streamFloatsField(IndexInput input, int expectedValueSize) throws IOException {
+    CodecUtil.checkHeader(input, Lucene40DocValuesFormat.FLOATS_CODEC_NAME,
+                                 Lucene40DocValuesFormat.FLOATS_VERSION_START,
+                                 Lucene40DocValuesFormat.FLOATS_VERSION_CURRENT);
+    return streamFixedField(input, expectedValueSize, input.readInt());
+  }
+
+  private NumericDocValues streamFixedField(IndexInput input, int expectedValueSize, int valueSize) throws IOException {
+    if (valueSize != expectedValueSize) {
+      throw new CorruptIndexException("invalid valueSize: " + valueSize, input);
+    }
+    return streamFixedField(input, valueSize);
+  }
+
+  private NumericDocValues streamFixedField(final IndexInput input, final int valueSize) throws IOException {
+    final long start = input.getFilePointer();
+    final int maxDoc = state.segmentInfo.maxDoc();
+    if (input.length() != start + (long) maxDoc * valueSize) {
+      throw new CorruptIndexException("expected " + maxDoc + " values of " + valueSize + " bytes but file length is " + input.length(), input);
+    }
+    return new NumericDocValues() {
+      @Override
+      public long get(int docID) {
+        try {
+          input.seek(start + (long) docID * valueSize);
+          switch (valueSize) {
+            case 1:
+              return input.readByte();
+            case 2:
+              return input.readShort();
+            case 4:
+              return input.readInt();
+            default:
+              return input.readLong();
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+  }
+
   private NumericDocValues loadVarIntsField(FieldInfo field, IndexInput input) throws IOException {
     CodecUtil.checkHeader(input, Lucene40DocValuesFormat.VAR_INTS_CODEC_NAME,
                                  Lucene40DocValuesFormat.VAR_INTS_VERSION_START,
@@ -48,9 +48,10 @@ import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.BytesRef;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.IOUtils;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.IntsRef;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.packed.PackedInts;
+import org.trypticon.luceneupgrader.lucene5.internal.lucenesupport.LegacyChunkSource5;
 
 @Deprecated
-final class Lucene41StoredFieldsReader extends StoredFieldsReader {
+final class Lucene41StoredFieldsReader extends StoredFieldsReader implements LegacyChunkSource5 {
 
   // Do not reuse the decompression buffer when there is more than 32kb to decompress
   private static final int BUFFER_REUSE_THRESHOLD = 1 << 15;
@@ -525,6 +526,41 @@ final class Lucene41StoredFieldsReader extends StoredFieldsReader {
     }
   }
 
+  @Override
+  public CompressionMode getCompressionMode() {
+    return compressionMode;
+  }
+
+  @Override
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  @Override
+  public int getPackedIntsVersion() {
+    return packedIntsVersion;
+  }
+
+  @Override
+  public boolean slicesLargeChunks() {
+    return version >= VERSION_BIG_CHUNKS;
+  }
+
+  @Override
+  public IndexInput getChunksStream() {
+    return fieldsStream;
+  }
+
+  @Override
+  public long getChunkStartPointer(int docID) {
+    return indexReader.getStartPointer(docID);
+  }
+
+  @Override
+  public long getMaxPointer() {
+    return maxPointer;
+  }
+
   @Override
   public String toString() {
     return getClass().getSimpleName() + "(mode=" + compressionMode + ",chunksize=" + chunkSize + ")";
@@ -52,13 +52,15 @@ import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.IOUtils;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.LongsRef;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.packed.BlockPackedReaderIterator;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.packed.PackedInts;
+import org.trypticon.luceneupgrader.lucene5.internal.lucenesupport.LegacyChunkSource5;
 
 @Deprecated
-final class Lucene42TermVectorsReader extends TermVectorsReader implements Closeable {
+final class Lucene42TermVectorsReader extends TermVectorsReader implements Closeable, LegacyChunkSource5 {
 
   private final FieldInfos fieldInfos;
   final Lucene41StoredFieldsIndexReader indexReader;
   final IndexInput vectorsStream;
+  private final long maxPointer;
   private final int version;
   private final int packedIntsVersion;
   private final CompressionMode compressionMode;
@@ -90,6 +92,7 @@ final class Lucene42TermVectorsReader extends TermVectorsReader implements Close
     this.fieldInfos = reader.fieldInfos;
     this.vectorsStream = reader.vectorsStream.clone();
     this.indexReader = reader.indexReader.clone();
+    this.maxPointer = reader.maxPointer;
     this.packedIntsVersion = reader.packedIntsVersion;
     this.compressionMode = reader.compressionMode;
     this.decompressor = reader.decompressor.clone();
@@ -117,8 +120,9 @@ final class Lucene42TermVectorsReader extends TermVectorsReader implements Close
       assert CodecUtil.headerLength(codecNameIdx) == indexStream.getFilePointer();
       indexReader = new Lucene41StoredFieldsIndexReader(indexStream, si);
       
+      long maxPointer = -1;
       if (version >= VERSION_CHECKSUM) {
-        indexStream.readVLong(); // the end of the data file
+        maxPointer = indexStream.readVLong(); // the end of the data file
         CodecUtil.checkFooter(indexStream);
       } else {
         CodecUtil.checkEOF(indexStream);
@@ -129,6 +133,10 @@ final class Lucene42TermVectorsReader extends TermVectorsReader implements Close
       // Open the data file and read metadata
       final String vectorsStreamFN = IndexFileNames.segmentFileName(segment, segmentSuffix, VECTORS_EXTENSION);
       vectorsStream = d.openInput(vectorsStreamFN, context);
+      if (version < VERSION_CHECKSUM) {
+        maxPointer = vectorsStream.length();
+      }
+      this.maxPointer = maxPointer;
       final String codecNameDat = formatName + CODEC_SFX_DAT;
       int version2 = CodecUtil.checkHeader(vectorsStream, codecNameDat, VERSION_START, VERSION_CURRENT);
       if (version != version2) {
@@ -1048,6 +1056,41 @@ final class Lucene42TermVectorsReader extends TermVectorsReader implements Close
     }
   }
 
+  @Override
+  public CompressionMode getCompressionMode() {
+    return compressionMode;
+  }
+
+  @Override
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  @Override
+  public int getPackedIntsVersion() {
+    return packedIntsVersion;
+  }
+
+  @Override
+  public boolean slicesLargeChunks() {
+    return false;
+  }
+
+  @Override
+  public IndexInput getChunksStream() {
+    return vectorsStream;
+  }
+
+  @Override
+  public long getChunkStartPointer(int docID) {
+    return indexReader.getStartPointer(docID);
+  }
+
+  @Override
+  public long getMaxPointer() {
+    return maxPointer;
+  }
+
   @Override
   public String toString() {
     return getClass().getSimpleName() + "(mode=" + compressionMode + ",chunksize=" + chunkSize + ")";
@@ -36,6 +36,7 @@ import java.util.Map.Entry;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -1888,6 +1889,8 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable {
                                                context);
       
       rateLimiters.set(new MergeRateLimiter(null));
+      merger.setPartExecutor(mergePartExecutor());
+      merger.setMergeListener(config.getMergeListener());
 
       if (!merger.shouldMerge()) {
         return;
@@ -2813,6 +2816,9 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable {
       try {
         try {
           mergeInit(merge);
+          if (merge.info != null && config.getMergeListener() != null) {
+            config.getMergeListener().beginSegment(merge.info.info.name);
+          }
           //if (merge.info != null) {
           //System.out.println("MERGE: " + merge.info.info.name);
           //}
@@ -2850,6 +2856,9 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable {
       tragicEvent(t, "merge");
     }
 
+    if (merge.info != null && config.getMergeListener() != null) {
+      config.getMergeListener().endSegment(success ? merge.info.info.maxDoc() : 0);
+    }
     if (merge.info != null && merge.rateLimiter.getAbort() == false) {
       if (infoStream.isEnabled("IW")) {
         infoStream.message("IW", "merge time " + (System.currentTimeMillis()-t0) + " msec for " + merge.info.info.maxDoc() + " docs");
@@ -3222,6 +3231,8 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable {
                                                      merge.info.info, infoStream, dirWrapper,
                                                      globalFieldNumberMap, 
                                                      context);
+      merger.setPartExecutor(mergePartExecutor());
+      merger.setMergeListener(config.getMergeListener());
 
       merge.rateLimiter.checkAbort();
 
@@ -3867,6 +3878,26 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable {
     throw new IllegalArgumentException("number of documents in the index cannot exceed " + actualMaxDocs + " (current document count is " + pendingNumDocs.get() + "; added numDocs is " + addedNumDocs + ")");
   }
 
+  /**
+   * Wraps the configured merge part executor, if there is one, so that the parts write through
+   * the rate limiter of the merge they belong to, which the merge directory looks up per thread.
+   */
+  private Executor mergePartExecutor() {
+    final Executor executor = config.getMergePartExecutor();
+    if (executor == null) {
+      return null;
+    }
+    final MergeRateLimiter rateLimiter = rateLimiters.get();
+    return task -> executor.execute(() -> {
+      rateLimiters.set(rateLimiter);
+      try {
+        task.run();
+      } finally {
+        rateLimiters.set(null);
+      }
+    });
+  }
+
   private Directory addMergeRateLimiters(Directory in) {
     return new FilterDirectory(in) {
       @Override
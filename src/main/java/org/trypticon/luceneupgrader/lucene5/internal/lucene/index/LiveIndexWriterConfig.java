@@ -17,6 +17,9 @@
 package org.trypticon.luceneupgrader.lucene5.internal.lucene.index;
 
 
+import java.util.concurrent.Executor;
+
+import org.trypticon.luceneupgrader.MergeListener;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.analysis.Analyzer;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.codecs.Codec;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.index.DocumentsWriterPerThread.IndexingChain;
@@ -55,6 +58,12 @@ public class LiveIndexWriterConfig {
 
   protected volatile Codec codec;
 
+  /** Told about each segment merges write, or {@code null}. */
+  protected volatile MergeListener mergeListener;
+
+  /** Runs the parts of each merge at the same time, or {@code null} to run them one after another. */
+  protected volatile Executor mergePartExecutor;
+
   protected volatile InfoStream infoStream;
 
   protected volatile MergePolicy mergePolicy;
@@ -192,6 +201,14 @@ public class LiveIndexWriterConfig {
     return codec;
   }
 
+  public MergeListener getMergeListener() {
+    return mergeListener;
+  }
+
+  public Executor getMergePartExecutor() {
+    return mergePartExecutor;
+  }
+
   public MergePolicy getMergePolicy() {
     return mergePolicy;
   }
@@ -251,6 +268,8 @@ public class LiveIndexWriterConfig {
     sb.append("default WRITE_LOCK_TIMEOUT=").append(IndexWriterConfig.WRITE_LOCK_TIMEOUT).append("\n");
     sb.append("writeLockTimeout=").append(getWriteLockTimeout()).append("\n");
     sb.append("codec=").append(getCodec()).append("\n");
+    sb.append("mergeListener=").append(getMergeListener()).append("\n");
+    sb.append("mergePartExecutor=").append(getMergePartExecutor()).append("\n");
     sb.append("infoStream=").append(getInfoStream().getClass().getName()).append("\n");
     sb.append("mergePolicy=").append(getMergePolicy()).append("\n");
     sb.append("indexerThreadPool=").append(getIndexerThreadPool()).append("\n");
@@ -18,6 +18,10 @@ package org.trypticon.luceneupgrader.lucene5.internal.lucene.store;
 
  
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.ClosedChannelException; // javadoc @link
@@ -27,17 +31,21 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
-import java.security.PrivilegedExceptionAction;
-import java.security.PrivilegedActionException;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.concurrent.Future;
-import java.lang.reflect.Method;
 
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.store.ByteBufferIndexInput.BufferCleaner;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.Constants;
 import org.trypticon.luceneupgrader.lucene5.internal.lucene.util.SuppressForbidden;
 
+import static java.lang.invoke.MethodHandles.constant;
+import static java.lang.invoke.MethodHandles.dropArguments;
+import static java.lang.invoke.MethodHandles.filterReturnValue;
+import static java.lang.invoke.MethodHandles.guardWithTest;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
 public class MMapDirectory extends FSDirectory {
   private boolean useUnmapHack = UNMAP_SUPPORTED;
   private boolean preload;
@@ -68,26 +76,6 @@ public class MMapDirectory extends FSDirectory {
     assert this.chunkSizePower >= 0 && this.chunkSizePower <= 30;
   }
   
-  public static final boolean UNMAP_SUPPORTED = AccessController.doPrivileged(new PrivilegedAction<Boolean>() {
-    @Override
-    @SuppressForbidden(reason = "Needs access to private APIs in DirectBuffer and sun.misc.Cleaner to enable hack")
-    public Boolean run() {
-      try {
-        // inspect DirectByteBuffer:
-        final Class<?> dbClazz = Class.forName("java.nio.DirectByteBuffer");
-        final Method cleanerMethod = dbClazz.getMethod("cleaner");
-        cleanerMethod.setAccessible(true);
-        // try to lookup the clean method from sun.misc.Cleaner:
-        final Class<?> cleanerClazz = Class.forName("sun.misc.Cleaner");
-        cleanerClazz.getMethod("clean"); // no setAccessible needed as everything is public!
-        // check return type fits cleaner class return our decision:
-        return Objects.equals(cleanerMethod.getReturnType(), cleanerClazz);
-      } catch (Exception e) {
-        return false;
-      }
-    }
-  });
-  
   public void setUseUnmap(final boolean useUnmapHack) {
     if (useUnmapHack && !UNMAP_SUPPORTED)
       throw new IllegalArgumentException("Unmap hack not supported on this platform!");
@@ -187,28 +175,92 @@ public class MMapDirectory extends FSDirectory {
     return newIoe;
   }
   
-  private static final BufferCleaner CLEANER = new BufferCleaner() {
-    @Override
-    public void freeBuffer(final ByteBufferIndexInput parent, final ByteBuffer buffer) throws IOException {
+  private static final BufferCleaner CLEANER = (parent, buffer) -> unmap(parent.toString(), buffer);
+
+  public static final boolean UNMAP_SUPPORTED;
+
+  public static final String UNMAP_NOT_SUPPORTED_REASON;
+
+  private static final MethodHandle UNMAPPER;
+
+  static {
+    final Object hack = AccessController.doPrivileged((PrivilegedAction<Object>) MMapDirectory::unmapHackImpl);
+    if (hack instanceof MethodHandle) {
+      UNMAPPER = (MethodHandle) hack;
+      UNMAP_SUPPORTED = true;
+      UNMAP_NOT_SUPPORTED_REASON = null;
+    } else {
+      UNMAPPER = null;
+      UNMAP_SUPPORTED = false;
+      UNMAP_NOT_SUPPORTED_REASON = hack.toString();
+    }
+  }
+
+  // Backported from the Lucene 6 MMapDirectory, so that unmapping also works on Java 9 and later,
+  // where DirectByteBuffer.cleaner() is no longer accessible.
+  @SuppressForbidden(reason = "Needs access to private APIs in DirectBuffer, sun.misc.Cleaner, and sun.misc.Unsafe to enable hack")
+  private static Object unmapHackImpl() {
+    final Lookup lookup = lookup();
+    try {
+      try {
+        // *** sun.misc.Unsafe unmapping (Java 9+) ***
+        final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        // first check if Unsafe has the right method, otherwise we can give up
+        // without doing any security critical stuff:
+        final MethodHandle unmapper = lookup.findVirtual(unsafeClass, "invokeCleaner",
+            methodType(void.class, ByteBuffer.class));
+        // fetch the unsafe instance and bind it to the virtual MH:
+        final Field f = unsafeClass.getDeclaredField("theUnsafe");
+        f.setAccessible(true);
+        final Object theUnsafe = f.get(null);
+        return unmapper.bindTo(theUnsafe);
+      } catch (SecurityException se) {
+        // rethrow to report errors correctly (we need to catch it here, as we also catch RuntimeException below!):
+        throw se;
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        // *** sun.misc.Cleaner unmapping (Java 8) ***
+        final Class<?> directBufferClass = Class.forName("java.nio.DirectByteBuffer");
+
+        final Method m = directBufferClass.getMethod("cleaner");
+        m.setAccessible(true);
+        final MethodHandle directBufferCleanerMethod = lookup.unreflect(m);
+        final Class<?> cleanerClass = directBufferCleanerMethod.type().returnType();
+
+        final MethodHandle cleanMethod = lookup.findVirtual(cleanerClass, "clean", methodType(void.class));
+        final MethodHandle nonNullTest = lookup.findStatic(Objects.class, "nonNull", methodType(boolean.class, Object.class))
+            .asType(methodType(boolean.class, cleanerClass));
+        final MethodHandle noop = dropArguments(constant(Void.class, null).asType(methodType(void.class)), 0, cleanerClass);
+        return filterReturnValue(directBufferCleanerMethod, guardWithTest(nonNullTest, cleanMethod, noop))
+            .asType(methodType(void.class, ByteBuffer.class));
+      }
+    } catch (SecurityException se) {
+      return "Unmapping is not supported, because not all required permissions are given to the Lucene JAR file: " + se;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return "Unmapping is not supported on this platform, because internal Java APIs are not compatible with this Lucene version: " + e;
+    }
+  }
+
+  /**
+   * Unmaps a buffer mapped by this class, rather than waiting for it to be garbage collected.
+   * Only call this once nothing can access the buffer any more.
+   */
+  public static void unmap(final String resourceDescription, final ByteBuffer buffer) throws IOException {
+    if (!UNMAP_SUPPORTED) {
+      throw new UnsupportedOperationException(UNMAP_NOT_SUPPORTED_REASON);
+    }
+    if (!buffer.isDirect()) {
+      throw new IllegalArgumentException("unmapping only works with direct buffers");
+    }
+    final Throwable error = AccessController.doPrivileged((PrivilegedAction<Throwable>) () -> {
       try {
-        AccessController.doPrivileged(new PrivilegedExceptionAction<Void>() {
-          @Override
-          @SuppressForbidden(reason = "Needs access to private APIs in DirectBuffer and sun.misc.Cleaner to enable hack")
-          public Void run() throws Exception {
-            final Method getCleanerMethod = buffer.getClass()
-              .getMethod("cleaner");
-            getCleanerMethod.setAccessible(true);
-            final Object cleaner = getCleanerMethod.invoke(buffer);
-            if (cleaner != null) {
-              cleaner.getClass().getMethod("clean")
-                .invoke(cleaner);
-            }
-            return null;
-          }
-        });
-      } catch (PrivilegedActionException e) {
-        throw new IOException("Unable to unmap the mapped buffer: " + parent.toString(), e.getCause());
+        UNMAPPER.invokeExact(buffer);
+        return null;
+      } catch (Throwable t) {
+        return t;
       }
+    });
+    if (error != null) {
+      throw new IOException("Unable to unmap the mapped buffer: " + resourceDescription, error);
     }
-  };
+  }
 }
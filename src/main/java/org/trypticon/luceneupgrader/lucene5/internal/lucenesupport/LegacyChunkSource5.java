@@ -0,0 +1,67 @@
+package org.trypticon.luceneupgrader.lucene5.internal.lucenesupport;
+
+import org.trypticon.luceneupgrader.lucene5.internal.lucene.codecs.compressing.CompressionMode;
+import org.trypticon.luceneupgrader.lucene5.internal.lucene.store.IndexInput;
+
+/**
+ * A reader of Lucene 4 compressed stored fields or term vectors, whose chunks the Lucene 5
+ * writers can copy without compressing them again.
+ *
+ * Lucene 4.1 and later compress chunks of documents the same way Lucene 5 does. Only the
+ * chunk headers differ, and for stored fields, the way numbers are written, so the writers
+ * check those as they copy and fall back to rewriting the documents where they have to.
+ */
+public interface LegacyChunkSource5 {
+
+    /**
+     * Gets the compression mode the chunks were written with.
+     *
+     * @return the compression mode.
+     */
+    CompressionMode getCompressionMode();
+
+    /**
+     * Gets the chunk size the chunks were written with.
+     *
+     * @return the chunk size, or {@code -1} if the file doesn't say.
+     */
+    int getChunkSize();
+
+    /**
+     * Gets the version of packed integers in the chunk headers.
+     *
+     * @return the version.
+     */
+    int getPackedIntsVersion();
+
+    /**
+     * Tests whether chunks of at least twice the chunk size were compressed in slices of the chunk
+     * size, which Lucene 5 marks in the chunk header but Lucene 4 leaves to the reader to work out.
+     *
+     * @return {@code true} if large chunks were sliced.
+     */
+    boolean slicesLargeChunks();
+
+    /**
+     * Gets the stream the chunks are in. It belongs to the reader, so it should only be used
+     * by whoever is merging from it.
+     *
+     * @return the stream.
+     */
+    IndexInput getChunksStream();
+
+    /**
+     * Gets where the chunk holding a document starts.
+     *
+     * @param docID the document.
+     * @return the file pointer.
+     */
+    long getChunkStartPointer(int docID);
+
+    /**
+     * Gets where the last chunk ends.
+     *
+     * @return the file pointer.
+     */
+    long getMaxPointer();
+}
@@ -55,8 +55,8 @@ public final class BlockTreeTermsReader extends FieldsProducer {
   static final int OUTPUT_FLAG_IS_FLOOR = 0x1;
   static final int OUTPUT_FLAG_HAS_TERMS = 0x2;
 
-  static final String TERMS_EXTENSION = "tim";
-  final static String TERMS_CODEC_NAME = "BlockTreeTermsDict";
+  public static final String TERMS_EXTENSION = "tim";
+  public final static String TERMS_CODEC_NAME = "BlockTreeTermsDict";
 
   public static final int VERSION_START = 0;
 
@@ -68,8 +68,8 @@ public final class BlockTreeTermsReader extends FieldsProducer {
 
   public static final int VERSION_CURRENT = VERSION_AUTO_PREFIX_TERMS_REMOVED;
 
-  static final String TERMS_INDEX_EXTENSION = "tip";
-  final static String TERMS_INDEX_CODEC_NAME = "BlockTreeTermsIndex";
+  public static final String TERMS_INDEX_EXTENSION = "tip";
+  public final static String TERMS_INDEX_CODEC_NAME = "BlockTreeTermsIndex";
 
   // Open input to the main terms dict file (_X.tib)
   final IndexInput termsIn;
@@ -48,14 +48,14 @@ public final class Lucene50PostingsFormat extends PostingsFormat {
 
   static final int MAX_SKIP_LEVELS = 10;
 
-  final static String TERMS_CODEC = "Lucene50PostingsWriterTerms";
-  final static String DOC_CODEC = "Lucene50PostingsWriterDoc";
-  final static String POS_CODEC = "Lucene50PostingsWriterPos";
-  final static String PAY_CODEC = "Lucene50PostingsWriterPay";
+  public final static String TERMS_CODEC = "Lucene50PostingsWriterTerms";
+  public final static String DOC_CODEC = "Lucene50PostingsWriterDoc";
+  public final static String POS_CODEC = "Lucene50PostingsWriterPos";
+  public final static String PAY_CODEC = "Lucene50PostingsWriterPay";
 
   // Increment version to change it
-  final static int VERSION_START = 0;
-  final static int VERSION_CURRENT = VERSION_START;
+  public final static int VERSION_START = 0;
+  public final static int VERSION_CURRENT = VERSION_START;
 
   private final int minTermBlockSize;
   private final int maxTermBlockSize;
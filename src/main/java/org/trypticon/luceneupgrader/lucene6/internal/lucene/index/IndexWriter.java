@@ -2008,6 +2008,8 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable {
       SegmentMerger merger = new SegmentMerger(Arrays.asList(readers), info, infoStream, trackingDir,
                                                globalFieldNumberMap, 
                                                context);
+      merger.setPartExecutor(config.getMergePartExecutor());
+      merger.setMergeListener(config.getMergeListener());
 
       if (!merger.shouldMerge()) {
         return docWriter.deleteQueue.getNextSequenceNumber();
@@ -2986,6 +2988,9 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable {
       try {
         try {
           mergeInit(merge);
+          if (merge.info != null && config.getMergeListener() != null) {
+            config.getMergeListener().beginSegment(merge.info.info.name);
+          }
           //if (merge.info != null) {
           //System.out.println("MERGE: " + merge.info.info.name);
           //}
@@ -3023,6 +3028,9 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable {
       tragicEvent(t, "merge");
     }
 
+    if (merge.info != null && config.getMergeListener() != null) {
+      config.getMergeListener().endSegment(success ? merge.info.info.maxDoc() : 0);
+    }
     if (merge.info != null && merge.isAborted() == false) {
       if (infoStream.isEnabled("IW")) {
         infoStream.message("IW", "merge time " + (System.currentTimeMillis()-t0) + " msec for " + merge.info.info.maxDoc() + " docs");
@@ -3400,6 +3408,8 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable {
                                                      merge.info.info, infoStream, dirWrapper,
                                                      globalFieldNumberMap, 
                                                      context);
+      merger.setPartExecutor(config.getMergePartExecutor());
+      merger.setMergeListener(config.getMergeListener());
 
       merge.checkAborted();
 
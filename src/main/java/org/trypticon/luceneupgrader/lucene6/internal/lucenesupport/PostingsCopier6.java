@@ -0,0 +1,185 @@
+package org.trypticon.luceneupgrader.lucene6.internal.lucenesupport;
+
+import org.trypticon.luceneupgrader.lucene6.internal.lucene.codecs.CodecUtil;
+import org.trypticon.luceneupgrader.lucene6.internal.lucene.codecs.PostingsFormat;
+import org.trypticon.luceneupgrader.lucene6.internal.lucene.codecs.blocktree.BlockTreeTermsReader;
+import org.trypticon.luceneupgrader.lucene6.internal.lucene.codecs.lucene50.Lucene50PostingsFormat;
+import org.trypticon.luceneupgrader.lucene6.internal.lucene.codecs.perfield.PerFieldPostingsFormat;
+import org.trypticon.luceneupgrader.lucene6.internal.lucene.index.FieldInfo;
+import org.trypticon.luceneupgrader.lucene6.internal.lucene.index.FieldInfos;
+import org.trypticon.luceneupgrader.lucene6.internal.lucene.index.IndexFileNames;
+import org.trypticon.luceneupgrader.lucene6.internal.lucene.index.SegmentInfo;
+import org.trypticon.luceneupgrader.lucene6.internal.lucene.index.SegmentWriteState;
+import org.trypticon.luceneupgrader.lucene6.internal.lucene.store.ChecksumIndexInput;
+import org.trypticon.luceneupgrader.lucene6.internal.lucene.store.Directory;
+import org.trypticon.luceneupgrader.lucene6.internal.lucene.store.IndexOutput;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies the Lucene50 postings of a segment into a new segment without decoding them.
+ *
+ * Lucene 5 and 6 write the postings themselves the same way, so only the headers, which name
+ * the segment, and the footers, which checksum everything before them, have to be rewritten.
+ * The terms dictionary is kept at whatever version it was written in, as long as Lucene 7 can
+ * still read it, so that the next step can copy it again or rewrite it.
+ */
+public class PostingsCopier6 {
+
+    private static final String FORMAT_NAME = "Lucene50";
+
+    private static final String SUFFIX = "0";
+
+    private static final String SEGMENT_SUFFIX = FORMAT_NAME + "_" + SUFFIX;
+
+    /**
+     * The oldest terms dictionary version the next step can read.
+     */
+    private static final int MIN_TERMS_VERSION = BlockTreeTermsReader.VERSION_AUTO_PREFIX_TERMS_COND;
+
+    private PostingsCopier6() {
+    }
+
+    /**
+     * Copies the postings of a segment, if they can be copied as they are. They can if every
+     * field with postings uses the Lucene50 format on both sides, keeps the same number, and
+     * the new segment has the same documents in the same order.
+     *
+     * @param sourceDirectory the directory holding the old segment's files, which is its
+     *                        compound file if it has one.
+     * @param sourceInfo the old segment.
+     * @param sourceFieldInfos the old segment's fields.
+     * @param postingsFormat the postings format of the codec writing the new segment.
+     * @param state the state for writing the new segment.
+     * @return {@code true} if the postings were copied, or {@code false} if nothing was
+     *         written and they have to be merged the usual way.
+     * @throws IOException if an error occurs reading or writing, or the old files are corrupt.
+     */
+    public static boolean copy(Directory sourceDirectory, SegmentInfo sourceInfo, FieldInfos sourceFieldInfos,
+                               PostingsFormat postingsFormat, SegmentWriteState state) throws IOException {
+        if (!state.segmentSuffix.isEmpty() || !(postingsFormat instanceof PerFieldPostingsFormat)
+                || sourceFieldInfos.hasProx() != state.fieldInfos.hasProx()
+                || sourceFieldInfos.hasPayloads() != state.fieldInfos.hasPayloads()
+                || sourceFieldInfos.hasOffsets() != state.fieldInfos.hasOffsets()) {
+            return false;
+        }
+        List<FieldInfo> fields = new ArrayList<>();
+        for (FieldInfo sourceField : sourceFieldInfos) {
+            String format = sourceField.getAttribute(PerFieldPostingsFormat.PER_FIELD_FORMAT_KEY);
+            if (format == null) {
+                // No postings for this field.
+                continue;
+            }
+            FieldInfo field = state.fieldInfos.fieldInfo(sourceField.name);
+            if (!FORMAT_NAME.equals(format)
+                    || !SUFFIX.equals(sourceField.getAttribute(PerFieldPostingsFormat.PER_FIELD_SUFFIX_KEY))
+                    || field == null || field.number != sourceField.number
+                    || field.getIndexOptions() != sourceField.getIndexOptions()
+                    || field.hasPayloads() != sourceField.hasPayloads()
+                    || !FORMAT_NAME.equals(((PerFieldPostingsFormat) postingsFormat)
+                                                   .getPostingsFormatForField(field.name).getName())) {
+                return false;
+            }
+            fields.add(field);
+        }
+        if (fields.isEmpty()) {
+            return false;
+        }
+
+        if (!copyTermsDictionary(sourceDirectory, sourceInfo, state)) {
+            return false;
+        }
+        copyFile(sourceDirectory, sourceInfo, state, BlockTreeTermsReader.TERMS_INDEX_EXTENSION,
+                 BlockTreeTermsReader.TERMS_INDEX_CODEC_NAME, MIN_TERMS_VERSION, BlockTreeTermsReader.VERSION_CURRENT);
+        copyFile(sourceDirectory, sourceInfo, state, Lucene50PostingsFormat.DOC_EXTENSION,
+                 Lucene50PostingsFormat.DOC_CODEC, Lucene50PostingsFormat.VERSION_START,
+                 Lucene50PostingsFormat.VERSION_CURRENT);
+        if (state.fieldInfos.hasProx()) {
+            copyFile(sourceDirectory, sourceInfo, state, Lucene50PostingsFormat.POS_EXTENSION,
+                     Lucene50PostingsFormat.POS_CODEC, Lucene50PostingsFormat.VERSION_START,
+                     Lucene50PostingsFormat.VERSION_CURRENT);
+            if (state.fieldInfos.hasPayloads() || state.fieldInfos.hasOffsets()) {
+                copyFile(sourceDirectory, sourceInfo, state, Lucene50PostingsFormat.PAY_EXTENSION,
+                         Lucene50PostingsFormat.PAY_CODEC, Lucene50PostingsFormat.VERSION_START,
+                         Lucene50PostingsFormat.VERSION_CURRENT);
+            }
+        }
+
+        for (FieldInfo field : fields) {
+            field.putAttribute(PerFieldPostingsFormat.PER_FIELD_FORMAT_KEY, FORMAT_NAME);
+            field.putAttribute(PerFieldPostingsFormat.PER_FIELD_SUFFIX_KEY, SUFFIX);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the terms dictionary, which holds the postings writer's header as well as its own,
+     * and before Lucene 6.2 a byte between them saying whether it has auto-prefix terms.
+     *
+     * @return {@code false} if the dictionary is too old to copy, in which case nothing is written.
+     */
+    private static boolean copyTermsDictionary(Directory sourceDirectory, SegmentInfo sourceInfo,
+                                               SegmentWriteState state) throws IOException {
+        String sourceName = IndexFileNames.segmentFileName(sourceInfo.name, SEGMENT_SUFFIX,
+                                                           BlockTreeTermsReader.TERMS_EXTENSION);
+        try (ChecksumIndexInput in = sourceDirectory.openChecksumInput(sourceName, state.context)) {
+            int version = CodecUtil.checkIndexHeader(in, BlockTreeTermsReader.TERMS_CODEC_NAME,
+                                                     BlockTreeTermsReader.VERSION_START,
+                                                     BlockTreeTermsReader.VERSION_CURRENT,
+                                                     sourceInfo.getId(), SEGMENT_SUFFIX);
+            if (version < MIN_TERMS_VERSION) {
+                return false;
+            }
+            boolean hasAutoPrefixFlag = version < BlockTreeTermsReader.VERSION_AUTO_PREFIX_TERMS_REMOVED;
+            if (hasAutoPrefixFlag && in.readByte() != 0) {
+                return false;
+            }
+
+            try (IndexOutput out = createOutput(state, BlockTreeTermsReader.TERMS_EXTENSION)) {
+                CodecUtil.writeIndexHeader(out, BlockTreeTermsReader.TERMS_CODEC_NAME, version,
+                                           state.segmentInfo.getId(), SEGMENT_SUFFIX);
+                if (hasAutoPrefixFlag) {
+                    out.writeByte((byte) 0);
+                }
+                copyHeader(in, out, sourceInfo, state, Lucene50PostingsFormat.TERMS_CODEC,
+                           Lucene50PostingsFormat.VERSION_START, Lucene50PostingsFormat.VERSION_CURRENT);
+                copyBody(in, out);
+            }
+        }
+        return true;
+    }
+
+    private static void copyFile(Directory sourceDirectory, SegmentInfo sourceInfo, SegmentWriteState state,
+                                 String extension, String codec, int minVersion, int maxVersion) throws IOException {
+        String sourceName = IndexFileNames.segmentFileName(sourceInfo.name, SEGMENT_SUFFIX, extension);
+        try (ChecksumIndexInput in = sourceDirectory.openChecksumInput(sourceName, state.context);
+             IndexOutput out = createOutput(state, extension)) {
+            copyHeader(in, out, sourceInfo, state, codec, minVersion, maxVersion);
+            copyBody(in, out);
+        }
+    }
+
+    private static IndexOutput createOutput(SegmentWriteState state, String extension) throws IOException {
+        return state.directory.createOutput(
+                IndexFileNames.segmentFileName(state.segmentInfo.name, SEGMENT_SUFFIX, extension), state.context);
+    }
+
+    private static void copyHeader(ChecksumIndexInput in, IndexOutput out, SegmentInfo sourceInfo,
+                                   SegmentWriteState state, String codec, int minVersion, int maxVersion)
+            throws IOException {
+        int version = CodecUtil.checkIndexHeader(in, codec, minVersion, maxVersion, sourceInfo.getId(), SEGMENT_SUFFIX);
+        CodecUtil.writeIndexHeader(out, codec, version, state.segmentInfo.getId(), SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Copies everything up to the footer, then checks the old footer before writing the new one,
+     * so that a corrupt file isn't given a checksum which passes.
+     */
+    private static void copyBody(ChecksumIndexInput in, IndexOutput out) throws IOException {
+        out.copyBytes(in, in.length() - CodecUtil.footerLength() - in.getFilePointer());
+        CodecUtil.checkFooter(in);
+        CodecUtil.writeFooter(out);
+    }
+}
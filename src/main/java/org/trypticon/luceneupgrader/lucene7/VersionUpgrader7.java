@@ -5,58 +5,618 @@ import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.*;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.Directory;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.FSDirectory;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.util.Version;
+import org.trypticon.luceneupgrader.lucene7.internal.lucenesupport.InMemoryDirectory7;
+import org.trypticon.luceneupgrader.lucene7.internal.lucenesupport.LegacyNumericPointsCodecReader7;
+import org.trypticon.luceneupgrader.lucene7.internal.lucenesupport.PassThroughPostings7;
+import org.trypticon.luceneupgrader.lucene7.internal.lucenesupport.ThrottledDirectory7;
+import org.trypticon.luceneupgrader.ConcurrencyUtils;
 import org.trypticon.luceneupgrader.FileUtils;
+import org.trypticon.luceneupgrader.HopMetrics;
+import org.trypticon.luceneupgrader.InMemoryIndex;
 import org.trypticon.luceneupgrader.InfoStream;
+import org.trypticon.luceneupgrader.UpgradeConfig;
+import org.trypticon.luceneupgrader.UpgradeMetrics;
 import org.trypticon.luceneupgrader.VersionUpgrader;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
 
 /**
  * Upgrades an index to Lucene 7 format.
  */
 public class VersionUpgrader7 implements VersionUpgrader {
 
+    private static final String SOURCE_GENERATION = "upgrader.sourceGeneration";
+
+    private static final String SOURCE_SEGMENTS = "upgrader.sourceSegments";
+
+    private static final String CONVERTED_SEGMENTS = "upgrader.convertedSegments";
+
+    /**
+     * The most parts a merge writes at once: stored fields, postings, doc values, points,
+     * norms and term vectors.
+     */
+    private static final int MERGE_PARTS = 6;
+
     private final Path path;
 
+    private final InMemoryIndex memoryIndex;
+
     private final InfoStream infoStream;
 
+    private final UpgradeConfig config;
+
     public VersionUpgrader7(Path path, InfoStream infoStream) {
+        this(path, infoStream, new UpgradeConfig());
+    }
+
+    public VersionUpgrader7(Path path, InfoStream infoStream, UpgradeConfig config) {
+        this(path, null, infoStream, config);
+    }
+
+    /**
+     * Creates an upgrader which upgrades an index held in memory. The new index is written
+     * into memory alongside the old one, and replaces it there once it is complete. Resumable
+     * mode and disk budgets don't apply.
+     *
+     * @param memoryIndex the index.
+     * @param infoStream an info stream to log to.
+     * @param config options controlling how the upgrade is performed.
+     */
+    public VersionUpgrader7(InMemoryIndex memoryIndex, InfoStream infoStream, UpgradeConfig config) {
+        this(memoryIndex.getPath(), memoryIndex, infoStream, config);
+    }
+
+    private VersionUpgrader7(Path path, InMemoryIndex memoryIndex, InfoStream infoStream, UpgradeConfig config) {
         this.path = path;
+        this.memoryIndex = memoryIndex;
         this.infoStream = infoStream;
+        this.config = config;
     }
 
     @Override
     public void upgrade() throws IOException {
-        Path oldPath = path.resolveSibling(path.getFileName() + ".old");
+        if (memoryIndex != null) {
+            InMemoryIndex newIndex = memoryIndex.newIndex();
+            try (Directory sourceDirectory = openDirectory(memoryIndex);
+                 Directory destinationDirectory = openDirectory(newIndex)) {
+                convert(sourceDirectory, destinationDirectory, null);
+            }
+            memoryIndex.replaceWith(newIndex);
+            return;
+        }
+
+        Path tempPath = createTempDirectory();
+
+        boolean finished;
+        do {
+            try (Directory sourceDirectory = openDirectory(path);
+                 Directory destinationDirectory = openDirectory(tempPath)) {
+                finished = convert(sourceDirectory, destinationDirectory, tempPath);
+            }
+            if (!finished) {
+                releaseConvertedSegments(tempPath);
+            }
+        } while (!finished);
+
+        replaceIndex(tempPath);
+    }
+
+    /**
+     * Reads the old index and writes its segments into the new one.
+     *
+     * @param sourceDirectory the directory containing the old index.
+     * @param destinationDirectory the directory to write the new index into.
+     * @param tempPath the path of the destination directory, or {@code null} if it is in memory.
+     * @return {@code true} if every segment has been converted, or {@code false} if the converted
+     *         segments have to be released from the old index before converting any more.
+     * @throws IOException if an error occurs reading or writing.
+     */
+    private boolean convert(Directory sourceDirectory, Directory destinationDirectory, Path tempPath)
+            throws IOException {
+        try (DirectoryReader reader = openReader(sourceDirectory)) {
+            SegmentInfos sourceInfos = SegmentInfos.readCommit(sourceDirectory,
+                    reader.getIndexCommit().getSegmentsFileName());
+            Map<String, CodecReader> sourceReaders = new LinkedHashMap<>();
+            for (LeafReaderContext context : reader.leaves()) {
+                SegmentReader segmentReader = (SegmentReader) context.reader();
+                sourceReaders.put(segmentReader.getSegmentName(),
+                        LegacyNumericPointsCodecReader7.wrap(segmentReader, config.getLegacyNumericFields()));
+            }
+            return writeIndex(destinationDirectory, tempPath, sourceInfos.getGeneration(), sourceReaders);
+        }
+    }
+
+    /**
+     * Opens the old index. With more than one thread, its segments are opened at the same time,
+     * which for an index of many segments overlaps the time spent loading each one's term index.
+     *
+     * @param sourceDirectory the directory containing the old index.
+     * @return the reader.
+     * @throws IOException if an error occurs reading.
+     */
+    private DirectoryReader openReader(Directory sourceDirectory) throws IOException {
+        if (config.getThreadCount() <= 1) {
+            return DirectoryReader.open(sourceDirectory);
+        }
+        ExecutorService executor = ConcurrencyUtils.newFixedThreadPool(config.getThreadCount(), "upgrade7-open");
+        try {
+            return DirectoryReader.open(sourceDirectory, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Directory openDirectory(Path directoryPath) throws IOException {
+        return ThrottledDirectory7.wrap(FSDirectory.open(directoryPath), config.getIOThrottle(),
+                                        UpgradeMetrics.runningHop(config, path));
+    }
+
+    private Directory openDirectory(InMemoryIndex index) {
+        // Nothing to throttle in memory, but the bytes still count.
+        return ThrottledDirectory7.wrap(new InMemoryDirectory7(index), null, UpgradeMetrics.runningHop(config, path));
+    }
+
+    /**
+     * Creates the directory next to the index to write the new index into. In resumable mode,
+     * whatever an earlier attempt left there is kept, for {@link #writeIndex} to continue from.
+     * Otherwise it is thrown away, unless it holds segments already released from the old index.
+     *
+     * @return the path to the directory.
+     * @throws IOException if an error occurs, or if the directory holds released segments.
+     */
+    private Path createTempDirectory() throws IOException {
         Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        if (!config.isResumable()) {
+            if (holdsReleasedSegments(tempPath)) {
+                throw new IOException("The partially upgraded index at " + tempPath + " holds segments which " +
+                                      "have already been removed from the index at " + path +
+                                      ". Run the upgrade again in resumable mode to finish it.");
+            }
+            FileUtils.insecureRecursiveDelete(tempPath);
+        }
+        Files.createDirectories(tempPath);
+        return tempPath;
+    }
+
+    /**
+     * Tests whether an earlier attempt with a disk budget left a partially written index whose
+     * converted segments have since been released from the old index. Their documents are only
+     * in the partial index now, so throwing it away would lose them.
+     *
+     * @param tempPath the directory the new index is written into.
+     * @return {@code true} if any converted segment is no longer in the old index.
+     * @throws IOException if an error occurs.
+     */
+    private boolean holdsReleasedSegments(Path tempPath) throws IOException {
+        if (!Files.isDirectory(tempPath)) {
+            return false;
+        }
+        Set<String> converted;
+        try (Directory destinationDirectory = openDirectory(tempPath)) {
+            if (!DirectoryReader.indexExists(destinationDirectory)) {
+                return false;
+            }
+            converted = splitNames(SegmentInfos.readLatestCommit(destinationDirectory).getUserData().get(CONVERTED_SEGMENTS));
+        }
+        if (converted.isEmpty()) {
+            return false;
+        }
 
-        FileUtils.insecureRecursiveDelete(tempPath);
-        Files.createDirectory(tempPath);
+        Set<String> sourceSegments = new HashSet<>();
+        try (Directory sourceDirectory = openDirectory(path)) {
+            for (SegmentCommitInfo info : SegmentInfos.readLatestCommit(sourceDirectory)) {
+                sourceSegments.add(info.info.name);
+            }
+        }
+        return !sourceSegments.containsAll(converted);
+    }
 
+    /**
+     * Writes the contents of the given readers into a new Lucene 7 index. With a disk budget,
+     * only as many segments as fit within it are converted by each call.
+     *
+     * @param destinationDirectory the directory to write the new index into.
+     * @param tempPath the path of the destination directory, or {@code null} if it is in memory.
+     * @param sourceGeneration the generation of the old index's commit being read.
+     * @param sourceReaders the readers for the segments of the old index, keyed by segment name.
+     * @return {@code true} if every segment has been converted, or {@code false} if the converted
+     *         segments have to be released from the old index before converting any more.
+     * @throws IOException if an error occurs reading or writing.
+     */
+    private boolean writeIndex(Directory destinationDirectory, Path tempPath, long sourceGeneration,
+                               Map<String, CodecReader> sourceReaders) throws IOException {
         IndexWriterConfig indexWriterConfig = new IndexWriterConfig(new FailAnalyzer());
-        indexWriterConfig.setMergePolicy(new LogByteSizeMergePolicy());
+        // In parallel and segment-preserving modes each new segment is meant to stay a segment of its own.
+        indexWriterConfig.setMergePolicy(config.getThreadCount() > 1 || config.isPreserveSegments()
+                                                 ? NoMergePolicy.INSTANCE : new LogByteSizeMergePolicy());
         indexWriterConfig.setMergeScheduler(new SerialMergeScheduler());
         indexWriterConfig.setInfoStream(new AdaptedInfoStream(infoStream));
+        indexWriterConfig.setMergeListener(UpgradeMetrics.runningHop(config, path));
         indexWriterConfig.setIndexCreatedVersionMajor(7);
+        ExecutorService mergePartExecutor = createMergePartExecutor();
+        indexWriterConfig.setMergePartExecutor(mergePartExecutor);
 
-        try (Directory sourceDirectory = FSDirectory.open(path);
-             Directory destinationDirectory = FSDirectory.open(tempPath);
-             IndexReader reader = DirectoryReader.open(sourceDirectory);
-             IndexWriter writer = new IndexWriter(destinationDirectory, indexWriterConfig)) {
+        try {
+            Set<String> sourceSegments = new HashSet<>(sourceReaders.keySet());
+            Set<String> converted = config.isResumable()
+                    ? readConvertedSegments(destinationDirectory, tempPath, sourceGeneration, sourceSegments)
+                    : Collections.emptySet();
+            if (config.getDiskBudget() > 0 && !converted.containsAll(sourceSegments)
+                    && converted.stream().anyMatch(sourceSegments::contains)) {
+                // Converted segments are still taking up space in the old index.
+                return false;
+            }
+            indexWriterConfig.setOpenMode(converted.isEmpty() ? IndexWriterConfig.OpenMode.CREATE
+                                                              : IndexWriterConfig.OpenMode.APPEND);
 
-            CodecReader[] codecReaders = reader.leaves().stream()
-                .map(context -> new VersionOverridingCodecReader((CodecReader) context.reader()))
-                .toArray(CodecReader[]::new);
+            boolean finished = true;
+            try (IndexWriter writer = new IndexWriter(destinationDirectory, indexWriterConfig)) {
+                if (config.isResumable()) {
+                    finished = addIndexesResumably(writer, sourceGeneration, sourceSegments, converted, sourceReaders);
+                } else if (config.isPreserveSegments()) {
+                    addSegmentsSeparately(writer, sourceReaders);
+                } else {
+                    List<CodecReader> codecReaders = sourceReaders.values().stream()
+                        .map(VersionOverridingCodecReader::new)
+                        .collect(Collectors.toList());
 
-            writer.addIndexes(codecReaders);
-            writer.commit();
+                    if (config.getThreadCount() > 1 && codecReaders.size() > 1) {
+                        addIndexesConcurrently(writer, codecReaders);
+                    } else {
+                        addIndexes(writer, UpgradeMetrics.runningHop(config, path), null,
+                                   codecReaders.toArray(new CodecReader[0]));
+                    }
+                }
+                writer.commit();
+            }
+            return finished;
+        } finally {
+            if (mergePartExecutor != null) {
+                mergePartExecutor.shutdownNow();
+            }
         }
+    }
+
+    /**
+     * Creates the executor which merges write the parts of their segments on, with enough
+     * threads for every part of every merge running at once.
+     *
+     * @return the executor, or {@code null} if each merge should write its parts itself.
+     */
+    private ExecutorService createMergePartExecutor() {
+        return config.isConcurrentMergeParts()
+                ? ConcurrencyUtils.newFixedThreadPool(MERGE_PARTS * config.getThreadCount(), "upgrade7-merge-part")
+                : null;
+    }
 
+    /**
+     * Swaps the newly written index into the place of the old one. In resumable mode, the
+     * checkpoints are only removed from the new index once it is in place, because until then
+     * they are the only record of what it contains.
+     *
+     * @param tempPath the directory the new index was written into.
+     * @throws IOException if an error occurs.
+     */
+    private void replaceIndex(Path tempPath) throws IOException {
+        Path oldPath = path.resolveSibling(path.getFileName() + ".old");
         Files.move(path, oldPath);
         Files.move(tempPath, path);
         FileUtils.insecureRecursiveDelete(oldPath);
+
+        if (config.isResumable()) {
+            IndexWriterConfig indexWriterConfig = new IndexWriterConfig(new FailAnalyzer());
+            indexWriterConfig.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+            indexWriterConfig.setMergePolicy(NoMergePolicy.INSTANCE);
+            indexWriterConfig.setInfoStream(new AdaptedInfoStream(infoStream));
+            try (Directory directory = openDirectory(path);
+                 IndexWriter writer = new IndexWriter(directory, indexWriterConfig)) {
+                writer.setLiveCommitData(Collections.<String, String>emptyMap().entrySet());
+                writer.commit();
+            }
+        }
+    }
+
+    /**
+     * Removes the segments which have been converted from the old index, to give the space
+     * they take up back before converting any more. The old index is committed without them,
+     * and then their files are deleted, along with any others no longer referenced.
+     *
+     * @param tempPath the directory the new index is being written into.
+     * @throws IOException if an error occurs.
+     */
+    private void releaseConvertedSegments(Path tempPath) throws IOException {
+        Set<String> converted;
+        try (Directory destinationDirectory = openDirectory(tempPath)) {
+            converted = splitNames(SegmentInfos.readLatestCommit(destinationDirectory).getUserData().get(CONVERTED_SEGMENTS));
+        }
+
+        try (Directory sourceDirectory = openDirectory(path)) {
+            SegmentInfos sourceInfos = SegmentInfos.readLatestCommit(sourceDirectory);
+            for (SegmentCommitInfo info : new ArrayList<>(sourceInfos.asList())) {
+                if (converted.contains(info.info.name)) {
+                    sourceInfos.remove(info);
+                }
+            }
+            sourceInfos.commit(sourceDirectory);
+
+            Set<String> referenced = new HashSet<>(sourceInfos.files(true));
+            for (String file : sourceDirectory.listAll()) {
+                if ((file.startsWith("_") || file.startsWith(IndexFileNames.SEGMENTS)) && !referenced.contains(file)) {
+                    try {
+                        sourceDirectory.deleteFile(file);
+                    } catch (NoSuchFileException e) {
+                        // Already gone.
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the leaves between the configured number of workers. Each worker merges its
+     * share into one new segment. {@code IndexWriter} is thread-safe, so the workers
+     * can all call {@code addIndexes} on the same writer.
+     */
+    private void addIndexesConcurrently(IndexWriter writer, List<CodecReader> codecReaders) throws IOException {
+        List<List<CodecReader>> groups = ConcurrencyUtils.partition(
+                codecReaders, config.getThreadCount(), CodecReader::maxDoc);
+        HopMetrics metrics = UpgradeMetrics.runningHop(config, path);
+
+        List<Callable<Void>> tasks = new ArrayList<>(groups.size());
+        for (List<CodecReader> group : groups) {
+            tasks.add(() -> {
+                addIndexes(writer, metrics, null, group.toArray(new CodecReader[0]));
+                return null;
+            });
+        }
+
+        ExecutorService executor = ConcurrencyUtils.newFixedThreadPool(groups.size(), "upgrade7-addIndexes");
+        try {
+            ConcurrencyUtils.invokeAll(executor, tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds each old segment to the new index as a new segment of its own, which lets its
+     * postings be copied instead of rewritten. The segments are split between the workers.
+     */
+    private void addSegmentsSeparately(IndexWriter writer, Map<String, CodecReader> sourceReaders)
+            throws IOException {
+        List<List<Map.Entry<String, CodecReader>>> groups = ConcurrencyUtils.partition(
+                new ArrayList<>(sourceReaders.entrySet()), config.getThreadCount(), entry -> entry.getValue().maxDoc());
+        HopMetrics metrics = UpgradeMetrics.runningHop(config, path);
+
+        List<Callable<Void>> tasks = new ArrayList<>(groups.size());
+        for (List<Map.Entry<String, CodecReader>> group : groups) {
+            tasks.add(() -> {
+                for (Map.Entry<String, CodecReader> entry : group) {
+                    addIndexes(writer, metrics, entry.getKey(), new VersionOverridingCodecReader(entry.getValue()));
+                }
+                return null;
+            });
+        }
+
+        ExecutorService executor = ConcurrencyUtils.newFixedThreadPool(groups.size(), "upgrade7-addIndexes");
+        try {
+            ConcurrencyUtils.invokeAll(executor, tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds readers to the new index as one new segment, measuring it when there are metrics.
+     *
+     * @param segmentName the name of the old segment being rewritten, or {@code null} if the
+     *                    new segment is being merged from more than one.
+     */
+    private static void addIndexes(IndexWriter writer, HopMetrics metrics, String segmentName,
+                                   CodecReader... readers) throws IOException {
+        if (metrics == null) {
+            writer.addIndexes(readers);
+            return;
+        }
+        metrics.beginSegment(segmentName);
+        long documents = 0;
+        try {
+            writer.addIndexes(readers);
+            for (CodecReader reader : readers) {
+                documents += reader.numDocs();
+            }
+        } finally {
+            metrics.endSegment(documents);
+        }
+    }
+
+    private static Map<String, String> checkpointData(long sourceGeneration, Set<String> sourceSegments,
+                                                      Set<String> converted) {
+        Map<String, String> userData = new HashMap<>();
+        userData.put(SOURCE_GENERATION, Long.toString(sourceGeneration));
+        userData.put(SOURCE_SEGMENTS, String.join(",", sourceSegments));
+        userData.put(CONVERTED_SEGMENTS, String.join(",", converted));
+        return userData;
+    }
+
+    private static Set<String> splitNames(String names) {
+        return names == null || names.isEmpty() ? new LinkedHashSet<>()
+                                                : new LinkedHashSet<>(Arrays.asList(names.split(",")));
+    }
+
+    /**
+     * Reads which segments an earlier attempt already converted, from the last checkpoint
+     * committed to the partially written index. The checkpoint is only used if the old index
+     * is still the one it was made from, or that one with converted segments released from it.
+     *
+     * @return the names of the converted segments, or an empty set if there is nothing
+     *         usable to continue from.
+     * @throws IOException if the checkpoint doesn't match, but segments may already have been
+     *         released from the old index, so starting again would lose them.
+     */
+    private Set<String> readConvertedSegments(Directory directory, Path tempPath, long sourceGeneration,
+                                              Set<String> sourceSegments) throws IOException {
+        Map<String, String> userData;
+        try {
+            if (!DirectoryReader.indexExists(directory)) {
+                return Collections.emptySet();
+            }
+            userData = SegmentInfos.readLatestCommit(directory).getUserData();
+        } catch (IOException e) {
+            // Whatever is there can't be trusted, so start again.
+            return Collections.emptySet();
+        }
+        String recordedGeneration = userData.get(SOURCE_GENERATION);
+        Set<String> converted = splitNames(userData.get(CONVERTED_SEGMENTS));
+        if (recordedGeneration == null || converted.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        Set<String> recordedSegments = splitNames(userData.get(SOURCE_SEGMENTS));
+        Set<String> unconverted = new HashSet<>(recordedSegments);
+        unconverted.removeAll(converted);
+        long generation = Long.parseLong(recordedGeneration);
+        boolean matches = generation == sourceGeneration
+                ? recordedSegments.equals(sourceSegments)
+                : generation + 1 == sourceGeneration && !recordedSegments.equals(sourceSegments)
+                  && recordedSegments.containsAll(sourceSegments) && sourceSegments.containsAll(unconverted);
+        if (matches) {
+            return converted;
+        }
+        if (config.getDiskBudget() > 0) {
+            throw new IOException("The partially upgraded index at " + tempPath + " doesn't match the index at " +
+                                  path + ". Move it out of the way to start the upgrade again.");
+        }
+        // A different index has been put in place since.
+        return Collections.emptySet();
+    }
+
+    /**
+     * Converts each segment not converted by an earlier attempt, committing a checkpoint after
+     * each one. With more than one thread, the segments are split between the workers, and a
+     * checkpoint waits for the segments already being converted by other workers, so that each
+     * commit contains exactly the segments it lists. With a disk budget, only the segments which
+     * fit within it are converted.
+     *
+     * @return {@code true} if no segments are left to convert.
+     */
+    private boolean addIndexesResumably(IndexWriter writer, long sourceGeneration, Set<String> sourceSegments,
+                                        Set<String> converted, Map<String, CodecReader> sourceReaders) throws IOException {
+        List<Map.Entry<String, CodecReader>> remaining = sourceReaders.entrySet().stream()
+                .filter(entry -> !converted.contains(entry.getKey()))
+                .collect(Collectors.toList());
+        List<Map.Entry<String, CodecReader>> batch = selectBatch(remaining);
+        Checkpointer checkpointer = new Checkpointer(writer, UpgradeMetrics.runningHop(config, path),
+                                                     sourceGeneration, sourceSegments, converted);
+
+        List<List<Map.Entry<String, CodecReader>>> groups = ConcurrencyUtils.partition(
+                batch, config.getThreadCount(), entry -> entry.getValue().maxDoc());
+        if (groups.size() <= 1) {
+            for (Map.Entry<String, CodecReader> entry : batch) {
+                checkpointer.convert(entry.getKey(), entry.getValue());
+            }
+            return batch.size() == remaining.size();
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(groups.size());
+        for (List<Map.Entry<String, CodecReader>> group : groups) {
+            tasks.add(() -> {
+                for (Map.Entry<String, CodecReader> entry : group) {
+                    checkpointer.convert(entry.getKey(), entry.getValue());
+                }
+                return null;
+            });
+        }
+
+        ExecutorService executor = ConcurrencyUtils.newFixedThreadPool(groups.size(), "upgrade7-addIndexes");
+        try {
+            ConcurrencyUtils.invokeAll(executor, tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+        return batch.size() == remaining.size();
+    }
+
+    /**
+     * Takes segments from the front of the list until the disk budget is used up, always
+     * taking at least one so that progress is made however small the budget is.
+     */
+    private List<Map.Entry<String, CodecReader>> selectBatch(List<Map.Entry<String, CodecReader>> remaining)
+            throws IOException {
+        long budget = config.getDiskBudget();
+        if (budget <= 0) {
+            return remaining;
+        }
+        List<Map.Entry<String, CodecReader>> batch = new ArrayList<>();
+        long total = 0;
+        for (Map.Entry<String, CodecReader> entry : remaining) {
+            long size = ((SegmentReader) FilterCodecReader.unwrap(entry.getValue())).getSegmentInfo().sizeInBytes();
+            if (!batch.isEmpty() && total + size > budget) {
+                break;
+            }
+            batch.add(entry);
+            total += size;
+        }
+        return batch;
+    }
+
+    /**
+     * Converts segments one at a time and commits a record of which ones are done.
+     */
+    private static class Checkpointer {
+        private final IndexWriter writer;
+        private final HopMetrics metrics;
+        private final long sourceGeneration;
+        private final Set<String> sourceSegments;
+        private final Set<String> converted;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private Checkpointer(IndexWriter writer, HopMetrics metrics, long sourceGeneration,
+                             Set<String> sourceSegments, Set<String> converted) {
+            this.writer = writer;
+            this.metrics = metrics;
+            this.sourceGeneration = sourceGeneration;
+            this.sourceSegments = sourceSegments;
+            this.converted = Collections.synchronizedSet(new LinkedHashSet<>(converted));
+        }
+
+        private void convert(String segmentName, CodecReader reader) throws IOException {
+            // Conversions share the lock, and a commit takes it exclusively. A segment is added
+            // to the list before the lock is released, so no commit can contain it unlisted.
+            lock.readLock().lock();
+            try {
+                addIndexes(writer, metrics, segmentName, new VersionOverridingCodecReader(reader));
+                converted.add(segmentName);
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            lock.writeLock().lock();
+            try {
+                writer.setLiveCommitData(checkpointData(sourceGeneration, sourceSegments, converted).entrySet());
+                writer.commit();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
     }
 
     /**
@@ -85,7 +645,7 @@ public class VersionUpgrader7 implements VersionUpgrader {
         }
     }
 
-    private static class VersionOverridingCodecReader extends FilterCodecReader {
+    private static class VersionOverridingCodecReader extends FilterCodecReader implements PassThroughPostings7 {
         private final LeafMetaData metadata;
 
         private VersionOverridingCodecReader(CodecReader in) {
@@ -23,6 +23,7 @@ import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.search.SearcherManager; // javadocs
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.Directory;
@@ -32,9 +33,18 @@ public abstract class DirectoryReader extends BaseCompositeReader<LeafReader> {
   protected final Directory directory;
   
   public static DirectoryReader open(final Directory directory) throws IOException {
-    return StandardDirectoryReader.open(directory, null);
+    return StandardDirectoryReader.open(directory, (IndexCommit) null);
   }
   
+  /**
+   * Opens the latest commit with its segments opened at the same time on an executor, which
+   * for an index of many segments spreads out the time spent loading term indexes and norms.
+   * If any segment fails to open, the ones which did are closed again.
+   */
+  public static DirectoryReader open(final Directory directory, Executor executor) throws IOException {
+    return StandardDirectoryReader.open(directory, null, executor);
+  }
+
   public static DirectoryReader open(final IndexWriter writer) throws IOException {
     return open(writer, true, false);
   }
@@ -2106,6 +2106,8 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable,
       SegmentMerger merger = new SegmentMerger(Arrays.asList(readers), info, infoStream, trackingDir,
                                                globalFieldNumberMap, 
                                                context);
+      merger.setPartExecutor(config.getMergePartExecutor());
+      merger.setMergeListener(config.getMergeListener());
 
       if (!merger.shouldMerge()) {
         return docWriter.deleteQueue.getNextSequenceNumber();
@@ -3035,6 +3037,9 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable,
       try {
         try {
           mergeInit(merge);
+          if (merge.info != null && config.getMergeListener() != null) {
+            config.getMergeListener().beginSegment(merge.info.info.name);
+          }
 
           if (infoStream.isEnabled("IW")) {
             infoStream.message("IW", "now merge\n  merge=" + segString(merge.segments) + "\n  index=" + segString());
@@ -3070,6 +3075,9 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable,
       throw t;
     }
 
+    if (merge.info != null && config.getMergeListener() != null) {
+      config.getMergeListener().endSegment(success ? merge.info.info.maxDoc() : 0);
+    }
     if (merge.info != null && merge.isAborted() == false) {
       if (infoStream.isEnabled("IW")) {
         infoStream.message("IW", "merge time " + (System.currentTimeMillis()-t0) + " msec for " + merge.info.info.maxDoc() + " docs");
@@ -3424,6 +3432,8 @@ public class IndexWriter implements Closeable, TwoPhaseCommit, Accountable,
                                                      merge.info.info, infoStream, dirWrapper,
                                                      globalFieldNumberMap, 
                                                      context);
+      merger.setPartExecutor(config.getMergePartExecutor());
+      merger.setMergeListener(config.getMergeListener());
       merge.info.setSoftDelCount(Math.toIntExact(softDeleteCount.get()));
       merge.checkAborted();
 
@@ -20,8 +20,10 @@ package org.trypticon.luceneupgrader.lucene7.internal.lucene.index;
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
+import org.trypticon.luceneupgrader.MergeListener;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.analysis.Analyzer;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.analysis.standard.StandardAnalyzer;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.Codec;
@@ -169,6 +171,26 @@ public final class IndexWriterConfig extends LiveIndexWriterConfig {
     return this;
   }
 
+  /**
+   * Sets an executor for merges to write their stored fields, postings, doc values, norms,
+   * points and term vectors on at the same time. Each part writes files of its own, so only
+   * the field infos have to wait for them all. The thread running the merge waits for its
+   * parts without taking one of the executor's threads.
+   */
+  public IndexWriterConfig setMergePartExecutor(Executor mergePartExecutor) {
+    this.mergePartExecutor = mergePartExecutor;
+    return this;
+  }
+
+  /**
+   * Sets a listener to tell about each segment merges write, and how long each phase of
+   * writing it took, or {@code null} to not tell anything.
+   */
+  public IndexWriterConfig setMergeListener(MergeListener mergeListener) {
+    this.mergeListener = mergeListener;
+    return this;
+  }
+
   @Override
   public Codec getCodec() {
     return codec;
@@ -18,8 +18,16 @@ package org.trypticon.luceneupgrader.lucene7.internal.lucene.index;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.trypticon.luceneupgrader.MergeListener;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.Codec;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.DocValuesConsumer;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.FieldsConsumer;
@@ -27,9 +35,13 @@ import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.NormsConsumer
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.PointsWriter;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.StoredFieldsWriter;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.TermVectorsWriter;
+import org.trypticon.luceneupgrader.lucene7.internal.lucenesupport.PassThroughPostings7;
+import org.trypticon.luceneupgrader.lucene7.internal.lucenesupport.PostingsCopier7;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.Directory;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.IOContext;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.util.IOUtils;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.util.InfoStream;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.util.ThreadInterruptedException;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.util.Version;
 
 final class SegmentMerger {
@@ -40,7 +52,10 @@ final class SegmentMerger {
   private final IOContext context;
   
   final MergeState mergeState;
+  private final List<CodecReader> readers;
   private final FieldInfos.Builder fieldInfosBuilder;
+  private Executor partExecutor;
+  private MergeListener mergeListener;
 
   // note, just like in codec apis Directory 'dir' is NOT the same as segmentInfo.dir!!
   SegmentMerger(List<CodecReader> readers, SegmentInfo segmentInfo, InfoStream infoStream, Directory dir,
@@ -49,6 +64,7 @@ final class SegmentMerger {
       throw new IllegalArgumentException("IOContext.context should be MERGE; got: " + context.context);
     }
     mergeState = new MergeState(readers, segmentInfo, infoStream);
+    this.readers = readers;
     directory = dir;
     this.codec = segmentInfo.getCodec();
     this.context = context;
@@ -74,6 +90,16 @@ final class SegmentMerger {
     }
   }
   
+  /** Sets the executor to merge the parts of the segment at the same time on, or {@code null} to merge them in turn. */
+  void setPartExecutor(Executor partExecutor) {
+    this.partExecutor = partExecutor;
+  }
+
+  /** Sets the listener to tell how long each phase of the merge took, or {@code null} to not tell anything. */
+  void setMergeListener(MergeListener mergeListener) {
+    this.mergeListener = mergeListener;
+  }
+
   boolean shouldMerge() {
     return mergeState.segmentInfo.maxDoc() > 0;
   }
@@ -83,86 +109,208 @@ final class SegmentMerger {
       throw new IllegalStateException("Merge would result in 0 document segment");
     }
     mergeFieldInfos();
+    if (partExecutor != null) {
+      return mergeConcurrently();
+    }
     long t0 = 0;
-    if (mergeState.infoStream.isEnabled("SM")) {
+    if (isTimed()) {
       t0 = System.nanoTime();
     }
     int numMerged = mergeFields();
-    if (mergeState.infoStream.isEnabled("SM")) {
-      long t1 = System.nanoTime();
-      mergeState.infoStream.message("SM", ((t1-t0)/1000000) + " msec to merge stored fields [" + numMerged + " docs]");
+    if (isTimed()) {
+      phaseDone("merge stored fields", "stored fields", System.nanoTime() - t0, numMerged);
     }
     assert numMerged == mergeState.segmentInfo.maxDoc(): "numMerged=" + numMerged + " vs mergeState.segmentInfo.maxDoc()=" + mergeState.segmentInfo.maxDoc();
 
     final SegmentWriteState segmentWriteState = new SegmentWriteState(mergeState.infoStream, directory, mergeState.segmentInfo,
                                                                       mergeState.mergeFieldInfos, null, context);
-    if (mergeState.infoStream.isEnabled("SM")) {
+    if (isTimed()) {
       t0 = System.nanoTime();
     }
     mergeTerms(segmentWriteState);
-    if (mergeState.infoStream.isEnabled("SM")) {
-      long t1 = System.nanoTime();
-      mergeState.infoStream.message("SM", ((t1-t0)/1000000) + " msec to merge postings [" + numMerged + " docs]");
+    if (isTimed()) {
+      phaseDone("merge postings", "postings", System.nanoTime() - t0, numMerged);
     }
 
-    if (mergeState.infoStream.isEnabled("SM")) {
+    if (isTimed()) {
       t0 = System.nanoTime();
     }
     if (mergeState.mergeFieldInfos.hasDocValues()) {
       mergeDocValues(segmentWriteState);
     }
-    if (mergeState.infoStream.isEnabled("SM")) {
-      long t1 = System.nanoTime();
-      mergeState.infoStream.message("SM", ((t1-t0)/1000000) + " msec to merge doc values [" + numMerged + " docs]");
+    if (isTimed()) {
+      phaseDone("merge doc values", "doc values", System.nanoTime() - t0, numMerged);
     }
 
-    if (mergeState.infoStream.isEnabled("SM")) {
+    if (isTimed()) {
       t0 = System.nanoTime();
     }
     if (mergeState.mergeFieldInfos.hasPointValues()) {
       mergePoints(segmentWriteState);
     }
-    if (mergeState.infoStream.isEnabled("SM")) {
-      long t1 = System.nanoTime();
-      mergeState.infoStream.message("SM", ((t1-t0)/1000000) + " msec to merge points [" + numMerged + " docs]");
+    if (isTimed()) {
+      phaseDone("merge points", "points", System.nanoTime() - t0, numMerged);
     }
     
     if (mergeState.mergeFieldInfos.hasNorms()) {
-      if (mergeState.infoStream.isEnabled("SM")) {
+      if (isTimed()) {
         t0 = System.nanoTime();
       }
       mergeNorms(segmentWriteState);
-      if (mergeState.infoStream.isEnabled("SM")) {
-        long t1 = System.nanoTime();
-        mergeState.infoStream.message("SM", ((t1-t0)/1000000) + " msec to merge norms [" + numMerged + " docs]");
+      if (isTimed()) {
+        phaseDone("merge norms", "norms", System.nanoTime() - t0, numMerged);
       }
     }
 
     if (mergeState.mergeFieldInfos.hasVectors()) {
-      if (mergeState.infoStream.isEnabled("SM")) {
+      if (isTimed()) {
         t0 = System.nanoTime();
       }
       numMerged = mergeVectors();
-      if (mergeState.infoStream.isEnabled("SM")) {
-        long t1 = System.nanoTime();
-        mergeState.infoStream.message("SM", ((t1-t0)/1000000) + " msec to merge vectors [" + numMerged + " docs]");
+      if (isTimed()) {
+        phaseDone("merge vectors", "term vectors", System.nanoTime() - t0, numMerged);
       }
       assert numMerged == mergeState.segmentInfo.maxDoc();
     }
     
     // write the merged infos
-    if (mergeState.infoStream.isEnabled("SM")) {
+    if (isTimed()) {
       t0 = System.nanoTime();
     }
     codec.fieldInfosFormat().write(directory, mergeState.segmentInfo, "", mergeState.mergeFieldInfos, context);
+    if (isTimed()) {
+      phaseDone("write field infos", "field infos", System.nanoTime() - t0, numMerged);
+    }
+
+    return mergeState;
+  }
+
+  /** Whether the phases of the merge are timed, for the info stream or for the listener. */
+  private boolean isTimed() {
+    return mergeState.infoStream.isEnabled("SM") || mergeListener != null;
+  }
+
+  /** Logs how long a phase of the merge took, and tells the listener. */
+  private void phaseDone(String message, String phase, long nanos, int numMerged) {
     if (mergeState.infoStream.isEnabled("SM")) {
-      long t1 = System.nanoTime();
-      mergeState.infoStream.message("SM", ((t1-t0)/1000000) + " msec to write field infos [" + numMerged + " docs]");
+      mergeState.infoStream.message("SM", (nanos/1000000) + " msec to " + message + " [" + numMerged + " docs]");
+    }
+    if (mergeListener != null) {
+      mergeListener.phase(phase, nanos, numMerged);
+    }
+  }
+
+  /**
+   * Merges each part of the segment as a task of its own. The parts write separate files, so
+   * only the field infos, which are written last, have to wait for all of them. The timings are
+   * logged from this thread once the parts have finished, the same way a serial merge logs them.
+   */
+  private MergeState mergeConcurrently() throws IOException {
+    final int numMerged = mergeState.segmentInfo.maxDoc();
+    final SegmentWriteState segmentWriteState = new SegmentWriteState(mergeState.infoStream, directory, mergeState.segmentInfo,
+                                                                      mergeState.mergeFieldInfos, null, context);
+    // The postings and the doc values formats both record which format wrote each field as
+    // attributes of its FieldInfo, and most fields with doc values have postings too, so the
+    // postings record theirs in copies, which are only copied back once every part has finished.
+    final FieldInfos postingsFieldInfos = copyFieldInfos(mergeState.mergeFieldInfos);
+    final SegmentWriteState postingsWriteState = new SegmentWriteState(mergeState.infoStream, directory, mergeState.segmentInfo,
+                                                                       postingsFieldInfos, null, context);
+    List<String> names = new ArrayList<>();
+    List<FutureTask<Long>> parts = new ArrayList<>();
+    addPart(names, parts, "stored fields", () -> {
+      int merged = mergeFields();
+      assert merged == numMerged: "numMerged=" + merged + " vs mergeState.segmentInfo.maxDoc()=" + numMerged;
+    });
+    addPart(names, parts, "postings", () -> mergeTerms(postingsWriteState));
+    if (mergeState.mergeFieldInfos.hasDocValues()) {
+      addPart(names, parts, "doc values", () -> mergeDocValues(segmentWriteState));
+    }
+    if (mergeState.mergeFieldInfos.hasPointValues()) {
+      addPart(names, parts, "points", () -> mergePoints(segmentWriteState));
+    }
+    if (mergeState.mergeFieldInfos.hasNorms()) {
+      addPart(names, parts, "norms", () -> mergeNorms(segmentWriteState));
+    }
+    if (mergeState.mergeFieldInfos.hasVectors()) {
+      addPart(names, parts, "term vectors", () -> {
+        int merged = mergeVectors();
+        assert merged == numMerged;
+      });
+    }
+
+    for (FutureTask<Long> part : parts) {
+      try {
+        partExecutor.execute(part);
+      } catch (RejectedExecutionException e) {
+        // The executor is shutting down, so this part has to be merged here.
+        part.run();
+      }
+    }
+
+    // Every part is waited for, even after one fails, so that none is still writing when the merge is cleaned up.
+    Throwable failure = null;
+    for (int i = 0; i < parts.size(); i++) {
+      try {
+        long nanos = parts.get(i).get();
+        phaseDone("merge " + names.get(i), names.get(i), nanos, numMerged);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause();
+        } else {
+          failure.addSuppressed(e.getCause());
+        }
+      } catch (InterruptedException e) {
+        for (FutureTask<Long> part : parts) {
+          part.cancel(true);
+        }
+        throw new ThreadInterruptedException(e);
+      }
+    }
+    IOUtils.reThrow(failure);
+    for (FieldInfo postingsFieldInfo : postingsFieldInfos) {
+      FieldInfo fieldInfo = mergeState.mergeFieldInfos.fieldInfo(postingsFieldInfo.number);
+      for (Map.Entry<String,String> attribute : postingsFieldInfo.attributes().entrySet()) {
+        fieldInfo.putAttribute(attribute.getKey(), attribute.getValue());
+      }
+    }
+
+    long t0 = 0;
+    if (isTimed()) {
+      t0 = System.nanoTime();
+    }
+    codec.fieldInfosFormat().write(directory, mergeState.segmentInfo, "", mergeState.mergeFieldInfos, context);
+    if (isTimed()) {
+      phaseDone("write field infos", "field infos", System.nanoTime() - t0, numMerged);
     }
 
     return mergeState;
   }
 
+  private static FieldInfos copyFieldInfos(FieldInfos fieldInfos) {
+    FieldInfo[] copies = new FieldInfo[fieldInfos.size()];
+    int i = 0;
+    for (FieldInfo fi : fieldInfos) {
+      copies[i++] = new FieldInfo(fi.name, fi.number, fi.hasVectors(), fi.omitsNorms(), fi.hasPayloads(),
+                              fi.getIndexOptions(), fi.getDocValuesType(), fi.getDocValuesGen(), new HashMap<>(fi.attributes()),
+                              fi.getPointDataDimensionCount(), fi.getPointIndexDimensionCount(), fi.getPointNumBytes(),
+                              fi.isSoftDeletesField());
+    }
+    return new FieldInfos(copies);
+  }
+
+  private interface MergePart {
+    void merge() throws IOException;
+  }
+
+  private static void addPart(List<String> names, List<FutureTask<Long>> parts, String name, MergePart part) {
+    names.add(name);
+    parts.add(new FutureTask<>(() -> {
+      long t0 = System.nanoTime();
+      part.merge();
+      return System.nanoTime() - t0;
+    }));
+  }
+
   private void mergeDocValues(SegmentWriteState segmentWriteState) throws IOException {
     try (DocValuesConsumer consumer = codec.docValuesFormat().fieldsConsumer(segmentWriteState)) {
       consumer.merge(mergeState);
@@ -203,8 +351,43 @@ final class SegmentMerger {
   }
 
   private void mergeTerms(SegmentWriteState segmentWriteState) throws IOException {
+    if (copyPostings(segmentWriteState)) {
+      return;
+    }
     try (FieldsConsumer consumer = codec.postingsFormat().fieldsConsumer(segmentWriteState)) {
       consumer.merge(mergeState);
     }
   }
+
+  /**
+   * Copies the postings of a single segment without decoding them, when the new segment keeps
+   * all of its documents in the same order. Only wrappers which say they pass the postings
+   * through are looked through to find the segment.
+   */
+  private boolean copyPostings(SegmentWriteState segmentWriteState) throws IOException {
+    if (readers.size() != 1 || mergeState.liveDocs[0] != null || mergeState.needsIndexSort) {
+      return false;
+    }
+    CodecReader reader = readers.get(0);
+    while (reader instanceof FilterCodecReader && reader instanceof PassThroughPostings7) {
+      reader = ((FilterCodecReader) reader).in;
+    }
+    if (!(reader instanceof SegmentReader)) {
+      return false;
+    }
+    SegmentReader segmentReader = (SegmentReader) reader;
+    SegmentInfo sourceInfo = segmentReader.getSegmentInfo().info;
+    if (sourceInfo.maxDoc() != mergeState.segmentInfo.maxDoc()) {
+      return false;
+    }
+    Directory sourceDirectory = segmentReader.core.cfsReader != null ? segmentReader.core.cfsReader : sourceInfo.dir;
+    if (!PostingsCopier7.copy(sourceDirectory, sourceInfo, mergeState.fieldInfos[0], codec.postingsFormat(),
+                               segmentWriteState)) {
+      return false;
+    }
+    if (mergeState.infoStream.isEnabled("SM")) {
+      mergeState.infoStream.message("SM", "copied postings from " + sourceInfo.name + " without decoding them");
+    }
+    return true;
+  }
 }
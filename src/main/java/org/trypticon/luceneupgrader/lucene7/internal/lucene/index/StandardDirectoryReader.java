@@ -28,6 +28,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.AlreadyClosedException;
 import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.Directory;
@@ -52,6 +56,10 @@ public final class StandardDirectoryReader extends DirectoryReader {
   }
 
   static DirectoryReader open(final Directory directory, final IndexCommit commit) throws IOException {
+    return open(directory, commit, null);
+  }
+
+  static DirectoryReader open(final Directory directory, final IndexCommit commit, final Executor executor) throws IOException {
     return new SegmentInfos.FindSegmentsFile<DirectoryReader>(directory) {
       @Override
       protected DirectoryReader doBody(String segmentFileName) throws IOException {
@@ -59,8 +67,12 @@ public final class StandardDirectoryReader extends DirectoryReader {
         final SegmentReader[] readers = new SegmentReader[sis.size()];
         boolean success = false;
         try {
-          for (int i = sis.size()-1; i >= 0; i--) {
-            readers[i] = new SegmentReader(sis.info(i), sis.getIndexCreatedVersionMajor(), IOContext.READ);
+          if (executor == null) {
+            for (int i = sis.size()-1; i >= 0; i--) {
+              readers[i] = new SegmentReader(sis.info(i), sis.getIndexCreatedVersionMajor(), IOContext.READ);
+            }
+          } else {
+            openSegmentReaders(sis, readers, executor);
           }
 
           // This may throw CorruptIndexException if there are too many docs, so
@@ -78,6 +90,51 @@ public final class StandardDirectoryReader extends DirectoryReader {
     }.run(commit);
   }
 
+  /**
+   * Opens each segment as a task of its own, filling in the readers as they open. Every task
+   * is waited for, even after one fails, so that the caller can close whichever readers did
+   * open.
+   */
+  private static void openSegmentReaders(final SegmentInfos sis, SegmentReader[] readers, Executor executor) throws IOException {
+    List<FutureTask<SegmentReader>> tasks = new ArrayList<>(sis.size());
+    for (int i = 0; i < sis.size(); i++) {
+      final SegmentCommitInfo info = sis.info(i);
+      FutureTask<SegmentReader> task = new FutureTask<>(() -> new SegmentReader(info, sis.getIndexCreatedVersionMajor(), IOContext.READ));
+      tasks.add(task);
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        // The executor is shutting down, so this segment has to be opened here.
+        task.run();
+      }
+    }
+
+    Throwable failure = null;
+    boolean interrupted = false;
+    for (int i = 0; i < tasks.size(); i++) {
+      while (true) {
+        try {
+          readers[i] = tasks.get(i).get();
+          break;
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause();
+          } else {
+            failure.addSuppressed(e.getCause());
+          }
+          break;
+        } catch (InterruptedException e) {
+          // Keep waiting, or a reader opening now would never be closed.
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    IOUtils.reThrow(failure);
+  }
+
   static DirectoryReader open(IndexWriter writer, SegmentInfos infos, boolean applyAllDeletes, boolean writeAllDeletes) throws IOException {
     // IndexWriter synchronizes externally before calling
     // us, which ensures infos will not change; so there's
@@ -0,0 +1,159 @@
+package org.trypticon.luceneupgrader.lucene7.internal.lucenesupport;
+
+import org.trypticon.luceneupgrader.InMemoryIndex;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.IndexFileNames;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.BaseDirectory;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.BufferedIndexInput;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.IOContext;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.IndexInput;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.IndexOutput;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.OutputStreamIndexOutput;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.SingleInstanceLockFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A directory over an index held in memory.
+ */
+public class InMemoryDirectory7 extends BaseDirectory {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final InMemoryIndex index;
+
+    private final AtomicLong nextTempFileCounter = new AtomicLong();
+
+    /**
+     * Creates the directory. Closing it leaves the files in the index.
+     *
+     * @param index the index.
+     */
+    public InMemoryDirectory7(InMemoryIndex index) {
+        super(new SingleInstanceLockFactory());
+        this.index = index;
+    }
+
+    @Override
+    public String[] listAll() {
+        ensureOpen();
+        return index.listAll();
+    }
+
+    @Override
+    public long fileLength(String name) throws IOException {
+        ensureOpen();
+        return index.getFile(name).getLength();
+    }
+
+    @Override
+    public IndexInput openInput(String name, IOContext context) throws IOException {
+        ensureOpen();
+        InMemoryIndex.File file = index.getFile(name);
+        return new InMemoryIndexInput("InMemoryIndexInput(" + index + "!" + name + ")", file, 0, file.getLength(),
+                                      BufferedIndexInput.bufferSize(context));
+    }
+
+    @Override
+    public void deleteFile(String name) throws IOException {
+        ensureOpen();
+        index.deleteFile(name);
+    }
+
+    @Override
+    public IndexOutput createOutput(String name, IOContext context) throws IOException {
+        ensureOpen();
+        return new OutputStreamIndexOutput("InMemoryIndexOutput(" + index + "!" + name + ")", name,
+                                           index.createFile(name).newOutputStream(), CHUNK_SIZE);
+    }
+
+    @Override
+    public IndexOutput createTempOutput(String prefix, String suffix, IOContext context) throws IOException {
+        ensureOpen();
+        while (true) {
+            String name = IndexFileNames.segmentFileName(prefix, suffix + "_" +
+                    Long.toString(nextTempFileCounter.getAndIncrement(), Character.MAX_RADIX), "tmp");
+            try {
+                return createOutput(name, context);
+            } catch (FileAlreadyExistsException e) {
+                // Retry with the next name.
+            }
+        }
+    }
+
+    @Override
+    public void rename(String source, String dest) throws IOException {
+        ensureOpen();
+        index.rename(source, dest);
+    }
+
+    @Override
+    public void sync(Collection<String> names) {
+    }
+
+    @Override
+    public void syncMetaData() {
+    }
+
+    @Override
+    public void close() {
+        isOpen = false;
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryDirectory7(" + index.getPath() + ")";
+    }
+
+    /**
+     * Reads part of a file held in memory.
+     */
+    private static final class InMemoryIndexInput extends BufferedIndexInput {
+
+        private final InMemoryIndex.File file;
+
+        private final long off;
+
+        private final long end;
+
+        private InMemoryIndexInput(String resourceDesc, InMemoryIndex.File file, long off, long length, int bufferSize) {
+            super(resourceDesc, bufferSize);
+            this.file = file;
+            this.off = off;
+            this.end = off + length;
+        }
+
+        @Override
+        public IndexInput slice(String sliceDescription, long offset, long length) {
+            if (offset < 0 || length < 0 || offset + length > length()) {
+                throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: " + this);
+            }
+            return new InMemoryIndexInput(sliceDescription, file, off + offset, length, getBufferSize());
+        }
+
+        @Override
+        public long length() {
+            return end - off;
+        }
+
+        @Override
+        protected void readInternal(byte[] b, int offset, int length) throws IOException {
+            long pos = getFilePointer() + off;
+            if (pos + length > end) {
+                throw new EOFException("read past EOF: " + this);
+            }
+            file.read(pos, b, offset, length);
+        }
+
+        @Override
+        protected void seekInternal(long pos) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
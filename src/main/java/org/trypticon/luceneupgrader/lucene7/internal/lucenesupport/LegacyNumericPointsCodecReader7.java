@@ -0,0 +1,347 @@
+package org.trypticon.luceneupgrader.lucene7.internal.lucenesupport;
+
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.PointsReader;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.CodecReader;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfo;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfos;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FilterCodecReader;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.PointValues;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.PostingsEnum;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.Terms;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.TermsEnum;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.search.DocIdSetIterator;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.util.BytesRef;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.util.FixedBitSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives fields indexed with the legacy numeric encoding point values decoded from their full
+ * precision terms, so that copying the segment into a new one indexes them as points too.
+ * The terms themselves are left as they are.
+ *
+ * The legacy numeric encoding is the prefix-coded terms written by {@code LegacyIntField},
+ * {@code LegacyLongField} and the like in Lucene 6, or by {@code NumericField} and its
+ * successors in earlier versions. Floats are encoded the same way as ints, and doubles the
+ * same way as longs, both as terms and as points, so the width of the terms is all that has
+ * to be worked out, not which type they came from.
+ *
+ * Only the points and field infos change, so the postings can still be copied from the segment.
+ */
+public class LegacyNumericPointsCodecReader7 extends FilterCodecReader implements PassThroughPostings7 {
+
+    /**
+     * The first byte of a full precision long term, which is the shift it was encoded with
+     * added to this.
+     */
+    private static final byte SHIFT_START_LONG = 0x20;
+
+    /**
+     * The first byte of a full precision int term.
+     */
+    private static final byte SHIFT_START_INT = 0x60;
+
+    /**
+     * The length of a full precision long term: the shift, then the 64 bits in 7-bit chunks.
+     */
+    private static final int LONG_TERM_LENGTH = 11;
+
+    /**
+     * The length of a full precision int term: the shift, then the 32 bits in 7-bit chunks.
+     */
+    private static final int INT_TERM_LENGTH = 6;
+
+    private final FieldInfos fieldInfos;
+
+    private final Map<String, LegacyNumericPointValues> pointValues;
+
+    private final PointsReader pointsReader;
+
+    private LegacyNumericPointsCodecReader7(CodecReader in, FieldInfos fieldInfos,
+                                           Map<String, LegacyNumericPointValues> pointValues) {
+        super(in);
+        this.fieldInfos = fieldInfos;
+        this.pointValues = pointValues;
+        this.pointsReader = new LegacyNumericPointsReader(in.getPointsReader());
+    }
+
+    /**
+     * Wraps a segment so that the given fields have point values, if any of them hold legacy
+     * numeric terms in it. Fields which already have points, or no terms in this segment, are
+     * left alone.
+     *
+     * @param in the segment.
+     * @param fields the names of the fields holding legacy numeric terms.
+     * @return the wrapped segment, or the segment itself if none of the fields need points.
+     * @throws IOException if an error occurs reading the terms.
+     * @throws IllegalArgumentException if one of the fields holds terms which aren't legacy numeric ones.
+     */
+    public static CodecReader wrap(CodecReader in, Collection<String> fields) throws IOException {
+        if (fields.isEmpty()) {
+            return in;
+        }
+        Map<String, LegacyNumericPointValues> pointValues = new HashMap<>();
+        List<FieldInfo> infos = new ArrayList<>();
+        for (FieldInfo info : in.getFieldInfos()) {
+            if (fields.contains(info.name) && info.getPointDataDimensionCount() == 0) {
+                Terms terms = in.terms(info.name);
+                LegacyNumericPointValues values = terms == null ? null
+                        : LegacyNumericPointValues.create(info.name, terms, in.maxDoc());
+                if (values != null) {
+                    pointValues.put(info.name, values);
+                    info = new FieldInfo(info.name, info.number, info.hasVectors(), info.omitsNorms(),
+                                         info.hasPayloads(), info.getIndexOptions(), info.getDocValuesType(),
+                                         info.getDocValuesGen(), new HashMap<>(info.attributes()),
+                                         1, 1, values.getBytesPerDimension(), info.isSoftDeletesField());
+                }
+            }
+            infos.add(info);
+        }
+        if (pointValues.isEmpty()) {
+            return in;
+        }
+        return new LegacyNumericPointsCodecReader7(in, new FieldInfos(infos.toArray(new FieldInfo[0])), pointValues);
+    }
+
+    @Override
+    public FieldInfos getFieldInfos() {
+        return fieldInfos;
+    }
+
+    @Override
+    public PointsReader getPointsReader() {
+        return pointsReader;
+    }
+
+    @Override
+    public CacheHelper getReaderCacheHelper() {
+        // The points make this a different reader from the one it wraps.
+        return null;
+    }
+
+    @Override
+    public CacheHelper getCoreCacheHelper() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "LegacyNumericPointsCodecReader7(" + in + ")";
+    }
+
+    /**
+     * Serves the decoded fields, and any points the segment already has for other fields.
+     */
+    private class LegacyNumericPointsReader extends PointsReader {
+
+        private final PointsReader in;
+
+        private LegacyNumericPointsReader(PointsReader in) {
+            this.in = in;
+        }
+
+        @Override
+        public void checkIntegrity() throws IOException {
+            if (in != null) {
+                in.checkIntegrity();
+            }
+        }
+
+        @Override
+        public PointValues getValues(String field) throws IOException {
+            LegacyNumericPointValues values = pointValues.get(field);
+            if (values != null) {
+                return values;
+            }
+            return in == null ? null : in.getValues(field);
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return in == null ? 0 : in.ramBytesUsed();
+        }
+
+        @Override
+        public void close() {
+            // The segment reader closes its own points reader.
+        }
+    }
+
+    /**
+     * One dimensional points read from the full precision terms of a field, visited in value
+     * order. The full precision terms sort before all the lower precision ones, so reading
+     * stops at the first term with a shift.
+     */
+    private static class LegacyNumericPointValues extends PointValues {
+
+        private final String field;
+
+        private final Terms terms;
+
+        private final byte shiftStart;
+
+        private final int termLength;
+
+        private final int bytesPerDimension;
+
+        private final long size;
+
+        private final int docCount;
+
+        private final byte[] minPackedValue;
+
+        private final byte[] maxPackedValue;
+
+        private LegacyNumericPointValues(String field, Terms terms, byte shiftStart, int termLength,
+                                         int bytesPerDimension, long size, int docCount,
+                                         byte[] minPackedValue, byte[] maxPackedValue) {
+            this.field = field;
+            this.terms = terms;
+            this.shiftStart = shiftStart;
+            this.termLength = termLength;
+            this.bytesPerDimension = bytesPerDimension;
+            this.size = size;
+            this.docCount = docCount;
+            this.minPackedValue = minPackedValue;
+            this.maxPackedValue = maxPackedValue;
+        }
+
+        /**
+         * Works out the width of a field's values from its first term, and counts its points.
+         *
+         * @return the points, or {@code null} if the field has no terms.
+         */
+        private static LegacyNumericPointValues create(String field, Terms terms, int maxDoc) throws IOException {
+            TermsEnum termsEnum = terms.iterator();
+            BytesRef term = termsEnum.next();
+            if (term == null) {
+                return null;
+            }
+            byte shiftStart;
+            int termLength;
+            int bytesPerDimension;
+            if (term.length == LONG_TERM_LENGTH && term.bytes[term.offset] == SHIFT_START_LONG) {
+                shiftStart = SHIFT_START_LONG;
+                termLength = LONG_TERM_LENGTH;
+                bytesPerDimension = Long.BYTES;
+            } else if (term.length == INT_TERM_LENGTH && term.bytes[term.offset] == SHIFT_START_INT) {
+                shiftStart = SHIFT_START_INT;
+                termLength = INT_TERM_LENGTH;
+                bytesPerDimension = Integer.BYTES;
+            } else {
+                throw new IllegalArgumentException("Field '" + field + "' doesn't hold legacy numeric terms");
+            }
+
+            byte[] minPackedValue = new byte[bytesPerDimension];
+            byte[] maxPackedValue = new byte[bytesPerDimension];
+            decode(field, term, minPackedValue);
+            long size = 0;
+            FixedBitSet docsSeen = terms.getDocCount() < 0 ? new FixedBitSet(maxDoc) : null;
+            PostingsEnum postings = null;
+            for (; term != null && isFullPrecision(term, shiftStart, termLength); term = termsEnum.next()) {
+                decode(field, term, maxPackedValue);
+                size += termsEnum.docFreq();
+                if (docsSeen != null) {
+                    postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                    docsSeen.or(postings);
+                }
+            }
+            int docCount = docsSeen != null ? docsSeen.cardinality() : terms.getDocCount();
+            return new LegacyNumericPointValues(field, terms, shiftStart, termLength, bytesPerDimension, size, docCount,
+                                                minPackedValue, maxPackedValue);
+        }
+
+        private static boolean isFullPrecision(BytesRef term, byte shiftStart, int termLength) {
+            return term.length == termLength && term.bytes[term.offset] == shiftStart;
+        }
+
+        /**
+         * Decodes a full precision term into the bytes of a point. The 7-bit chunks after the
+         * shift hold the value with its sign bit flipped, which is exactly how points encode it,
+         * so they only have to be packed back into whole bytes.
+         */
+        private static void decode(String field, BytesRef term, byte[] packedValue) {
+            long sortableBits = 0;
+            for (int i = term.offset + 1; i < term.offset + term.length; i++) {
+                byte b = term.bytes[i];
+                if (b < 0) {
+                    throw new IllegalArgumentException("Field '" + field + "' doesn't hold legacy numeric terms");
+                }
+                sortableBits = (sortableBits << 7) | b;
+            }
+            for (int i = packedValue.length - 1; i >= 0; i--) {
+                packedValue[i] = (byte) sortableBits;
+                sortableBits >>>= 8;
+            }
+        }
+
+        @Override
+        public void intersect(IntersectVisitor visitor) throws IOException {
+            Relation relation = visitor.compare(minPackedValue, maxPackedValue);
+            if (relation == Relation.CELL_OUTSIDE_QUERY) {
+                return;
+            }
+            TermsEnum termsEnum = terms.iterator();
+            PostingsEnum postings = null;
+            byte[] packedValue = new byte[bytesPerDimension];
+            for (BytesRef term = termsEnum.next(); term != null && isFullPrecision(term, shiftStart, termLength);
+                 term = termsEnum.next()) {
+                decode(field, term, packedValue);
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (relation == Relation.CELL_INSIDE_QUERY) {
+                        visitor.visit(doc);
+                    } else {
+                        visitor.visit(doc, packedValue);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public long estimatePointCount(IntersectVisitor visitor) {
+            // The values aren't indexed by anything but term, so this can only bound the count.
+            return visitor.compare(minPackedValue, maxPackedValue) == Relation.CELL_OUTSIDE_QUERY ? 0 : size;
+        }
+
+        @Override
+        public byte[] getMinPackedValue() {
+            return minPackedValue.clone();
+        }
+
+        @Override
+        public byte[] getMaxPackedValue() {
+            return maxPackedValue.clone();
+        }
+
+        @Override
+        public int getNumDataDimensions() {
+            return 1;
+        }
+
+        @Override
+        public int getNumIndexDimensions() {
+            return 1;
+        }
+
+        @Override
+        public int getBytesPerDimension() {
+            return bytesPerDimension;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public int getDocCount() {
+            return docCount;
+        }
+    }
+}
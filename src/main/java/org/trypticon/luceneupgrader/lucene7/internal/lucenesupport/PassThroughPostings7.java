@@ -0,0 +1,12 @@
+package org.trypticon.luceneupgrader.lucene7.internal.lucenesupport;
+
+/**
+ * Marks a {@code FilterCodecReader} which leaves the postings of the reader it wraps exactly as
+ * they are, along with the documents and their order. Merging a single segment through such a
+ * wrapper can then copy the segment's postings without decoding them.
+ *
+ * Wrappers which change anything the postings depend on, like which documents are live or which
+ * terms a field has, must not implement this, and are merged the usual way.
+ */
+public interface PassThroughPostings7 {
+}
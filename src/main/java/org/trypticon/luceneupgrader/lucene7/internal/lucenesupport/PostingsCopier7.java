@@ -0,0 +1,224 @@
+package org.trypticon.luceneupgrader.lucene7.internal.lucenesupport;
+
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.CodecUtil;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.PostingsFormat;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.blocktree.BlockTreeTermsReader;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.lucene50.Lucene50PostingsFormat;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.codecs.perfield.PerFieldPostingsFormat;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.CorruptIndexException;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfo;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfos;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.IndexFileNames;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.SegmentInfo;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.SegmentWriteState;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.ChecksumIndexInput;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.Directory;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.IndexInput;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.IndexOutput;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.util.BytesRef;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.util.fst.ByteSequenceOutputs;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.util.fst.FST;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies the Lucene50 postings of a segment into a new segment without decoding them.
+ *
+ * Lucene 6 and 7 write the postings themselves the same way, so only the headers, which name
+ * the segment, and the footers, which checksum everything before them, have to be rewritten.
+ * Lucene 8 only reads terms dictionaries written since Lucene 6.2, so older ones still have to
+ * be rewritten. The terms index holds an FST for each field, in a version Lucene 8 doesn't
+ * read, so it is rebuilt from the FSTs loaded and saved again, which is cheap because it is small.
+ */
+public class PostingsCopier7 {
+
+    private static final String FORMAT_NAME = "Lucene50";
+
+    private static final String SUFFIX = "0";
+
+    private static final String SEGMENT_SUFFIX = FORMAT_NAME + "_" + SUFFIX;
+
+    /**
+     * The oldest terms dictionary version the next step can read.
+     */
+    private static final int MIN_TERMS_VERSION = BlockTreeTermsReader.VERSION_CURRENT;
+
+    private PostingsCopier7() {
+    }
+
+    /**
+     * Copies the postings of a segment, if they can be copied as they are. They can if every
+     * field with postings uses the Lucene50 format on both sides, keeps the same number, and
+     * the new segment has the same documents in the same order.
+     *
+     * @param sourceDirectory the directory holding the old segment's files, which is its
+     *                        compound file if it has one.
+     * @param sourceInfo the old segment.
+     * @param sourceFieldInfos the old segment's fields.
+     * @param postingsFormat the postings format of the codec writing the new segment.
+     * @param state the state for writing the new segment.
+     * @return {@code true} if the postings were copied, or {@code false} if nothing was
+     *         written and they have to be merged the usual way.
+     * @throws IOException if an error occurs reading or writing, or the old files are corrupt.
+     */
+    public static boolean copy(Directory sourceDirectory, SegmentInfo sourceInfo, FieldInfos sourceFieldInfos,
+                               PostingsFormat postingsFormat, SegmentWriteState state) throws IOException {
+        if (!state.segmentSuffix.isEmpty() || !(postingsFormat instanceof PerFieldPostingsFormat)
+                || sourceFieldInfos.hasProx() != state.fieldInfos.hasProx()
+                || sourceFieldInfos.hasPayloads() != state.fieldInfos.hasPayloads()
+                || sourceFieldInfos.hasOffsets() != state.fieldInfos.hasOffsets()) {
+            return false;
+        }
+        List<FieldInfo> fields = new ArrayList<>();
+        for (FieldInfo sourceField : sourceFieldInfos) {
+            String format = sourceField.getAttribute(PerFieldPostingsFormat.PER_FIELD_FORMAT_KEY);
+            if (format == null) {
+                // No postings for this field.
+                continue;
+            }
+            FieldInfo field = state.fieldInfos.fieldInfo(sourceField.name);
+            if (!FORMAT_NAME.equals(format)
+                    || !SUFFIX.equals(sourceField.getAttribute(PerFieldPostingsFormat.PER_FIELD_SUFFIX_KEY))
+                    || field == null || field.number != sourceField.number
+                    || field.getIndexOptions() != sourceField.getIndexOptions()
+                    || field.hasPayloads() != sourceField.hasPayloads()
+                    || !FORMAT_NAME.equals(((PerFieldPostingsFormat) postingsFormat)
+                                                   .getPostingsFormatForField(field.name).getName())) {
+                return false;
+            }
+            fields.add(field);
+        }
+        if (fields.isEmpty()) {
+            return false;
+        }
+
+        if (!copyTermsDictionary(sourceDirectory, sourceInfo, state)) {
+            return false;
+        }
+        rewriteTermsIndex(sourceDirectory, sourceInfo, state);
+        copyFile(sourceDirectory, sourceInfo, state, Lucene50PostingsFormat.DOC_EXTENSION,
+                 Lucene50PostingsFormat.DOC_CODEC, Lucene50PostingsFormat.VERSION_START,
+                 Lucene50PostingsFormat.VERSION_CURRENT);
+        if (state.fieldInfos.hasProx()) {
+            copyFile(sourceDirectory, sourceInfo, state, Lucene50PostingsFormat.POS_EXTENSION,
+                     Lucene50PostingsFormat.POS_CODEC, Lucene50PostingsFormat.VERSION_START,
+                     Lucene50PostingsFormat.VERSION_CURRENT);
+            if (state.fieldInfos.hasPayloads() || state.fieldInfos.hasOffsets()) {
+                copyFile(sourceDirectory, sourceInfo, state, Lucene50PostingsFormat.PAY_EXTENSION,
+                         Lucene50PostingsFormat.PAY_CODEC, Lucene50PostingsFormat.VERSION_START,
+                         Lucene50PostingsFormat.VERSION_CURRENT);
+            }
+        }
+
+        for (FieldInfo field : fields) {
+            field.putAttribute(PerFieldPostingsFormat.PER_FIELD_FORMAT_KEY, FORMAT_NAME);
+            field.putAttribute(PerFieldPostingsFormat.PER_FIELD_SUFFIX_KEY, SUFFIX);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the terms dictionary, which holds the postings writer's header as well as its own.
+     *
+     * @return {@code false} if the dictionary is too old to copy, in which case nothing is written.
+     */
+    private static boolean copyTermsDictionary(Directory sourceDirectory, SegmentInfo sourceInfo,
+                                               SegmentWriteState state) throws IOException {
+        String sourceName = IndexFileNames.segmentFileName(sourceInfo.name, SEGMENT_SUFFIX,
+                                                           BlockTreeTermsReader.TERMS_EXTENSION);
+        try (ChecksumIndexInput in = sourceDirectory.openChecksumInput(sourceName, state.context)) {
+            int version = CodecUtil.checkIndexHeader(in, BlockTreeTermsReader.TERMS_CODEC_NAME,
+                                                     BlockTreeTermsReader.VERSION_START,
+                                                     BlockTreeTermsReader.VERSION_CURRENT,
+                                                     sourceInfo.getId(), SEGMENT_SUFFIX);
+            if (version < MIN_TERMS_VERSION) {
+                return false;
+            }
+
+            try (IndexOutput out = createOutput(state, BlockTreeTermsReader.TERMS_EXTENSION)) {
+                CodecUtil.writeIndexHeader(out, BlockTreeTermsReader.TERMS_CODEC_NAME, version,
+                                           state.segmentInfo.getId(), SEGMENT_SUFFIX);
+                copyHeader(in, out, sourceInfo, state, Lucene50PostingsFormat.TERMS_CODEC,
+                           Lucene50PostingsFormat.VERSION_START, Lucene50PostingsFormat.VERSION_CURRENT);
+                copyBody(in, out);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rewrites the terms index, which is each field's FST one after another, then the file
+     * pointer to each FST, then the file pointer to those.
+     */
+    private static void rewriteTermsIndex(Directory sourceDirectory, SegmentInfo sourceInfo,
+                                          SegmentWriteState state) throws IOException {
+        String sourceName = IndexFileNames.segmentFileName(sourceInfo.name, SEGMENT_SUFFIX,
+                                                           BlockTreeTermsReader.TERMS_INDEX_EXTENSION);
+        long directoryStart;
+        try (IndexInput in = sourceDirectory.openInput(sourceName, state.context)) {
+            in.seek(in.length() - CodecUtil.footerLength() - Long.BYTES);
+            directoryStart = in.readLong();
+        }
+
+        try (ChecksumIndexInput in = sourceDirectory.openChecksumInput(sourceName, state.context);
+             IndexOutput out = createOutput(state, BlockTreeTermsReader.TERMS_INDEX_EXTENSION)) {
+            copyHeader(in, out, sourceInfo, state, BlockTreeTermsReader.TERMS_INDEX_CODEC_NAME,
+                       MIN_TERMS_VERSION, BlockTreeTermsReader.VERSION_CURRENT);
+            List<long[]> startPointers = new ArrayList<>();
+            while (in.getFilePointer() < directoryStart) {
+                long sourcePointer = in.getFilePointer();
+                FST<BytesRef> index = new FST<>(in, ByteSequenceOutputs.getSingleton());
+                startPointers.add(new long[] { sourcePointer, out.getFilePointer() });
+                index.save(out);
+            }
+
+            long newDirectoryStart = out.getFilePointer();
+            for (long[] startPointer : startPointers) {
+                if (in.readVLong() != startPointer[0]) {
+                    throw new CorruptIndexException("terms index doesn't list its FSTs in order", in);
+                }
+                out.writeVLong(startPointer[1]);
+            }
+            if (in.readLong() != directoryStart) {
+                throw new CorruptIndexException("terms index has more entries than FSTs", in);
+            }
+            out.writeLong(newDirectoryStart);
+            CodecUtil.checkFooter(in);
+            CodecUtil.writeFooter(out);
+        }
+    }
+
+    private static void copyFile(Directory sourceDirectory, SegmentInfo sourceInfo, SegmentWriteState state,
+                                 String extension, String codec, int minVersion, int maxVersion) throws IOException {
+        String sourceName = IndexFileNames.segmentFileName(sourceInfo.name, SEGMENT_SUFFIX, extension);
+        try (ChecksumIndexInput in = sourceDirectory.openChecksumInput(sourceName, state.context);
+             IndexOutput out = createOutput(state, extension)) {
+            copyHeader(in, out, sourceInfo, state, codec, minVersion, maxVersion);
+            copyBody(in, out);
+        }
+    }
+
+    private static IndexOutput createOutput(SegmentWriteState state, String extension) throws IOException {
+        return state.directory.createOutput(
+                IndexFileNames.segmentFileName(state.segmentInfo.name, SEGMENT_SUFFIX, extension), state.context);
+    }
+
+    private static void copyHeader(ChecksumIndexInput in, IndexOutput out, SegmentInfo sourceInfo,
+                                   SegmentWriteState state, String codec, int minVersion, int maxVersion)
+            throws IOException {
+        int version = CodecUtil.checkIndexHeader(in, codec, minVersion, maxVersion, sourceInfo.getId(), SEGMENT_SUFFIX);
+        CodecUtil.writeIndexHeader(out, codec, version, state.segmentInfo.getId(), SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Copies everything up to the footer, then checks the old footer before writing the new one,
+     * so that a corrupt file isn't given a checksum which passes.
+     */
+    private static void copyBody(ChecksumIndexInput in, IndexOutput out) throws IOException {
+        out.copyBytes(in, in.length() - CodecUtil.footerLength() - in.getFilePointer());
+        CodecUtil.checkFooter(in);
+        CodecUtil.writeFooter(out);
+    }
+}
@@ -0,0 +1,326 @@
+package org.trypticon.luceneupgrader.lucene7.internal.lucenesupport;
+
+import org.trypticon.luceneupgrader.HopMetrics;
+import org.trypticon.luceneupgrader.IOThrottle;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.Directory;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.FilterDirectory;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.IOContext;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.IndexInput;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.IndexOutput;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.RandomAccessInput;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A directory which throttles and counts reads and writes to every file opened through it.
+ */
+public class ThrottledDirectory7 extends FilterDirectory {
+
+    private final IOThrottle throttle;
+
+    private final HopMetrics metrics;
+
+    private ThrottledDirectory7(Directory in, IOThrottle throttle, HopMetrics metrics) {
+        super(in);
+        this.throttle = throttle;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Wraps a directory to throttle it and count the bytes going through it.
+     *
+     * @param directory the directory to wrap.
+     * @param throttle the throttle to apply, or {@code null} for none.
+     * @param metrics the metrics to count bytes into, or {@code null} for none.
+     * @return the wrapped directory, or the same directory if there is nothing to do.
+     */
+    public static Directory wrap(Directory directory, IOThrottle throttle, HopMetrics metrics) {
+        return throttle == null && metrics == null ? directory : new ThrottledDirectory7(directory, throttle, metrics);
+    }
+
+    @Override
+    public IndexOutput createOutput(String name, IOContext context) throws IOException {
+        return new ThrottledIndexOutput(in.createOutput(name, context), throttle, metrics);
+    }
+
+    @Override
+    public IndexOutput createTempOutput(String prefix, String suffix, IOContext context) throws IOException {
+        return new ThrottledIndexOutput(in.createTempOutput(prefix, suffix, context), throttle, metrics);
+    }
+
+    @Override
+    public IndexInput openInput(String name, IOContext context) throws IOException {
+        return new ThrottledIndexInput(in.openInput(name, context), throttle, metrics);
+    }
+
+    private static class ThrottledIndexInput extends IndexInput implements RandomAccessInput {
+        private IndexInput in;
+        private RandomAccessInput randomAccess;
+        private final IOThrottle throttle;
+        private final HopMetrics metrics;
+        /**
+         * Shared with every clone and slice of the file. Clones are dropped without being closed,
+         * so what they read is added here as they go, and counted by whichever of them next
+         * reaches the interval, or when the file is closed.
+         */
+        private final LongAdder uncountedBytes;
+        private long pendingBytes;
+        private long bytesSinceCount;
+        private long timedNanos;
+        private long timedBytes;
+
+        private ThrottledIndexInput(IndexInput in, IOThrottle throttle, HopMetrics metrics) {
+            this(in, throttle, metrics, metrics == null ? null : new LongAdder());
+        }
+
+        private ThrottledIndexInput(IndexInput in, IOThrottle throttle, HopMetrics metrics, LongAdder uncountedBytes) {
+            super(in.toString());
+            this.in = in;
+            this.throttle = throttle;
+            this.metrics = metrics;
+            this.uncountedBytes = uncountedBytes;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            byte b = in.readByte();
+            account(1);
+            return b;
+        }
+
+        @Override
+        public void readBytes(byte[] b, int offset, int len) throws IOException {
+            if (throttle == null || len < IOThrottle.MIN_TIMED_BYTES) {
+                in.readBytes(b, offset, len);
+            } else {
+                long start = System.nanoTime();
+                in.readBytes(b, offset, len);
+                recordLatency(System.nanoTime() - start, len);
+            }
+            account(len);
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            short value = in.readShort();
+            account(Short.BYTES);
+            return value;
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            int value = in.readInt();
+            account(Integer.BYTES);
+            return value;
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            long value = in.readLong();
+            account(Long.BYTES);
+            return value;
+        }
+
+        @Override
+        public int readVInt() throws IOException {
+            long start = in.getFilePointer();
+            int value = in.readVInt();
+            account(in.getFilePointer() - start);
+            return value;
+        }
+
+        @Override
+        public long readVLong() throws IOException {
+            long start = in.getFilePointer();
+            long value = in.readVLong();
+            account(in.getFilePointer() - start);
+            return value;
+        }
+
+        @Override
+        public String readString() throws IOException {
+            long start = in.getFilePointer();
+            String value = in.readString();
+            account(in.getFilePointer() - start);
+            return value;
+        }
+        @Override
+        public byte readByte(long pos) throws IOException {
+            byte b = randomAccess().readByte(pos);
+            account(1);
+            return b;
+        }
+
+        @Override
+        public short readShort(long pos) throws IOException {
+            short value = randomAccess().readShort(pos);
+            account(Short.BYTES);
+            return value;
+        }
+
+        @Override
+        public int readInt(long pos) throws IOException {
+            int value = randomAccess().readInt(pos);
+            account(Integer.BYTES);
+            return value;
+        }
+
+        @Override
+        public long readLong(long pos) throws IOException {
+            long value = randomAccess().readLong(pos);
+            account(Long.BYTES);
+            return value;
+        }
+
+        private RandomAccessInput randomAccess() throws IOException {
+            if (randomAccess == null) {
+                randomAccess = in instanceof RandomAccessInput
+                        ? (RandomAccessInput) in : in.randomAccessSlice(0, in.length());
+            }
+            return randomAccess;
+        }
+
+        private void recordLatency(long nanos, long bytes) {
+            timedNanos += nanos;
+            if ((timedBytes += bytes) >= IOThrottle.TIMING_WINDOW_BYTES) {
+                throttle.recordLatency(timedNanos, timedBytes);
+                timedNanos = 0;
+                timedBytes = 0;
+            }
+        }
+
+        private void account(long bytes) throws IOException {
+            if (throttle != null) {
+                pendingBytes = throttle.throttle(pendingBytes + bytes);
+            }
+            if (metrics != null) {
+                uncountedBytes.add(bytes);
+                if ((bytesSinceCount += bytes) >= HopMetrics.COUNT_INTERVAL) {
+                    metrics.addBytesRead(uncountedBytes.sumThenReset());
+                    bytesSinceCount = 0;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (metrics != null) {
+                metrics.addBytesRead(uncountedBytes.sumThenReset());
+                bytesSinceCount = 0;
+            }
+            in.close();
+        }
+
+        @Override
+        public long getFilePointer() {
+            return in.getFilePointer();
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            in.seek(pos);
+        }
+
+        @Override
+        public long length() {
+            return in.length();
+        }
+
+        @Override
+        public ThrottledIndexInput slice(String sliceDescription, long offset, long length) throws IOException {
+            return new ThrottledIndexInput(in.slice(sliceDescription, offset, length), throttle, metrics, uncountedBytes);
+        }
+
+        @Override
+        public RandomAccessInput randomAccessSlice(long offset, long length) throws IOException {
+            // Reads at a position go straight to the wrapped slice, instead of seeking and reading.
+            return slice("randomaccess", offset, length);
+        }
+
+        @Override
+        public ThrottledIndexInput clone() {
+            ThrottledIndexInput clone = (ThrottledIndexInput) super.clone();
+            clone.in = in.clone();
+            clone.randomAccess = null;
+            clone.pendingBytes = 0;
+            clone.bytesSinceCount = 0;
+            clone.timedNanos = 0;
+            clone.timedBytes = 0;
+            return clone;
+        }
+    }
+
+    private static class ThrottledIndexOutput extends IndexOutput {
+        private final IndexOutput out;
+        private final IOThrottle throttle;
+        private final HopMetrics metrics;
+        private long pendingBytes;
+        private long uncountedBytes;
+        private long timedNanos;
+        private long timedBytes;
+
+        private ThrottledIndexOutput(IndexOutput out, IOThrottle throttle, HopMetrics metrics) {
+            super(out.toString(), out.getName());
+            this.out = out;
+            this.throttle = throttle;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void writeByte(byte b) throws IOException {
+            out.writeByte(b);
+            account(1);
+        }
+
+        @Override
+        public void writeBytes(byte[] b, int offset, int length) throws IOException {
+            if (throttle == null || length < IOThrottle.MIN_TIMED_BYTES) {
+                out.writeBytes(b, offset, length);
+            } else {
+                long start = System.nanoTime();
+                out.writeBytes(b, offset, length);
+                recordLatency(System.nanoTime() - start, length);
+            }
+            account(length);
+        }
+
+        private void recordLatency(long nanos, long bytes) {
+            timedNanos += nanos;
+            if ((timedBytes += bytes) >= IOThrottle.TIMING_WINDOW_BYTES) {
+                throttle.recordLatency(timedNanos, timedBytes);
+                timedNanos = 0;
+                timedBytes = 0;
+            }
+        }
+
+        private void account(long bytes) throws IOException {
+            if (throttle != null) {
+                pendingBytes = throttle.throttle(pendingBytes + bytes);
+            }
+            if (metrics != null && (uncountedBytes += bytes) >= HopMetrics.COUNT_INTERVAL) {
+                metrics.addBytesWritten(uncountedBytes);
+                uncountedBytes = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (metrics != null) {
+                metrics.addBytesWritten(uncountedBytes);
+                uncountedBytes = 0;
+            }
+            out.close();
+        }
+
+        @Override
+        public long getFilePointer() {
+            return out.getFilePointer();
+        }
+
+        @Override
+        public long getChecksum() throws IOException {
+            return out.getChecksum();
+        }
+    }
+}
@@ -0,0 +1,815 @@
+package org.trypticon.luceneupgrader.lucene8;
+
+import org.apache.lucene.index.BaseTermsEnum;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.LeafMetaData;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SlowImpactsEnum;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.AtomicReader;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.DocsAndPositionsEnum;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.DocsEnum;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Presents a Lucene 4 reader as a Lucene 8 reader, so that a Lucene 8 writer can consume
+ * a Lucene 3 or 4 segment directly.
+ *
+ * Values are passed through as-is, the same way each intermediate version would have
+ * copied them: norms are dense, and doc values exist for the documents the old reader
+ * reports as having the field.
+ */
+class AdaptedLucene4LeafReader extends LeafReader {
+    private final AtomicReader in;
+    private final FieldInfos fieldInfos;
+    private final Bits liveDocs;
+    private final LeafMetaData metaData;
+
+    AdaptedLucene4LeafReader(AtomicReader in) {
+        this.in = in;
+
+        List<FieldInfo> infos = new ArrayList<>();
+        for (org.trypticon.luceneupgrader.lucene4.internal.lucene.index.FieldInfo info : in.getFieldInfos()) {
+            infos.add(adaptFieldInfo(info));
+        }
+        fieldInfos = new FieldInfos(infos.toArray(new FieldInfo[0]));
+
+        org.trypticon.luceneupgrader.lucene4.internal.lucene.util.Bits inLiveDocs = in.getLiveDocs();
+        liveDocs = inLiveDocs == null ? null : new AdaptedBits(inLiveDocs);
+
+        metaData = new LeafMetaData(8, Version.LUCENE_8_0_0, null);
+    }
+
+    private static FieldInfo adaptFieldInfo(org.trypticon.luceneupgrader.lucene4.internal.lucene.index.FieldInfo info) {
+        IndexOptions indexOptions = info.isIndexed() ? adaptIndexOptions(info.getIndexOptions()) : IndexOptions.NONE;
+        boolean indexed = indexOptions != IndexOptions.NONE;
+        boolean hasPositions = indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
+        return new FieldInfo(info.name, info.number,
+                indexed && info.hasVectors(),
+                indexed && !info.hasNorms(),
+                hasPositions && info.hasPayloads(),
+                indexOptions,
+                adaptDocValuesType(info.getDocValuesType()),
+                -1, new HashMap<>(), 0, 0, 0, false);
+    }
+
+    private static IndexOptions adaptIndexOptions(
+            org.trypticon.luceneupgrader.lucene4.internal.lucene.index.FieldInfo.IndexOptions indexOptions) {
+        switch (indexOptions) {
+            case DOCS_ONLY:
+                return IndexOptions.DOCS;
+            case DOCS_AND_FREQS:
+                return IndexOptions.DOCS_AND_FREQS;
+            case DOCS_AND_FREQS_AND_POSITIONS:
+                return IndexOptions.DOCS_AND_FREQS_AND_POSITIONS;
+            case DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS:
+                return IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS;
+            default:
+                throw new IllegalArgumentException("Unknown index options: " + indexOptions);
+        }
+    }
+
+    private static DocValuesType adaptDocValuesType(
+            org.trypticon.luceneupgrader.lucene4.internal.lucene.index.FieldInfo.DocValuesType docValuesType) {
+        if (docValuesType == null) {
+            return DocValuesType.NONE;
+        }
+        switch (docValuesType) {
+            case NUMERIC:
+                return DocValuesType.NUMERIC;
+            case BINARY:
+                return DocValuesType.BINARY;
+            case SORTED:
+                return DocValuesType.SORTED;
+            case SORTED_NUMERIC:
+                return DocValuesType.SORTED_NUMERIC;
+            case SORTED_SET:
+                return DocValuesType.SORTED_SET;
+            default:
+                throw new IllegalArgumentException("Unknown doc values type: " + docValuesType);
+        }
+    }
+
+    private static BytesRef adaptBytesRef(org.trypticon.luceneupgrader.lucene4.internal.lucene.util.BytesRef ref,
+                                          BytesRef scratch) {
+        if (ref == null) {
+            return null;
+        }
+        scratch.bytes = ref.bytes;
+        scratch.offset = ref.offset;
+        scratch.length = ref.length;
+        return scratch;
+    }
+
+    private static org.trypticon.luceneupgrader.lucene4.internal.lucene.util.BytesRef toLucene4(BytesRef ref) {
+        return new org.trypticon.luceneupgrader.lucene4.internal.lucene.util.BytesRef(ref.bytes, ref.offset, ref.length);
+    }
+
+    @Override
+    public Terms terms(String field) throws IOException {
+        org.trypticon.luceneupgrader.lucene4.internal.lucene.index.Terms terms = in.terms(field);
+        return terms == null ? null : new AdaptedTerms(terms);
+    }
+
+    @Override
+    public NumericDocValues getNumericDocValues(String field) throws IOException {
+        if (!hasDocValues(field, DocValuesType.NUMERIC)) {
+            return null;
+        }
+        return adaptNumeric(in.getNumericDocValues(field), in.getDocsWithField(field));
+    }
+
+    @Override
+    public BinaryDocValues getBinaryDocValues(String field) throws IOException {
+        if (!hasDocValues(field, DocValuesType.BINARY)) {
+            return null;
+        }
+        org.trypticon.luceneupgrader.lucene4.internal.lucene.index.BinaryDocValues values = in.getBinaryDocValues(field);
+        DocCursor cursor = new DocCursor(in.getDocsWithField(field), maxDoc());
+        BytesRef scratch = new BytesRef();
+        return new BinaryDocValues() {
+            @Override
+            public BytesRef binaryValue() {
+                return adaptBytesRef(values.get(cursor.doc), scratch);
+            }
+
+            @Override
+            public boolean advanceExact(int target) {
+                return cursor.advanceExact(target);
+            }
+
+            @Override
+            public int docID() {
+                return cursor.doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                return cursor.advance(cursor.doc + 1);
+            }
+
+            @Override
+            public int advance(int target) {
+                return cursor.advance(target);
+            }
+
+            @Override
+            public long cost() {
+                return cursor.maxDoc;
+            }
+        };
+    }
+
+    @Override
+    public SortedDocValues getSortedDocValues(String field) throws IOException {
+        if (!hasDocValues(field, DocValuesType.SORTED)) {
+            return null;
+        }
+        org.trypticon.luceneupgrader.lucene4.internal.lucene.index.SortedDocValues values = in.getSortedDocValues(field);
+        DocCursor cursor = new DocCursor(in.getDocsWithField(field), maxDoc());
+        BytesRef scratch = new BytesRef();
+        return new SortedDocValues() {
+            @Override
+            public int ordValue() {
+                return values.getOrd(cursor.doc);
+            }
+
+            @Override
+            public BytesRef lookupOrd(int ord) {
+                return adaptBytesRef(values.lookupOrd(ord), scratch);
+            }
+
+            @Override
+            public int getValueCount() {
+                return values.getValueCount();
+            }
+
+            @Override
+            public boolean advanceExact(int target) {
+                return cursor.advanceExact(target);
+            }
+
+            @Override
+            public int docID() {
+                return cursor.doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                return cursor.advance(cursor.doc + 1);
+            }
+
+            @Override
+            public int advance(int target) {
+                return cursor.advance(target);
+            }
+
+            @Override
+            public long cost() {
+                return cursor.maxDoc;
+            }
+        };
+    }
+
+    @Override
+    public SortedNumericDocValues getSortedNumericDocValues(String field) throws IOException {
+        if (!hasDocValues(field, DocValuesType.SORTED_NUMERIC)) {
+            return null;
+        }
+        org.trypticon.luceneupgrader.lucene4.internal.lucene.index.SortedNumericDocValues values =
+                in.getSortedNumericDocValues(field);
+        DocCursor cursor = new DocCursor(in.getDocsWithField(field), maxDoc()) {
+            @Override
+            void positioned(int doc) {
+                values.setDocument(doc);
+            }
+        };
+        return new SortedNumericDocValues() {
+            private int index;
+
+            @Override
+            public long nextValue() {
+                return values.valueAt(index++);
+            }
+
+            @Override
+            public int docValueCount() {
+                return values.count();
+            }
+
+            @Override
+            public boolean advanceExact(int target) {
+                index = 0;
+                return cursor.advanceExact(target);
+            }
+
+            @Override
+            public int docID() {
+                return cursor.doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                index = 0;
+                return cursor.advance(cursor.doc + 1);
+            }
+
+            @Override
+            public int advance(int target) {
+                index = 0;
+                return cursor.advance(target);
+            }
+
+            @Override
+            public long cost() {
+                return cursor.maxDoc;
+            }
+        };
+    }
+
+    @Override
+    public SortedSetDocValues getSortedSetDocValues(String field) throws IOException {
+        if (!hasDocValues(field, DocValuesType.SORTED_SET)) {
+            return null;
+        }
+        org.trypticon.luceneupgrader.lucene4.internal.lucene.index.SortedSetDocValues values =
+                in.getSortedSetDocValues(field);
+        DocCursor cursor = new DocCursor(in.getDocsWithField(field), maxDoc()) {
+            @Override
+            void positioned(int doc) {
+                values.setDocument(doc);
+            }
+        };
+        BytesRef scratch = new BytesRef();
+        return new SortedSetDocValues() {
+            @Override
+            public long nextOrd() {
+                // Both versions use -1 to signal the end.
+                return values.nextOrd();
+            }
+
+            @Override
+            public BytesRef lookupOrd(long ord) {
+                return adaptBytesRef(values.lookupOrd(ord), scratch);
+            }
+
+            @Override
+            public long getValueCount() {
+                return values.getValueCount();
+            }
+
+            @Override
+            public boolean advanceExact(int target) {
+                return cursor.advanceExact(target);
+            }
+
+            @Override
+            public int docID() {
+                return cursor.doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                return cursor.advance(cursor.doc + 1);
+            }
+
+            @Override
+            public int advance(int target) {
+                return cursor.advance(target);
+            }
+
+            @Override
+            public long cost() {
+                return cursor.maxDoc;
+            }
+        };
+    }
+
+    @Override
+    public NumericDocValues getNormValues(String field) throws IOException {
+        FieldInfo info = fieldInfos.fieldInfo(field);
+        if (info == null || !info.hasNorms()) {
+            return null;
+        }
+        org.trypticon.luceneupgrader.lucene4.internal.lucene.index.NumericDocValues norms = in.getNormValues(field);
+        if (norms == null) {
+            return null;
+        }
+        return adaptNumeric(norms,
+                new org.trypticon.luceneupgrader.lucene4.internal.lucene.util.Bits.MatchAllBits(maxDoc()));
+    }
+
+    private boolean hasDocValues(String field, DocValuesType type) {
+        FieldInfo info = fieldInfos.fieldInfo(field);
+        return info != null && info.getDocValuesType() == type;
+    }
+
+    private NumericDocValues adaptNumeric(org.trypticon.luceneupgrader.lucene4.internal.lucene.index.NumericDocValues values,
+                                          org.trypticon.luceneupgrader.lucene4.internal.lucene.util.Bits docsWithField) {
+        DocCursor cursor = new DocCursor(docsWithField, maxDoc());
+        return new NumericDocValues() {
+            @Override
+            public long longValue() {
+                return values.get(cursor.doc);
+            }
+
+            @Override
+            public boolean advanceExact(int target) {
+                return cursor.advanceExact(target);
+            }
+
+            @Override
+            public int docID() {
+                return cursor.doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                return cursor.advance(cursor.doc + 1);
+            }
+
+            @Override
+            public int advance(int target) {
+                return cursor.advance(target);
+            }
+
+            @Override
+            public long cost() {
+                return cursor.maxDoc;
+            }
+        };
+    }
+
+    @Override
+    public FieldInfos getFieldInfos() {
+        return fieldInfos;
+    }
+
+    @Override
+    public Bits getLiveDocs() {
+        return liveDocs;
+    }
+
+    @Override
+    public PointValues getPointValues(String field) {
+        // Points didn't exist until Lucene 6.
+        return null;
+    }
+
+    @Override
+    public void checkIntegrity() throws IOException {
+        in.checkIntegrity();
+    }
+
+    @Override
+    public LeafMetaData getMetaData() {
+        return metaData;
+    }
+
+    @Override
+    public Fields getTermVectors(int docID) throws IOException {
+        org.trypticon.luceneupgrader.lucene4.internal.lucene.index.Fields vectors = in.getTermVectors(docID);
+        return vectors == null ? null : new AdaptedFields(vectors);
+    }
+
+    @Override
+    public int numDocs() {
+        return in.numDocs();
+    }
+
+    @Override
+    public int maxDoc() {
+        return in.maxDoc();
+    }
+
+    @Override
+    public void document(int docID, StoredFieldVisitor visitor) throws IOException {
+        in.document(docID, new AdaptedStoredFieldVisitor(visitor));
+    }
+
+    @Override
+    protected void doClose() {
+        // The wrapped reader belongs to whoever opened it.
+    }
+
+    @Override
+    public CacheHelper getCoreCacheHelper() {
+        return null;
+    }
+
+    @Override
+    public CacheHelper getReaderCacheHelper() {
+        return null;
+    }
+
+    /**
+     * Walks the documents which have a value, as the Lucene 4 API only offers random access.
+     */
+    private static class DocCursor {
+        private final org.trypticon.luceneupgrader.lucene4.internal.lucene.util.Bits docsWithField;
+        private final int maxDoc;
+        private int doc = -1;
+
+        private DocCursor(org.trypticon.luceneupgrader.lucene4.internal.lucene.util.Bits docsWithField, int maxDoc) {
+            this.docsWithField = docsWithField;
+            this.maxDoc = maxDoc;
+        }
+
+        int advance(int target) {
+            for (int candidate = target; candidate < maxDoc; candidate++) {
+                if (docsWithField.get(candidate)) {
+                    doc = candidate;
+                    positioned(candidate);
+                    return doc;
+                }
+            }
+            doc = DocIdSetIterator.NO_MORE_DOCS;
+            return doc;
+        }
+
+        boolean advanceExact(int target) {
+            doc = target;
+            if (docsWithField.get(target)) {
+                positioned(target);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Called when the cursor lands on a document with a value.
+         *
+         * @param doc the document.
+         */
+        void positioned(int doc) {
+        }
+    }
+
+    private static class AdaptedBits implements Bits {
+        private final org.trypticon.luceneupgrader.lucene4.internal.lucene.util.Bits in;
+
+        private AdaptedBits(org.trypticon.luceneupgrader.lucene4.internal.lucene.util.Bits in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean get(int index) {
+            return in.get(index);
+        }
+
+        @Override
+        public int length() {
+            return in.length();
+        }
+    }
+
+    private class AdaptedStoredFieldVisitor
+            extends org.trypticon.luceneupgrader.lucene4.internal.lucene.index.StoredFieldVisitor {
+        private final StoredFieldVisitor out;
+
+        private AdaptedStoredFieldVisitor(StoredFieldVisitor out) {
+            this.out = out;
+        }
+
+        private FieldInfo adapt(org.trypticon.luceneupgrader.lucene4.internal.lucene.index.FieldInfo fieldInfo) {
+            return fieldInfos.fieldInfo(fieldInfo.number);
+        }
+
+        @Override
+        public void binaryField(org.trypticon.luceneupgrader.lucene4.internal.lucene.index.FieldInfo fieldInfo,
+                                byte[] value) throws IOException {
+            out.binaryField(adapt(fieldInfo), value);
+        }
+
+        @Override
+        public void stringField(org.trypticon.luceneupgrader.lucene4.internal.lucene.index.FieldInfo fieldInfo,
+                                String value) throws IOException {
+            out.stringField(adapt(fieldInfo), value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void intField(org.trypticon.luceneupgrader.lucene4.internal.lucene.index.FieldInfo fieldInfo,
+                             int value) throws IOException {
+            out.intField(adapt(fieldInfo), value);
+        }
+
+        @Override
+        public void longField(org.trypticon.luceneupgrader.lucene4.internal.lucene.index.FieldInfo fieldInfo,
+                              long value) throws IOException {
+            out.longField(adapt(fieldInfo), value);
+        }
+
+        @Override
+        public void floatField(org.trypticon.luceneupgrader.lucene4.internal.lucene.index.FieldInfo fieldInfo,
+                               float value) throws IOException {
+            out.floatField(adapt(fieldInfo), value);
+        }
+
+        @Override
+        public void doubleField(org.trypticon.luceneupgrader.lucene4.internal.lucene.index.FieldInfo fieldInfo,
+                                double value) throws IOException {
+            out.doubleField(adapt(fieldInfo), value);
+        }
+
+        @Override
+        public Status needsField(org.trypticon.luceneupgrader.lucene4.internal.lucene.index.FieldInfo fieldInfo)
+                throws IOException {
+            switch (out.needsField(adapt(fieldInfo))) {
+                case YES:
+                    return Status.YES;
+                case NO:
+                    return Status.NO;
+                case STOP:
+                    return Status.STOP;
+                default:
+                    throw new IllegalStateException("Unknown status");
+            }
+        }
+    }
+
+    private static class AdaptedFields extends Fields {
+        private final org.trypticon.luceneupgrader.lucene4.internal.lucene.index.Fields in;
+
+        private AdaptedFields(org.trypticon.luceneupgrader.lucene4.internal.lucene.index.Fields in) {
+            this.in = in;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return in.iterator();
+        }
+
+        @Override
+        public Terms terms(String field) throws IOException {
+            org.trypticon.luceneupgrader.lucene4.internal.lucene.index.Terms terms = in.terms(field);
+            return terms == null ? null : new AdaptedTerms(terms);
+        }
+
+        @Override
+        public int size() {
+            return in.size();
+        }
+    }
+
+    private static class AdaptedTerms extends Terms {
+        private final org.trypticon.luceneupgrader.lucene4.internal.lucene.index.Terms in;
+
+        private AdaptedTerms(org.trypticon.luceneupgrader.lucene4.internal.lucene.index.Terms in) {
+            this.in = in;
+        }
+
+        @Override
+        public TermsEnum iterator() throws IOException {
+            return new AdaptedTermsEnum(in.iterator(null), in);
+        }
+
+        @Override
+        public long size() throws IOException {
+            return in.size();
+        }
+
+        @Override
+        public long getSumTotalTermFreq() throws IOException {
+            // Lucene 8 reports the doc freq in place of missing term freqs.
+            return in.hasFreqs() ? in.getSumTotalTermFreq() : in.getSumDocFreq();
+        }
+
+        @Override
+        public long getSumDocFreq() throws IOException {
+            return in.getSumDocFreq();
+        }
+
+        @Override
+        public int getDocCount() throws IOException {
+            return in.getDocCount();
+        }
+
+        @Override
+        public boolean hasFreqs() {
+            return in.hasFreqs();
+        }
+
+        @Override
+        public boolean hasOffsets() {
+            return in.hasOffsets();
+        }
+
+        @Override
+        public boolean hasPositions() {
+            return in.hasPositions();
+        }
+
+        @Override
+        public boolean hasPayloads() {
+            return in.hasPayloads();
+        }
+    }
+
+    private static class AdaptedTermsEnum extends BaseTermsEnum {
+        private final org.trypticon.luceneupgrader.lucene4.internal.lucene.index.TermsEnum in;
+        private final boolean hasFreqs;
+        private final boolean hasProx;
+        private final BytesRef scratch = new BytesRef();
+
+        private AdaptedTermsEnum(org.trypticon.luceneupgrader.lucene4.internal.lucene.index.TermsEnum in,
+                                 org.trypticon.luceneupgrader.lucene4.internal.lucene.index.Terms terms) {
+            this.in = in;
+            hasFreqs = terms.hasFreqs();
+            // Term vectors can store offsets without positions.
+            hasProx = terms.hasPositions() || terms.hasOffsets();
+        }
+
+        @Override
+        public BytesRef next() throws IOException {
+            return adaptBytesRef(in.next(), scratch);
+        }
+
+        @Override
+        public SeekStatus seekCeil(BytesRef text) throws IOException {
+            switch (in.seekCeil(toLucene4(text))) {
+                case FOUND:
+                    return SeekStatus.FOUND;
+                case NOT_FOUND:
+                    return SeekStatus.NOT_FOUND;
+                case END:
+                    return SeekStatus.END;
+                default:
+                    throw new IllegalStateException("Unknown seek status");
+            }
+        }
+
+        @Override
+        public void seekExact(long ord) throws IOException {
+            in.seekExact(ord);
+        }
+
+        @Override
+        public BytesRef term() throws IOException {
+            return adaptBytesRef(in.term(), scratch);
+        }
+
+        @Override
+        public long ord() throws IOException {
+            return in.ord();
+        }
+
+        @Override
+        public int docFreq() throws IOException {
+            return in.docFreq();
+        }
+
+        @Override
+        public long totalTermFreq() throws IOException {
+            return hasFreqs ? in.totalTermFreq() : in.docFreq();
+        }
+
+        @Override
+        public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
+            AdaptedPostingsEnum reusable = reuse instanceof AdaptedPostingsEnum ? (AdaptedPostingsEnum) reuse : null;
+
+            if (hasProx && PostingsEnum.featureRequested(flags, PostingsEnum.POSITIONS)) {
+                int inFlags = 0;
+                if (PostingsEnum.featureRequested(flags, PostingsEnum.OFFSETS)) {
+                    inFlags |= DocsAndPositionsEnum.FLAG_OFFSETS;
+                }
+                if (PostingsEnum.featureRequested(flags, PostingsEnum.PAYLOADS)) {
+                    inFlags |= DocsAndPositionsEnum.FLAG_PAYLOADS;
+                }
+                DocsAndPositionsEnum positions = in.docsAndPositions(null,
+                        reusable == null ? null : reusable.positions, inFlags);
+                if (positions != null) {
+                    return new AdaptedPostingsEnum(positions, positions);
+                }
+            }
+
+            int inFlags = PostingsEnum.featureRequested(flags, PostingsEnum.FREQS) ? DocsEnum.FLAG_FREQS : DocsEnum.FLAG_NONE;
+            DocsEnum docs = in.docs(null, reusable == null || reusable.positions != null ? null : reusable.docs, inFlags);
+            return new AdaptedPostingsEnum(docs, null);
+        }
+
+        @Override
+        public ImpactsEnum impacts(int flags) throws IOException {
+            return new SlowImpactsEnum(postings(null, flags));
+        }
+    }
+
+    private static class AdaptedPostingsEnum extends PostingsEnum {
+        private final DocsEnum docs;
+        private final DocsAndPositionsEnum positions;
+        private final BytesRef scratch = new BytesRef();
+
+        private AdaptedPostingsEnum(DocsEnum docs, DocsAndPositionsEnum positions) {
+            this.docs = docs;
+            this.positions = positions;
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return docs.freq();
+        }
+
+        @Override
+        public int nextPosition() throws IOException {
+            return positions == null ? -1 : positions.nextPosition();
+        }
+
+        @Override
+        public int startOffset() throws IOException {
+            return positions == null ? -1 : positions.startOffset();
+        }
+
+        @Override
+        public int endOffset() throws IOException {
+            return positions == null ? -1 : positions.endOffset();
+        }
+
+        @Override
+        public BytesRef getPayload() throws IOException {
+            return positions == null ? null : adaptBytesRef(positions.getPayload(), scratch);
+        }
+
+        @Override
+        public int docID() {
+            return docs.docID();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return docs.nextDoc();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return docs.advance(target);
+        }
+
+        @Override
+        public long cost() {
+            return docs.cost();
+        }
+    }
+}
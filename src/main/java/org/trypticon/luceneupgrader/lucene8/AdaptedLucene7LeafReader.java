@@ -0,0 +1,756 @@
+package org.trypticon.luceneupgrader.lucene8;
+
+import org.apache.lucene.index.BaseTermsEnum;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.LeafMetaData;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SlowImpactsEnum;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Presents a Lucene 7 reader as a Lucene 8 reader, so that a Lucene 8 writer can consume
+ * a Lucene 6 segment directly.
+ *
+ * The two APIs are almost the same, so apart from statistics Lucene 7 leaves out where
+ * frequencies aren't indexed, everything is passed through as-is, the same way the step
+ * to Lucene 7 would have copied it.
+ */
+class AdaptedLucene7LeafReader extends LeafReader {
+    private final org.trypticon.luceneupgrader.lucene7.internal.lucene.index.LeafReader in;
+    private final FieldInfos fieldInfos;
+    private final Bits liveDocs;
+    private final LeafMetaData metaData;
+
+    AdaptedLucene7LeafReader(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.LeafReader in) {
+        this.in = in;
+
+        List<FieldInfo> infos = new ArrayList<>();
+        for (org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfo info : in.getFieldInfos()) {
+            infos.add(adaptFieldInfo(info));
+        }
+        fieldInfos = new FieldInfos(infos.toArray(new FieldInfo[0]));
+
+        org.trypticon.luceneupgrader.lucene7.internal.lucene.util.Bits inLiveDocs = in.getLiveDocs();
+        liveDocs = inLiveDocs == null ? null : new AdaptedBits(inLiveDocs);
+
+        metaData = new LeafMetaData(8, Version.LUCENE_8_0_0, null);
+    }
+
+    private static FieldInfo adaptFieldInfo(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfo info) {
+        return new FieldInfo(info.name, info.number,
+                info.hasVectors(),
+                info.omitsNorms(),
+                info.hasPayloads(),
+                IndexOptions.valueOf(info.getIndexOptions().name()),
+                DocValuesType.valueOf(info.getDocValuesType().name()),
+                -1, new HashMap<>(),
+                info.getPointDataDimensionCount(), info.getPointIndexDimensionCount(), info.getPointNumBytes(),
+                info.isSoftDeletesField());
+    }
+
+    private static BytesRef adaptBytesRef(org.trypticon.luceneupgrader.lucene7.internal.lucene.util.BytesRef ref,
+                                          BytesRef scratch) {
+        if (ref == null) {
+            return null;
+        }
+        scratch.bytes = ref.bytes;
+        scratch.offset = ref.offset;
+        scratch.length = ref.length;
+        return scratch;
+    }
+
+    private static org.trypticon.luceneupgrader.lucene7.internal.lucene.util.BytesRef toLucene7(BytesRef ref) {
+        return new org.trypticon.luceneupgrader.lucene7.internal.lucene.util.BytesRef(ref.bytes, ref.offset, ref.length);
+    }
+
+    @Override
+    public Terms terms(String field) throws IOException {
+        org.trypticon.luceneupgrader.lucene7.internal.lucene.index.Terms terms = in.terms(field);
+        return terms == null ? null : new AdaptedTerms(terms);
+    }
+
+    @Override
+    public NumericDocValues getNumericDocValues(String field) throws IOException {
+        org.trypticon.luceneupgrader.lucene7.internal.lucene.index.NumericDocValues values = in.getNumericDocValues(field);
+        return values == null ? null : adaptNumeric(values);
+    }
+
+    @Override
+    public BinaryDocValues getBinaryDocValues(String field) throws IOException {
+        org.trypticon.luceneupgrader.lucene7.internal.lucene.index.BinaryDocValues values = in.getBinaryDocValues(field);
+        if (values == null) {
+            return null;
+        }
+        BytesRef scratch = new BytesRef();
+        return new BinaryDocValues() {
+            @Override
+            public BytesRef binaryValue() throws IOException {
+                return adaptBytesRef(values.binaryValue(), scratch);
+            }
+
+            @Override
+            public boolean advanceExact(int target) throws IOException {
+                return values.advanceExact(target);
+            }
+
+            @Override
+            public int docID() {
+                return values.docID();
+            }
+
+            @Override
+            public int nextDoc() throws IOException {
+                return values.nextDoc();
+            }
+
+            @Override
+            public int advance(int target) throws IOException {
+                return values.advance(target);
+            }
+
+            @Override
+            public long cost() {
+                return values.cost();
+            }
+        };
+    }
+
+    @Override
+    public SortedDocValues getSortedDocValues(String field) throws IOException {
+        org.trypticon.luceneupgrader.lucene7.internal.lucene.index.SortedDocValues values = in.getSortedDocValues(field);
+        if (values == null) {
+            return null;
+        }
+        BytesRef scratch = new BytesRef();
+        return new SortedDocValues() {
+            @Override
+            public int ordValue() throws IOException {
+                return values.ordValue();
+            }
+
+            @Override
+            public BytesRef lookupOrd(int ord) throws IOException {
+                return adaptBytesRef(values.lookupOrd(ord), scratch);
+            }
+
+            @Override
+            public int getValueCount() {
+                return values.getValueCount();
+            }
+
+            @Override
+            public boolean advanceExact(int target) throws IOException {
+                return values.advanceExact(target);
+            }
+
+            @Override
+            public int docID() {
+                return values.docID();
+            }
+
+            @Override
+            public int nextDoc() throws IOException {
+                return values.nextDoc();
+            }
+
+            @Override
+            public int advance(int target) throws IOException {
+                return values.advance(target);
+            }
+
+            @Override
+            public long cost() {
+                return values.cost();
+            }
+        };
+    }
+
+    @Override
+    public SortedNumericDocValues getSortedNumericDocValues(String field) throws IOException {
+        org.trypticon.luceneupgrader.lucene7.internal.lucene.index.SortedNumericDocValues values =
+                in.getSortedNumericDocValues(field);
+        if (values == null) {
+            return null;
+        }
+        return new SortedNumericDocValues() {
+            @Override
+            public long nextValue() throws IOException {
+                return values.nextValue();
+            }
+
+            @Override
+            public int docValueCount() {
+                return values.docValueCount();
+            }
+
+            @Override
+            public boolean advanceExact(int target) throws IOException {
+                return values.advanceExact(target);
+            }
+
+            @Override
+            public int docID() {
+                return values.docID();
+            }
+
+            @Override
+            public int nextDoc() throws IOException {
+                return values.nextDoc();
+            }
+
+            @Override
+            public int advance(int target) throws IOException {
+                return values.advance(target);
+            }
+
+            @Override
+            public long cost() {
+                return values.cost();
+            }
+        };
+    }
+
+    @Override
+    public SortedSetDocValues getSortedSetDocValues(String field) throws IOException {
+        org.trypticon.luceneupgrader.lucene7.internal.lucene.index.SortedSetDocValues values =
+                in.getSortedSetDocValues(field);
+        if (values == null) {
+            return null;
+        }
+        BytesRef scratch = new BytesRef();
+        return new SortedSetDocValues() {
+            @Override
+            public long nextOrd() throws IOException {
+                return values.nextOrd();
+            }
+
+            @Override
+            public BytesRef lookupOrd(long ord) throws IOException {
+                return adaptBytesRef(values.lookupOrd(ord), scratch);
+            }
+
+            @Override
+            public long getValueCount() {
+                return values.getValueCount();
+            }
+
+            @Override
+            public boolean advanceExact(int target) throws IOException {
+                return values.advanceExact(target);
+            }
+
+            @Override
+            public int docID() {
+                return values.docID();
+            }
+
+            @Override
+            public int nextDoc() throws IOException {
+                return values.nextDoc();
+            }
+
+            @Override
+            public int advance(int target) throws IOException {
+                return values.advance(target);
+            }
+
+            @Override
+            public long cost() {
+                return values.cost();
+            }
+        };
+    }
+
+    @Override
+    public NumericDocValues getNormValues(String field) throws IOException {
+        org.trypticon.luceneupgrader.lucene7.internal.lucene.index.NumericDocValues norms = in.getNormValues(field);
+        return norms == null ? null : adaptNumeric(norms);
+    }
+
+    private static NumericDocValues adaptNumeric(
+            org.trypticon.luceneupgrader.lucene7.internal.lucene.index.NumericDocValues values) {
+        return new NumericDocValues() {
+            @Override
+            public long longValue() throws IOException {
+                return values.longValue();
+            }
+
+            @Override
+            public boolean advanceExact(int target) throws IOException {
+                return values.advanceExact(target);
+            }
+
+            @Override
+            public int docID() {
+                return values.docID();
+            }
+
+            @Override
+            public int nextDoc() throws IOException {
+                return values.nextDoc();
+            }
+
+            @Override
+            public int advance(int target) throws IOException {
+                return values.advance(target);
+            }
+
+            @Override
+            public long cost() {
+                return values.cost();
+            }
+        };
+    }
+
+    @Override
+    public FieldInfos getFieldInfos() {
+        return fieldInfos;
+    }
+
+    @Override
+    public Bits getLiveDocs() {
+        return liveDocs;
+    }
+
+    @Override
+    public PointValues getPointValues(String field) throws IOException {
+        org.trypticon.luceneupgrader.lucene7.internal.lucene.index.PointValues values = in.getPointValues(field);
+        return values == null ? null : new AdaptedPointValues(values);
+    }
+
+    @Override
+    public void checkIntegrity() throws IOException {
+        in.checkIntegrity();
+    }
+
+    @Override
+    public LeafMetaData getMetaData() {
+        return metaData;
+    }
+
+    @Override
+    public Fields getTermVectors(int docID) throws IOException {
+        org.trypticon.luceneupgrader.lucene7.internal.lucene.index.Fields vectors = in.getTermVectors(docID);
+        return vectors == null ? null : new AdaptedFields(vectors);
+    }
+
+    @Override
+    public int numDocs() {
+        return in.numDocs();
+    }
+
+    @Override
+    public int maxDoc() {
+        return in.maxDoc();
+    }
+
+    @Override
+    public void document(int docID, StoredFieldVisitor visitor) throws IOException {
+        in.document(docID, new AdaptedStoredFieldVisitor(visitor));
+    }
+
+    @Override
+    protected void doClose() {
+        // The wrapped reader belongs to whoever opened it.
+    }
+
+    @Override
+    public CacheHelper getCoreCacheHelper() {
+        return null;
+    }
+
+    @Override
+    public CacheHelper getReaderCacheHelper() {
+        return null;
+    }
+
+    private static class AdaptedBits implements Bits {
+        private final org.trypticon.luceneupgrader.lucene7.internal.lucene.util.Bits in;
+
+        private AdaptedBits(org.trypticon.luceneupgrader.lucene7.internal.lucene.util.Bits in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean get(int index) {
+            return in.get(index);
+        }
+
+        @Override
+        public int length() {
+            return in.length();
+        }
+    }
+
+    private class AdaptedStoredFieldVisitor
+            extends org.trypticon.luceneupgrader.lucene7.internal.lucene.index.StoredFieldVisitor {
+        private final StoredFieldVisitor out;
+
+        private AdaptedStoredFieldVisitor(StoredFieldVisitor out) {
+            this.out = out;
+        }
+
+        private FieldInfo adapt(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfo fieldInfo) {
+            return fieldInfos.fieldInfo(fieldInfo.number);
+        }
+
+        @Override
+        public void binaryField(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfo fieldInfo,
+                                byte[] value) throws IOException {
+            out.binaryField(adapt(fieldInfo), value);
+        }
+
+        @Override
+        public void stringField(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfo fieldInfo,
+                                byte[] value) throws IOException {
+            out.stringField(adapt(fieldInfo), value);
+        }
+
+        @Override
+        public void intField(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfo fieldInfo,
+                             int value) throws IOException {
+            out.intField(adapt(fieldInfo), value);
+        }
+
+        @Override
+        public void longField(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfo fieldInfo,
+                              long value) throws IOException {
+            out.longField(adapt(fieldInfo), value);
+        }
+
+        @Override
+        public void floatField(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfo fieldInfo,
+                               float value) throws IOException {
+            out.floatField(adapt(fieldInfo), value);
+        }
+
+        @Override
+        public void doubleField(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfo fieldInfo,
+                                double value) throws IOException {
+            out.doubleField(adapt(fieldInfo), value);
+        }
+
+        @Override
+        public Status needsField(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.FieldInfo fieldInfo)
+                throws IOException {
+            switch (out.needsField(adapt(fieldInfo))) {
+                case YES:
+                    return Status.YES;
+                case NO:
+                    return Status.NO;
+                case STOP:
+                    return Status.STOP;
+                default:
+                    throw new IllegalStateException("Unknown status");
+            }
+        }
+    }
+
+    private static class AdaptedFields extends Fields {
+        private final org.trypticon.luceneupgrader.lucene7.internal.lucene.index.Fields in;
+
+        private AdaptedFields(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.Fields in) {
+            this.in = in;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return in.iterator();
+        }
+
+        @Override
+        public Terms terms(String field) throws IOException {
+            org.trypticon.luceneupgrader.lucene7.internal.lucene.index.Terms terms = in.terms(field);
+            return terms == null ? null : new AdaptedTerms(terms);
+        }
+
+        @Override
+        public int size() {
+            return in.size();
+        }
+    }
+
+    private static class AdaptedTerms extends Terms {
+        private final org.trypticon.luceneupgrader.lucene7.internal.lucene.index.Terms in;
+
+        private AdaptedTerms(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.Terms in) {
+            this.in = in;
+        }
+
+        @Override
+        public TermsEnum iterator() throws IOException {
+            return new AdaptedTermsEnum(in.iterator(), in.hasFreqs());
+        }
+
+        @Override
+        public long size() throws IOException {
+            return in.size();
+        }
+
+        @Override
+        public long getSumTotalTermFreq() throws IOException {
+            // Lucene 8 reports the doc freq in place of missing term freqs.
+            return in.hasFreqs() ? in.getSumTotalTermFreq() : in.getSumDocFreq();
+        }
+
+        @Override
+        public long getSumDocFreq() throws IOException {
+            return in.getSumDocFreq();
+        }
+
+        @Override
+        public int getDocCount() throws IOException {
+            return in.getDocCount();
+        }
+
+        @Override
+        public boolean hasFreqs() {
+            return in.hasFreqs();
+        }
+
+        @Override
+        public boolean hasOffsets() {
+            return in.hasOffsets();
+        }
+
+        @Override
+        public boolean hasPositions() {
+            return in.hasPositions();
+        }
+
+        @Override
+        public boolean hasPayloads() {
+            return in.hasPayloads();
+        }
+    }
+
+    private static class AdaptedTermsEnum extends BaseTermsEnum {
+        private final org.trypticon.luceneupgrader.lucene7.internal.lucene.index.TermsEnum in;
+        private final boolean hasFreqs;
+        private final BytesRef scratch = new BytesRef();
+
+        private AdaptedTermsEnum(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.TermsEnum in,
+                                 boolean hasFreqs) {
+            this.in = in;
+            this.hasFreqs = hasFreqs;
+        }
+
+        @Override
+        public BytesRef next() throws IOException {
+            return adaptBytesRef(in.next(), scratch);
+        }
+
+        @Override
+        public SeekStatus seekCeil(BytesRef text) throws IOException {
+            switch (in.seekCeil(toLucene7(text))) {
+                case FOUND:
+                    return SeekStatus.FOUND;
+                case NOT_FOUND:
+                    return SeekStatus.NOT_FOUND;
+                case END:
+                    return SeekStatus.END;
+                default:
+                    throw new IllegalStateException("Unknown seek status");
+            }
+        }
+
+        @Override
+        public void seekExact(long ord) throws IOException {
+            in.seekExact(ord);
+        }
+
+        @Override
+        public BytesRef term() throws IOException {
+            return adaptBytesRef(in.term(), scratch);
+        }
+
+        @Override
+        public long ord() throws IOException {
+            return in.ord();
+        }
+
+        @Override
+        public int docFreq() throws IOException {
+            return in.docFreq();
+        }
+
+        @Override
+        public long totalTermFreq() throws IOException {
+            return hasFreqs ? in.totalTermFreq() : in.docFreq();
+        }
+
+        @Override
+        public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
+            // The flags have the same values in both versions.
+            org.trypticon.luceneupgrader.lucene7.internal.lucene.index.PostingsEnum inReuse =
+                    reuse instanceof AdaptedPostingsEnum ? ((AdaptedPostingsEnum) reuse).in : null;
+            return new AdaptedPostingsEnum(in.postings(inReuse, flags));
+        }
+
+        @Override
+        public ImpactsEnum impacts(int flags) throws IOException {
+            return new SlowImpactsEnum(postings(null, flags));
+        }
+    }
+
+    private static class AdaptedPostingsEnum extends PostingsEnum {
+        private final org.trypticon.luceneupgrader.lucene7.internal.lucene.index.PostingsEnum in;
+        private final BytesRef scratch = new BytesRef();
+
+        private AdaptedPostingsEnum(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.PostingsEnum in) {
+            this.in = in;
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return in.freq();
+        }
+
+        @Override
+        public int nextPosition() throws IOException {
+            return in.nextPosition();
+        }
+
+        @Override
+        public int startOffset() throws IOException {
+            return in.startOffset();
+        }
+
+        @Override
+        public int endOffset() throws IOException {
+            return in.endOffset();
+        }
+
+        @Override
+        public BytesRef getPayload() throws IOException {
+            return adaptBytesRef(in.getPayload(), scratch);
+        }
+
+        @Override
+        public int docID() {
+            return in.docID();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return in.nextDoc();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return in.advance(target);
+        }
+
+        @Override
+        public long cost() {
+            return in.cost();
+        }
+    }
+
+    private static class AdaptedPointValues extends PointValues {
+        private final org.trypticon.luceneupgrader.lucene7.internal.lucene.index.PointValues in;
+
+        private AdaptedPointValues(org.trypticon.luceneupgrader.lucene7.internal.lucene.index.PointValues in) {
+            this.in = in;
+        }
+
+        @Override
+        public void intersect(IntersectVisitor visitor) throws IOException {
+            in.intersect(new AdaptedIntersectVisitor(visitor));
+        }
+
+        @Override
+        public long estimatePointCount(IntersectVisitor visitor) {
+            return in.estimatePointCount(new AdaptedIntersectVisitor(visitor));
+        }
+
+        @Override
+        public byte[] getMinPackedValue() throws IOException {
+            return in.getMinPackedValue();
+        }
+
+        @Override
+        public byte[] getMaxPackedValue() throws IOException {
+            return in.getMaxPackedValue();
+        }
+
+        @Override
+        public int getNumDimensions() throws IOException {
+            return in.getNumDataDimensions();
+        }
+
+        @Override
+        public int getNumIndexDimensions() throws IOException {
+            return in.getNumIndexDimensions();
+        }
+
+        @Override
+        public int getBytesPerDimension() throws IOException {
+            return in.getBytesPerDimension();
+        }
+
+        @Override
+        public long size() {
+            return in.size();
+        }
+
+        @Override
+        public int getDocCount() {
+            return in.getDocCount();
+        }
+    }
+
+    private static class AdaptedIntersectVisitor
+            implements org.trypticon.luceneupgrader.lucene7.internal.lucene.index.PointValues.IntersectVisitor {
+        private final PointValues.IntersectVisitor out;
+
+        private AdaptedIntersectVisitor(PointValues.IntersectVisitor out) {
+            this.out = out;
+        }
+
+        @Override
+        public void visit(int docID) throws IOException {
+            out.visit(docID);
+        }
+
+        @Override
+        public void visit(int docID, byte[] packedValue) throws IOException {
+            out.visit(docID, packedValue);
+        }
+
+        @Override
+        public org.trypticon.luceneupgrader.lucene7.internal.lucene.index.PointValues.Relation compare(
+                byte[] minPackedValue, byte[] maxPackedValue) {
+            return org.trypticon.luceneupgrader.lucene7.internal.lucene.index.PointValues.Relation.valueOf(
+                    out.compare(minPackedValue, maxPackedValue).name());
+        }
+
+        @Override
+        public void grow(int count) {
+            out.grow(count);
+        }
+    }
+}
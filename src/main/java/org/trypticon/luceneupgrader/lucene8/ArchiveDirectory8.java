@@ -0,0 +1,155 @@
+package org.trypticon.luceneupgrader.lucene8;
+
+import org.apache.lucene.store.BaseDirectory;
+import org.apache.lucene.store.BufferedIndexInput;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.NoLockFactory;
+import org.trypticon.luceneupgrader.IndexArchive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * A read-only directory over an index in an archive, reading each file from where it is
+ * in the archive.
+ */
+public class ArchiveDirectory8 extends BaseDirectory {
+
+    private final IndexArchive archive;
+
+    /**
+     * Creates the directory. Closing it leaves the archive open.
+     *
+     * @param archive the archive.
+     */
+    public ArchiveDirectory8(IndexArchive archive) {
+        super(NoLockFactory.INSTANCE);
+        this.archive = archive;
+    }
+
+    @Override
+    public String[] listAll() {
+        ensureOpen();
+        return archive.listAll();
+    }
+
+    @Override
+    public long fileLength(String name) throws IOException {
+        ensureOpen();
+        return archive.getEntry(name).getLength();
+    }
+
+    @Override
+    public IndexInput openInput(String name, IOContext context) throws IOException {
+        ensureOpen();
+        IndexArchive.Entry entry = archive.getEntry(name);
+        return new ArchiveIndexInput("ArchiveIndexInput(path=\"" + archive.getPath() + "!" + name + "\")",
+                                     entry.getChannel(), entry.getOffset(), entry.getLength(),
+                                     BufferedIndexInput.bufferSize(context));
+    }
+
+    @Override
+    public void deleteFile(String name) {
+        throw new UnsupportedOperationException("Archives are read-only");
+    }
+
+    @Override
+    public IndexOutput createOutput(String name, IOContext context) {
+        throw new UnsupportedOperationException("Archives are read-only");
+    }
+
+    @Override
+    public IndexOutput createTempOutput(String prefix, String suffix, IOContext context) {
+        throw new UnsupportedOperationException("Archives are read-only");
+    }
+
+    @Override
+    public void rename(String source, String dest) {
+        throw new UnsupportedOperationException("Archives are read-only");
+    }
+
+    @Override
+    public void sync(Collection<String> names) {
+    }
+
+    @Override
+    public void syncMetaData() {
+    }
+
+    @Override
+    public Set<String> getPendingDeletions() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void close() {
+        isOpen = false;
+    }
+
+    @Override
+    public String toString() {
+        return "ArchiveDirectory8(" + archive.getPath() + ")";
+    }
+
+    /**
+     * Reads part of the archive's channel. The channel belongs to the archive, so it is never closed here.
+     */
+    private static final class ArchiveIndexInput extends BufferedIndexInput {
+
+        private final FileChannel channel;
+
+        private final long off;
+
+        private final long end;
+
+        private ArchiveIndexInput(String resourceDesc, FileChannel channel, long off, long length, int bufferSize) {
+            super(resourceDesc, bufferSize);
+            this.channel = channel;
+            this.off = off;
+            this.end = off + length;
+        }
+
+        @Override
+        public IndexInput slice(String sliceDescription, long offset, long length) {
+            if (offset < 0 || length < 0 || offset + length > length()) {
+                throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: " + this);
+            }
+            return new ArchiveIndexInput(sliceDescription, channel, off + offset, length, getBufferSize());
+        }
+
+        @Override
+        public long length() {
+            return end - off;
+        }
+
+        @Override
+        protected void readInternal(ByteBuffer b) throws IOException {
+            long pos = getFilePointer() + off;
+            if (pos + b.remaining() > end) {
+                throw new EOFException("read past EOF: " + this);
+            }
+            while (b.hasRemaining()) {
+                int read = channel.read(b, pos);
+                if (read < 0) {
+                    throw new EOFException("read past EOF: " + this);
+                }
+                pos += read;
+            }
+        }
+
+        @Override
+        protected void seekInternal(long pos) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package org.trypticon.luceneupgrader.lucene8;
+
+import org.trypticon.luceneupgrader.MergeListener;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.DocValuesConsumer;
+import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.FilterCodec;
+import org.apache.lucene.codecs.NormsConsumer;
+import org.apache.lucene.codecs.NormsFormat;
+import org.apache.lucene.codecs.NormsProducer;
+import org.apache.lucene.codecs.PointsFormat;
+import org.apache.lucene.codecs.PointsReader;
+import org.apache.lucene.codecs.PointsWriter;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.StoredFieldsFormat;
+import org.apache.lucene.codecs.StoredFieldsReader;
+import org.apache.lucene.codecs.StoredFieldsWriter;
+import org.apache.lucene.codecs.TermVectorsFormat;
+import org.apache.lucene.codecs.TermVectorsReader;
+import org.apache.lucene.codecs.TermVectorsWriter;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MergeState;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * Times each phase of merging segments into the new index. Lucene 8's {@code SegmentMerger}
+ * comes from its own jar, so it can't tell a {@link MergeListener} about its phases the way
+ * the older versions' do. Instead, the writer of each format is wrapped so that its merge is
+ * timed, and everything else is passed straight through. The codec goes by the name of the
+ * one it wraps, so the segments it writes are exactly the ones that codec would write.
+ */
+class MergeTimingCodec8 extends FilterCodec {
+
+    private final MergeListener listener;
+
+    private MergeTimingCodec8(Codec delegate, MergeListener listener) {
+        super(delegate.getName(), delegate);
+        this.listener = listener;
+    }
+
+    /**
+     * Wraps a codec to time its merges.
+     *
+     * @param codec the codec to wrap.
+     * @param listener the listener to tell about each phase, or {@code null} for none.
+     * @return the wrapped codec, or the same codec if there is no listener.
+     */
+    static Codec wrap(Codec codec, MergeListener listener) {
+        return listener == null ? codec : new MergeTimingCodec8(codec, listener);
+    }
+
+    private void phaseDone(String phase, long startNanos, MergeState mergeState) {
+        listener.phase(phase, System.nanoTime() - startNanos, mergeState.segmentInfo.maxDoc());
+    }
+
+    @Override
+    public StoredFieldsFormat storedFieldsFormat() {
+        StoredFieldsFormat format = delegate.storedFieldsFormat();
+        return new StoredFieldsFormat() {
+            @Override
+            public StoredFieldsReader fieldsReader(Directory directory, SegmentInfo si, FieldInfos fn,
+                                                   IOContext context) throws IOException {
+                return format.fieldsReader(directory, si, fn, context);
+            }
+
+            @Override
+            public StoredFieldsWriter fieldsWriter(Directory directory, SegmentInfo si,
+                                                   IOContext context) throws IOException {
+                return new TimedStoredFieldsWriter(format.fieldsWriter(directory, si, context));
+            }
+        };
+    }
+
+    @Override
+    public TermVectorsFormat termVectorsFormat() {
+        TermVectorsFormat format = delegate.termVectorsFormat();
+        return new TermVectorsFormat() {
+            @Override
+            public TermVectorsReader vectorsReader(Directory directory, SegmentInfo segmentInfo,
+                                                   FieldInfos fieldInfos, IOContext context) throws IOException {
+                return format.vectorsReader(directory, segmentInfo, fieldInfos, context);
+            }
+
+            @Override
+            public TermVectorsWriter vectorsWriter(Directory directory, SegmentInfo segmentInfo,
+                                                   IOContext context) throws IOException {
+                return new TimedTermVectorsWriter(format.vectorsWriter(directory, segmentInfo, context));
+            }
+        };
+    }
+
+    @Override
+    public PostingsFormat postingsFormat() {
+        PostingsFormat format = delegate.postingsFormat();
+        return new PostingsFormat(format.getName()) {
+            @Override
+            public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+                return new TimedFieldsConsumer(format.fieldsConsumer(state));
+            }
+
+            @Override
+            public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
+                return format.fieldsProducer(state);
+            }
+        };
+    }
+
+    @Override
+    public DocValuesFormat docValuesFormat() {
+        DocValuesFormat format = delegate.docValuesFormat();
+        return new DocValuesFormat(format.getName()) {
+            @Override
+            public DocValuesConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+                return new TimedDocValuesConsumer(format.fieldsConsumer(state));
+            }
+
+            @Override
+            public DocValuesProducer fieldsProducer(SegmentReadState state) throws IOException {
+                return format.fieldsProducer(state);
+            }
+        };
+    }
+
+    @Override
+    public NormsFormat normsFormat() {
+        NormsFormat format = delegate.normsFormat();
+        return new NormsFormat() {
+            @Override
+            public NormsConsumer normsConsumer(SegmentWriteState state) throws IOException {
+                return new TimedNormsConsumer(format.normsConsumer(state));
+            }
+
+            @Override
+            public NormsProducer normsProducer(SegmentReadState state) throws IOException {
+                return format.normsProducer(state);
+            }
+        };
+    }
+
+    @Override
+    public PointsFormat pointsFormat() {
+        PointsFormat format = delegate.pointsFormat();
+        return new PointsFormat() {
+            @Override
+            public PointsWriter fieldsWriter(SegmentWriteState state) throws IOException {
+                return new TimedPointsWriter(format.fieldsWriter(state));
+            }
+
+            @Override
+            public PointsReader fieldsReader(SegmentReadState state) throws IOException {
+                return format.fieldsReader(state);
+            }
+        };
+    }
+
+    private class TimedStoredFieldsWriter extends StoredFieldsWriter {
+        private final StoredFieldsWriter in;
+
+        private TimedStoredFieldsWriter(StoredFieldsWriter in) {
+            this.in = in;
+        }
+
+        @Override
+        public void startDocument() throws IOException {
+            in.startDocument();
+        }
+
+        @Override
+        public void finishDocument() throws IOException {
+            in.finishDocument();
+        }
+
+        @Override
+        public void writeField(FieldInfo info, IndexableField field) throws IOException {
+            in.writeField(info, field);
+        }
+
+        @Override
+        public void finish(FieldInfos fis, int numDocs) throws IOException {
+            in.finish(fis, numDocs);
+        }
+
+        @Override
+        public int merge(MergeState mergeState) throws IOException {
+            long start = System.nanoTime();
+            int merged = in.merge(mergeState);
+            phaseDone("stored fields", start, mergeState);
+            return merged;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return in.ramBytesUsed();
+        }
+    }
+
+    private class TimedTermVectorsWriter extends TermVectorsWriter {
+        private final TermVectorsWriter in;
+
+        private TimedTermVectorsWriter(TermVectorsWriter in) {
+            this.in = in;
+        }
+
+        @Override
+        public void startDocument(int numVectorFields) throws IOException {
+            in.startDocument(numVectorFields);
+        }
+
+        @Override
+        public void finishDocument() throws IOException {
+            in.finishDocument();
+        }
+
+        @Override
+        public void startField(FieldInfo info, int numTerms, boolean positions, boolean offsets,
+                               boolean payloads) throws IOException {
+            in.startField(info, numTerms, positions, offsets, payloads);
+        }
+
+        @Override
+        public void finishField() throws IOException {
+            in.finishField();
+        }
+
+        @Override
+        public void startTerm(BytesRef term, int freq) throws IOException {
+            in.startTerm(term, freq);
+        }
+
+        @Override
+        public void finishTerm() throws IOException {
+            in.finishTerm();
+        }
+
+        @Override
+        public void addPosition(int position, int startOffset, int endOffset, BytesRef payload) throws IOException {
+            in.addPosition(position, startOffset, endOffset, payload);
+        }
+
+        @Override
+        public void addProx(int numProx, DataInput positions, DataInput offsets) throws IOException {
+            in.addProx(numProx, positions, offsets);
+        }
+
+        @Override
+        public void finish(FieldInfos fis, int numDocs) throws IOException {
+            in.finish(fis, numDocs);
+        }
+
+        @Override
+        public int merge(MergeState mergeState) throws IOException {
+            long start = System.nanoTime();
+            int merged = in.merge(mergeState);
+            phaseDone("term vectors", start, mergeState);
+            return merged;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        @Override
+        public long ramBytesUsed() {
+            return in.ramBytesUsed();
+        }
+    }
+
+    private class TimedFieldsConsumer extends FieldsConsumer {
+        private final FieldsConsumer in;
+
+        private TimedFieldsConsumer(FieldsConsumer in) {
+            this.in = in;
+        }
+
+        @Override
+        public void write(Fields fields, NormsProducer norms) throws IOException {
+            in.write(fields, norms);
+        }
+
+        @Override
+        public void merge(MergeState mergeState, NormsProducer norms) throws IOException {
+            long start = System.nanoTime();
+            in.merge(mergeState, norms);
+            phaseDone("postings", start, mergeState);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private class TimedDocValuesConsumer extends DocValuesConsumer {
+        private final DocValuesConsumer in;
+
+        private TimedDocValuesConsumer(DocValuesConsumer in) {
+            this.in = in;
+        }
+
+        @Override
+        public void addNumericField(FieldInfo field, DocValuesProducer valuesProducer) throws IOException {
+            in.addNumericField(field, valuesProducer);
+        }
+
+        @Override
+        public void addBinaryField(FieldInfo field, DocValuesProducer valuesProducer) throws IOException {
+            in.addBinaryField(field, valuesProducer);
+        }
+
+        @Override
+        public void addSortedField(FieldInfo field, DocValuesProducer valuesProducer) throws IOException {
+            in.addSortedField(field, valuesProducer);
+        }
+
+        @Override
+        public void addSortedNumericField(FieldInfo field, DocValuesProducer valuesProducer) throws IOException {
+            in.addSortedNumericField(field, valuesProducer);
+        }
+
+        @Override
+        public void addSortedSetField(FieldInfo field, DocValuesProducer valuesProducer) throws IOException {
+            in.addSortedSetField(field, valuesProducer);
+        }
+
+        @Override
+        public void merge(MergeState mergeState) throws IOException {
+            long start = System.nanoTime();
+            in.merge(mergeState);
+            phaseDone("doc values", start, mergeState);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private class TimedNormsConsumer extends NormsConsumer {
+        private final NormsConsumer in;
+
+        private TimedNormsConsumer(NormsConsumer in) {
+            this.in = in;
+        }
+
+        @Override
+        public void addNormsField(FieldInfo field, NormsProducer normsProducer) throws IOException {
+            in.addNormsField(field, normsProducer);
+        }
+
+        @Override
+        public void merge(MergeState mergeState) throws IOException {
+            long start = System.nanoTime();
+            in.merge(mergeState);
+            phaseDone("norms", start, mergeState);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private class TimedPointsWriter extends PointsWriter {
+        private final PointsWriter in;
+
+        private TimedPointsWriter(PointsWriter in) {
+            this.in = in;
+        }
+
+        @Override
+        public void writeField(FieldInfo fieldInfo, PointsReader values) throws IOException {
+            in.writeField(fieldInfo, values);
+        }
+
+        @Override
+        public void merge(MergeState mergeState) throws IOException {
+            long start = System.nanoTime();
+            in.merge(mergeState);
+            phaseDone("points", start, mergeState);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            in.finish();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
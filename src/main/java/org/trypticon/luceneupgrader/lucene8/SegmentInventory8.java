@@ -0,0 +1,60 @@
+package org.trypticon.luceneupgrader.lucene8;
+
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.trypticon.luceneupgrader.InMemoryIndex;
+import org.trypticon.luceneupgrader.SegmentDescription;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes the segments of a Lucene 7 or 8 index.
+ */
+public class SegmentInventory8 {
+
+    private SegmentInventory8() {
+    }
+
+    /**
+     * Describes the segments in the latest commit of an index.
+     *
+     * @param path the path to the index.
+     * @return the segments.
+     * @throws IOException if an error occurs reading the index.
+     */
+    public static List<SegmentDescription> describe(Path path) throws IOException {
+        try (Directory directory = FSDirectory.open(path)) {
+            return describe(directory);
+        }
+    }
+
+    /**
+     * Describes the segments in the latest commit of an index held in memory.
+     *
+     * @param index the index.
+     * @return the segments.
+     * @throws IOException if an error occurs reading the index.
+     */
+    public static List<SegmentDescription> describe(InMemoryIndex index) throws IOException {
+        try (Directory directory = new InMemoryDirectory8(index)) {
+            return describe(directory);
+        }
+    }
+
+    private static List<SegmentDescription> describe(Directory directory) throws IOException {
+        SegmentInfos infos = SegmentInfos.readLatestCommit(directory);
+
+        List<SegmentDescription> descriptions = new ArrayList<>(infos.size());
+        for (SegmentCommitInfo info : infos) {
+            descriptions.add(new SegmentDescription(info.info.name, info.info.getVersion().toString(),
+                    info.info.getMinVersion() == null ? null : info.info.getMinVersion().toString(),
+                    info.info.getCodec().getName(), info.info.maxDoc(), info.getDelCount(), info.sizeInBytes()));
+        }
+        return descriptions;
+    }
+}
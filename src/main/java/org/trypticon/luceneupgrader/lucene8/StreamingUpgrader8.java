@@ -0,0 +1,244 @@
+package org.trypticon.luceneupgrader.lucene8;
+
+import org.apache.lucene.index.CodecReader;
+import org.apache.lucene.index.SlowCodecReaderWrapper;
+import org.trypticon.luceneupgrader.ConcurrencyUtils;
+import org.trypticon.luceneupgrader.IndexArchive;
+import org.trypticon.luceneupgrader.InfoStream;
+import org.trypticon.luceneupgrader.UpgradeConfig;
+import org.trypticon.luceneupgrader.UpgradeMetrics;
+import org.trypticon.luceneupgrader.VersionUpgrader;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.DirectoryReader;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.SegmentCommitInfo;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.SegmentInfos;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.index.SegmentReader;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.Directory;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.IOContext;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.store.MergeInfo;
+import org.trypticon.luceneupgrader.lucene4.internal.lucene.util.IOUtils;
+import org.trypticon.luceneupgrader.lucene4.internal.lucenesupport.ArchiveDirectory4;
+import org.trypticon.luceneupgrader.lucene4.internal.lucenesupport.PathFSDirectory4;
+import org.trypticon.luceneupgrader.lucene4.internal.lucenesupport.ThrottledDirectory4;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.index.LeafReaderContext;
+import org.trypticon.luceneupgrader.lucene7.internal.lucene.store.FSDirectory;
+import org.trypticon.luceneupgrader.lucene7.internal.lucenesupport.ArchiveDirectory7;
+import org.trypticon.luceneupgrader.lucene7.internal.lucenesupport.LegacyNumericPointsCodecReader7;
+import org.trypticon.luceneupgrader.lucene7.internal.lucenesupport.ThrottledDirectory7;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Upgrades a Lucene 3, 4 or 6 index straight to Lucene 8 format, reading the old segments
+ * through Lucene 4 or Lucene 7 and writing them through Lucene 8 without any intermediate
+ * index on disk. The old index can also be read from an archive, in which case the new
+ * index is written to a separate directory.
+ */
+public class StreamingUpgrader8 implements VersionUpgrader {
+
+    private final Path path;
+
+    private final IndexArchive archive;
+
+    private final Path destination;
+
+    private final UpgradeConfig config;
+
+    private final VersionUpgrader8 writer;
+
+    public StreamingUpgrader8(Path path, InfoStream infoStream, UpgradeConfig config) {
+        this(path, null, null, infoStream, config);
+    }
+
+    /**
+     * Creates an upgrader which reads an index from an archive and writes the new index into
+     * a directory, leaving the archive as it is.
+     *
+     * @param archive the archive holding the old index.
+     * @param destination an empty directory to write the new index into.
+     * @param infoStream the info stream.
+     * @param config the config, which must not be resumable or have a disk budget.
+     */
+    public StreamingUpgrader8(IndexArchive archive, Path destination, InfoStream infoStream, UpgradeConfig config) {
+        this(archive.getPath(), archive, destination, infoStream, config);
+    }
+
+    private StreamingUpgrader8(Path path, IndexArchive archive, Path destination, InfoStream infoStream,
+                               UpgradeConfig config) {
+        this.path = path;
+        this.archive = archive;
+        this.destination = destination;
+        this.config = config;
+        this.writer = new VersionUpgrader8(path, infoStream, config);
+    }
+
+    /**
+     * Tests whether an index can be read by this upgrader. Lucene 4 can't read segments
+     * written by Lucene 2, so those still have to go through the Lucene 3 step, and Lucene 7
+     * can't read segments written by Lucene 5, so those still have to go through the Lucene 6 step.
+     *
+     * @param path the path to the index.
+     * @return {@code true} if the index can be upgraded in one step.
+     */
+    public static boolean canUpgrade(Path path) {
+        return canReadThroughLucene4(path, null) || canReadThroughLucene7(path, null);
+    }
+
+    /**
+     * Tests whether an archived index can be read by this upgrader.
+     *
+     * @param archive the archive holding the index.
+     * @return {@code true} if the index can be upgraded in one step.
+     */
+    public static boolean canUpgrade(IndexArchive archive) {
+        return canReadThroughLucene4(archive.getPath(), archive) || canReadThroughLucene7(archive.getPath(), archive);
+    }
+
+    private static boolean canReadThroughLucene4(Path path, IndexArchive archive) {
+        try (Directory directory = openLucene4Directory(path, archive)) {
+            new SegmentInfos().read(directory);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean canReadThroughLucene7(Path path, IndexArchive archive) {
+        try (org.trypticon.luceneupgrader.lucene7.internal.lucene.store.Directory directory =
+                     openLucene7Directory(path, archive)) {
+            org.trypticon.luceneupgrader.lucene7.internal.lucene.index.SegmentInfos.readLatestCommit(directory);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Directory openLucene4Directory(Path path, IndexArchive archive) throws IOException {
+        return archive == null ? PathFSDirectory4.open(path) : new ArchiveDirectory4(archive);
+    }
+
+    private static org.trypticon.luceneupgrader.lucene7.internal.lucene.store.Directory openLucene7Directory(
+            Path path, IndexArchive archive) throws IOException {
+        return archive == null ? FSDirectory.open(path) : new ArchiveDirectory7(archive);
+    }
+
+    @Override
+    public void upgrade() throws IOException {
+        Path tempPath = archive == null ? writer.createTempDirectory() : destination;
+
+        if (canReadThroughLucene4(path, archive)) {
+            upgradeThroughLucene4(tempPath);
+        } else {
+            upgradeThroughLucene7(tempPath);
+        }
+
+        if (archive == null) {
+            writer.replaceIndex(tempPath);
+        }
+    }
+
+    private void upgradeThroughLucene4(Path tempPath) throws IOException {
+        try (Directory sourceDirectory = ThrottledDirectory4.wrap(openLucene4Directory(path, archive),
+                config.getIOThrottle(), UpgradeMetrics.runningHop(config, path))) {
+            SegmentInfos infos = new SegmentInfos();
+            infos.read(sourceDirectory);
+
+            List<SegmentReader> segmentReaders = openSegmentReaders(infos);
+            try {
+                Map<String, CodecReader> sourceReaders = new LinkedHashMap<>();
+                for (SegmentReader segmentReader : segmentReaders) {
+                    sourceReaders.put(segmentReader.getSegmentName(),
+                            SlowCodecReaderWrapper.wrap(new AdaptedLucene4LeafReader(segmentReader)));
+                }
+                writer.writeIndex(tempPath, infos.getGeneration(), sourceReaders, Collections.emptyList(), 0);
+            } finally {
+                IOUtils.close(segmentReaders);
+            }
+        }
+    }
+
+    /**
+     * Opens the segments of an index read through Lucene 4, at the same time when there is more
+     * than one thread. The segments are opened for merging rather than through a DirectoryReader,
+     * so that the 3.x terms dictionary is read in its sequential mode.
+     *
+     * @param infos the segments.
+     * @return the readers, in the same order as the segments.
+     * @throws IOException if an error occurs reading.
+     */
+    private List<SegmentReader> openSegmentReaders(SegmentInfos infos) throws IOException {
+        if (config.getThreadCount() > 1) {
+            List<Callable<SegmentReader>> openers = new ArrayList<>(infos.size());
+            for (SegmentCommitInfo info : infos) {
+                openers.add(() -> openSegmentReader(info));
+            }
+            ExecutorService executor = ConcurrencyUtils.newFixedThreadPool(config.getThreadCount(), "upgrade8-open");
+            try {
+                return ConcurrencyUtils.openAll(executor, openers);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        List<SegmentReader> segmentReaders = new ArrayList<>(infos.size());
+        boolean success = false;
+        try {
+            for (SegmentCommitInfo info : infos) {
+                segmentReaders.add(openSegmentReader(info));
+            }
+            success = true;
+            return segmentReaders;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(segmentReaders);
+            }
+        }
+    }
+
+    private void upgradeThroughLucene7(Path tempPath) throws IOException {
+        try (org.trypticon.luceneupgrader.lucene7.internal.lucene.store.Directory sourceDirectory =
+                     ThrottledDirectory7.wrap(openLucene7Directory(path, archive), config.getIOThrottle(),
+                                              UpgradeMetrics.runningHop(config, path));
+             org.trypticon.luceneupgrader.lucene7.internal.lucene.index.DirectoryReader reader =
+                     openLucene7Reader(sourceDirectory)) {
+
+            Map<String, CodecReader> sourceReaders = new LinkedHashMap<>();
+            for (LeafReaderContext context : reader.leaves()) {
+                org.trypticon.luceneupgrader.lucene7.internal.lucene.index.SegmentReader segmentReader =
+                        (org.trypticon.luceneupgrader.lucene7.internal.lucene.index.SegmentReader) context.reader();
+                org.trypticon.luceneupgrader.lucene7.internal.lucene.index.CodecReader sourceReader =
+                        LegacyNumericPointsCodecReader7.wrap(segmentReader, config.getLegacyNumericFields());
+                sourceReaders.put(segmentReader.getSegmentName(),
+                        SlowCodecReaderWrapper.wrap(new AdaptedLucene7LeafReader(sourceReader)));
+            }
+            writer.writeIndex(tempPath, reader.getIndexCommit().getGeneration(), sourceReaders,
+                    Collections.emptyList(), 0);
+        }
+    }
+
+    private SegmentReader openSegmentReader(SegmentCommitInfo info) throws IOException {
+        IOContext context = new IOContext(new MergeInfo(info.info.getDocCount(), info.sizeInBytes(), true, -1));
+        return new SegmentReader(info, DirectoryReader.DEFAULT_TERMS_INDEX_DIVISOR, context, config.getScratchDirectory());
+    }
+
+    private org.trypticon.luceneupgrader.lucene7.internal.lucene.index.DirectoryReader openLucene7Reader(
+            org.trypticon.luceneupgrader.lucene7.internal.lucene.store.Directory sourceDirectory) throws IOException {
+        if (config.getThreadCount() <= 1) {
+            return org.trypticon.luceneupgrader.lucene7.internal.lucene.index.DirectoryReader.open(sourceDirectory);
+        }
+        ExecutorService executor = ConcurrencyUtils.newFixedThreadPool(config.getThreadCount(), "upgrade8-open");
+        try {
+            return org.trypticon.luceneupgrader.lucene7.internal.lucene.index.DirectoryReader.open(sourceDirectory,
+                                                                                                 executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -2,61 +2,721 @@ package org.trypticon.luceneupgrader.lucene8;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.*;
+import org.apache.lucene.search.Sort;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.Version;
+import org.trypticon.luceneupgrader.ConcurrencyUtils;
 import org.trypticon.luceneupgrader.FileUtils;
+import org.trypticon.luceneupgrader.HopMetrics;
+import org.trypticon.luceneupgrader.InMemoryIndex;
 import org.trypticon.luceneupgrader.InfoStream;
+import org.trypticon.luceneupgrader.UpgradeConfig;
+import org.trypticon.luceneupgrader.UpgradeMetrics;
 import org.trypticon.luceneupgrader.VersionUpgrader;
 
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
 
 /**
  * Upgrades an index to Lucene 8 format.
  */
 public class VersionUpgrader8 implements VersionUpgrader {
 
+    private static final String SOURCE_GENERATION = "upgrader.sourceGeneration";
+
+    private static final String SOURCE_SEGMENTS = "upgrader.sourceSegments";
+
+    private static final String CONVERTED_SEGMENTS = "upgrader.convertedSegments";
+
     private final Path path;
 
+    private final InMemoryIndex memoryIndex;
+
     private final InfoStream infoStream;
 
+    private final UpgradeConfig config;
+
     public VersionUpgrader8(Path path, InfoStream infoStream) {
+        this(path, infoStream, new UpgradeConfig());
+    }
+
+    public VersionUpgrader8(Path path, InfoStream infoStream, UpgradeConfig config) {
+        this(path, null, infoStream, config);
+    }
+
+    /**
+     * Creates an upgrader which upgrades an index held in memory. The new index is written
+     * into memory alongside the old one, and replaces it there once it is complete. Resumable
+     * mode and disk budgets don't apply.
+     *
+     * @param memoryIndex the index.
+     * @param infoStream an info stream to log to.
+     * @param config options controlling how the upgrade is performed.
+     */
+    public VersionUpgrader8(InMemoryIndex memoryIndex, InfoStream infoStream, UpgradeConfig config) {
+        this(memoryIndex.getPath(), memoryIndex, infoStream, config);
+    }
+
+    private VersionUpgrader8(Path path, InMemoryIndex memoryIndex, InfoStream infoStream, UpgradeConfig config) {
         this.path = path;
+        this.memoryIndex = memoryIndex;
         this.infoStream = infoStream;
+        this.config = config;
     }
 
     @Override
     public void upgrade() throws IOException {
-        Path oldPath = path.resolveSibling(path.getFileName() + ".old");
+        if (memoryIndex != null) {
+            InMemoryIndex newIndex = memoryIndex.newIndex();
+            try (Directory sourceDirectory = openDirectory(memoryIndex);
+                 Directory destinationDirectory = openDirectory(newIndex)) {
+                convert(sourceDirectory, destinationDirectory, null);
+            }
+            memoryIndex.replaceWith(newIndex);
+            return;
+        }
+
+        Path tempPath = createTempDirectory();
+
+        boolean finished;
+        do {
+            try (Directory sourceDirectory = openDirectory(path);
+                 Directory destinationDirectory = openDirectory(tempPath)) {
+                finished = convert(sourceDirectory, destinationDirectory, tempPath);
+            }
+            if (!finished) {
+                releaseConvertedSegments(tempPath);
+            }
+        } while (!finished);
+
+        replaceIndex(tempPath);
+    }
+
+    /**
+     * Reads the old index and writes its segments into the new one.
+     *
+     * @param sourceDirectory the directory containing the old index.
+     * @param destinationDirectory the directory to write the new index into.
+     * @param tempPath the path of the destination directory, or {@code null} if it is in memory.
+     * @return {@code true} if every segment has been converted, or {@code false} if the converted
+     *         segments have to be released from the old index before converting any more.
+     * @throws IOException if an error occurs reading or writing.
+     */
+    private boolean convert(Directory sourceDirectory, Directory destinationDirectory, Path tempPath)
+            throws IOException {
+        try (DirectoryReader reader = openReader(sourceDirectory)) {
+            SegmentInfos sourceInfos = SegmentInfos.readCommit(sourceDirectory,
+                    reader.getIndexCommit().getSegmentsFileName());
+            List<SegmentCommitInfo> carriedSegments = new ArrayList<>();
+            for (SegmentCommitInfo info : sourceInfos) {
+                if (isAlreadyCurrent(info) && isSortedForNewIndex(info)) {
+                    carriedSegments.add(info);
+                }
+            }
+
+            Map<String, CodecReader> sourceReaders = new LinkedHashMap<>();
+            for (LeafReaderContext context : reader.leaves()) {
+                SegmentReader segmentReader = (SegmentReader) context.reader();
+                sourceReaders.put(segmentReader.getSegmentName(), segmentReader);
+            }
+            for (SegmentCommitInfo info : carriedSegments) {
+                sourceReaders.remove(info.info.name);
+            }
+            return writeIndex(sourceDirectory, destinationDirectory, tempPath, sourceInfos.getGeneration(),
+                              sourceReaders, carriedSegments, sourceInfos.counter);
+        }
+    }
+
+    /**
+     * Opens the old index. With more than one thread, its segments are opened at the same time,
+     * which for an index of many segments overlaps the time spent loading each one's term index.
+     * Each segment is opened as an index of its own, and the reader over the whole commit then
+     * takes over those segment readers rather than opening the segments again.
+     *
+     * @param sourceDirectory the directory containing the old index.
+     * @return the reader.
+     * @throws IOException if an error occurs reading.
+     */
+    private DirectoryReader openReader(Directory sourceDirectory) throws IOException {
+        if (config.getThreadCount() <= 1) {
+            return DirectoryReader.open(sourceDirectory);
+        }
+        SegmentInfos sourceInfos = SegmentInfos.readLatestCommit(sourceDirectory);
+        List<Callable<DirectoryReader>> openers = new ArrayList<>(sourceInfos.size());
+        for (SegmentCommitInfo info : sourceInfos) {
+            openers.add(() -> {
+                SegmentInfos segmentInfos = new SegmentInfos(sourceInfos.getIndexCreatedVersionMajor());
+                segmentInfos.add(info);
+                return StandardDirectoryReader.open(sourceDirectory, segmentInfos, null);
+            });
+        }
+
+        List<DirectoryReader> segmentReaders;
+        ExecutorService executor = ConcurrencyUtils.newFixedThreadPool(config.getThreadCount(), "upgrade8-open");
+        try {
+            segmentReaders = ConcurrencyUtils.openAll(executor, openers);
+        } finally {
+            executor.shutdownNow();
+        }
+        try {
+            List<LeafReader> leaves = new ArrayList<>(segmentReaders.size());
+            for (DirectoryReader segmentReader : segmentReaders) {
+                leaves.add(segmentReader.leaves().get(0).reader());
+            }
+            return StandardDirectoryReader.open(sourceDirectory, sourceInfos, leaves);
+        } finally {
+            // The reader over the whole commit holds references of its own to the segments.
+            IOUtils.close(segmentReaders);
+        }
+    }
+
+    private Directory openDirectory(Path directoryPath) throws IOException {
+        return ThrottledDirectory8.wrap(FSDirectory.open(directoryPath), config.getIOThrottle(),
+                                        UpgradeMetrics.runningHop(config, path));
+    }
+
+    private Directory openDirectory(InMemoryIndex index) {
+        // Nothing to throttle in memory, but the bytes still count.
+        return ThrottledDirectory8.wrap(new InMemoryDirectory8(index), null, UpgradeMetrics.runningHop(config, path));
+    }
+
+    /**
+     * Creates the directory next to the index to write the new index into. In resumable mode,
+     * whatever an earlier attempt left there is kept, for {@link #writeIndex} to continue from.
+     * Otherwise it is thrown away, unless it holds segments already released from the old index.
+     *
+     * @return the path to the directory.
+     * @throws IOException if an error occurs, or if the directory holds released segments.
+     */
+    Path createTempDirectory() throws IOException {
         Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        if (!config.isResumable()) {
+            if (holdsReleasedSegments(tempPath)) {
+                throw new IOException("The partially upgraded index at " + tempPath + " holds segments which " +
+                                      "have already been removed from the index at " + path +
+                                      ". Run the upgrade again in resumable mode to finish it.");
+            }
+            FileUtils.insecureRecursiveDelete(tempPath);
+        }
+        Files.createDirectories(tempPath);
+        return tempPath;
+    }
 
-        FileUtils.insecureRecursiveDelete(tempPath);
-        Files.createDirectory(tempPath);
+    /**
+     * Tests whether an earlier attempt with a disk budget left a partially written index whose
+     * converted segments have since been released from the old index. Their documents are only
+     * in the partial index now, so throwing it away would lose them.
+     *
+     * @param tempPath the directory the new index is written into.
+     * @return {@code true} if any converted segment is no longer in the old index.
+     * @throws IOException if an error occurs.
+     */
+    private boolean holdsReleasedSegments(Path tempPath) throws IOException {
+        if (!Files.isDirectory(tempPath)) {
+            return false;
+        }
+        Set<String> converted;
+        try (Directory destinationDirectory = openDirectory(tempPath)) {
+            if (!DirectoryReader.indexExists(destinationDirectory)) {
+                return false;
+            }
+            converted = splitNames(SegmentInfos.readLatestCommit(destinationDirectory).getUserData().get(CONVERTED_SEGMENTS));
+        }
+        if (converted.isEmpty()) {
+            return false;
+        }
 
+        Set<String> sourceSegments = new HashSet<>();
+        try (Directory sourceDirectory = openDirectory(path)) {
+            for (SegmentCommitInfo info : SegmentInfos.readLatestCommit(sourceDirectory)) {
+                sourceSegments.add(info.info.name);
+            }
+        } catch (IndexFormatTooOldException e) {
+            // Only streaming reads an index older than Lucene 7 here, and streaming never
+            // releases segments from the index it reads.
+            return false;
+        }
+        return !sourceSegments.containsAll(converted);
+    }
+
+    /**
+     * Writes the contents of the given readers into a new Lucene 8 index. With a disk budget,
+     * only as many segments as fit within it are converted by each call.
+     *
+     * @param tempPath the directory to write the new index into.
+     * @param sourceGeneration the generation of the old index's commit being read.
+     * @param sourceReaders the readers for the segments of the old index which need rewriting,
+     *                      keyed by segment name.
+     * @param carriedSegments the segments of the old index which can be used as they are.
+     * @param sourceCounter the old index's counter for naming segments, so that new segments
+     *                      don't reuse the names of the carried ones.
+     * @return {@code true} if every segment has been converted, or {@code false} if the converted
+     *         segments have to be released from the old index before converting any more.
+     * @throws IOException if an error occurs reading or writing.
+     */
+    boolean writeIndex(Path tempPath, long sourceGeneration, Map<String, CodecReader> sourceReaders,
+                       List<SegmentCommitInfo> carriedSegments, long sourceCounter) throws IOException {
+        try (Directory destinationDirectory = openDirectory(tempPath)) {
+            return writeIndex(null, destinationDirectory, tempPath, sourceGeneration, sourceReaders,
+                              carriedSegments, sourceCounter);
+        }
+    }
+
+    /**
+     * Writes the contents of the given readers into a new Lucene 8 index, as
+     * {@link #writeIndex(Path, long, Map, List, long)} does, into a directory which is already open.
+     *
+     * @param sourceDirectory the directory containing the old index, which carried segments are
+     *                        copied from if it is in memory.
+     * @param destinationDirectory the directory to write the new index into.
+     * @param tempPath the path of the destination directory, or {@code null} if it is in memory.
+     */
+    private boolean writeIndex(Directory sourceDirectory, Directory destinationDirectory, Path tempPath,
+                               long sourceGeneration, Map<String, CodecReader> sourceReaders,
+                               List<SegmentCommitInfo> carriedSegments, long sourceCounter) throws IOException {
         IndexWriterConfig indexWriterConfig = new IndexWriterConfig(new FailAnalyzer());
-        indexWriterConfig.setMergePolicy(new LogByteSizeMergePolicy());
+        // In parallel mode each worker's output is meant to stay a segment of its own.
+        indexWriterConfig.setMergePolicy(config.getThreadCount() > 1 ? NoMergePolicy.INSTANCE : new LogByteSizeMergePolicy());
         indexWriterConfig.setMergeScheduler(new SerialMergeScheduler());
         indexWriterConfig.setInfoStream(new AdaptedInfoStream(infoStream));
+        indexWriterConfig.setCodec(MergeTimingCodec8.wrap(indexWriterConfig.getCodec(),
+                                                          UpgradeMetrics.runningHop(config, path)));
         indexWriterConfig.setIndexCreatedVersionMajor(8);
+        if (config.getIndexSort() != null) {
+            indexWriterConfig.setIndexSort(config.getIndexSort());
+        }
 
-        try (Directory sourceDirectory = FSDirectory.open(path);
-             Directory destinationDirectory = FSDirectory.open(tempPath);
-             IndexReader reader = DirectoryReader.open(sourceDirectory);
-             IndexWriter writer = new IndexWriter(destinationDirectory, indexWriterConfig)) {
+        Set<String> sourceSegments = new HashSet<>(sourceReaders.keySet());
+        carriedSegments.forEach(info -> sourceSegments.add(info.info.name));
+        Set<String> converted = config.isResumable()
+                ? readConvertedSegments(destinationDirectory, tempPath, sourceGeneration, sourceSegments)
+                : Collections.emptySet();
+        if (converted.isEmpty() && !carriedSegments.isEmpty()) {
+            converted = carrySegments(sourceDirectory, tempPath, destinationDirectory, sourceGeneration,
+                                      sourceSegments, carriedSegments, sourceCounter);
+        }
+        if (config.getDiskBudget() > 0 && !converted.containsAll(sourceSegments)
+                && converted.stream().anyMatch(sourceSegments::contains)) {
+            // Converted segments are still taking up space in the old index.
+            return false;
+        }
+        indexWriterConfig.setOpenMode(converted.isEmpty() ? IndexWriterConfig.OpenMode.CREATE
+                                                          : IndexWriterConfig.OpenMode.APPEND);
 
-            CodecReader[] codecReaders = reader.leaves().stream()
-                .map(context -> new VersionOverridingCodecReader((CodecReader) context.reader()))
-                .toArray(CodecReader[]::new);
+        boolean finished = true;
+        try (IndexWriter writer = new IndexWriter(destinationDirectory, indexWriterConfig)) {
+            if (config.isResumable()) {
+                finished = addIndexesResumably(writer, sourceGeneration, sourceSegments, converted, sourceReaders);
+            } else {
+                List<CodecReader> codecReaders = new ArrayList<>();
+                for (Map.Entry<String, CodecReader> entry : sourceReaders.entrySet()) {
+                    if (!converted.contains(entry.getKey())) {
+                        codecReaders.add(toNewSegment(entry.getValue(), config.getIndexSort()));
+                    }
+                }
 
-            writer.addIndexes(codecReaders);
+                if (config.getThreadCount() > 1 && codecReaders.size() > 1) {
+                    addIndexesConcurrently(writer, codecReaders);
+                } else {
+                    addIndexes(writer, UpgradeMetrics.runningHop(config, path), null,
+                               codecReaders.toArray(new CodecReader[0]));
+                }
+            }
             writer.commit();
         }
+        return finished;
+    }
 
+    /**
+     * Swaps the newly written index into the place of the old one. In resumable mode, the
+     * checkpoints are only removed from the new index once it is in place, because until then
+     * they are the only record of what it contains.
+     *
+     * @param tempPath the directory the new index was written into.
+     * @throws IOException if an error occurs.
+     */
+    void replaceIndex(Path tempPath) throws IOException {
+        Path oldPath = path.resolveSibling(path.getFileName() + ".old");
         Files.move(path, oldPath);
         Files.move(tempPath, path);
         FileUtils.insecureRecursiveDelete(oldPath);
+
+        if (config.isResumable()) {
+            IndexWriterConfig indexWriterConfig = new IndexWriterConfig(new FailAnalyzer());
+            indexWriterConfig.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+            indexWriterConfig.setMergePolicy(NoMergePolicy.INSTANCE);
+            indexWriterConfig.setInfoStream(new AdaptedInfoStream(infoStream));
+            try (Directory directory = openDirectory(path);
+                 IndexWriter writer = new IndexWriter(directory, indexWriterConfig)) {
+                writer.setLiveCommitData(Collections.<String, String>emptyMap().entrySet());
+                writer.commit();
+            }
+        }
+    }
+
+    /**
+     * Removes the segments which have been converted from the old index, to give the space
+     * they take up back before converting any more. The old index is committed without them,
+     * and then their files are deleted, along with any others no longer referenced.
+     *
+     * @param tempPath the directory the new index is being written into.
+     * @throws IOException if an error occurs.
+     */
+    private void releaseConvertedSegments(Path tempPath) throws IOException {
+        Set<String> converted;
+        try (Directory destinationDirectory = openDirectory(tempPath)) {
+            converted = splitNames(SegmentInfos.readLatestCommit(destinationDirectory).getUserData().get(CONVERTED_SEGMENTS));
+        }
+
+        try (Directory sourceDirectory = openDirectory(path)) {
+            SegmentInfos sourceInfos = SegmentInfos.readLatestCommit(sourceDirectory);
+            for (SegmentCommitInfo info : new ArrayList<>(sourceInfos.asList())) {
+                if (converted.contains(info.info.name)) {
+                    sourceInfos.remove(info);
+                }
+            }
+            sourceInfos.commit(sourceDirectory);
+
+            Set<String> referenced = new HashSet<>(sourceInfos.files(true));
+            for (String file : sourceDirectory.listAll()) {
+                if ((file.startsWith("_") || file.startsWith(IndexFileNames.SEGMENTS)) && !referenced.contains(file)) {
+                    try {
+                        sourceDirectory.deleteFile(file);
+                    } catch (NoSuchFileException e) {
+                        // Already gone.
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the leaves between the configured number of workers. Each worker merges its
+     * share into one new segment. {@code IndexWriter} is thread-safe, so the workers
+     * can all call {@code addIndexes} on the same writer.
+     */
+    private void addIndexesConcurrently(IndexWriter writer, List<CodecReader> codecReaders) throws IOException {
+        List<List<CodecReader>> groups = ConcurrencyUtils.partition(
+                codecReaders, config.getThreadCount(), CodecReader::maxDoc);
+        HopMetrics metrics = UpgradeMetrics.runningHop(config, path);
+
+        List<Callable<Void>> tasks = new ArrayList<>(groups.size());
+        for (List<CodecReader> group : groups) {
+            tasks.add(() -> {
+                addIndexes(writer, metrics, null, group.toArray(new CodecReader[0]));
+                return null;
+            });
+        }
+
+        ExecutorService executor = ConcurrencyUtils.newFixedThreadPool(groups.size(), "upgrade8-addIndexes");
+        try {
+            ConcurrencyUtils.invokeAll(executor, tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds readers to the new index as one new segment, measuring it when there are metrics.
+     *
+     * @param segmentName the name of the old segment being rewritten, or {@code null} if the
+     *                    new segment is being merged from more than one.
+     */
+    private static void addIndexes(IndexWriter writer, HopMetrics metrics, String segmentName,
+                                   CodecReader... readers) throws IOException {
+        if (metrics == null) {
+            writer.addIndexes(readers);
+            return;
+        }
+        metrics.beginSegment(segmentName);
+        long documents = 0;
+        try {
+            writer.addIndexes(readers);
+            for (CodecReader reader : readers) {
+                documents += reader.numDocs();
+            }
+        } finally {
+            metrics.endSegment(documents);
+        }
+    }
+
+    /**
+     * Tests whether a segment can go into the new index as it is. Lucene 8 won't accept
+     * segments into an index created by Lucene 8 if they hold any data written by Lucene 7,
+     * so this depends on the oldest version which went into the segment, not the newest.
+     */
+    private static boolean isAlreadyCurrent(SegmentCommitInfo info) {
+        Version minVersion = info.info.getMinVersion();
+        return minVersion != null && minVersion.major >= 8;
+    }
+
+    /**
+     * Presents an old segment as one written by Lucene 8. With an index sort, Lucene 8 only
+     * accepts segments which are already sorted by it, so any other segment is sorted as it
+     * is read.
+     */
+    private static CodecReader toNewSegment(CodecReader reader, Sort indexSort) throws IOException {
+        CodecReader newReader = new VersionOverridingCodecReader(reader);
+        if (indexSort != null && !indexSort.equals(newReader.getMetaData().getSort())) {
+            newReader = SortingCodecReader.wrap(newReader, indexSort);
+        }
+        return newReader;
+    }
+
+    /**
+     * Tests whether a segment is already sorted the way the new index has to be. Without an
+     * index sort, any segment will do.
+     */
+    private boolean isSortedForNewIndex(SegmentCommitInfo info) {
+        Sort indexSort = config.getIndexSort();
+        return indexSort == null || indexSort.equals(info.info.getIndexSort());
+    }
+
+    /**
+     * Starts the new index off with the segments which don't need rewriting. Their files are
+     * hard linked where possible, or copied otherwise, and then committed as the first
+     * generation of the new index. An index in memory always has its files copied.
+     *
+     * @return the names of the carried segments.
+     */
+    private Set<String> carrySegments(Directory sourceDirectory, Path tempPath, Directory destinationDirectory,
+                                      long sourceGeneration, Set<String> sourceSegments,
+                                      List<SegmentCommitInfo> carriedSegments, long sourceCounter) throws IOException {
+        if (memoryIndex == null) {
+            // Anything left behind would get mixed up with the new commit.
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempPath)) {
+                for (Path child : stream) {
+                    FileUtils.insecureRecursiveDelete(child);
+                }
+            }
+        }
+
+        SegmentInfos infos = new SegmentInfos(8);
+        infos.counter = sourceCounter;
+        Set<String> names = new LinkedHashSet<>();
+        List<String> files = new ArrayList<>();
+        for (SegmentCommitInfo info : carriedSegments) {
+            for (String file : info.files()) {
+                if (memoryIndex != null) {
+                    destinationDirectory.copyFrom(sourceDirectory, file, file, IOContext.READONCE);
+                } else {
+                    linkOrCopy(path.resolve(file), tempPath.resolve(file));
+                }
+                files.add(file);
+            }
+            infos.add(info);
+            names.add(info.info.name);
+        }
+        destinationDirectory.sync(files);
+
+        if (config.isResumable()) {
+            infos.setUserData(checkpointData(sourceGeneration, sourceSegments, names), false);
+        }
+        infos.commit(destinationDirectory);
+        return names;
+    }
+
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            // Different file systems, or one without hard links.
+            Files.copy(source, target);
+        }
+    }
+
+    private static Map<String, String> checkpointData(long sourceGeneration, Set<String> sourceSegments,
+                                                      Set<String> converted) {
+        Map<String, String> userData = new HashMap<>();
+        userData.put(SOURCE_GENERATION, Long.toString(sourceGeneration));
+        userData.put(SOURCE_SEGMENTS, String.join(",", sourceSegments));
+        userData.put(CONVERTED_SEGMENTS, String.join(",", converted));
+        return userData;
+    }
+
+    private static Set<String> splitNames(String names) {
+        return names == null || names.isEmpty() ? new LinkedHashSet<>()
+                                                : new LinkedHashSet<>(Arrays.asList(names.split(",")));
+    }
+
+    /**
+     * Reads which segments an earlier attempt already converted, from the last checkpoint
+     * committed to the partially written index. The checkpoint is only used if the old index
+     * is still the one it was made from, or that one with converted segments released from it.
+     *
+     * @return the names of the converted segments, or an empty set if there is nothing
+     *         usable to continue from.
+     * @throws IOException if the checkpoint doesn't match, but segments may already have been
+     *         released from the old index, so starting again would lose them.
+     */
+    private Set<String> readConvertedSegments(Directory directory, Path tempPath, long sourceGeneration,
+                                              Set<String> sourceSegments) throws IOException {
+        Map<String, String> userData;
+        try {
+            if (!DirectoryReader.indexExists(directory)) {
+                return Collections.emptySet();
+            }
+            userData = SegmentInfos.readLatestCommit(directory).getUserData();
+        } catch (IOException e) {
+            // Whatever is there can't be trusted, so start again.
+            return Collections.emptySet();
+        }
+        String recordedGeneration = userData.get(SOURCE_GENERATION);
+        Set<String> converted = splitNames(userData.get(CONVERTED_SEGMENTS));
+        if (recordedGeneration == null || converted.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        Set<String> recordedSegments = splitNames(userData.get(SOURCE_SEGMENTS));
+        Set<String> unconverted = new HashSet<>(recordedSegments);
+        unconverted.removeAll(converted);
+        long generation = Long.parseLong(recordedGeneration);
+        boolean matches = generation == sourceGeneration
+                ? recordedSegments.equals(sourceSegments)
+                : generation + 1 == sourceGeneration && !recordedSegments.equals(sourceSegments)
+                  && recordedSegments.containsAll(sourceSegments) && sourceSegments.containsAll(unconverted);
+        if (matches) {
+            return converted;
+        }
+        if (config.getDiskBudget() > 0) {
+            throw new IOException("The partially upgraded index at " + tempPath + " doesn't match the index at " +
+                                  path + ". Move it out of the way to start the upgrade again.");
+        }
+        // A different index has been put in place since.
+        return Collections.emptySet();
+    }
+
+    /**
+     * Converts each segment not converted by an earlier attempt, committing a checkpoint after
+     * each one. With more than one thread, the segments are split between the workers, and a
+     * checkpoint waits for the segments already being converted by other workers, so that each
+     * commit contains exactly the segments it lists. With a disk budget, only the segments which
+     * fit within it are converted.
+     *
+     * @return {@code true} if no segments are left to convert.
+     */
+    private boolean addIndexesResumably(IndexWriter writer, long sourceGeneration, Set<String> sourceSegments,
+                                        Set<String> converted, Map<String, CodecReader> sourceReaders) throws IOException {
+        List<Map.Entry<String, CodecReader>> remaining = sourceReaders.entrySet().stream()
+                .filter(entry -> !converted.contains(entry.getKey()))
+                .collect(Collectors.toList());
+        List<Map.Entry<String, CodecReader>> batch = selectBatch(remaining);
+        Checkpointer checkpointer = new Checkpointer(writer, UpgradeMetrics.runningHop(config, path),
+                                                     sourceGeneration, sourceSegments, converted);
+
+        List<List<Map.Entry<String, CodecReader>>> groups = ConcurrencyUtils.partition(
+                batch, config.getThreadCount(), entry -> entry.getValue().maxDoc());
+        if (groups.size() <= 1) {
+            for (Map.Entry<String, CodecReader> entry : batch) {
+                checkpointer.convert(entry.getKey(), entry.getValue());
+            }
+            return batch.size() == remaining.size();
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(groups.size());
+        for (List<Map.Entry<String, CodecReader>> group : groups) {
+            tasks.add(() -> {
+                for (Map.Entry<String, CodecReader> entry : group) {
+                    checkpointer.convert(entry.getKey(), entry.getValue());
+                }
+                return null;
+            });
+        }
+
+        ExecutorService executor = ConcurrencyUtils.newFixedThreadPool(groups.size(), "upgrade8-addIndexes");
+        try {
+            ConcurrencyUtils.invokeAll(executor, tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+        return batch.size() == remaining.size();
+    }
+
+    /**
+     * Takes segments from the front of the list until the disk budget is used up, always
+     * taking at least one so that progress is made however small the budget is.
+     */
+    private List<Map.Entry<String, CodecReader>> selectBatch(List<Map.Entry<String, CodecReader>> remaining)
+            throws IOException {
+        long budget = config.getDiskBudget();
+        if (budget <= 0) {
+            return remaining;
+        }
+        List<Map.Entry<String, CodecReader>> batch = new ArrayList<>();
+        long total = 0;
+        for (Map.Entry<String, CodecReader> entry : remaining) {
+            CodecReader reader = entry.getValue();
+            // Readers from other versions go through adapters which don't know their size.
+            long size = reader instanceof SegmentReader ? ((SegmentReader) reader).getSegmentInfo().sizeInBytes() : 0;
+            if (!batch.isEmpty() && total + size > budget) {
+                break;
+            }
+            batch.add(entry);
+            total += size;
+        }
+        return batch;
+    }
+
+    /**
+     * Converts segments one at a time and commits a record of which ones are done.
+     */
+    private static class Checkpointer {
+        private final IndexWriter writer;
+        private final HopMetrics metrics;
+        private final long sourceGeneration;
+        private final Set<String> sourceSegments;
+        private final Set<String> converted;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private Checkpointer(IndexWriter writer, HopMetrics metrics, long sourceGeneration,
+                             Set<String> sourceSegments, Set<String> converted) {
+            this.writer = writer;
+            this.metrics = metrics;
+            this.sourceGeneration = sourceGeneration;
+            this.sourceSegments = sourceSegments;
+            this.converted = Collections.synchronizedSet(new LinkedHashSet<>(converted));
+        }
+
+        private void convert(String segmentName, CodecReader reader) throws IOException {
+            // Conversions share the lock, and a commit takes it exclusively. A segment is added
+            // to the list before the lock is released, so no commit can contain it unlisted.
+            lock.readLock().lock();
+            try {
+                addIndexes(writer, metrics, segmentName, toNewSegment(reader, writer.getConfig().getIndexSort()));
+                converted.add(segmentName);
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            lock.writeLock().lock();
+            try {
+                writer.setLiveCommitData(checkpointData(sourceGeneration, sourceSegments, converted).entrySet());
+                writer.commit();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
     }
 
     /**
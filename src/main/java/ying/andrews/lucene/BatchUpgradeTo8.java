@@ -0,0 +1,525 @@
+package ying.andrews.lucene;
+
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.trypticon.luceneupgrader.ArchiveUpgrader;
+import org.trypticon.luceneupgrader.HopMetrics;
+import org.trypticon.luceneupgrader.IndexArchive;
+import org.trypticon.luceneupgrader.IndexUpgrader;
+import org.trypticon.luceneupgrader.InfoStream;
+import org.trypticon.luceneupgrader.LuceneVersion;
+import org.trypticon.luceneupgrader.UpgradeConfig;
+import org.trypticon.luceneupgrader.UpgradeMetrics;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A non-interactive version of {@link UpgradeTo8} for upgrading many indexes at once.
+ *
+ * Indexes are found by searching the given root directories, or listed one per line in a
+ * manifest file. An index in a zip or tar archive is upgraded into a new archive of the same
+ * kind, replacing the old one. They are upgraded concurrently, with a limit on the total number in progress
+ * and a separate limit for each file store, so that every disk is kept busy without any one
+ * of them being thrashed. A summary of every index is printed at the end.
+ */
+public class BatchUpgradeTo8 {
+
+    private static final String USAGE =
+            "Usage: BatchUpgradeTo8 [options] (--manifest <file> | <root directory>...)\n" +
+            "Options:\n" +
+            "  --jobs <n>             number of indexes to upgrade at once (default: number of cores)\n" +
+            "  --jobs-per-disk <n>    number of indexes to upgrade at once on the same disk (default: 1)\n" +
+            "  --threads <n>          worker threads for each index (default: 1)\n" +
+            "  --preserve-segments    rewrite old segments one by one instead of merging them\n" +
+            "  --merge-parts          write the parts of each merged segment at the same time\n" +
+            "  --streaming            upgrade 3.x to 6.x indexes with fewer intermediate copies\n" +
+            "  --archives             also upgrade indexes in .zip, .tar, .tar.gz and .tgz files found under the roots\n" +
+            "  --resumable            checkpoint progress so an interrupted upgrade can resume\n" +
+            "  --disk-budget <size>   extra disk space each index may use, like 500m or 2g (default: no limit)\n" +
+            "  --in-memory <size>     upgrade indexes up to this size in memory, writing only the final index\n" +
+            "  --memory-budget <size> memory each index upgraded in memory may use (default: half the heap, split between jobs)\n" +
+            "  --scratch <dir>        run intermediate steps in this directory, writing only the final index back\n" +
+            "  --index-sort <fields>  sort the upgraded index by doc values fields, like timestamp:long:desc,id:string\n" +
+            "  --trie-points <fields> give legacy numeric (trie) fields point values in the step to 7, like price,timestamp\n" +
+            "  --max-mb-per-sec <n>   limit on reading and writing, shared by all indexes (default: no limit)\n" +
+            "  --adaptive-throttle    slow down further while the disks are busy with other work\n" +
+            "  --metrics <file>       write timings and I/O for every step to a JSON file, and publish them over JMX\n" +
+            "  --plan                 only print what upgrading each index would do\n";
+
+    private static final Map<String, SortField.Type> SORT_TYPES = new HashMap<>();
+
+    static {
+        SORT_TYPES.put("long", SortField.Type.LONG);
+        SORT_TYPES.put("int", SortField.Type.INT);
+        SORT_TYPES.put("double", SortField.Type.DOUBLE);
+        SORT_TYPES.put("float", SortField.Type.FLOAT);
+        SORT_TYPES.put("string", SortField.Type.STRING);
+    }
+
+    private int jobs = Runtime.getRuntime().availableProcessors();
+
+    private int jobsPerDisk = 1;
+
+    private final UpgradeConfig config = new UpgradeConfig();
+
+    private final List<Path> roots = new ArrayList<>();
+
+    private Path manifest;
+
+    private boolean planOnly;
+
+    private boolean archives;
+
+    private Path metricsFile;
+
+    private UpgradeMetrics metrics;
+
+    public static void main(String[] args) {
+        BatchUpgradeTo8 batch = new BatchUpgradeTo8();
+        try {
+            batch.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+
+        try {
+            List<Result> results = batch.run();
+            if (!batch.planOnly) {
+                printSummary(results, batch.metrics);
+            }
+            if (results.stream().anyMatch(result -> result.failure != null)) {
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            System.err.println("Batch upgrade failed!");
+            System.err.println(e.getLocalizedMessage());
+            System.exit(1);
+        }
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--jobs":
+                    jobs = parsePositive(args, ++i);
+                    break;
+                case "--jobs-per-disk":
+                    jobsPerDisk = parsePositive(args, ++i);
+                    break;
+                case "--threads":
+                    config.setThreadCount(parsePositive(args, ++i));
+                    break;
+                case "--preserve-segments":
+                    config.setPreserveSegments(true);
+                    break;
+                case "--merge-parts":
+                    config.setConcurrentMergeParts(true);
+                    break;
+                case "--streaming":
+                    config.setStreaming(true);
+                    break;
+                case "--archives":
+                    archives = true;
+                    break;
+                case "--resumable":
+                    config.setResumable(true);
+                    break;
+                case "--disk-budget":
+                    config.setDiskBudget(parseSize(args, ++i));
+                    break;
+                case "--in-memory":
+                    config.setInMemoryThreshold(parseSize(args, ++i));
+                    break;
+                case "--memory-budget":
+                    config.setMemoryBudget(parseSize(args, ++i));
+                    break;
+                case "--scratch":
+                    config.setScratchDirectory(Paths.get(argumentAt(args, ++i)));
+                    break;
+                case "--index-sort":
+                    config.setIndexSort(parseSort(args, ++i));
+                    break;
+                case "--trie-points":
+                    config.setLegacyNumericFields(Arrays.asList(argumentAt(args, ++i).split(",")));
+                    break;
+                case "--max-mb-per-sec":
+                    config.setMaxMBPerSec(parseRate(args, ++i));
+                    break;
+                case "--adaptive-throttle":
+                    config.setAdaptiveThrottle(true);
+                    break;
+                case "--metrics":
+                    metricsFile = Paths.get(argumentAt(args, ++i));
+                    break;
+                case "--plan":
+                    planOnly = true;
+                    break;
+                case "--manifest":
+                    manifest = Paths.get(argumentAt(args, ++i));
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    }
+                    roots.add(Paths.get(args[i]));
+            }
+        }
+        if (manifest == null && roots.isEmpty()) {
+            throw new IllegalArgumentException("No indexes given.");
+        }
+        if (config.getInMemoryThreshold() > 0 && config.getMemoryBudget() == 0) {
+            // Leave room for everything else the upgrades hold on the heap.
+            config.setMemoryBudget(Math.max(1, Runtime.getRuntime().maxMemory() / 2 / jobs));
+        }
+    }
+
+    private static String argumentAt(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    private static int parsePositive(String[] args, int index) {
+        String value = argumentAt(args, index);
+        try {
+            int number = Integer.parseInt(value);
+            if (number >= 1) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the error below.
+        }
+        throw new IllegalArgumentException("Expected a positive number for " + args[index - 1] + " but got: " + value);
+    }
+
+    private static long parseSize(String[] args, int index) {
+        String value = argumentAt(args, index);
+        String digits = value.toLowerCase(Locale.ROOT);
+        long unit = 1;
+        int suffix = digits.isEmpty() ? -1 : "kmgt".indexOf(digits.charAt(digits.length() - 1));
+        if (suffix >= 0) {
+            unit = 1L << (10 * (suffix + 1));
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            long number = Long.parseLong(digits);
+            if (number >= 1) {
+                return number * unit;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the error below.
+        }
+        throw new IllegalArgumentException("Expected a size for " + args[index - 1] + " but got: " + value);
+    }
+
+    private static double parseRate(String[] args, int index) {
+        String value = argumentAt(args, index);
+        try {
+            double number = Double.parseDouble(value);
+            if (number > 0 && !Double.isInfinite(number)) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Falls through to the error below.
+        }
+        throw new IllegalArgumentException("Expected a positive rate for " + args[index - 1] + " but got: " + value);
+    }
+
+    /**
+     * Parses a comma-separated list of sort fields, each a field name optionally followed by
+     * {@code :long}, {@code :int}, {@code :double}, {@code :float} or {@code :string} for the
+     * type of its doc values (long by default) and then {@code :desc} to reverse it.
+     */
+    private static Sort parseSort(String[] args, int index) {
+        String value = argumentAt(args, index);
+        List<SortField> sortFields = new ArrayList<>();
+        for (String spec : value.split(",")) {
+            String[] parts = spec.split(":");
+            boolean reverse = parts.length > 1 && parts[parts.length - 1].equals("desc");
+            int typeCount = parts.length - 1 - (reverse ? 1 : 0);
+            SortField.Type type = typeCount == 0 ? SortField.Type.LONG : SORT_TYPES.get(parts[1]);
+            if (parts[0].isEmpty() || typeCount > 1 || type == null) {
+                throw new IllegalArgumentException("Expected a sort field for " + args[index - 1] + " but got: " + spec);
+            }
+            sortFields.add(new SortField(parts[0], type, reverse));
+        }
+        return new Sort(sortFields.toArray(new SortField[0]));
+    }
+
+    /**
+     * Finds the indexes and upgrades all of them.
+     *
+     * @return the result for each index, in the order the indexes were found.
+     * @throws IOException if an error occurs finding the indexes.
+     */
+    private List<Result> run() throws IOException {
+        List<Path> indexes = manifest != null ? readManifest(manifest) : new ArrayList<>();
+        for (Path root : roots) {
+            indexes.addAll(findIndexes(root, archives));
+        }
+        System.out.println("Found " + indexes.size() + " indexes to upgrade to Version 8.8.1");
+
+        if (planOnly) {
+            printPlans(indexes);
+            return new ArrayList<>();
+        }
+
+        // Always collected, for the bytes read and written in the summary.
+        metrics = new UpgradeMetrics();
+        config.setMetrics(metrics);
+        if (metricsFile != null) {
+            try {
+                metrics.registerMBean("batch");
+            } catch (JMException e) {
+                System.err.println("Couldn't publish metrics over JMX: " + e.getLocalizedMessage());
+            }
+        }
+
+        // Largest first within each disk, so that the long upgrades don't end up running last.
+        Map<FileStore, Deque<Result>> pendingByStore = new LinkedHashMap<>();
+        List<Result> results = new ArrayList<>(indexes.size());
+        for (Path index : indexes) {
+            Result result = new Result(index);
+            results.add(result);
+            try {
+                result.sizeBefore = directorySize(index);
+                pendingByStore.computeIfAbsent(Files.getFileStore(index), store -> new ArrayDeque<>()).add(result);
+            } catch (IOException e) {
+                result.failure = e;
+            }
+        }
+        for (Deque<Result> pending : pendingByStore.values()) {
+            List<Result> sorted = new ArrayList<>(pending);
+            sorted.sort(Comparator.comparingLong((Result result) -> result.sizeBefore).reversed());
+            pending.clear();
+            pending.addAll(sorted);
+        }
+
+        try {
+            new Scheduler(pendingByStore).runAll();
+        } finally {
+            if (metricsFile != null) {
+                metrics.writeJson(metricsFile);
+            }
+        }
+        return results;
+    }
+
+    private void printPlans(List<Path> indexes) {
+        for (Path index : indexes) {
+            System.out.println();
+            System.out.println(index);
+            if (isArchive(index)) {
+                System.out.println("  archived, so only worked out when it is upgraded");
+                continue;
+            }
+            try {
+                System.out.print(new IndexUpgrader(index, InfoStream.NO_OUTPUT, config).plan(LuceneVersion.VERSION_8));
+            } catch (Exception e) {
+                System.out.println("  can't plan: " + e);
+            }
+        }
+    }
+
+    private static List<Path> readManifest(Path manifest) throws IOException {
+        try (Stream<String> lines = Files.lines(manifest)) {
+            return lines.map(String::trim)
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .map(Paths::get)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Finds every directory under the root which contains an index, and optionally every
+     * archive. The working directories left next to an index by an interrupted upgrade are
+     * not counted as indexes themselves.
+     */
+    private static List<Path> findIndexes(Path root, boolean archives) throws IOException {
+        List<Path> indexes = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (archives && attrs.isRegularFile() && IndexArchive.isArchive(file)) {
+                    indexes.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String name = String.valueOf(dir.getFileName());
+                if (name.endsWith(".tmp") || name.endsWith(".old")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                try (Stream<Path> children = Files.list(dir)) {
+                    if (children.anyMatch(BatchUpgradeTo8::isSegmentsFile)) {
+                        indexes.add(dir);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return indexes;
+    }
+
+    private static boolean isArchive(Path path) {
+        return IndexArchive.isArchive(path) && Files.isRegularFile(path);
+    }
+
+    private static boolean isSegmentsFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.equals("segments") || (name.startsWith("segments_") && Files.isRegularFile(path));
+    }
+
+    private static long directorySize(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            long size = 0;
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file)) {
+                    size += Files.size(file);
+                }
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Prints how each index went, with the bytes its steps read and wrote.
+     */
+    private static void printSummary(List<Result> results, UpgradeMetrics metrics) {
+        System.out.println();
+        System.out.println(String.format("%-10s %10s %14s %14s %14s %14s  %s",
+                "STATUS", "SECONDS", "SIZE BEFORE", "SIZE AFTER", "BYTES READ", "BYTES WRITTEN", "INDEX"));
+        int failed = 0;
+        for (Result result : results) {
+            if (result.failure != null) {
+                failed++;
+            }
+            String status = result.failure == null ? "upgraded" : "FAILED";
+            List<HopMetrics> hops = metrics.getHops().stream()
+                    .filter(hop -> hop.getIndex().equals(result.index))
+                    .collect(Collectors.toList());
+            System.out.println(String.format("%-10s %10.1f %14d %14d %14d %14d  %s",
+                    status, result.nanos / 1e9, result.sizeBefore, result.sizeAfter,
+                    hops.stream().mapToLong(HopMetrics::getBytesRead).sum(),
+                    hops.stream().mapToLong(HopMetrics::getBytesWritten).sum(), result.index));
+            if (result.failure != null) {
+                System.out.println("           " + result.failure);
+            }
+        }
+        System.out.println();
+        System.out.println((results.size() - failed) + " upgraded, " + failed + " failed");
+    }
+
+    /**
+     * Hands indexes to the workers, only starting one when both the overall limit and
+     * the limit for its file store allow it.
+     */
+    private class Scheduler {
+        private final Map<FileStore, Deque<Result>> pendingByStore;
+        private final Map<FileStore, Integer> runningByStore = new HashMap<>();
+        private int running;
+
+        private Scheduler(Map<FileStore, Deque<Result>> pendingByStore) {
+            this.pendingByStore = pendingByStore;
+        }
+
+        private void runAll() throws IOException {
+            ExecutorService executor = Executors.newFixedThreadPool(jobs);
+            try {
+                synchronized (this) {
+                    while (true) {
+                        boolean started = false;
+                        for (Map.Entry<FileStore, Deque<Result>> entry : pendingByStore.entrySet()) {
+                            FileStore store = entry.getKey();
+                            Deque<Result> pending = entry.getValue();
+                            if (running < jobs && !pending.isEmpty() && runningByStore.getOrDefault(store, 0) < jobsPerDisk) {
+                                Result result = pending.poll();
+                                running++;
+                                runningByStore.merge(store, 1, Integer::sum);
+                                executor.execute(() -> upgrade(store, result));
+                                started = true;
+                            }
+                        }
+                        if (running == 0 && pendingByStore.values().stream().allMatch(Deque::isEmpty)) {
+                            break;
+                        }
+                        if (!started) {
+                            wait();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for upgrades to finish", e);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        private void upgrade(FileStore store, Result result) {
+            long start = System.nanoTime();
+            try {
+                System.out.println("Upgrading " + result.index);
+                if (isArchive(result.index)) {
+                    new ArchiveUpgrader(result.index, InfoStream.NO_OUTPUT, config).upgradeTo(LuceneVersion.VERSION_8);
+                } else {
+                    new IndexUpgrader(result.index, InfoStream.NO_OUTPUT, config).upgradeTo(LuceneVersion.VERSION_8);
+                }
+                result.sizeAfter = directorySize(result.index);
+            } catch (Exception | Error e) {
+                // Errors too, since a codec which fails to load shouldn't look like a success.
+                result.failure = e;
+            } finally {
+                result.nanos = System.nanoTime() - start;
+                synchronized (this) {
+                    running--;
+                    runningByStore.merge(store, -1, Integer::sum);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * What happened to one index.
+     */
+    private static class Result {
+        private final Path index;
+        private long sizeBefore;
+        private long sizeAfter;
+        private long nanos;
+        private Throwable failure;
+
+        private Result(Path index) {
+            this.index = index;
+        }
+    }
+}